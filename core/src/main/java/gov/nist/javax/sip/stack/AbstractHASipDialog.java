@@ -23,18 +23,21 @@
 package gov.nist.javax.sip.stack;
 
 import gov.nist.core.CommonLogger;
+import gov.nist.core.Separators;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.header.Contact;
+import gov.nist.javax.sip.header.RecordRouteList;
 import gov.nist.javax.sip.header.Route;
 import gov.nist.javax.sip.header.RouteList;
 import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.extensions.SessionExpiresHeader;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.parser.EventParser;
 
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -47,13 +50,19 @@ import javax.sip.SipException;
 import javax.sip.SipFactory;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
+import javax.sip.header.CSeqHeader;
 import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentLengthHeader;
 import javax.sip.header.EventHeader;
 import javax.sip.header.HeaderFactory;
+import javax.sip.message.Request;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.ReplicationStrategy;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 /**
  * @author jean.deruelle@gmail.com
@@ -84,6 +93,9 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	public static final String DIALOG_METHOD = "dm";
 	public static final String ENABLE_CSEQ_VALIDATION = "dc";
 	public static final String DIALOG_STATE = "ds";
+	public static final String OWNER = "own";
+	public static final String OWNERSHIP_LEASE_EXPIRATION = "ole";
+	public static final String LAST_RESPONSE_FINGERPRINT = "lrf";
 
 	public boolean b2buaChanged;
 	public boolean eventChanged;	
@@ -99,6 +111,30 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	boolean isCreated = false;
 	private AtomicLong version = new AtomicLong(0);
 	private String lastResponseStringified = null;
+	// the last response is only stringified when it is replicated, see getLastResponseStringified()
+	private SIPResponse lastResponseToStringify = null;
+	private long lastResponseFingerprint;
+	// values of the fields sent with the last replication, used to compute the delta to replicate
+	private long replicatedLastResponseFingerprint;
+	private String[] replicatedRoutes = null;
+	private boolean replicatedLatestTxServer;
+	private String replicatedRemoteTag = null;
+	private String replicatedLocalTag = null;
+	private long replicatedRemoteCSeq = -1;
+	private long replicatedLocalCSeq = -1;
+	// node that replicated the dialog last and until when it is assumed to be the only one updating it
+	private volatile String owner = null;
+	private volatile long ownershipLeaseExpiration = 0;
+	private volatile long lastAccessedTime = System.currentTimeMillis();
+	// the version last written to or read from the cache
+	private volatile long replicatedVersion = -1;
+	// session interval in seconds negotiated by the last successful session refresh, 0 if session timers are not used
+	private volatile int sessionExpires = 0;
+	// changes encoded and not written to the cache yet when the dialogs are written asynchronously, guarded by this
+	private volatile byte[] pendingMetaData;
+	// set when changes couldn't be written to the cache, the changed flags being reset once encoded 
+	// the next write carries the full state of the dialog instead of a delta, guarded by this
+	private volatile boolean fullStateRequired;
 	
 	static {		
 		try {
@@ -148,61 +184,149 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 //		ackSeen = true;
 	}			
 
-	@SuppressWarnings("unchecked")
 	public Map<String,Object> getMetaDataToReplicate() {
-		Map<String,Object> dialogMetaData = new HashMap<String,Object>();
-		dialogMetaData.put(VERSION, Long.valueOf(version.incrementAndGet()));
+		return writeMetaDataToReplicate(DialogStateCodec.getInstance(), false).toMap();
+	}
+	
+	// The encoding methods synchronize on the dialog rather than on a lock of their own: the encoding reads state that jain-sip
+	// guards with the dialog monitor, such as the route list, and replicateState is called by jain-sip with that monitor held,
+	// so a separate lock would be taken in the opposite order by the writer threads encoding the full state.
+	// Nothing waits inside them, so a virtual writer thread is never parked while pinned to its carrier.
+
+	/**
+	 * Returns the pending changes if any, see {@link #encodePendingMetaData()},
+	 * or the full state of the dialog if the last changes couldn't be written, see {@link #stateNotStored()}
+	 */
+	public synchronized byte[] getEncodedMetaDataToReplicate() {
+		if(fullStateRequired) {
+			// the full state includes the pending changes
+			fullStateRequired = false;
+			pendingMetaData = null;
+			return writeMetaDataToReplicate(DialogStateCodec.getInstance(), true, true).toByteArray();
+		}
+		final byte[] metaData = pendingMetaData;
+		if(metaData != null) {
+			pendingMetaData = null;
+			return metaData;
+		}
+		return writeMetaDataToReplicate(DialogStateCodec.getInstance(), false).toByteArray();
+	}
+	
+	/**
+	 * The full state keeps the version of the changes encoded last, it replaces them when they can't be applied
+	 */
+	public synchronized byte[] getEncodedMetaDataToReplicate(boolean fullState) {
+		if(fullState) {
+			// the full state includes the pending changes
+			fullStateRequired = false;
+			pendingMetaData = null;
+			return writeMetaDataToReplicate(DialogStateCodec.getInstance(), true, false).toByteArray();
+		}
+		return writeMetaDataToReplicate(DialogStateCodec.getInstance(), false).toByteArray();
+	}
+	
+	/**
+	 * Encodes the changes of the dialog on the calling thread and merges them with the ones not written yet,
+	 * they are written to the cache later on by a writer of the {@link org.mobicents.ha.javax.sip.DialogWriteBehindQueue}
+	 */
+	protected synchronized void encodePendingMetaData() {
+		final byte[] metaData = writeMetaDataToReplicate(DialogStateCodec.getInstance(), false).toByteArray();
+		try {
+			pendingMetaData = pendingMetaData != null ? DialogStateCodec.merge(pendingMetaData, metaData) : metaData;
+		} catch (SipCacheException e) {
+			logger.logError(getDialogIdToReplicate() + " : couldn't merge the pending changes, the full state will be written", e);
+			pendingMetaData = null;
+			fullStateRequired = true;
+		}
+	}
+	
+	public boolean hasPendingState() {
+		return pendingMetaData != null || fullStateRequired;
+	}
+	
+	public synchronized void stateNotStored() {
+		fullStateRequired = true;
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(getDialogIdToReplicate() + " : version " + version + " not stored, the full state will be written next time");
+		}
+	}
+	
+	protected DialogStateCodec writeMetaDataToReplicate(DialogStateCodec dialogMetaData, boolean fullState) {
+		return writeMetaDataToReplicate(dialogMetaData, fullState, true);
+	}
+	
+	/**
+	 * Writes the dialog fields to replicate into the codec passed in param, this increments the version of the dialog 
+	 * if requested and resets the changed flags.
+	 * When delta replication is enabled on the stack, only the fields that changed since the last replication are written,
+	 * unless the full state is requested
+	 * @param dialogMetaData the codec to write the fields into
+	 * @param fullState true to write all the fields of the dialog whatever the changed flags
+	 * @param newVersion false to keep the current version, when writing again the changes already encoded with it
+	 * @return the codec passed in param
+	 */
+	@SuppressWarnings("unchecked")
+	protected DialogStateCodec writeMetaDataToReplicate(DialogStateCodec dialogMetaData, boolean fullState, boolean newVersion) {
+		dialogMetaData.putLong(VERSION, newVersion ? version.incrementAndGet() : version.get());
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : version " + version);
 		}
-		if(dialogStateChanged) {
-			dialogMetaData.put(DIALOG_STATE, Integer.valueOf(getState().getValue()));
+		boolean firstTimeReplication = version.get() == 1;
+		final boolean delta = !fullState && !firstTimeReplication && getStackExt() != null && getStackExt().isDialogDeltaReplication();
+		dialogMetaData.setFullState(!delta);
+		if(dialogStateChanged || fullState) {
+			dialogMetaData.putLong(DIALOG_STATE, getState().getValue());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : dialogState " + getState());
 			}
 			dialogStateChanged = false;
 		}
-		boolean firstTimeReplication = version.get() == 1;		
-		if(firstTimeReplication) {
+		if(firstTimeReplication || fullState) {
 			dialogMetaData.put(DIALOG_METHOD, getMethod());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : dialog method " + getMethod());
 			}
 		}
-		dialogMetaData.put(LAST_RESPONSE, getLastResponseStringified());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : lastResponse " + getLastResponseStringified());
+		// retransmissions clear the stringified response as well, the fingerprint tells whether it actually changed
+		if(!delta || lastResponseFingerprint != replicatedLastResponseFingerprint) {
+			final String lastResponse = getLastResponseStringified();
+			dialogMetaData.put(LAST_RESPONSE, lastResponse);
+			// the node recovering the dialog may only get the skeleton of the response, it restores the fingerprint of the original one
+			dialogMetaData.putLong(LAST_RESPONSE_FINGERPRINT, lastResponseFingerprint);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : lastResponse " + lastResponse);
+			}
+			replicatedLastResponseFingerprint = lastResponseFingerprint;
 		}
-		if(isReinviteChanged) {
-			dialogMetaData.put(IS_REINVITE, isReInvite());
+		if(isReinviteChanged || fullState) {
+			dialogMetaData.putBoolean(IS_REINVITE, isReInvite());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isReInvite " + isReInvite());
 			}
 			isReinviteChanged = false;
 		}
-		final List<SIPHeader> routeList = new ArrayList<SIPHeader>();
+		final List<String> routeList = new ArrayList<String>();
 		final Iterator<SIPHeader> it = getRouteSet();
 		while (it.hasNext()) {
 			SIPHeader sipHeader = (SIPHeader) it.next();
-			routeList.add(sipHeader);
-		}
-		final String[] routes = new String[routeList.size()];
-		int i = 0;
-		for (SIPHeader sipHeader : routeList) {
-			routes[i++] = sipHeader.getHeaderValue().toString();
+			routeList.add(sipHeader.getHeaderValue().toString());
 		}
-		dialogMetaData.put(ROUTE_LIST, routes);
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : routes " + routes);
+		final String[] routes = routeList.toArray(new String[routeList.size()]);
+		if(!delta || !Arrays.equals(routes, replicatedRoutes)) {
+			dialogMetaData.put(ROUTE_LIST, routes);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : routes " + routes);
+			}
+			replicatedRoutes = routes;
 		}
-		if(terminateOnByeChanged) {
-			dialogMetaData.put(TERMINATE_ON_BYE, Boolean.valueOf(isTerminatedOnBye()));
+		if(terminateOnByeChanged || fullState) {
+			dialogMetaData.putBoolean(TERMINATE_ON_BYE, isTerminatedOnBye());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : terminateOnBye " + isTerminatedOnBye());
 			}
 			terminateOnByeChanged = false;
 		}
-		if(remoteTargetChanged) {
+		if(remoteTargetChanged || fullState) {
 			if(getRemoteTarget() != null) {
 				dialogMetaData.put(REMOTE_TARGET, getRemoteTarget().toString());
 			} else {
@@ -213,7 +337,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			}		
 			remoteTargetChanged = false;
 		}
-		if(eventChanged) {
+		if(eventChanged || fullState) {
 			if(getEventHeader() != null) {
 				dialogMetaData.put(EVENT_HEADER, getEventHeader().toString());
 			} else {
@@ -224,19 +348,19 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			}
 			eventChanged = false;
 		}
-		if(b2buaChanged) {
-			dialogMetaData.put(B2BUA, Boolean.valueOf(isBackToBackUserAgent()));
+		if(b2buaChanged || fullState) {
+			dialogMetaData.putBoolean(B2BUA, isBackToBackUserAgent());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isB2BUA " + isBackToBackUserAgent());
 			}
 			b2buaChanged = false;
 		}
-		if(storeFirstTxChanged) {
-			dialogMetaData.put(IS_SERVER, Boolean.valueOf(isServer()));
+		if(storeFirstTxChanged || fullState) {
+			dialogMetaData.putBoolean(IS_SERVER, isServer());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : isServer " + isServer());
 			}
-			dialogMetaData.put(FIRST_TX_SECURE, Boolean.valueOf(firstTransactionSecure));
+			dialogMetaData.putBoolean(FIRST_TX_SECURE, firstTransactionSecure);
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTxSecure " + firstTransactionSecure);
 			}					
@@ -244,7 +368,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : firstTransactionId " + firstTransactionId);
 			}
-			dialogMetaData.put(ENABLE_CSEQ_VALIDATION, isSequenceNumberValidation());
+			dialogMetaData.putBoolean(ENABLE_CSEQ_VALIDATION, isSequenceNumberValidation());
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(getDialogIdToReplicate() + " : CSeq validation is " + isSequenceNumberValidation());
 			}
@@ -260,30 +384,71 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(getDialogIdToReplicate() + " : contactHeader " + contactHeader);
 			}
 			storeFirstTxChanged = false;
-		}		
-		dialogMetaData.put(IS_LATEST_TX_SERVER, Boolean.valueOf(isLatestTxServer));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : isLatestTxServer " + isLatestTxServer);
 		}
-		dialogMetaData.put(REMOTE_TAG, getRemoteTag());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : remoteTag " + getRemoteTag());
+		if(!delta || isLatestTxServer != replicatedLatestTxServer) {
+			dialogMetaData.putBoolean(IS_LATEST_TX_SERVER, isLatestTxServer);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : isLatestTxServer " + isLatestTxServer);
+			}
+			replicatedLatestTxServer = isLatestTxServer;
 		}
-		dialogMetaData.put(LOCAL_TAG, getLocalTag());
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : localTag " + getLocalTag());
+		final String remoteTag = getRemoteTag();
+		if(!delta || !equals(remoteTag, replicatedRemoteTag)) {
+			dialogMetaData.put(REMOTE_TAG, remoteTag);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : remoteTag " + remoteTag);
+			}
+			replicatedRemoteTag = remoteTag;
 		}
-		dialogMetaData.put(REMOTE_CSEQ, Long.valueOf(getRemoteSeqNumber()));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : remoteCSeq " + getRemoteSeqNumber());
+		final String localTag = getLocalTag();
+		if(!delta || !equals(localTag, replicatedLocalTag)) {
+			dialogMetaData.put(LOCAL_TAG, localTag);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : localTag " + localTag);
+			}
+			replicatedLocalTag = localTag;
 		}
-		dialogMetaData.put(LOCAL_CSEQ, Long.valueOf(getLocalSeqNumber()));
-		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-			logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + getLocalSeqNumber());
+		final long remoteCSeq = getRemoteSeqNumber();
+		if(!delta || remoteCSeq != replicatedRemoteCSeq) {
+			dialogMetaData.putLong(REMOTE_CSEQ, remoteCSeq);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : remoteCSeq " + remoteCSeq);
+			}
+			replicatedRemoteCSeq = remoteCSeq;
+		}
+		final long localCSeq = getLocalSeqNumber();
+		if(!delta || localCSeq != replicatedLocalCSeq) {
+			dialogMetaData.putLong(LOCAL_CSEQ, localCSeq);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + localCSeq);
+			}
+			replicatedLocalCSeq = localCSeq;
+		}
+		// the owner is indexed by the caches to find the dialogs of a node that left the cluster
+		final String nodeId = getStackExt() != null ? getStackExt().getNodeId() : null;
+		if(!delta || !equals(nodeId, owner)) {
+			owner = nodeId;
+			dialogMetaData.put(OWNER, owner);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : owner " + owner);
+			}
+		}
+		final long ownershipLease = getStackExt() != null ? getStackExt().getDialogOwnershipLease() : 0;
+		if(ownershipLease > 0) {
+			// the lease is renewed on each replication
+			ownershipLeaseExpiration = System.currentTimeMillis() + ownershipLease;
+			dialogMetaData.putLong(OWNERSHIP_LEASE_EXPIRATION, ownershipLeaseExpiration);
+			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug(getDialogIdToReplicate() + " : owner " + owner + " until " + ownershipLeaseExpiration);
+			}
 		}
 		
 		return dialogMetaData;
 	}
+	
+	private static boolean equals(String value, String otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
 
 	public Object getApplicationDataToReplicate() {
 		return getApplicationData();
@@ -302,6 +467,10 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			super.setState(DialogState._CONFIRMED);
 		}
 		lastResponseStringified = (String) metaData.get(LAST_RESPONSE);
+		lastResponseToStringify = null;
+		// 0 for the dialogs stored by a previous release, the fingerprint is then computed from the recreated response
+		final Long lastResponseFingerprint = (Long) metaData.get(LAST_RESPONSE_FINGERPRINT);
+		this.lastResponseFingerprint = lastResponseFingerprint != null ? lastResponseFingerprint.longValue() : 0;
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : lastResponse " + lastResponseStringified);
 		}
@@ -313,6 +482,10 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 			}
 		}
 		version = new AtomicLong((Long)metaData.get(VERSION));
+		replicatedVersion = version.get();
+		resetReplicatedFields();
+		// the last response just read is the one in the cache, it is only sent again once it changes
+		replicatedLastResponseFingerprint = this.lastResponseFingerprint;
 		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug(getDialogIdToReplicate() + " : version " + version);
 		}
@@ -480,6 +653,12 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(getDialogIdToReplicate() + " : localCSeq " + getLocalSeqNumber());
 			}
 		}		
+		owner = (String) metaData.get(OWNER);
+		final Long leaseExpiration = (Long) metaData.get(OWNERSHIP_LEASE_EXPIRATION);
+		ownershipLeaseExpiration = leaseExpiration != null ? leaseExpiration.longValue() : 0;
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug(getDialogIdToReplicate() + " : owner " + owner + " until " + ownershipLeaseExpiration);
+		}
 		final Boolean enableCSeqValidation = (Boolean) metaData.get(ENABLE_CSEQ_VALIDATION);
 		if(enableCSeqValidation != null) {
 			if(!enableCSeqValidation) disableSequenceNumberValidation();
@@ -489,6 +668,24 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		}
 	}
 	
+	/**
+	 * Forget the values sent with the last replication so that the next delta carries all the tracked fields again,
+	 * the entry in the cache may have been written by another node
+	 */
+	private void resetReplicatedFields() {
+		replicatedLastResponseFingerprint = ~lastResponseFingerprint;
+		replicatedRoutes = null;
+		replicatedLatestTxServer = !isLatestTxServer;
+		replicatedRemoteTag = null;
+		replicatedLocalTag = null;
+		replicatedRemoteCSeq = -1;
+		replicatedLocalCSeq = -1;
+	}
+	
+	public void setEncodedMetaDataToReplicate(byte[] metaData, boolean recreation) throws SipCacheException {
+		setMetaDataToReplicate(DialogStateCodec.decode(metaData), recreation);
+	}
+	
 	public void setApplicationDataToReplicate(Object appData) {
 		// the call to super is very important otherwise it triggers replication on dialog recreation
 		super.setApplicationData(appData);
@@ -554,15 +751,19 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 				logger.logDebug(dialogId  + " lastResponseStr = " + lastResponseStringified);
 				logger.logDebug(dialogId  + " sipResponse = " + sipResponse);
 			}
-			if(sipResponse != null && getLastResponseStringified() == null && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn) {
-				lastResponseChanged = true;
+			final long responseFingerprint = getFingerprint(sipResponse);
+			if(sipResponse != null && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn) {
+				if(lastResponseStringified == null && lastResponseToStringify == null) {
+					lastResponseChanged = true;
+				} else if(responseFingerprint != lastResponseFingerprint) {
+					lastResponseChanged = true;
+				}
 			}
-			String responseStringified = sipResponse.toString(); 
-			if(sipResponse != null && getLastResponseStringified() != null && sipResponse.getStatusCode() >= lowerStatusCodeToReplicateOn && !responseStringified.equals(this.getLastResponseStringified())) {
-				lastResponseChanged = true;
-			}		
 			super.setLastResponse(transaction, sipResponse);
-			lastResponseStringified = responseStringified;
+			updateSessionExpires(sipResponse);
+			lastResponseToStringify = sipResponse;
+			lastResponseStringified = null;
+			lastResponseFingerprint = responseFingerprint;
 			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				logger.logDebug(dialogId  + " lastResponseChanged = " + lastResponseChanged);
 				logger.logDebug(dialogId  + " previousVersion = " + previousVersion);
@@ -586,6 +787,83 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	public void setLastResponse(SIPResponse lastResponse) {
 		// the call to super is very important otherwise it triggers replication on dialog recreation
 		super.setLastResponse(null, lastResponse);
+		if(lastResponseFingerprint == 0) {
+			// otherwise restored from the meta data, the recreated response may only be the skeleton of the original one
+			lastResponseFingerprint = getFingerprint(lastResponse);
+			replicatedLastResponseFingerprint = lastResponseFingerprint;
+		}
+		updateSessionExpires(lastResponse);
+	}
+	
+	/**
+	 * Keeps the session interval of the 2xx responses to INVITE and UPDATE, 
+	 * a 2xx without Session-Expires header meaning that session timers are not used anymore (RFC 4028)
+	 */
+	private void updateSessionExpires(SIPResponse sipResponse) {
+		if(sipResponse == null || sipResponse.getStatusCode() / 100 != 2 || sipResponse.getCSeq() == null) {
+			return;
+		}
+		final String method = sipResponse.getCSeq().getMethod();
+		if(Request.INVITE.equals(method) || Request.UPDATE.equals(method)) {
+			final SessionExpiresHeader sessionExpiresHeader = (SessionExpiresHeader) sipResponse.getHeader(SessionExpiresHeader.NAME);
+			sessionExpires = sessionExpiresHeader != null ? sessionExpiresHeader.getExpires() : 0;
+		}
+	}
+	
+	/**
+	 * @return the stack as a {@link ClusteredSipStackExt}, null if it only implements {@link ClusteredSipStack}
+	 */
+	protected ClusteredSipStackExt getStackExt() {
+		return getStack() instanceof ClusteredSipStackExt ? (ClusteredSipStackExt) getStack() : null;
+	}
+	
+	public long getCacheTTL() {
+		final long maxCacheTTL = getStackExt() != null ? getStackExt().getDialogCacheTTL() : 0;
+		if(sessionExpires > 0) {
+			// a refresh transaction started at the end of the session interval can last up to 32 seconds
+			final long sessionCacheTTL = (sessionExpires + 32) * 1000L;
+			if(maxCacheTTL <= 0 || sessionCacheTTL < maxCacheTTL) {
+				return sessionCacheTTL;
+			}
+		}
+		return maxCacheTTL;
+	}
+	
+	/**
+	 * Computes a fingerprint of the response to detect that it changed without stringifying the whole message, 
+	 * retransmissions of the same response get the same fingerprint
+	 * @param sipResponse the response to compute the fingerprint of
+	 * @return the fingerprint of the response
+	 */
+	protected static long getFingerprint(SIPResponse sipResponse) {
+		if(sipResponse == null) {
+			return 0;
+		}
+		long fingerprint = sipResponse.getStatusCode();
+		final CSeqHeader cseq = sipResponse.getCSeq();
+		if(cseq != null) {
+			fingerprint = 31 * fingerprint + cseq.getSeqNumber();
+			fingerprint = 31 * fingerprint + cseq.getMethod().hashCode();
+		}
+		final String toTag = sipResponse.getToTag();
+		if(toTag != null) {
+			fingerprint = 31 * fingerprint + toTag.hashCode();
+		}
+		// a change in any other header, Contact, Record-Route, Session-Expires, Content-Length..., changes the fingerprint as well
+		fingerprint = 31 * fingerprint + getHeadersHash(sipResponse);
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+	
+	/**
+	 * @return a hash of the headers of the message, in their order
+	 */
+	private static long getHeadersHash(SIPResponse sipResponse) {
+		long hash = 0;
+		final Iterator<SIPHeader> headers = sipResponse.getHeaders();
+		while(headers.hasNext()) {
+			hash = 31 * hash + headers.next().encode().hashCode();
+		}
+		return hash;
 	}	
 
 	/**
@@ -609,6 +887,38 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		return version.get();
 	}		
 
+	public String getOwner() {
+		return owner;
+	}
+
+	public boolean isOwnershipLeaseHeld() {
+		final String nodeId = getStackExt() != null ? getStackExt().getNodeId() : null;
+		return ownershipLeaseExpiration > System.currentTimeMillis() && nodeId != null && nodeId.equals(owner);
+	}
+	
+	public void releaseOwnershipLease() {
+		ownershipLeaseExpiration = 0;
+	}
+	
+	public long getLastAccessedTime() {
+		return lastAccessedTime;
+	}
+	
+	public void updateLastAccessedTime() {
+		lastAccessedTime = System.currentTimeMillis();
+	}
+	
+	public boolean isStateReplicated() {
+		return replicatedVersion == version.get() && pendingMetaData == null && !fullStateRequired;
+	}
+	
+	/**
+	 * To be called once the current version of the dialog has been stored in the cache
+	 */
+	protected void stateReplicated() {
+		replicatedVersion = version.get();
+	}
+	
 	public String getDialogIdToReplicate() {
 		return getDialogId();
 		// No need for this anymore since we replicate only when the last response is a final one
@@ -622,7 +932,46 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 	}
 	
 	public String getLastResponseStringified() {
+		final SIPResponse response = lastResponseToStringify;
+		if(response != null) {
+			if(getStackExt() != null && getStackExt().isReplicateLastResponseSkeleton()) {
+				lastResponseStringified = getRecoverySkeleton(response);
+			} else {
+				lastResponseStringified = response.toString();
+			}
+			lastResponseToStringify = null;
+		}
 		return lastResponseStringified;
+	}
+	
+	/**
+	 * Encodes only what is needed to recreate the dialog from the response on another node : 
+	 * the status line, the top most Via, From, To, Call-ID, CSeq, Contact and Record-Route headers, without the body
+	 * @param sipResponse the response to encode
+	 * @return the encoded skeleton of the response
+	 */
+	protected static String getRecoverySkeleton(SIPResponse sipResponse) {
+		final StringBuilder skeleton = new StringBuilder(512);
+		skeleton.append(sipResponse.getStatusLine().encode());
+		appendHeader(skeleton, sipResponse.getTopmostVia());
+		appendHeader(skeleton, (SIPHeader) sipResponse.getFrom());
+		appendHeader(skeleton, (SIPHeader) sipResponse.getTo());
+		appendHeader(skeleton, (SIPHeader) sipResponse.getCallId());
+		appendHeader(skeleton, (SIPHeader) sipResponse.getCSeq());
+		appendHeader(skeleton, sipResponse.getContactHeader());
+		final RecordRouteList recordRoutes = sipResponse.getRecordRouteHeaders();
+		if(recordRoutes != null && !recordRoutes.isEmpty()) {
+			skeleton.append(recordRoutes.encode());
+		}
+		skeleton.append(ContentLengthHeader.NAME).append(Separators.COLON).append(Separators.SP).append('0').append(Separators.NEWLINE);
+		skeleton.append(Separators.NEWLINE);
+		return skeleton.toString();
+	}
+	
+	private static void appendHeader(StringBuilder skeleton, SIPHeader header) {
+		if(header != null) {
+			skeleton.append(header.encode());
+		}
 	}	
 	
 	@Override
@@ -649,6 +998,7 @@ public abstract class AbstractHASipDialog extends SIPDialog implements HASipDial
 		} else {
 			 isLatestTxServer = false;
 		}
+		lastAccessedTime = System.currentTimeMillis();
 		return super.addTransaction(transaction);
 	}
 	
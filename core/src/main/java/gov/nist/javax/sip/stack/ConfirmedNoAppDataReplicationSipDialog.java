@@ -30,7 +30,11 @@ import gov.nist.javax.sip.message.SIPResponse;
 import javax.sip.DialogState;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+import org.mobicents.ha.javax.sip.DialogReplicationExecutor;
+import org.mobicents.ha.javax.sip.DialogWriteBehindQueue;
 import org.mobicents.ha.javax.sip.ReplicationStrategy;
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 /**
@@ -77,11 +81,73 @@ public class ConfirmedNoAppDataReplicationSipDialog extends AbstractHASipDialog
 			replicationStateVsDialogStateOK = true;
 		}
 		if (replicationStateVsDialogStateOK && isCreated && super.dialogId != null && isRemoteTagSet() && isLocalTagSet() && getStack().getDialog(getDialogIdToReplicate()) != null) {
-			try {
+			final ClusteredSipStackExt clusteredSipStack = getStackExt();
+			final DialogWriteBehindQueue dialogWriteBehindQueue = clusteredSipStack != null ? clusteredSipStack.getDialogWriteBehindQueue() : null;
+			final DialogReplicationExecutor dialogReplicationExecutor = clusteredSipStack != null ? clusteredSipStack.getDialogReplicationExecutor() : null;
+			if(dialogWriteBehindQueue != null) {
+				// the changes are encoded right away, only the write to the cache is deferred
+				encodePendingMetaData();
+				dialogWriteBehindQueue.put(this);
+			} else if(dialogReplicationExecutor != null) {
+				// the changes are encoded by the thread that made them, the replication threads only write them
+				encodePendingMetaData();
+				dialogReplicationExecutor.replicate(this);
+			} else {
+				storeState();
+			}
+		}
+	}
+	
+	public boolean storePendingState() {
+		if(hasPendingState()) {
+			return storeState();
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the dialog to the distributed cache
+	 * @return false if the cache failed to write the dialog
+	 */
+	private boolean storeState() {
+		final ClusteredSipStackExt clusteredSipStack = getStackExt();
+		final DialogNearCache dialogNearCache = clusteredSipStack != null ? clusteredSipStack.getDialogNearCache() : null;
+		final long invalidationCount = dialogNearCache != null ? dialogNearCache.getInvalidationCount(getDialogId()) : 0;
+		try {
+			// not stored if the cache holds a more recent version or if HA is degraded, in which case it is written when the cache answers again
+			boolean stored = true;
+			if(clusteredSipStack != null) {
+				stored = clusteredSipStack.storeDialog(this);
+			} else {
 				((ClusteredSipStack)getStack()).getSipCache().putDialog(this);
-			} catch (SipCacheException e) {
-				logger.logError("problem storing dialog " + getDialogId() + " into the distributed cache", e);
 			}
+			if(stored) {
+				stateStored(invalidationCount);
+			} else {
+				stateOutdated();
+			}
+			return true;
+		} catch (SipCacheException e) {
+			stateNotStored();
+			logger.logError("problem storing dialog " + getDialogId() + " into the distributed cache", e);
+			return false;
+		}
+	}
+	
+	public void stateStored(long nearCacheInvalidationCount) {
+		stateReplicated();
+		final DialogNearCache dialogNearCache = getStackExt() != null ? getStackExt().getDialogNearCache() : null;
+		if(dialogNearCache != null) {
+			dialogNearCache.put(getDialogId(), getVersion(), nearCacheInvalidationCount);
+		}
+	}
+	
+	public void stateOutdated() {
+		stateNotStored();
+		final DialogNearCache dialogNearCache = getStackExt() != null ? getStackExt().getDialogNearCache() : null;
+		if(dialogNearCache != null) {
+			// the local dialog can't be assumed to be the one in the cache anymore
+			dialogNearCache.remove(getDialogId());
 		}
 	}
 	
@@ -29,6 +29,7 @@ import gov.nist.javax.sip.message.SIPRequest;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -36,6 +37,8 @@ import javax.sip.TransactionState;
 import javax.sip.message.Request;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+import org.mobicents.ha.javax.sip.SipCacheCircuitBreaker;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 /**
@@ -55,6 +58,7 @@ public class MobicentsHASIPClientTransaction extends MobicentsSIPClientTransacti
 	String localDialogId;
 	int peerReliablePort = -1;
 	int lastResponseStatusCode= -1;
+	private final AtomicBoolean removedFromDistributedCache = new AtomicBoolean();
 	
 	public MobicentsHASIPClientTransaction(SIPTransactionStack newSIPStack,
 			MessageChannel newChannelToUse) {
@@ -120,11 +124,18 @@ public class MobicentsHASIPClientTransaction extends MobicentsSIPClientTransacti
 					logger.logDebug(transactionId + " : local dialog Id " + localDialogId);
 				}			
 			}
-			// store the tx when the response will be sent
-			try {
-				((ClusteredSipStack)sipStack).getSipCache().putClientTransaction(this);
-			} catch (SipCacheException e) {
-				logger.logError("problem storing server transaction " + transactionId + " into the distributed cache", e);
+			// store the tx when the response will be sent, unless HA is degraded, without waiting for the cache, failures are logged by it
+			if(sipStack instanceof ClusteredSipStackExt) {
+				final SipCacheCircuitBreaker sipCacheCircuitBreaker = ((ClusteredSipStackExt)sipStack).getSipCacheCircuitBreaker();
+				if(sipCacheCircuitBreaker == null || !sipCacheCircuitBreaker.isOpen()) {
+					((ClusteredSipStackExt)sipStack).getAsyncSipCache().putClientTransactionAsync(this);
+				}
+			} else {
+				try {
+					((ClusteredSipStack)sipStack).getSipCache().putClientTransaction(this);
+				} catch (SipCacheException e) {
+					logger.logError("problem storing client transaction " + transactionId + " into the distributed cache", e);
+				}
 			}
 		}
 	}
@@ -179,4 +190,13 @@ public class MobicentsHASIPClientTransaction extends MobicentsSIPClientTransacti
 	public void startTransactionTimerOnFailover() {
 		super.startTransactionTimer();
 	}
+
+	/**
+	 * Marks the transaction as removed from the distributed cache, both removeTransaction and removeTransactionHash 
+	 * of the stack being called for it
+	 * @return false if it was already marked, the removal doesn't need to be sent again
+	 */
+	public boolean markRemovedFromDistributedCache() {
+		return removedFromDistributedCache.compareAndSet(false, true);
+	}
 }
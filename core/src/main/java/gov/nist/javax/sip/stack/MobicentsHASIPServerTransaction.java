@@ -33,12 +33,15 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
 import javax.sip.message.Request;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+import org.mobicents.ha.javax.sip.SipCacheCircuitBreaker;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 /**
@@ -57,6 +60,7 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 	public static final String ORIGINAL_REQUEST = "req";
 	String localDialogId;
 	int peerReliablePort = -1;
+	private final AtomicBoolean removedFromDistributedCache = new AtomicBoolean();
 	
 	public MobicentsHASIPServerTransaction(SIPTransactionStack sipStack,
 			MessageChannel newChannelToUse) {
@@ -125,11 +129,18 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 					logger.logDebug(transactionId + " : peer Reliable Port " + peerReliablePort);
 				}
 			}
-			// store the tx when the response will be sent
-			try {
-				((ClusteredSipStack)sipStack).getSipCache().putServerTransaction(this);
-			} catch (SipCacheException e) {
-				logger.logError("problem storing server transaction " + transactionId + " into the distributed cache", e);
+			// store the tx when the response will be sent, unless HA is degraded, without waiting for the cache, failures are logged by it
+			if(sipStack instanceof ClusteredSipStackExt) {
+				final SipCacheCircuitBreaker sipCacheCircuitBreaker = ((ClusteredSipStackExt)sipStack).getSipCacheCircuitBreaker();
+				if(sipCacheCircuitBreaker == null || !sipCacheCircuitBreaker.isOpen()) {
+					((ClusteredSipStackExt)sipStack).getAsyncSipCache().putServerTransactionAsync(this);
+				}
+			} else {
+				try {
+					((ClusteredSipStack)sipStack).getSipCache().putServerTransaction(this);
+				} catch (SipCacheException e) {
+					logger.logError("problem storing server transaction " + transactionId + " into the distributed cache", e);
+				}
 			}
 		}
 		super.sendMessage(message);
@@ -180,4 +191,13 @@ public class MobicentsHASIPServerTransaction extends MobicentsSIPServerTransacti
 	public void setApplicationDataToReplicate(Object appData) {
 		super.setApplicationData(appData);
 	}
+
+	/**
+	 * Marks the transaction as removed from the distributed cache, both removeTransaction and removeTransactionHash 
+	 * of the stack being called for it
+	 * @return false if it was already marked, the removal doesn't need to be sent again
+	 */
+	public boolean markRemovedFromDistributedCache() {
+		return removedFromDistributedCache.compareAndSet(false, true);
+	}
 }
@@ -110,10 +110,11 @@ public class SipStackImpl extends ClusteredSipStackImpl implements SipStackImplM
 	
 	/*
 	 * (non-Javadoc)
-	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#passivateDialog(org.mobicents.ha.javax.sip.HASipDialog)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#passivateDialogIfCurrent(org.mobicents.ha.javax.sip.HASipDialog)
 	 */
-	public void passivateDialog(HASipDialog dialog) {
+	public boolean passivateDialogIfCurrent(HASipDialog dialog) {
 		// not supported on load balancing mode only
+		return false;
 	}
 
 	public MessageProcessor[] getStackMessageProcessors() {
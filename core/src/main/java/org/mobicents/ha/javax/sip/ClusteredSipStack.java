@@ -45,6 +45,55 @@ public interface ClusteredSipStack extends SipStack {
 	public static final String CACHE_CLASS_NAME_PROPERTY = "org.mobicents.ha.javax.sip.CACHE_CLASS_NAME";
 	public static final String REPLICATION_STRATEGY_PROPERTY = "org.mobicents.ha.javax.sip.REPLICATION_STRATEGY";
 	public static final String REPLICATE_APPLICATION_DATA = "org.mobicents.ha.javax.sip.REPLICATE_APPLICATION_DATA";
+	public static final String DIALOG_DELTA_REPLICATION = "org.mobicents.ha.javax.sip.DIALOG_DELTA_REPLICATION";
+	public static final String REPLICATE_LAST_RESPONSE_SKELETON = "org.mobicents.ha.javax.sip.REPLICATE_LAST_RESPONSE_SKELETON";
+	public static final String DIALOG_NEAR_CACHE_MAX_SIZE = "org.mobicents.ha.javax.sip.DIALOG_NEAR_CACHE_MAX_SIZE";
+	public static final String DIALOG_NEAR_CACHE_TTL = "org.mobicents.ha.javax.sip.DIALOG_NEAR_CACHE_TTL";
+	public static final String NODE_ID = "org.mobicents.ha.javax.sip.NODE_ID";
+	public static final String DIALOG_OWNERSHIP_LEASE = "org.mobicents.ha.javax.sip.DIALOG_OWNERSHIP_LEASE";
+	public static final String DIALOG_LOOKUP_FILTER_EXPECTED_DIALOGS = "org.mobicents.ha.javax.sip.DIALOG_LOOKUP_FILTER_EXPECTED_DIALOGS";
+	public static final String DIALOG_LOOKUP_FILTER_FAILOVER_GRACE_PERIOD = "org.mobicents.ha.javax.sip.DIALOG_LOOKUP_FILTER_FAILOVER_GRACE_PERIOD";
+	public static final String DIALOG_NEGATIVE_CACHE_MAX_SIZE = "org.mobicents.ha.javax.sip.DIALOG_NEGATIVE_CACHE_MAX_SIZE";
+	public static final String DIALOG_NEGATIVE_CACHE_TTL = "org.mobicents.ha.javax.sip.DIALOG_NEGATIVE_CACHE_TTL";
+	public static final String DIALOG_TAKEOVER_PARALLELISM = "org.mobicents.ha.javax.sip.DIALOG_TAKEOVER_PARALLELISM";
+	public static final String DIALOG_TAKEOVER_RATE = "org.mobicents.ha.javax.sip.DIALOG_TAKEOVER_RATE";
+	public static final String DIALOG_PASSIVATION_IDLE_TIME = "org.mobicents.ha.javax.sip.DIALOG_PASSIVATION_IDLE_TIME";
+	public static final String DIALOG_PASSIVATION_HEAP_WATERMARK = "org.mobicents.ha.javax.sip.DIALOG_PASSIVATION_HEAP_WATERMARK";
+	public static final String LOCAL_DIALOGS_MAX_SIZE = "org.mobicents.ha.javax.sip.LOCAL_DIALOGS_MAX_SIZE";
+	public static final String ORPHAN_ENTRY_REAPER_PERIOD = "org.mobicents.ha.javax.sip.ORPHAN_ENTRY_REAPER_PERIOD";
+	public static final String ORPHAN_ENTRY_REAPER_GRACE_TIME = "org.mobicents.ha.javax.sip.ORPHAN_ENTRY_REAPER_GRACE_TIME";
+	public static final String ORPHAN_ENTRY_REAPER_CHUNK_SIZE = "org.mobicents.ha.javax.sip.ORPHAN_ENTRY_REAPER_CHUNK_SIZE";
+	public static final String ORPHAN_ENTRY_REAPER_RATE = "org.mobicents.ha.javax.sip.ORPHAN_ENTRY_REAPER_RATE";
+	public static final String DIALOG_WRITE_BEHIND_WRITERS = "org.mobicents.ha.javax.sip.DIALOG_WRITE_BEHIND_WRITERS";
+	public static final String DIALOG_WRITE_BEHIND_MAX_DELAY = "org.mobicents.ha.javax.sip.DIALOG_WRITE_BEHIND_MAX_DELAY";
+	public static final String DIALOG_WRITE_BEHIND_BATCH_SIZE = "org.mobicents.ha.javax.sip.DIALOG_WRITE_BEHIND_BATCH_SIZE";
+	public static final String DIALOG_WRITE_BEHIND_QUEUE_SIZE = "org.mobicents.ha.javax.sip.DIALOG_WRITE_BEHIND_QUEUE_SIZE";
+	public static final String DIALOG_REPLICATION_THREADS = "org.mobicents.ha.javax.sip.DIALOG_REPLICATION_THREADS";
+	public static final String DIALOG_REPLICATION_QUEUE_SIZE = "org.mobicents.ha.javax.sip.DIALOG_REPLICATION_QUEUE_SIZE";
+	public static final String VIRTUAL_THREADS = "org.mobicents.ha.javax.sip.VIRTUAL_THREADS";
+	public static final String SIP_CACHE_OPERATION_TIMEOUT = "org.mobicents.ha.javax.sip.SIP_CACHE_OPERATION_TIMEOUT";
+	public static final String SIP_CACHE_FAILURE_THRESHOLD = "org.mobicents.ha.javax.sip.SIP_CACHE_FAILURE_THRESHOLD";
+	public static final String SIP_CACHE_PROBE_PERIOD = "org.mobicents.ha.javax.sip.SIP_CACHE_PROBE_PERIOD";
+	public static final String SIP_CACHE_PENDING_DIALOGS_MAX_SIZE = "org.mobicents.ha.javax.sip.SIP_CACHE_PENDING_DIALOGS_MAX_SIZE";
+	public static final String SIP_CACHE_OPERATION_THREADS = "org.mobicents.ha.javax.sip.SIP_CACHE_OPERATION_THREADS";
+	/**
+	 * 4 by default, the number of threads running the asynchronous operations of a SipCache only having blocking ones such as the JBoss Cache one,
+	 * 0 to run them on the calling thread
+	 */
+	public static final String SIP_CACHE_ASYNC_THREADS = "org.mobicents.ha.javax.sip.SIP_CACHE_ASYNC_THREADS";
+	public static final String REMOVAL_TOMBSTONE_TIME = "org.mobicents.ha.javax.sip.REMOVAL_TOMBSTONE_TIME";
+	public static final String DIALOG_CACHE_TTL = "org.mobicents.ha.javax.sip.DIALOG_CACHE_TTL";
+	/**
+	 * Not set by default, transactions don't expire. 6 times Timer B, i.e. 6*64*T1 or 192000ms with the default T1 of 500ms, 
+	 * is enough for an INVITE transaction waiting for Timer C to fire
+	 */
+	public static final String TRANSACTION_CACHE_TTL = "org.mobicents.ha.javax.sip.TRANSACTION_CACHE_TTL";
+	public static final String DIALOG_CACHE_MAX_IDLE = "org.mobicents.ha.javax.sip.DIALOG_CACHE_MAX_IDLE";
+	public static final String TRANSACTION_CACHE_MAX_IDLE = "org.mobicents.ha.javax.sip.TRANSACTION_CACHE_MAX_IDLE";
+	/**
+	 * 64*T1 with the default T1 of 500ms, the time during which retransmissions and late requests can still be received
+	 */
+	public static final long DEFAULT_REMOVAL_TOMBSTONE_TIME = 64 * 500;
 	
 	SIPDialog getDialog(String dialogId);	
 	SIPDialog putDialog(SIPDialog dialog);
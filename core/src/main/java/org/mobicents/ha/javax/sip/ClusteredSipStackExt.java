@@ -0,0 +1,111 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import org.mobicents.ha.javax.sip.cache.AsyncSipCache;
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Extension of the {@link ClusteredSipStack} interface implemented by the {@link ClusteredSipStackImpl}, 
+ * kept apart so that the stacks implementing only {@link ClusteredSipStack} still compile and run.
+ * The dialogs and transactions of such stacks behave as if the features below were disabled, 
+ * with the defaults of {@link ClusteredSipStackImpl} when none of their properties are set.
+ */
+public interface ClusteredSipStackExt extends ClusteredSipStack {
+	/**
+	 * Same as {@link #passivateDialog(HASipDialog)}, reporting whether the dialog was passivated
+	 * @param dialog the dialog to passivate
+	 * @return true if the dialog was passivated, false if it isn't the one stored locally anymore
+	 */
+	boolean passivateDialogIfCurrent(HASipDialog dialog);
+	/**
+	 * Writes the dialog to the distributed cache, through the {@link SipCacheCircuitBreaker} if enabled
+	 * @param dialog the dialog to write
+	 * @return false if the cache holds a version of the dialog at least as recent, or if the write is queued while HA is degraded
+	 */
+	boolean storeDialog(SIPDialog dialog) throws SipCacheException;
+	/**
+	 * @return the non blocking view of the sipCache, adapting it if it doesn't implement {@link AsyncSipCache}
+	 */
+	AsyncSipCache getAsyncSipCache();
+	/**
+	 * @return true if only the dialog fields that changed since the last replication are sent to the cache
+	 */
+	boolean isDialogDeltaReplication();
+	/**
+	 * @return true if only the headers needed to recreate a dialog are replicated from its last response
+	 */
+	boolean isReplicateLastResponseSkeleton();
+	/**
+	 * @return the local cache of the dialog versions known to be in the distributed cache, null if not enabled
+	 */
+	DialogNearCache getDialogNearCache();
+	/**
+	 * @return the queue writing the dialogs to the cache asynchronously, null if they are written by the SIP threads
+	 */
+	DialogWriteBehindQueue getDialogWriteBehindQueue();
+	/**
+	 * @return the executor writing the dialogs to the cache from the replication threads, null if they are written by the threads changing them
+	 */
+	DialogReplicationExecutor getDialogReplicationExecutor();
+	/**
+	 * @return true if the threads waiting for the cache are virtual threads, only if enabled and supported by the JVM
+	 */
+	boolean isVirtualThreads();
+	/**
+	 * @return the circuit breaker bounding the time spent waiting for the cache, null if the cache operations are not bounded
+	 */
+	SipCacheCircuitBreaker getSipCacheCircuitBreaker();
+	/**
+	 * @return the id of this node in the cluster, such as its jvmRoute, recorded as the owner of the dialogs it replicates
+	 */
+	String getNodeId();
+	/**
+	 * @return the time in milliseconds during which this node considers the dialogs it replicated as up to date, 0 if disabled
+	 */
+	long getDialogOwnershipLease();
+	/**
+	 * @return the maximum time in milliseconds a dialog stays in the cache without being replicated again, 0 for no maximum
+	 */
+	long getDialogCacheTTL();
+	/**
+	 * @return the time in milliseconds a transaction stays in the cache without being replicated again, 0 for no expiry
+	 */
+	long getTransactionCacheTTL();
+	/**
+	 * @return the time in milliseconds a dialog stays in the cache without being read or replicated, 0 for no maximum
+	 */
+	long getDialogCacheMaxIdle();
+	/**
+	 * @return the time in milliseconds a transaction stays in the cache without being read or replicated, 0 for no maximum
+	 */
+	long getTransactionCacheMaxIdle();
+	/**
+	 * Recover proactively the dialogs owned by a node that left the cluster, if the dialog takeover is enabled.
+	 * The dialog lookup Bloom filter is bypassed for a while, it may not know yet all the dialogs of the node that left.
+	 * @param nodeId the id of the node that left
+	 * @param localOnly true to only recover the dialogs primarily stored on this node, false to recover all of them
+	 */
+	void takeOverDialogs(String nodeId, boolean localOnly);
+}
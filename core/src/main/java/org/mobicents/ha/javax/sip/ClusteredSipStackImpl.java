@@ -29,13 +29,21 @@ import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.stack.MessageChannel;
 import gov.nist.javax.sip.stack.MobicentsHASIPClientTransaction;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 import gov.nist.javax.sip.stack.SIPTransaction;
 
+import java.util.Collection;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.sip.DialogState;
 import javax.sip.ListeningPoint;
@@ -49,6 +57,15 @@ import javax.sip.SipProvider;
 import javax.sip.message.Request;
 
 import org.mobicents.ext.javax.sip.SipStackImpl;
+import org.mobicents.ha.javax.sip.cache.AsyncSipCache;
+import org.mobicents.ha.javax.sip.cache.BlockingAsyncSipCache;
+import org.mobicents.ha.javax.sip.cache.ConditionalDialogWriter;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationNotifier;
+import org.mobicents.ha.javax.sip.cache.DialogKeyNotifier;
+import org.mobicents.ha.javax.sip.cache.DialogLookupFilter;
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 import org.mobicents.ha.javax.sip.cache.SipCacheFactory;
@@ -68,13 +85,35 @@ import org.mobicents.ha.javax.sip.cache.SipCacheFactory;
  * @author martins
  *
  */
-public abstract class ClusteredSipStackImpl extends SipStackImpl implements ClusteredSipStack {	
+public abstract class ClusteredSipStackImpl extends SipStackImpl implements ClusteredSipStackExt {	
 	
 	protected SipCache sipCache = null;
+	private AsyncSipCache asyncSipCache = null;
 	protected LoadBalancerHeartBeatingService loadBalancerHeartBeatingService = null;
 	protected ReplicationStrategy replicationStrategy = ReplicationStrategy.ConfirmedDialog;
 	protected LoadBalancerElector loadBalancerElector = null;
 	private boolean replicateApplicationData = false;
+	private boolean dialogDeltaReplication = false;
+	private boolean replicateLastResponseSkeleton = false;
+	private DialogNearCache dialogNearCache = null;
+	private String nodeId = null;
+	private long dialogOwnershipLease = 0;
+	private long dialogCacheTTL = 0;
+	private long transactionCacheTTL = 0;
+	private long dialogCacheMaxIdle = 0;
+	private long transactionCacheMaxIdle = 0;
+	private DialogLookupFilter dialogLookupFilter = null;
+	private DialogTakeoverService dialogTakeoverService = null;
+	private DialogPassivationService dialogPassivationService = null;
+	private OrphanEntryReaperService orphanEntryReaperService = null;
+	private DialogWriteBehindQueue dialogWriteBehindQueue = null;
+	private DialogReplicationExecutor dialogReplicationExecutor = null;
+	private RemovalTombstones dialogTombstones = null;
+	private RemovalTombstones transactionTombstones = null;
+	private boolean virtualThreads = false;
+	private int sipCacheAsyncThreads = 0;
+	private SipCacheCircuitBreaker sipCacheCircuitBreaker = null;
+	private final ConcurrentHashMap<String, FutureTask<SIPDialog>> dialogRecoveries = new ConcurrentHashMap<String, FutureTask<SIPDialog>>();
 	
 	public ClusteredSipStackImpl(Properties configurationProperties) throws PeerUnavailableException {
 		
@@ -135,8 +174,165 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(replicateApplicationDataProperty == null && replicationStrategy == ReplicationStrategy.ConfirmedDialog) {
 			replicateApplicationData = true;
 		}
+		String dialogDeltaReplicationProperty = configurationProperties.getProperty(ClusteredSipStack.DIALOG_DELTA_REPLICATION);
+		if(dialogDeltaReplicationProperty != null) {
+			dialogDeltaReplication = Boolean.valueOf(dialogDeltaReplicationProperty);
+		}
+		String replicateLastResponseSkeletonProperty = configurationProperties.getProperty(ClusteredSipStack.REPLICATE_LAST_RESPONSE_SKELETON);
+		if(replicateLastResponseSkeletonProperty != null) {
+			replicateLastResponseSkeleton = Boolean.valueOf(replicateLastResponseSkeletonProperty);
+		}
+		nodeId = configurationProperties.getProperty(ClusteredSipStack.NODE_ID);
+		if(nodeId == null) {
+			// unique for each run of the stack, a restarted node doesn't own the dialogs it replicated before
+			nodeId = UUID.randomUUID().toString();
+		}
+		dialogOwnershipLease = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_OWNERSHIP_LEASE, "0"));
+		dialogCacheTTL = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_CACHE_TTL, "0"));
+		transactionCacheTTL = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.TRANSACTION_CACHE_TTL, "0"));
+		dialogCacheMaxIdle = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_CACHE_MAX_IDLE, "0"));
+		transactionCacheMaxIdle = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.TRANSACTION_CACHE_MAX_IDLE, "0"));
+		int dialogNearCacheMaxSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE_MAX_SIZE, "0"));
+		if(dialogNearCacheMaxSize > 0) {
+			if(sipCache instanceof DialogInvalidationNotifier) {
+				long dialogNearCacheTTL = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_NEAR_CACHE_TTL, "30000"));
+				dialogNearCache = new DialogNearCache(dialogNearCacheMaxSize, dialogNearCacheTTL);
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+					getStackLogger().logInfo("Dialog near cache enabled with max size " + dialogNearCacheMaxSize + " and TTL " + dialogNearCacheTTL + "ms");
+				}
+			} else {
+				getStackLogger().logWarning("Dialog near cache disabled since the SipCache " + sipCache.getClass().getName() + " doesn't notify dialog invalidations");
+			}
+		}
+		if(dialogOwnershipLease > 0) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog ownership lease of " + dialogOwnershipLease + "ms enabled for node " + nodeId);
+			}
+			if(!(sipCache instanceof DialogInvalidationNotifier)) {
+				getStackLogger().logWarning("The SipCache " + sipCache.getClass().getName() + " doesn't notify dialog invalidations, " +
+						"dialogs written by other nodes will only be read once the ownership lease of this node expires");
+			}
+		}
+		int dialogLookupFilterExpectedDialogs = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_LOOKUP_FILTER_EXPECTED_DIALOGS, "0"));
+		if(dialogLookupFilterExpectedDialogs > 0 && !(sipCache instanceof DialogKeyNotifier)) {
+			getStackLogger().logWarning("Dialog lookup Bloom filter disabled since the SipCache " + sipCache.getClass().getName() + " doesn't notify the dialogs added and removed");
+			dialogLookupFilterExpectedDialogs = 0;
+		}
+		long dialogLookupFilterFailoverGracePeriod = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_LOOKUP_FILTER_FAILOVER_GRACE_PERIOD, "60000"));
+		int dialogNegativeCacheMaxSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_NEGATIVE_CACHE_MAX_SIZE, "0"));
+		long dialogNegativeCacheTTL = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_NEGATIVE_CACHE_TTL, "5000"));
+		if(dialogNegativeCacheMaxSize > 0 && !(sipCache instanceof DialogInvalidationNotifier)) {
+			// nothing would drop the dialogs remembered as not found once another node writes them
+			getStackLogger().logWarning("Dialog negative cache disabled since the SipCache " + sipCache.getClass().getName() + " doesn't notify dialog invalidations");
+			dialogNegativeCacheMaxSize = 0;
+		}
+		if(dialogLookupFilterExpectedDialogs > 0 || (dialogNegativeCacheMaxSize > 0 && dialogNegativeCacheTTL > 0)) {
+			dialogLookupFilter = new DialogLookupFilter(dialogLookupFilterExpectedDialogs, dialogLookupFilterFailoverGracePeriod, dialogNegativeCacheMaxSize, dialogNegativeCacheTTL);
+			if(dialogLookupFilterExpectedDialogs > 0) {
+				((DialogKeyNotifier) sipCache).setDialogKeyListener(dialogLookupFilter);
+			}
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog lookup filter enabled with Bloom filter for " + dialogLookupFilterExpectedDialogs + " dialogs bypassed for " + 
+						dialogLookupFilterFailoverGracePeriod + "ms after a failover, negative cache max size " + 
+						dialogNegativeCacheMaxSize + " and TTL " + dialogNegativeCacheTTL + "ms");
+			}
+		}
+		if(Boolean.parseBoolean(configurationProperties.getProperty(ClusteredSipStack.VIRTUAL_THREADS, "false"))) {
+			if(VirtualThreads.isSupported()) {
+				virtualThreads = true;
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+					getStackLogger().logInfo("Virtual threads enabled for the threads waiting for the cache");
+				}
+			} else {
+				getStackLogger().logWarning(ClusteredSipStack.VIRTUAL_THREADS + " ignored since this JVM doesn't support virtual threads, platform threads are used");
+			}
+		}
+		int dialogTakeoverParallelism = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_TAKEOVER_PARALLELISM, "0"));
+		if(dialogTakeoverParallelism > 0) {
+			int dialogTakeoverRate = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_TAKEOVER_RATE, "500"));
+			dialogTakeoverService = new DialogTakeoverService(this, dialogTakeoverParallelism, dialogTakeoverRate);
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog takeover enabled with " + dialogTakeoverParallelism + " threads and a max rate of " + dialogTakeoverRate + " dialogs/s");
+			}
+		}
+		long dialogPassivationIdleTime = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_PASSIVATION_IDLE_TIME, "0"));
+		int localDialogsMaxSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.LOCAL_DIALOGS_MAX_SIZE, "0"));
+		if(dialogPassivationIdleTime > 0 || localDialogsMaxSize > 0) {
+			int dialogPassivationHeapWatermark = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_PASSIVATION_HEAP_WATERMARK, "0"));
+			dialogPassivationService = new DialogPassivationService(this, dialogPassivationIdleTime, dialogPassivationHeapWatermark, localDialogsMaxSize);
+			if(dialogPassivationIdleTime > 0 && getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog passivation enabled after " + dialogPassivationIdleTime + "ms of inactivity " + 
+						(dialogPassivationHeapWatermark > 0 ? "above " + dialogPassivationHeapWatermark + "% of the heap" : "regardless of the heap usage"));
+			}
+			if(localDialogsMaxSize > 0 && getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Local dialogs limited to " + localDialogsMaxSize + ", the least recently used ones being passivated");
+			}
+		}
+		long removalTombstoneTime = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.REMOVAL_TOMBSTONE_TIME, String.valueOf(DEFAULT_REMOVAL_TOMBSTONE_TIME)));
+		if(removalTombstoneTime > 0) {
+			dialogTombstones = new RemovalTombstones(removalTombstoneTime);
+			transactionTombstones = new RemovalTombstones(removalTombstoneTime);
+		}
+		long sipCacheOperationTimeout = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_OPERATION_TIMEOUT, "0"));
+		if(sipCacheOperationTimeout > 0 && !sipCache.inLocalMode()) {
+			int sipCacheFailureThreshold = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_FAILURE_THRESHOLD, "5"));
+			long sipCacheProbePeriod = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_PROBE_PERIOD, "1000"));
+			int sipCachePendingDialogsMaxSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_PENDING_DIALOGS_MAX_SIZE, "10000"));
+			int sipCacheOperationThreads = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_OPERATION_THREADS, "200"));
+			sipCacheCircuitBreaker = new SipCacheCircuitBreaker(this, sipCacheOperationTimeout, sipCacheFailureThreshold, sipCacheProbePeriod, 
+					sipCachePendingDialogsMaxSize, sipCacheOperationThreads);
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("SipCache operations limited to " + sipCacheOperationTimeout + "ms, HA being degraded after " + sipCacheFailureThreshold + 
+						" consecutive timed out or failed operations and probed every " + sipCacheProbePeriod + "ms, queuing up to " + sipCachePendingDialogsMaxSize + " dialogs");
+			}
+		}
+		int dialogWriteBehindWriters = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_WRITE_BEHIND_WRITERS, "0"));
+		if(dialogWriteBehindWriters > 0 && !sipCache.inLocalMode()) {
+			long dialogWriteBehindMaxDelay = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.DIALOG_WRITE_BEHIND_MAX_DELAY, "50"));
+			int dialogWriteBehindBatchSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_WRITE_BEHIND_BATCH_SIZE, "100"));
+			int dialogWriteBehindQueueSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_WRITE_BEHIND_QUEUE_SIZE, "10000"));
+			dialogWriteBehindQueue = new DialogWriteBehindQueue(this, dialogWriteBehindWriters, dialogWriteBehindMaxDelay, dialogWriteBehindBatchSize, dialogWriteBehindQueueSize);
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Dialog write behind enabled with " + dialogWriteBehindWriters + " writers, a max delay of " + dialogWriteBehindMaxDelay + 
+						"ms, batches of " + dialogWriteBehindBatchSize + " and a queue of " + dialogWriteBehindQueueSize + " dialogs");
+			}
+		}
+		int dialogReplicationThreads = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_REPLICATION_THREADS, "0"));
+		if(dialogReplicationThreads > 0 && !sipCache.inLocalMode()) {
+			if(dialogWriteBehindQueue != null) {
+				getStackLogger().logWarning(ClusteredSipStack.DIALOG_REPLICATION_THREADS + " ignored since the dialogs are already written by the write behind queue");
+			} else {
+				int dialogReplicationQueueSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.DIALOG_REPLICATION_QUEUE_SIZE, "10000"));
+				dialogReplicationExecutor = new DialogReplicationExecutor(this, dialogReplicationThreads, dialogReplicationQueueSize);
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+					getStackLogger().logInfo("Dialog replication enabled with " + dialogReplicationThreads + " threads and a queue of " + dialogReplicationQueueSize + " dialogs");
+				}
+			}
+		}
+		if(!(sipCache instanceof AsyncSipCache) && !sipCache.inLocalMode()) {
+			sipCacheAsyncThreads = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.SIP_CACHE_ASYNC_THREADS, "4"));
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("SipCache without asynchronous operations, they are run by " + sipCacheAsyncThreads + " threads");
+			}
+		}
+		asyncSipCache = createAsyncSipCache(sipCache);
+		long orphanEntryReaperPeriod = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.ORPHAN_ENTRY_REAPER_PERIOD, "0"));
+		if(orphanEntryReaperPeriod > 0) {
+			long orphanEntryReaperGraceTime = Long.parseLong(configurationProperties.getProperty(ClusteredSipStack.ORPHAN_ENTRY_REAPER_GRACE_TIME, "7200000"));
+			int orphanEntryReaperChunkSize = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.ORPHAN_ENTRY_REAPER_CHUNK_SIZE, "1000"));
+			int orphanEntryReaperRate = Integer.parseInt(configurationProperties.getProperty(ClusteredSipStack.ORPHAN_ENTRY_REAPER_RATE, "100"));
+			orphanEntryReaperService = new OrphanEntryReaperService(this, orphanEntryReaperPeriod, orphanEntryReaperGraceTime, orphanEntryReaperChunkSize, orphanEntryReaperRate);
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+				getStackLogger().logInfo("Orphan entry reaper enabled every " + orphanEntryReaperPeriod + "ms, removing the entries orphan for more than " + 
+						orphanEntryReaperGraceTime + "ms at a max rate of " + orphanEntryReaperRate + " entries/s");
+			}
+		}
+		if((dialogNearCache != null || dialogOwnershipLease > 0 || dialogLookupFilter != null) && sipCache instanceof DialogInvalidationNotifier) {
+			((DialogInvalidationNotifier) sipCache).setDialogInvalidationListener(new ClusteredDialogInvalidationListener());
+		}
 		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
-			getStackLogger().logInfo("Replication Strategy is " + replicationStrategy + " replicating application data " + replicateApplicationData);
+			getStackLogger().logInfo("Replication Strategy is " + replicationStrategy + " replicating application data " + replicateApplicationData + " dialog delta replication " + dialogDeltaReplication + " last response skeleton " + replicateLastResponseSkeleton + 
+					" dialog cache TTL " + dialogCacheTTL + "ms max idle " + dialogCacheMaxIdle + "ms transaction cache TTL " + transactionCacheTTL + "ms max idle " + transactionCacheMaxIdle + "ms");
 		}
 	}		
 	
@@ -154,7 +350,16 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(loadBalancerHeartBeatingService != null) {
 			loadBalancerHeartBeatingService.start();
 		}
+		if(dialogWriteBehindQueue != null) {
+			dialogWriteBehindQueue.start();
+		}
 		super.start();		
+		if(dialogPassivationService != null && !sipCache.inLocalMode()) {
+			dialogPassivationService.start();
+		}
+		if(orphanEntryReaperService != null && !sipCache.inLocalMode()) {
+			orphanEntryReaperService.start();
+		}
 	}
 		
 	public void closeAllTcpSockets() {
@@ -168,7 +373,31 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	@Override
 	public void stop() {		
+		if(dialogTakeoverService != null) {
+			dialogTakeoverService.stop();
+		}
+		if(dialogPassivationService != null) {
+			dialogPassivationService.stop();
+		}
+		if(orphanEntryReaperService != null) {
+			orphanEntryReaperService.stop();
+		}
 		super.stop();
+		if(dialogWriteBehindQueue != null) {
+			// flushes the pending writes while the cache is still up
+			dialogWriteBehindQueue.stop();
+		}
+		if(dialogReplicationExecutor != null) {
+			// runs the queued writes while the cache is still up
+			dialogReplicationExecutor.stop();
+		}
+		if(asyncSipCache instanceof BlockingAsyncSipCache) {
+			// runs the queued removals while the cache is still up
+			((BlockingAsyncSipCache) asyncSipCache).stop();
+		}
+		if(sipCacheCircuitBreaker != null) {
+			sipCacheCircuitBreaker.stop();
+		}
 		try {
 			sipCache.stop();
 		} catch (Exception e) {
@@ -254,6 +483,15 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 				getStackLogger().logDebug("checking if the dialog " + dialogId + " is present in the local cache");
 			}		
 			SIPDialog sipDialog = super.getDialog(dialogId);
+			if(sipDialog instanceof HASipDialog) {
+				((HASipDialog) sipDialog).updateLastAccessedTime();
+			}
+			if(isHADegraded()) {
+				if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					getStackLogger().logDebug("HA is degraded, not checking the distributed cache for dialog " + dialogId);
+				}
+				return sipDialog;
+			}
 			int nbToken = new StringTokenizer(dialogId, Separators.COLON).countTokens();
 			// we should only check the cache for dialog Id where the remote tag is set since we support only established dialog failover
 			// Issue 1378 : http://code.google.com/p/restcomm/issues/detail?id=1378
@@ -263,30 +501,47 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 					if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 						getStackLogger().logDebug("local dialog " + dialogId + " is null, checking in the distributed cache");
 					}
-					sipDialog = getDialogFromDistributedCache(dialogId);
-					if(sipDialog != null) {
+					if(dialogTombstones != null && dialogTombstones.contains(dialogId)) {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							getStackLogger().logDebug("dialog " + dialogId + " found in the distributed cache, storing it locally");
-						}
-						SIPDialog existingDialog = super.putDialog(sipDialog);
-						// avoid returning wrong dialog if 2 threads try to recreate
-						// the dialog after failover, we use the one that won the race
-						if(existingDialog != null) {
-							sipDialog = existingDialog;
+							getStackLogger().logDebug("dialog " + dialogId + " was removed recently, it must not be recovered from the distributed cache");
 						}
-					} else {
+						return null;
+					}
+					if(dialogLookupFilter != null && !dialogLookupFilter.mightExist(dialogId)) {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							getStackLogger().logDebug("dialog " + dialogId + " not found in the distributed cache");
+							getStackLogger().logDebug("dialog " + dialogId + " is known not to be in the distributed cache");
 						}
+						return null;
 					}
+					sipDialog = recoverDialogFromDistributedCache(dialogId);
 				} else {
 					// we check for updates only if the dialog is confirmed
 					if(sipDialog.getState() == DialogState.CONFIRMED) {
+						if(((HASipDialog) sipDialog).isOwnershipLeaseHeld()) {
+							if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+								getStackLogger().logDebug("local dialog " + dialogId + " is present locally " + sipDialog + " and owned by this node, no need to check the cache");
+							}
+							return sipDialog;
+						}
+						if(dialogNearCache != null && dialogNearCache.isCurrent(dialogId, ((HASipDialog) sipDialog).getVersion())) {
+							if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+								getStackLogger().logDebug("local dialog " + dialogId + " is present locally " + sipDialog + " and up to date according to the near cache");
+							}
+							return sipDialog;
+						}
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 							getStackLogger().logDebug("local dialog " + dialogId + " is present locally " + sipDialog + " checking if it needs to be updated from the cache");
 						}
+						final long invalidationCount = dialogNearCache != null ? dialogNearCache.getInvalidationCount(dialogId) : 0;
 						try {
-							sipCache.updateDialog(sipDialog);
+							if(sipCacheCircuitBreaker != null) {
+								sipCacheCircuitBreaker.updateDialog(sipDialog);
+							} else {
+								sipCache.updateDialog(sipDialog);
+							}
+							if(dialogNearCache != null) {
+								dialogNearCache.put(dialogId, ((HASipDialog) sipDialog).getVersion(), invalidationCount);
+							}
 						} catch (SipCacheException e) {
 							getStackLogger().logError("sipStack " + this + " problem updating dialog " + dialogId + " from the distributed cache", e);
 						}	
@@ -303,7 +558,11 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	@Override
 	public SIPDialog putDialog(SIPDialog dialog) {
-		return super.putDialog(dialog);
+		final SIPDialog existingDialog = super.putDialog(dialog);
+		if(dialogPassivationService != null && !sipCache.inLocalMode()) {
+			dialogPassivationService.dialogStored(dialogTable.size());
+		}
+		return existingDialog;
 		// not needed it was causing the dialog to be put in the cache even for 1xx with a to tag
 //		if (!sipCache.inLocalMode() && DialogState.CONFIRMED == dialog.getState()) {
 //			// only replicate dialogs in confirmed state
@@ -319,10 +578,43 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	public void removeDialog(SIPDialog dialog) {
 		if (!sipCache.inLocalMode()) {
 			removeDialogFromDistributedCache(dialog.getDialogId());
+			if(dialogNearCache != null) {
+				dialogNearCache.remove(dialog.getDialogId());
+			}
 		}
 		super.removeDialog(dialog);
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#passivateDialog(org.mobicents.ha.javax.sip.HASipDialog)
+	 */
+	public void passivateDialog(HASipDialog dialog) {
+		passivateDialogIfCurrent(dialog);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#passivateDialogIfCurrent(org.mobicents.ha.javax.sip.HASipDialog)
+	 */
+	public boolean passivateDialogIfCurrent(HASipDialog dialog) {
+		// the dialog stays in the cache, evicting it would remove it from the whole cluster with some backends, 
+		// it is only dropped locally and recovered from the cache on its next request
+		String dialogId = dialog.getDialogIdToReplicate();
+		if (!super.dialogTable.remove(dialogId, dialog)) {
+			// recovered again or replaced meanwhile
+			return false;
+		}
+		String mergeId = dialog.getMergeId();
+		if (mergeId != null) {
+			super.serverDialogMergeTestTable.remove(mergeId);
+		}
+		if (getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			getStackLogger().logDebug("HA SIP Dialog " + dialogId + " passivated");
+		}
+		return true;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#remoteDialogRemoval(java.lang.String)
@@ -334,6 +626,9 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			getStackLogger().logDebug("sipStack " + this + 
 					" remote Dialog Removal of dialogId : " + dialogId);
 		}
+		if(dialogNearCache != null) {
+			dialogNearCache.remove(dialogId);
+		}
 		SIPDialog sipDialog = super.dialogTable.remove(dialogId);
 		if (sipDialog != null) {
 			String mergeId = sipDialog.getMergeId();
@@ -343,6 +638,101 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 	}
 	
+	/**
+	 * Recover the dialog from the distributed cache and store it locally.
+	 * Only one thread fetches and rebuilds a given dialog, the other threads asking for it in the meantime 
+	 * (retransmissions and parallel requests after a failover) wait for the result of the first one.
+	 * @param dialogId the id of the dialog to recover
+	 * @return the dialog stored locally, null if nothing has been found in the cache
+	 */
+	protected SIPDialog recoverDialogFromDistributedCache(final String dialogId) {
+		FutureTask<SIPDialog> recovery = new FutureTask<SIPDialog>(new Callable<SIPDialog>() {
+			public SIPDialog call() throws Exception {
+				return recoverDialog(dialogId);
+			}
+		});
+		final FutureTask<SIPDialog> ongoingRecovery = dialogRecoveries.putIfAbsent(dialogId, recovery);
+		if(ongoingRecovery == null) {
+			try {
+				recovery.run();
+			} finally {
+				dialogRecoveries.remove(dialogId, recovery);
+			}
+		} else {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("dialog " + dialogId + " is already being recovered from the distributed cache, waiting for it");
+			}
+			recovery = ongoingRecovery;
+		}
+		try {
+			return recovery.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			getStackLogger().logError("sipStack " + this + " interrupted while waiting for the recovery of dialog " + dialogId, e);
+		} catch (ExecutionException e) {
+			getStackLogger().logError("sipStack " + this + " problem recovering dialog " + dialogId + " from the distributed cache", e);
+		}
+		return null;
+	}
+
+	private SIPDialog recoverDialog(String dialogId) {
+		final long invalidationCount = dialogNearCache != null ? dialogNearCache.getInvalidationCount(dialogId) : 0;
+		final long additionCount = dialogLookupFilter != null ? dialogLookupFilter.getAdditionCount() : 0;
+		SIPDialog sipDialog = getDialogFromDistributedCache(dialogId);
+		if(sipDialog != null) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("dialog " + dialogId + " found in the distributed cache, storing it locally");
+			}
+			if(dialogNearCache != null) {
+				dialogNearCache.put(dialogId, ((HASipDialog) sipDialog).getVersion(), invalidationCount);
+			}
+			SIPDialog existingDialog = super.putDialog(sipDialog);
+			if(dialogPassivationService != null) {
+				dialogPassivationService.dialogStored(dialogTable.size());
+			}
+			// avoid returning wrong dialog if 2 threads try to recreate
+			// the dialog after failover, we use the one that won the race
+			if(existingDialog != null) {
+				sipDialog = existingDialog;
+			} else if(orphanEntryReaperService != null && sipCache instanceof OrphanEntryScanner) {
+				takeOverOrphanDialog(sipDialog);
+			}
+		} else {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("dialog " + dialogId + " not found in the distributed cache");
+			}
+			if(dialogLookupFilter != null) {
+				dialogLookupFilter.notFound(dialogId, additionCount);
+			}
+		}
+		return sipDialog;
+	}
+
+	/**
+	 * Replicates a recovered dialog whose owner left the cluster, so that its owner and version change 
+	 * and the orphan entry reaper doesn't remove it while this node uses it, even if this node only reads it
+	 * @param sipDialog the dialog just recovered from the distributed cache
+	 */
+	private void takeOverOrphanDialog(SIPDialog sipDialog) {
+		final String owner = ((HASipDialog) sipDialog).getOwner();
+		if(owner == null || owner.equals(nodeId)) {
+			return;
+		}
+		try {
+			final Set<String> nodeIds = ((OrphanEntryScanner) sipCache).getNodeIds();
+			if(nodeIds == null || nodeIds.contains(owner)) {
+				return;
+			}
+		} catch (SipCacheException e) {
+			getStackLogger().logError("sipStack " + this + " couldn't check if the owner " + owner + " of dialog " + sipDialog.getDialogId() + " is in the cluster", e);
+			return;
+		}
+		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			getStackLogger().logDebug("dialog " + sipDialog.getDialogId() + " is owned by " + owner + " which left the cluster, taking it over");
+		}
+		putDialogIntoDistributedCache(sipDialog);
+	}
+
 	/**
 	 * Retrieve the dialog from the distributed cache
 	 * @param dialogId the id of the dialog to fetch
@@ -355,7 +745,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		// fetch the corresponding dialog from the cache instance
 		SIPDialog sipDialog = null;
 		try {
-			sipDialog = sipCache.getDialog(dialogId);
+			sipDialog = sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getDialog(dialogId) : sipCache.getDialog(dialogId);
 		} catch (SipCacheException e) {
 			getStackLogger().logError("sipStack " + this + " problem getting dialog " + dialogId + " from the distributed cache", e);
 		}
@@ -378,12 +768,35 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 		// put the corresponding dialog into the cache instance
 		try {
-			sipCache.putDialog(dialog);
+			storeDialog(dialog);
 		} catch (SipCacheException e) {
 			getStackLogger().logError("sipStack " + this + " problem storing the dialog " + dialogId + " into the distributed cache", e);
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#storeDialog(gov.nist.javax.sip.stack.SIPDialog)
+	 */
+	public boolean storeDialog(SIPDialog dialog) throws SipCacheException {
+		if(sipCacheCircuitBreaker != null) {
+			return sipCacheCircuitBreaker.putDialog(dialog);
+		}
+		return putDialogIfNewer(sipCache, dialog);
+	}
+	
+	/**
+	 * Writes the dialog to the cache, checking its version first if the cache is a {@link ConditionalDialogWriter}
+	 * @return false if the cache holds a version of the dialog at least as recent, always true for the other caches
+	 */
+	static boolean putDialogIfNewer(SipCache sipCache, SIPDialog dialog) throws SipCacheException {
+		if(sipCache instanceof ConditionalDialogWriter) {
+			return ((ConditionalDialogWriter) sipCache).putDialogIfNewer(dialog);
+		}
+		sipCache.putDialog(dialog);
+		return true;
+	}
+	
 	/**
 	 * Remove the dialog from the distributed cache
 	 * @param dialogId the id of the dialog to remove
@@ -392,13 +805,26 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			getStackLogger().logDebug("sipStack " + this + " removing the dialog " + dialogId + " from the distributed cache");
 		}
-		// remove the corresponding dialog from the cache instance
-		// put the corresponding dialog into the cache instance
-		try {
-			sipCache.removeDialog(dialogId);
-		} catch (SipCacheException e) {
-			getStackLogger().logError("sipStack " + this + " problem removing dialog " + dialogId + " from the distributed cache", e);
+		if(dialogTombstones != null) {
+			dialogTombstones.add(dialogId);
 		}
+		if(dialogWriteBehindQueue != null) {
+			// removed after the pending write of the dialog if any
+			dialogWriteBehindQueue.remove(dialogId);
+			return;
+		}
+		if(dialogReplicationExecutor != null) {
+			// removed after the queued writes of the dialog
+			dialogReplicationExecutor.remove(dialogId);
+			return;
+		}
+		if(isHADegraded()) {
+			// removed when the cache answers again
+			sipCacheCircuitBreaker.queueDialogRemoval(dialogId);
+			return;
+		}
+		// remove the corresponding dialog from the cache instance without waiting for it, failures are logged by the cache
+		asyncSipCache.removeDialogAsync(dialogId);
 	}
 	
 	/*
@@ -412,7 +838,13 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 		final String txId = transactionId.toLowerCase();
 		SIPTransaction sipTransaction = super.findTransaction(txId, isServer);
-		if(sipTransaction == null && transactionFactory != null) {
+		if(sipTransaction == null && transactionTombstones != null && transactionTombstones.contains(txId)) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("transaction " + txId + " server = " + isServer + " was removed recently, not checking the distributed cache");
+			}
+			return null;
+		}
+		if(sipTransaction == null && transactionFactory != null && !isHADegraded()) {
 			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 				getStackLogger().logDebug("local transaction " + txId + " server = " + isServer + " is null, checking in the distributed cache");
 			}
@@ -422,7 +854,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			if(isServer) {
 				// fetch the corresponding server transaction from the cache instance
 				try {
-					sipTransaction = sipCache.getServerTransaction(txId);
+					sipTransaction = sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getServerTransaction(txId) : sipCache.getServerTransaction(txId);
 					if(sipTransaction != null) {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 							getStackLogger().logDebug("sipStack " + this + " transaction " + txId + " server = " + isServer + " is present in the distributed cache");
@@ -442,7 +874,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			} else {
 				// fetch the corresponding client transaction from the cache instance
 				try {
-					sipTransaction = sipCache.getClientTransaction(txId);
+					sipTransaction = sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getClientTransaction(txId) : sipCache.getClientTransaction(txId);
 					if(sipTransaction != null) {
 						if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 							getStackLogger().logDebug("sipStack " + this + " transaction " + txId + " server = " + isServer + " is present in the distributed cache");
@@ -475,21 +907,44 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			return;
 		}
 		if(transactionFactory != null && sipTransaction != null && replicationStrategy == ReplicationStrategy.EarlyDialog && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
-			if(sipTransaction instanceof ServerTransaction) {
-				// remove the corresponding server transaction from the cache instance
-				try {
-					sipCache.removeServerTransaction(sipTransaction.getTransactionId());
-				} catch (SipCacheException e) {
-					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
-				}
-			} else {
-				// remove the corresponding client transaction from the cache instance
-				try {
-					sipCache.removeClientTransaction(sipTransaction.getTransactionId());
-				} catch (SipCacheException e) {
-					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
-				}
+			removeTransactionFromDistributedCache(sipTransaction);
+		}
+	}
+	
+	/**
+	 * Removes an INVITE transaction from the distributed cache without waiting for it, 
+	 * only once since both removeTransaction and removeTransactionHash are called for it
+	 */
+	private void removeTransactionFromDistributedCache(SIPTransaction sipTransaction) {
+		final String txId = sipTransaction.getTransactionId();
+		boolean firstRemoval = true;
+		if(sipTransaction instanceof MobicentsHASIPServerTransaction) {
+			firstRemoval = ((MobicentsHASIPServerTransaction) sipTransaction).markRemovedFromDistributedCache();
+		} else if(sipTransaction instanceof MobicentsHASIPClientTransaction) {
+			firstRemoval = ((MobicentsHASIPClientTransaction) sipTransaction).markRemovedFromDistributedCache();
+		}
+		// findTransaction looks the transactions up by their lower case id, 
+		// the tombstone also catches another copy of the transaction removed meanwhile
+		if(transactionTombstones != null && firstRemoval) {
+			firstRemoval = transactionTombstones.add(txId.toLowerCase());
+		}
+		if(!firstRemoval) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("sipStack " + this + " transaction " + txId + " already removed from the distributed cache");
 			}
+			return;
+		}
+		if(isHADegraded()) {
+			if(getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				getStackLogger().logDebug("sipStack " + this + " HA is degraded, transaction " + txId + " left to expire from the distributed cache");
+			}
+			return;
+		}
+		// failures are logged by the cache
+		if(sipTransaction instanceof ServerTransaction) {
+			asyncSipCache.removeServerTransactionAsync(txId);
+		} else {
+			asyncSipCache.removeClientTransactionAsync(txId);
 		}
 	}
 	
@@ -500,21 +955,7 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 			return;
 		}
 		if(transactionFactory != null && sipTransaction != null && replicationStrategy == ReplicationStrategy.EarlyDialog && sipTransaction.getMethod().equalsIgnoreCase(Request.INVITE)) {
-			if(sipTransaction instanceof ServerTransaction) {
-				// remove the corresponding server transaction from the cache instance
-				try {
-					sipCache.removeServerTransaction(sipTransaction.getTransactionId());
-				} catch (SipCacheException e) {
-					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
-				}
-			} else {
-				// remove the corresponding client transaction from the cache instance
-				try {
-					sipCache.removeClientTransaction(sipTransaction.getTransactionId());
-				} catch (SipCacheException e) {
-					getStackLogger().logError("sipStack " + this + " problem getting transaction " + sipTransaction.getTransactionId() + " from the distributed cache", e);
-				}
-			}
+			removeTransactionFromDistributedCache(sipTransaction);
 		}
 	}
 
@@ -524,6 +965,17 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	public void setSipCache(SipCache sipCache) {
 		this.sipCache = sipCache;
+		if(asyncSipCache instanceof BlockingAsyncSipCache) {
+			((BlockingAsyncSipCache) asyncSipCache).stop();
+		}
+		this.asyncSipCache = createAsyncSipCache(sipCache);
+	}
+	
+	private AsyncSipCache createAsyncSipCache(SipCache sipCache) {
+		if(sipCache instanceof AsyncSipCache) {
+			return (AsyncSipCache) sipCache;
+		}
+		return new BlockingAsyncSipCache(this, sipCache, sipCacheAsyncThreads, new DaemonThreadFactory("SipCacheAsync", virtualThreads));
 	}
 
 	/*
@@ -534,6 +986,14 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		return sipCache;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getAsyncSipCache()
+	 */
+	public AsyncSipCache getAsyncSipCache() {
+		return asyncSipCache;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#getLoadBalancerHeartBeatingService()
@@ -580,8 +1040,216 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 	 */
 	public boolean isReplicateApplicationData() {
 		return replicateApplicationData;
-	}  
+	}
+
+	/**
+	 * @return the dialogDeltaReplication
+	 */
+	public boolean isDialogDeltaReplication() {
+		return dialogDeltaReplication;
+	}
+
+	/**
+	 * @return the dialogNearCache
+	 */
+	public DialogNearCache getDialogNearCache() {
+		return dialogNearCache;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getDialogWriteBehindQueue()
+	 */
+	public DialogWriteBehindQueue getDialogWriteBehindQueue() {
+		return dialogWriteBehindQueue;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getDialogReplicationExecutor()
+	 */
+	public DialogReplicationExecutor getDialogReplicationExecutor() {
+		return dialogReplicationExecutor;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#isVirtualThreads()
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getSipCacheCircuitBreaker()
+	 */
+	public SipCacheCircuitBreaker getSipCacheCircuitBreaker() {
+		return sipCacheCircuitBreaker;
+	}
+
+	/**
+	 * @return true if the distributed cache is not used because it doesn't answer, see {@link SipCacheCircuitBreaker}
+	 */
+	public boolean isHADegraded() {
+		return sipCacheCircuitBreaker != null && sipCacheCircuitBreaker.isOpen();
+	}
+
+	public long getHADegradedTime() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getDegradedTime() : 0;
+	}
+
+	public long getNumberOfHADegradations() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getDegradations() : 0;
+	}
+
+	public long getNumberOfTimedOutCacheOperations() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getTimedOutOperations() : 0;
+	}
+
+	public long getNumberOfFailedCacheOperations() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getFailedOperations() : 0;
+	}
+
+	public int getNumberOfDialogsQueuedWhileHADegraded() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getPendingDialogs() : 0;
+	}
+
+	public long getNumberOfDialogsDroppedWhileHADegraded() {
+		return sipCacheCircuitBreaker != null ? sipCacheCircuitBreaker.getDroppedDialogs() : 0;
+	}
+
+	/**
+	 * @return the nodeId
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return the dialogOwnershipLease
+	 */
+	public long getDialogOwnershipLease() {
+		return dialogOwnershipLease;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getDialogCacheTTL()
+	 */
+	public long getDialogCacheTTL() {
+		return dialogCacheTTL;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getTransactionCacheTTL()
+	 */
+	public long getTransactionCacheTTL() {
+		return transactionCacheTTL;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getDialogCacheMaxIdle()
+	 */
+	public long getDialogCacheMaxIdle() {
+		return dialogCacheMaxIdle;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#getTransactionCacheMaxIdle()
+	 */
+	public long getTransactionCacheMaxIdle() {
+		return transactionCacheMaxIdle;
+	}
+
+	/**
+	 * @return the dialogLookupFilter
+	 */
+	public DialogLookupFilter getDialogLookupFilter() {
+		return dialogLookupFilter;
+	}
+
+	/**
+	 * @return a live view of the dialogs stored locally, to go through them without copying them
+	 */
+	Collection<SIPDialog> getLocalDialogs() {
+		return dialogTable.values();
+	}
+
+	/**
+	 * @return the service passivating the idle dialogs, null if not enabled
+	 */
+	public DialogPassivationService getDialogPassivationService() {
+		return dialogPassivationService;
+	}
+
+	/**
+	 * @return the service removing the orphan entries from the cache, null if not enabled
+	 */
+	public OrphanEntryReaperService getOrphanEntryReaperService() {
+		return orphanEntryReaperService;
+	}
+	
+	public long getNumberOfPassivatedDialogs() {
+		return dialogPassivationService != null ? dialogPassivationService.getPassivatedDialogs() : 0;
+	}
+	
+	public long getNumberOfReapedOrphanEntries() {
+		return orphanEntryReaperService != null ? orphanEntryReaperService.getReapedEntries() : 0;
+	}
+	
+	public int getNumberOfOrphanCandidates() {
+		return orphanEntryReaperService != null ? orphanEntryReaperService.getOrphanCandidates() : 0;
+	}
+	
+	public int getNumberOfPendingDialogWrites() {
+		return dialogWriteBehindQueue != null ? dialogWriteBehindQueue.getPendingWrites() : 0;
+	}
+	
+	public long getNumberOfCoalescedDialogWrites() {
+		return dialogWriteBehindQueue != null ? dialogWriteBehindQueue.getCoalescedWrites() : 0;
+	}
+	
+	public long getNumberOfRejectedDialogWrites() {
+		return dialogWriteBehindQueue != null ? dialogWriteBehindQueue.getRejectedWrites() : 0;
+	}
 	
+	public long getNumberOfRetriedDialogWrites() {
+		return dialogWriteBehindQueue != null ? dialogWriteBehindQueue.getRetriedWrites() : 0;
+	}
+	
+	public int getNumberOfQueuedDialogReplications() {
+		return dialogReplicationExecutor != null ? dialogReplicationExecutor.getQueuedWrites() : 0;
+	}
+	
+	public long getNumberOfBlockedDialogReplications() {
+		return dialogReplicationExecutor != null ? dialogReplicationExecutor.getBlockedSubmissions() : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.ClusteredSipStackExt#takeOverDialogs(java.lang.String, boolean)
+	 */
+	public void takeOverDialogs(String nodeId, boolean localOnly) {
+		if(dialogLookupFilter != null) {
+			// the dialogs of the failed node may not all have been notified to this node yet
+			dialogLookupFilter.failover();
+		}
+		if(dialogTakeoverService != null && !sipCache.inLocalMode()) {
+			dialogTakeoverService.takeOver(nodeId, localOnly);
+		}
+	}
+
+	/**
+	 * @return the replicateLastResponseSkeleton
+	 */
+	public boolean isReplicateLastResponseSkeleton() {
+		return replicateLastResponseSkeleton;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#remoteServerTransactionRemoval(java.lang.String)
@@ -625,4 +1293,40 @@ public abstract class ClusteredSipStackImpl extends SipStackImpl implements Clus
 		}
 		return super.createSipProvider(listeningPoint);
 	}  
-}	
\ No newline at end of file
+
+	/**
+	 * Drops what this node knows about the dialogs written or removed by other nodes: 
+	 * their versions in the near cache, the ownership lease of the local copies and their absence from the cache
+	 */
+	private class ClusteredDialogInvalidationListener implements DialogInvalidationListener {
+
+		public void dialogInvalidated(String dialogId) {
+			if(dialogNearCache != null) {
+				dialogNearCache.dialogInvalidated(dialogId);
+			}
+			if(dialogLookupFilter != null) {
+				dialogLookupFilter.invalidate(dialogId);
+			}
+			final SIPDialog sipDialog = dialogTable.get(dialogId);
+			if(sipDialog instanceof HASipDialog) {
+				((HASipDialog) sipDialog).releaseOwnershipLease();
+			}
+		}
+
+		public void allDialogsInvalidated() {
+			if(dialogNearCache != null) {
+				dialogNearCache.allDialogsInvalidated();
+			}
+			if(dialogLookupFilter != null) {
+				dialogLookupFilter.invalidateAll();
+			}
+			if(dialogOwnershipLease > 0) {
+				for(SIPDialog sipDialog : dialogTable.values()) {
+					if(sipDialog instanceof HASipDialog) {
+						((HASipDialog) sipDialog).releaseOwnershipLease();
+					}
+				}
+			}
+		}
+	}
+}
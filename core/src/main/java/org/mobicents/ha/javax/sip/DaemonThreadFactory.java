@@ -0,0 +1,53 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the background services of the stack, so that they never prevent the JVM from exiting.
+ * The services mostly waiting for the cache can ask for virtual threads, which are always daemon, 
+ * platform threads being created when the JVM doesn't support them.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+	private final ThreadFactory virtualThreadFactory;
+
+	DaemonThreadFactory(String name) {
+		this(name, false);
+	}
+
+	DaemonThreadFactory(String name, boolean virtual) {
+		this.name = name;
+		this.virtualThreadFactory = virtual ? VirtualThreads.newThreadFactory(name + "-") : null;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		if(virtualThreadFactory != null) {
+			return virtualThreadFactory.newThread(runnable);
+		}
+		final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPTransaction;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.DialogState;
+import javax.sip.TransactionState;
+
+/**
+ * Passivates the confirmed dialogs idle for longer than a given time, and the least recently used ones when the number of dialogs 
+ * stored locally goes over a maximum, so that the heap of a node holding lots of mostly idle dialogs (long subscriptions, parked calls) 
+ * isn't filled by them and grows predictably with the number of calls.
+ * 
+ * A passivated dialog is only dropped from the local tables through {@link ClusteredSipStackExt#passivateDialogIfCurrent(HASipDialog)}, 
+ * it stays in the distributed cache and is recovered from it on its next request.
+ * Only the dialogs whose current version is in the cache and without ongoing transaction are passivated, 
+ * and the dialogs holding application data are kept when the application data is not replicated.
+ * If a heap watermark is set, the idle dialogs are only passivated while the used heap is above it.
+ */
+public class DialogPassivationService implements Runnable {
+
+	private final ClusteredSipStackImpl clusteredSipStack;
+	private final long idleTime;
+	private final int heapWatermark;
+	private final int maxDialogs;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong passivatedDialogs = new AtomicLong();
+	private final AtomicBoolean spillScheduled = new AtomicBoolean();
+	private final Runnable spill = new Runnable() {
+		public void run() {
+			try {
+				spill();
+			} catch (RuntimeException e) {
+				clusteredSipStack.getStackLogger().logError("Couldn't passivate the least recently used dialogs", e);
+			} finally {
+				spillScheduled.set(false);
+			}
+		}
+	};
+
+	/**
+	 * @param clusteredSipStack the stack whose dialogs are passivated
+	 * @param idleTime the time in milliseconds since their last access after which the dialogs are passivated, 0 to not passivate idle dialogs
+	 * @param heapWatermark the percentage of the max heap above which the idle dialogs are passivated, 0 to always passivate them
+	 * @param maxDialogs the maximum number of dialogs stored locally, 0 for no maximum
+	 */
+	public DialogPassivationService(ClusteredSipStackImpl clusteredSipStack, long idleTime, int heapWatermark, int maxDialogs) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.idleTime = idleTime;
+		this.heapWatermark = heapWatermark;
+		this.maxDialogs = maxDialogs;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DialogPassivation"));
+	}
+
+	public void start() {
+		if(idleTime > 0) {
+			// checking twice per idle time keeps the dialogs in memory at most 1.5 times the idle time
+			final long period = Math.max(idleTime / 2, 1000);
+			scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return the number of dialogs passivated since the start of the stack
+	 */
+	public long getPassivatedDialogs() {
+		return passivatedDialogs.get();
+	}
+
+	/**
+	 * Called when a dialog is stored locally, schedules the passivation of the least recently used dialogs 
+	 * if there are more dialogs than the maximum
+	 * @param localDialogs the number of dialogs stored locally
+	 */
+	public void dialogStored(int localDialogs) {
+		if(maxDialogs > 0 && localDialogs > maxDialogs && spillScheduled.compareAndSet(false, true)) {
+			try {
+				scheduler.execute(spill);
+			} catch (RuntimeException e) {
+				// rejected once stopped
+				spillScheduled.set(false);
+			}
+		}
+	}
+
+	public void run() {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		try {
+			if(heapWatermark > 0) {
+				final Runtime runtime = Runtime.getRuntime();
+				final long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+				if(usedHeap * 100 < runtime.maxMemory() * heapWatermark) {
+					return;
+				}
+			}
+			final long idleSince = System.currentTimeMillis() - idleTime;
+			int passivated = 0;
+			for (SIPDialog sipDialog : clusteredSipStack.getLocalDialogs()) {
+				if(isPassivable(sipDialog) && ((HASipDialog) sipDialog).getLastAccessedTime() <= idleSince) {
+					if(clusteredSipStack.passivateDialogIfCurrent((HASipDialog) sipDialog)) {
+						passivated++;
+					}
+				}
+			}
+			passivatedDialogs.addAndGet(passivated);
+			if(passivated > 0 && logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				logger.logDebug("passivated " + passivated + " dialogs idle for more than " + idleTime + "ms");
+			}
+		} catch (RuntimeException e) {
+			// an exception would cancel the next runs
+			logger.logError("Couldn't passivate the idle dialogs", e);
+		}
+	}
+
+	/**
+	 * Passivates the least recently used dialogs to go back to 90% of the maximum, 
+	 * so that the next dialogs stored don't trigger a new pass right away
+	 */
+	private void spill() {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		final int excess = clusteredSipStack.getLocalDialogs().size() - maxDialogs * 9 / 10;
+		if(excess <= 0) {
+			return;
+		}
+		final LeastRecentlyUsed leastRecentlyUsed = new LeastRecentlyUsed(excess);
+		for (SIPDialog sipDialog : clusteredSipStack.getLocalDialogs()) {
+			if(isPassivable(sipDialog)) {
+				leastRecentlyUsed.offer((HASipDialog) sipDialog);
+			}
+		}
+		int passivated = 0;
+		for (HASipDialog haSipDialog : leastRecentlyUsed.getDialogs()) {
+			if(clusteredSipStack.passivateDialogIfCurrent(haSipDialog)) {
+				passivated++;
+			}
+		}
+		passivatedDialogs.addAndGet(passivated);
+		if(leastRecentlyUsed.getDialogs().size() < excess) {
+			logger.logWarning(clusteredSipStack.getLocalDialogs().size() + " dialogs stored locally for a maximum of " + maxDialogs + 
+					", the other dialogs can't be passivated yet since they are not replicated or have ongoing transactions");
+		} else if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("passivated the " + passivated + " least recently used dialogs to stay under " + maxDialogs + " dialogs");
+		}
+	}
+
+	private boolean isPassivable(SIPDialog sipDialog) {
+		if(!(sipDialog instanceof HASipDialog) || sipDialog.getState() != DialogState.CONFIRMED || !((HASipDialog) sipDialog).isStateReplicated()) {
+			return false;
+		}
+		if(sipDialog.getApplicationData() != null && !clusteredSipStack.isReplicateApplicationData()) {
+			return false;
+		}
+		final SIPTransaction lastTransaction = sipDialog.getLastTransaction();
+		return lastTransaction == null || lastTransaction.getState() == TransactionState.TERMINATED;
+	}
+
+	/**
+	 * Keeps the given number of least recently used dialogs among the dialogs offered, without sorting all of them
+	 */
+	static class LeastRecentlyUsed {
+		private static final Comparator<HASipDialog> MOST_RECENTLY_USED_FIRST = new Comparator<HASipDialog>() {
+			public int compare(HASipDialog dialog, HASipDialog otherDialog) {
+				final long lastAccessedTime = dialog.getLastAccessedTime();
+				final long otherLastAccessedTime = otherDialog.getLastAccessedTime();
+				return lastAccessedTime > otherLastAccessedTime ? -1 : (lastAccessedTime == otherLastAccessedTime ? 0 : 1);
+			}
+		};
+
+		private final int count;
+		// the most recently used of the dialogs kept at the head to be replaced first
+		private final PriorityQueue<HASipDialog> dialogs;
+
+		LeastRecentlyUsed(int count) {
+			this.count = count;
+			this.dialogs = new PriorityQueue<HASipDialog>(count, MOST_RECENTLY_USED_FIRST);
+		}
+
+		void offer(HASipDialog dialog) {
+			if(dialogs.size() < count) {
+				dialogs.add(dialog);
+			} else if(dialog.getLastAccessedTime() < dialogs.peek().getLastAccessedTime()) {
+				dialogs.poll();
+				dialogs.add(dialog);
+			}
+		}
+
+		/**
+		 * @return the least recently used dialogs offered, in no particular order
+		 */
+		Collection<HASipDialog> getDialogs() {
+			return dialogs;
+		}
+	}
+}
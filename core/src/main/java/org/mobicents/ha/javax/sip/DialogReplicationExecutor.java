@@ -0,0 +1,199 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Writes the dialogs to the distributed cache from a pool of replication threads instead of the thread changing them,
+ * whether it is a SIP message processing thread, a timer thread or an application thread.
+ * 
+ * The pool is striped: each dialog id is always handled by the same single threaded stripe, so the writes of a dialog
+ * are applied in the order of its versions without any lock, while different dialogs are written in parallel.
+ * Unlike the {@link DialogWriteBehindQueue} the writes are neither delayed nor batched, they are done as soon as a thread is free.
+ * 
+ * The changes are encoded by the calling thread, see {@link HASipDialog#storePendingState()}, so a write finding
+ * them already written by a previous one of the same dialog does nothing. When the queue of a stripe is full 
+ * the calling thread waits for room, slowing down the threads changing the dialogs when the cache can't keep up.
+ * With {@link ClusteredSipStackExt#isVirtualThreads()} each stripe is a virtual thread, so many more stripes can write at the same time.
+ */
+public class DialogReplicationExecutor {
+
+	// time given to the stripes to run the queued writes when stopping
+	private static final long STOP_TIMEOUT = 5000;
+
+	private final ClusteredSipStackExt clusteredSipStack;
+	private final ThreadPoolExecutor[] stripes;
+	private final AtomicLong blockedSubmissions = new AtomicLong();
+
+	/**
+	 * @param clusteredSipStack the stack whose dialogs are replicated
+	 * @param threadCount the number of replication threads, each one being a stripe
+	 * @param queueSize the maximum number of queued writes, shared between the stripes
+	 */
+	public DialogReplicationExecutor(ClusteredSipStackExt clusteredSipStack, int threadCount, int queueSize) {
+		this.clusteredSipStack = clusteredSipStack;
+		final int capacity = Math.max(queueSize / threadCount, 1);
+		final DaemonThreadFactory threadFactory = new DaemonThreadFactory("DialogReplication", clusteredSipStack.isVirtualThreads());
+		final RejectedExecutionHandler waitForRoom = new WaitForRoomPolicy();
+		stripes = new ThreadPoolExecutor[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, 
+					new LinkedBlockingQueue<Runnable>(capacity), threadFactory, waitForRoom);
+		}
+	}
+
+	/**
+	 * Schedules the write of the changes encoded by the dialog
+	 */
+	public void replicate(final HASipDialog dialog) {
+		final String dialogId = dialog.getDialogIdToReplicate();
+		final boolean scheduled = execute(dialogId, new Runnable() {
+			public void run() {
+				try {
+					dialog.storePendingState();
+				} catch (RuntimeException e) {
+					clusteredSipStack.getStackLogger().logError("problem writing dialog " + dialogId + " to the distributed cache", e);
+				}
+			}
+		});
+		if(!scheduled) {
+			// the encoded changes are lost, the next write of the dialog writes its full state
+			dialog.stateNotStored();
+		}
+	}
+
+	/**
+	 * Schedules the removal of a dialog, done after its pending writes
+	 */
+	public void remove(final String dialogId) {
+		final boolean scheduled = execute(dialogId, new Runnable() {
+			public void run() {
+				try {
+					final SipCacheCircuitBreaker sipCacheCircuitBreaker = clusteredSipStack.getSipCacheCircuitBreaker();
+					if(sipCacheCircuitBreaker != null) {
+						sipCacheCircuitBreaker.removeDialog(dialogId);
+					} else {
+						clusteredSipStack.getSipCache().removeDialog(dialogId);
+					}
+				} catch (SipCacheException e) {
+					clusteredSipStack.getStackLogger().logError("problem removing dialog " + dialogId + " from the distributed cache", e);
+				} catch (RuntimeException e) {
+					clusteredSipStack.getStackLogger().logError("problem removing dialog " + dialogId + " from the distributed cache", e);
+				}
+			}
+		});
+		if(!scheduled) {
+			clusteredSipStack.getStackLogger().logWarning("dialog " + dialogId + " left in the distributed cache, it will expire or be reaped");
+		}
+	}
+
+	/**
+	 * Runs the queued writes and stops the replication threads, the next writes being refused
+	 */
+	public void stop() {
+		for (ThreadPoolExecutor stripe : stripes) {
+			stripe.shutdown();
+		}
+		final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		try {
+			for (ThreadPoolExecutor stripe : stripes) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0) {
+					stripe.awaitTermination(remaining, TimeUnit.MILLISECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final int queuedWrites = getQueuedWrites();
+		if(queuedWrites > 0) {
+			clusteredSipStack.getStackLogger().logWarning(queuedWrites + " dialog writes still queued after " + STOP_TIMEOUT + "ms, they are lost");
+		}
+	}
+
+	/**
+	 * @return the number of dialog writes waiting for a replication thread
+	 */
+	public int getQueuedWrites() {
+		int queuedWrites = 0;
+		for (ThreadPoolExecutor stripe : stripes) {
+			queuedWrites += stripe.getQueue().size();
+		}
+		return queuedWrites;
+	}
+
+	/**
+	 * @return the number of times a thread had to wait for room in a full queue since the start of the stack
+	 */
+	public long getBlockedSubmissions() {
+		return blockedSubmissions.get();
+	}
+
+	/**
+	 * @return false if the write was refused, since the replication is stopped or the calling thread was interrupted while waiting for room.
+	 * It is not run on the calling thread then, it could overtake the writes of the same dialog still queued
+	 */
+	private boolean execute(String dialogId, Runnable write) {
+		final ThreadPoolExecutor stripe = stripes[(dialogId.hashCode() & Integer.MAX_VALUE) % stripes.length];
+		try {
+			stripe.execute(write);
+			return true;
+		} catch (RejectedExecutionException e) {
+			if(clusteredSipStack.getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredSipStack.getStackLogger().logDebug("write of dialog " + dialogId + " refused: " + e.getMessage());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Waits for room in the queue of the stripe instead of running the write on the calling thread,
+	 * which could overtake the writes of the same dialog already queued
+	 */
+	private class WaitForRoomPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable write, ThreadPoolExecutor stripe) {
+			if(stripe.isShutdown()) {
+				throw new RejectedExecutionException("dialog replication stopped");
+			}
+			blockedSubmissions.incrementAndGet();
+			try {
+				stripe.getQueue().put(write);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("interrupted while waiting for room in the dialog replication queue", e);
+			}
+			if(stripe.isShutdown() && stripe.getQueue().remove(write)) {
+				// stopped while waiting, the stripe may have already run its last write and won't take this one
+				throw new RejectedExecutionException("dialog replication stopped");
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mobicents.ha.javax.sip.cache.DialogOwnerIndex;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Recovers proactively the dialogs of a node that left the cluster, instead of waiting for the next request of each of them,
+ * so that the first in-dialog requests after a failover don't all pay the cost of fetching and rebuilding their dialog.
+ * 
+ * The dialogs of the failed node are found through the {@link DialogOwnerIndex} of the cache and recovered
+ * in parallel by a bounded pool of threads, at a maximum rate to not overload the cache and the node.
+ * Each dialog is recovered through {@link ClusteredSipStack#getDialog(String)} so a request arriving in the meantime
+ * for a dialog being recovered waits for it instead of recovering it a second time.
+ */
+public class DialogTakeoverService {
+
+	private final ClusteredSipStackExt clusteredSipStack;
+	private final int parallelism;
+	private final int maxRate;
+	private final ExecutorService coordinator;
+	private final ExecutorService workers;
+	// bounds the number of dialogs submitted and not recovered yet
+	private final Semaphore inFlight;
+	private final ConcurrentHashMap<String, Boolean> ongoingTakeovers = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * @param clusteredSipStack the stack to recover the dialogs into
+	 * @param parallelism the number of dialogs recovered at the same time
+	 * @param maxRate the maximum number of dialogs recovered per second, 0 or less for no limit
+	 */
+	public DialogTakeoverService(ClusteredSipStackExt clusteredSipStack, int parallelism, int maxRate) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.parallelism = parallelism;
+		this.maxRate = maxRate;
+		this.coordinator = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DialogTakeoverCoordinator"));
+		this.workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("DialogTakeover", clusteredSipStack.isVirtualThreads()));
+		this.inFlight = new Semaphore(parallelism * 2);
+	}
+
+	/**
+	 * Recover asynchronously the dialogs owned by a node
+	 * @param ownerId the id of the node whose dialogs have to be recovered
+	 * @param localOnly true to only recover the dialogs primarily stored on this node, when all the nodes left take over the dialogs,
+	 * false to recover all of them, when the load balancer switched the traffic of the node over to this one
+	 */
+	public void takeOver(final String ownerId, final boolean localOnly) {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		if(ownerId == null || ownerId.equals(clusteredSipStack.getNodeId())) {
+			return;
+		}
+		if(!(clusteredSipStack.getSipCache() instanceof DialogOwnerIndex)) {
+			logger.logWarning("Cannot take over the dialogs of " + ownerId + " since the SipCache " + 
+					clusteredSipStack.getSipCache().getClass().getName() + " has no owner index, they will be recovered on their next request");
+			return;
+		}
+		// the takeover may be requested by several load balancers or both by the load balancer and the cache
+		final String takeoverKey = localOnly ? ownerId + "/local" : ownerId;
+		if(ongoingTakeovers.putIfAbsent(takeoverKey, Boolean.TRUE) != null) {
+			return;
+		}
+		coordinator.execute(new Runnable() {
+			public void run() {
+				try {
+					takeOverNow(ownerId, localOnly);
+				} finally {
+					ongoingTakeovers.remove(takeoverKey);
+				}
+			}
+		});
+	}
+
+	private void takeOverNow(String ownerId, boolean localOnly) {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		final Set<String> dialogIds;
+		try {
+			dialogIds = ((DialogOwnerIndex) clusteredSipStack.getSipCache()).getDialogIds(ownerId, localOnly);
+		} catch (SipCacheException e) {
+			logger.logError("Couldn't find the dialogs owned by " + ownerId + " to take them over", e);
+			return;
+		}
+		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("Taking over " + dialogIds.size() + " dialogs of " + ownerId + " with " + parallelism + " threads");
+		}
+		final long start = System.nanoTime();
+		final long interval = maxRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRate : 0;
+		long next = start;
+		final AtomicInteger recovered = new AtomicInteger();
+		try {
+			for (final String dialogId : dialogIds) {
+				if(interval > 0) {
+					final long wait = next - System.nanoTime();
+					if(wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					next += interval;
+				}
+				inFlight.acquire();
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							if(clusteredSipStack.getDialog(dialogId) != null) {
+								recovered.incrementAndGet();
+							}
+						} catch (RuntimeException e) {
+							logger.logError("Couldn't take over the dialog " + dialogId, e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+			// wait for the last dialogs to be recovered
+			inFlight.acquire(parallelism * 2);
+			inFlight.release(parallelism * 2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("Took over " + recovered.get() + " dialogs of " + ownerId + " in " + 
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+		}
+	}
+
+	public void stop() {
+		coordinator.shutdownNow();
+		workers.shutdownNow();
+	}
+}
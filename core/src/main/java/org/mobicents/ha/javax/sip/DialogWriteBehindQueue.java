@@ -0,0 +1,407 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.mobicents.ha.javax.sip.cache.DialogBatchWriter;
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
+import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Writes the dialogs to the distributed cache from a small pool of writer threads instead of the SIP message processing threads,
+ * so that the latency of the cache isn't added to the processing of each message.
+ * 
+ * The changes of a dialog are encoded right away by the SIP thread and merged with the ones not written yet,
+ * only the write to the cache is deferred. Each dialog id is always handled by the same writer, 
+ * which keeps a single pending write per dialog, the removal of a dialog replacing its pending update, 
+ * so the writes of a dialog are coalesced and never reordered. A writer flushes its pending writes at once 
+ * when the oldest of them waited for the max delay, when there are enough of them to make a batch, 
+ * or right away when a dialog is removed. When the cache is a {@link DialogBatchWriter} the dialogs of a flush
+ * are written to it at once, the removals still being done one by one.
+ * 
+ * A write failing because of the cache is queued again, the dialog writing its full state the next time 
+ * since its changed fields were reset when they were encoded, see {@link HASipDialog#stateNotStored()}.
+ * 
+ * The number of pending writes per writer is bounded so that the queue doesn't grow without bound when the writers
+ * can't keep up with the cache, the SIP threads are never blocked though: when the bound is reached the write is rejected,
+ * its changes staying encoded in the dialog until its next write is queued. The removals are always queued,
+ * up to twice the bound since they replace the pending writes of the dialogs.
+ * The pending writes are flushed when the stack stops, the writes done after that being done on the calling thread.
+ */
+public class DialogWriteBehindQueue {
+
+	private static final Object REMOVAL = new Object();
+	// time given to the writers to flush the pending writes when stopping
+	private static final long STOP_TIMEOUT = 5000;
+
+	private final ClusteredSipStackExt clusteredSipStack;
+	private final Writer[] writers;
+	private final long maxDelay;
+	private final int batchSize;
+	private final int capacity;
+	private final AtomicLong coalescedWrites = new AtomicLong();
+	private final AtomicLong rejectedWrites = new AtomicLong();
+	private final AtomicLong retriedWrites = new AtomicLong();
+
+	/**
+	 * @param clusteredSipStack the stack whose dialogs are written
+	 * @param writerCount the number of writer threads
+	 * @param maxDelay the maximum time in milliseconds a write stays pending
+	 * @param batchSize the number of pending writes of a writer flushed without waiting for the max delay
+	 * @param queueSize the maximum number of pending writes, shared between the writers
+	 */
+	public DialogWriteBehindQueue(ClusteredSipStackExt clusteredSipStack, int writerCount, long maxDelay, int batchSize, int queueSize) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.maxDelay = maxDelay;
+		this.batchSize = batchSize;
+		this.capacity = Math.max(queueSize / writerCount, 1);
+		this.writers = new Writer[writerCount];
+		final DaemonThreadFactory threadFactory = new DaemonThreadFactory("DialogWriteBehind", clusteredSipStack.isVirtualThreads());
+		for (int i = 0; i < writerCount; i++) {
+			writers[i] = new Writer(threadFactory);
+		}
+	}
+
+	public void start() {
+		for (Writer writer : writers) {
+			writer.thread.start();
+		}
+	}
+
+	/**
+	 * Flushes the pending writes and stops the writers, the next writes being done on the calling thread
+	 */
+	public void stop() {
+		for (Writer writer : writers) {
+			writer.stop();
+		}
+		final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		try {
+			for (Writer writer : writers) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0) {
+					writer.thread.join(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final int pendingWrites = getPendingWrites();
+		if(pendingWrites > 0) {
+			clusteredSipStack.getStackLogger().logWarning(pendingWrites + " dialog writes still pending after " + STOP_TIMEOUT + "ms, they are lost");
+		}
+	}
+
+	/**
+	 * Schedules the write of the changes encoded by the dialog, see {@link HASipDialog#storePendingState()}
+	 */
+	public void put(HASipDialog dialog) {
+		final String dialogId = dialog.getDialogIdToReplicate();
+		offer(dialogId, dialog, false);
+	}
+
+	/**
+	 * Schedules the removal of a dialog, replacing its pending write if any
+	 */
+	public void remove(String dialogId) {
+		offer(dialogId, REMOVAL, true);
+	}
+
+	private void offer(String dialogId, Object write, boolean removal) {
+		final Writer writer = getWriter(dialogId);
+		final int result = writer.offer(dialogId, write, removal, false);
+		if(result == Writer.STOPPED) {
+			write(dialogId, write);
+		} else if(result == Writer.FULL) {
+			rejectedWrites.incrementAndGet();
+			if(removal) {
+				clusteredSipStack.getStackLogger().logWarning("dialog write behind queue full, the removal of dialog " + dialogId + " from the distributed cache is dropped");
+			} else if(clusteredSipStack.getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredSipStack.getStackLogger().logDebug("dialog write behind queue full, the changes of dialog " + dialogId + " are written with its next write");
+			}
+		}
+	}
+
+	/**
+	 * Queues again a write that failed, unless a more recent one of the same dialog is already pending.
+	 * It waits for the max delay like any other write, and is dropped if the queue is full or stopped
+	 */
+	private void retry(String dialogId, Object write) {
+		retriedWrites.incrementAndGet();
+		if(getWriter(dialogId).offer(dialogId, write, write == REMOVAL, true) != Writer.QUEUED) {
+			rejectedWrites.incrementAndGet();
+			if(write == REMOVAL) {
+				clusteredSipStack.getStackLogger().logWarning("the removal of dialog " + dialogId + " from the distributed cache failed and can't be retried, it is dropped");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of dialog writes not done yet
+	 */
+	public int getPendingWrites() {
+		int pendingWrites = 0;
+		for (Writer writer : writers) {
+			pendingWrites += writer.getPendingWrites();
+		}
+		return pendingWrites;
+	}
+
+	/**
+	 * @return the number of dialog writes merged into a pending write of the same dialog since the start of the stack
+	 */
+	public long getCoalescedWrites() {
+		return coalescedWrites.get();
+	}
+
+	/**
+	 * @return the number of dialog writes rejected since the start of the stack because the queue was full
+	 */
+	public long getRejectedWrites() {
+		return rejectedWrites.get();
+	}
+
+	/**
+	 * @return the number of dialog writes queued again since the start of the stack because the cache failed to write them
+	 */
+	public long getRetriedWrites() {
+		return retriedWrites.get();
+	}
+
+	private Writer getWriter(String dialogId) {
+		return writers[(dialogId.hashCode() & Integer.MAX_VALUE) % writers.length];
+	}
+
+	/**
+	 * @return false if the write failed because of the cache and can be retried
+	 */
+	private boolean write(String dialogId, Object write) {
+		try {
+			if(write == REMOVAL) {
+				final SipCacheCircuitBreaker sipCacheCircuitBreaker = clusteredSipStack.getSipCacheCircuitBreaker();
+				if(sipCacheCircuitBreaker != null) {
+					sipCacheCircuitBreaker.removeDialog(dialogId);
+				} else {
+					clusteredSipStack.getSipCache().removeDialog(dialogId);
+				}
+				return true;
+			} else {
+				return ((HASipDialog) write).storePendingState();
+			}
+		} catch (SipCacheException e) {
+			clusteredSipStack.getStackLogger().logError("problem removing dialog " + dialogId + " from the distributed cache", e);
+			return false;
+		} catch (RuntimeException e) {
+			clusteredSipStack.getStackLogger().logError("problem writing dialog " + dialogId + " to the distributed cache", e);
+			if(write != REMOVAL) {
+				((HASipDialog) write).stateNotStored();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Writes the dialogs of a flush, each dialog id appearing only once so the order between them doesn't matter
+	 */
+	private void write(Map<String, Object> batch) {
+		final SipCache sipCache = clusteredSipStack.getSipCache();
+		final SipCacheCircuitBreaker sipCacheCircuitBreaker = clusteredSipStack.getSipCacheCircuitBreaker();
+		// while HA is degraded the dialogs are queued one by one by the circuit breaker
+		if(!(sipCache instanceof DialogBatchWriter) || (sipCacheCircuitBreaker != null && sipCacheCircuitBreaker.isOpen())) {
+			for (Entry<String, Object> write : batch.entrySet()) {
+				if(!write(write.getKey(), write.getValue())) {
+					retry(write.getKey(), write.getValue());
+				}
+			}
+			return;
+		}
+		final List<SIPDialog> dialogs = new ArrayList<SIPDialog>(batch.size());
+		for (Entry<String, Object> write : batch.entrySet()) {
+			if(write.getValue() == REMOVAL) {
+				if(!write(write.getKey(), REMOVAL)) {
+					retry(write.getKey(), REMOVAL);
+				}
+			} else if(((HASipDialog) write.getValue()).hasPendingState()) {
+				dialogs.add((SIPDialog) write.getValue());
+			}
+		}
+		if(dialogs.isEmpty()) {
+			return;
+		}
+		final DialogNearCache dialogNearCache = clusteredSipStack.getDialogNearCache();
+		final long[] invalidationCounts = new long[dialogs.size()];
+		if(dialogNearCache != null) {
+			for (int i = 0; i < invalidationCounts.length; i++) {
+				invalidationCounts[i] = dialogNearCache.getInvalidationCount(dialogs.get(i).getDialogId());
+			}
+		}
+		try {
+			final Collection<SIPDialog> outdated = ((DialogBatchWriter) sipCache).putDialogs(dialogs);
+			for (int i = 0; i < invalidationCounts.length; i++) {
+				final HASipDialog dialog = (HASipDialog) dialogs.get(i);
+				if(outdated.contains(dialog)) {
+					dialog.stateOutdated();
+				} else {
+					dialog.stateStored(invalidationCounts[i]);
+				}
+			}
+		} catch (SipCacheException e) {
+			clusteredSipStack.getStackLogger().logError("problem writing " + dialogs.size() + " dialogs to the distributed cache", e);
+			// some of them may have been written, writing the full state of all of them again is always safe
+			for (SIPDialog dialog : dialogs) {
+				((HASipDialog) dialog).stateNotStored();
+				retry(dialog.getDialogId(), dialog);
+			}
+		} catch (RuntimeException e) {
+			clusteredSipStack.getStackLogger().logError("problem writing " + dialogs.size() + " dialogs to the distributed cache", e);
+			for (SIPDialog dialog : dialogs) {
+				((HASipDialog) dialog).stateNotStored();
+			}
+		}
+	}
+
+	/**
+	 * Guarded by a lock rather than a monitor so that a virtual writer thread waiting for the max delay 
+	 * doesn't pin its carrier thread
+	 */
+	private class Writer implements Runnable {
+		static final int QUEUED = 0;
+		static final int FULL = 1;
+		static final int STOPPED = 2;
+
+		final Thread thread;
+		final ReentrantLock lock = new ReentrantLock();
+		// signalled when a write is queued or the writer is stopped
+		final Condition changed = lock.newCondition();
+		// guarded by lock
+		final LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+		long oldestPendingTime;
+		boolean flushRequested;
+		boolean stopped;
+
+		Writer(DaemonThreadFactory threadFactory) {
+			thread = threadFactory.newThread(this);
+		}
+
+		/**
+		 * @param removal true for a removal, accepted up to twice the capacity and flushed right away unless retried
+		 * @param retry true to keep the pending write of the dialog if any, it is more recent than the one retried
+		 * @return QUEUED, FULL or STOPPED
+		 */
+		int offer(String dialogId, Object write, boolean removal, boolean retry) {
+			lock.lock();
+			try {
+				if(stopped) {
+					return STOPPED;
+				}
+				if(pending.containsKey(dialogId)) {
+					if(retry) {
+						return QUEUED;
+					}
+					coalescedWrites.incrementAndGet();
+				} else if(pending.size() >= (removal ? 2 * capacity : capacity)) {
+					return FULL;
+				}
+				if(pending.isEmpty()) {
+					oldestPendingTime = System.currentTimeMillis();
+				}
+				pending.put(dialogId, write);
+				if((removal && !retry) || pending.size() >= batchSize) {
+					flushRequested = true;
+				}
+				changed.signalAll();
+				return QUEUED;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void stop() {
+			lock.lock();
+			try {
+				stopped = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int getPendingWrites() {
+			lock.lock();
+			try {
+				return pending.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void run() {
+			final StackLogger logger = clusteredSipStack.getStackLogger();
+			try {
+				while(true) {
+					final Map<String, Object> batch;
+					lock.lock();
+					try {
+						while(pending.isEmpty() && !stopped) {
+							changed.await();
+						}
+						if(pending.isEmpty()) {
+							return;
+						}
+						long remaining = oldestPendingTime + maxDelay - System.currentTimeMillis();
+						while(!flushRequested && !stopped && remaining > 0) {
+							changed.await(remaining, TimeUnit.MILLISECONDS);
+							remaining = oldestPendingTime + maxDelay - System.currentTimeMillis();
+						}
+						batch = new LinkedHashMap<String, Object>(pending);
+						pending.clear();
+						flushRequested = false;
+					} finally {
+						lock.unlock();
+					}
+					final long start = System.nanoTime();
+					write(batch);
+					if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("wrote " + batch.size() + " dialogs to the distributed cache in " + 
+								TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -29,6 +29,10 @@ import java.util.Map;
 import javax.sip.address.Address;
 import javax.sip.header.ContactHeader;
 
+import org.mobicents.ha.javax.sip.cache.DialogNearCache;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
 /**
  * @author jean.deruelle@gmail.com
  *
@@ -42,14 +46,82 @@ public interface HASipDialog {
 	String getMergeId();
 	
 	Map<String, Object> getMetaDataToReplicate();
+	/**
+	 * Same as {@link #getMetaDataToReplicate()} but returns the meta data encoded with the {@link DialogStateCodec}
+	 */
+	byte[] getEncodedMetaDataToReplicate();
+	/**
+	 * @param fullState true to get all the fields of the dialog even if delta replication is enabled,
+	 * needed when the entry of the dialog is not in the cache anymore
+	 */
+	byte[] getEncodedMetaDataToReplicate(boolean fullState);
 	Object getApplicationDataToReplicate();
 
 	void setMetaDataToReplicate(Map<String, Object> dialogMetaData, boolean recreation);
+	/**
+	 * Same as {@link #setMetaDataToReplicate(Map, boolean)} but takes meta data encoded with the {@link DialogStateCodec}
+	 * @throws SipCacheException if the meta data can't be decoded
+	 */
+	void setEncodedMetaDataToReplicate(byte[] dialogMetaData, boolean recreation) throws SipCacheException;
 	void setApplicationDataToReplicate(Object dialogAppData);
 
 	void setContactHeader(ContactHeader contactHeader);
 
 	long getVersion();
+	/**
+	 * @return the id of the node that last replicated the dialog, null if it was never replicated
+	 */
+	String getOwner();
+	/**
+	 * @return true if this node was the last one to replicate the dialog and its ownership lease didn't expire,
+	 * in which case the dialog in the cache can't be more recent than the local one
+	 */
+	boolean isOwnershipLeaseHeld();
+	/**
+	 * Called when another node wrote the dialog, so that the next access checks the cache
+	 */
+	void releaseOwnershipLease();
+	/**
+	 * @return the time in milliseconds of the last lookup of this dialog or of the last transaction added to it, 
+	 * used to passivate the idle dialogs
+	 */
+	long getLastAccessedTime();
+	void updateLastAccessedTime();
+	/**
+	 * @return true if the current version of this dialog was stored in or read from the cache, 
+	 * in which case it can be dropped locally and recovered from the cache
+	 */
+	boolean isStateReplicated();
+	/**
+	 * @return the time in milliseconds this dialog stays in the cache without being replicated again, 
+	 * its session interval if it uses session timers, capped by {@link ClusteredSipStackExt#getDialogCacheTTL()}, 0 for no expiry
+	 */
+	long getCacheTTL();
+	/**
+	 * Writes to the cache the changes encoded when the dialog was last replicated, 
+	 * called by the {@link DialogWriteBehindQueue} or the {@link DialogReplicationExecutor} when the dialogs are written asynchronously
+	 * @return false if the cache failed to write the dialog, in which case the write can be retried
+	 */
+	boolean storePendingState();
+	/**
+	 * @return true if changes were encoded and not written to the cache yet, see {@link #storePendingState()}
+	 */
+	boolean hasPendingState();
+	/**
+	 * Called when the changes encoded for a write couldn't be stored in the cache, 
+	 * the next write of the dialog then carries its full state so that these changes are not lost
+	 */
+	void stateNotStored();
+	/**
+	 * Called once the dialog was written to the cache
+	 * @param nearCacheInvalidationCount the invalidation count of the {@link DialogNearCache} for this dialog read before the write
+	 */
+	void stateStored(long nearCacheInvalidationCount);
+	/**
+	 * Called when the dialog wasn't written because the cache holds a version at least as recent, or because HA is degraded,
+	 * so that the local dialog is not assumed to be the one in the cache
+	 */
+	void stateOutdated();
 	
 	void setLastResponse(SIPResponse lastResponse);
 
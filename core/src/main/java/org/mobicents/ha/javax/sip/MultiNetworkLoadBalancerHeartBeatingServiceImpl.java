@@ -765,6 +765,10 @@ public class MultiNetworkLoadBalancerHeartBeatingServiceImpl implements LoadBala
 			NodeRegisterRMIStub reg=(NodeRegisterRMIStub) registry.lookup("SIPBalancer");
 			reg.switchover(fromJvmRoute, toJvmRoute);
 			sipLoadBalancer.setDisplayWarning(true);
+			if(toJvmRoute.equals(jvmRoute) && sipStack instanceof ClusteredSipStackExt) {
+				// the traffic of the failed node now comes to this node, recover its dialogs before their next request
+				((ClusteredSipStackExt) sipStack).takeOverDialogs(fromJvmRoute, false);
+			}
 			if(logger.isLoggingEnabled(StackLogger.TRACE_INFO) && !sipLoadBalancer.isAvailable()) {
 				logger.logInfo("Switchover: SIP Load Balancer Found! " + sipLoadBalancer);
 			}
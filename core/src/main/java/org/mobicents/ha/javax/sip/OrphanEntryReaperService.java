@@ -0,0 +1,233 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.EntryType;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Removes periodically the entries leaked in the distributed cache: application data without dialog, owner index entries 
+ * and transactions whose dialog is gone, and dialogs owned by nodes that left the cluster which nobody recovered.
+ * 
+ * Each node goes through the entries primarily stored on it, chunk by chunk through the {@link OrphanEntryScanner} of the cache,
+ * in a low priority thread pausing between chunks. An entry is only removed once it looked orphan, and for a dialog or transaction kept 
+ * the same version, on at least two consecutive passes spanning the grace time, so that the dialogs and transactions being created 
+ * or recovered are never removed. 
+ * The cache checks again that the entry is orphan when removing it, a dialog written or taken over since the last pass is kept. 
+ * The removals are done at a maximum rate and counted by type of entry.
+ */
+public class OrphanEntryReaperService implements Runnable {
+
+	// pause between two chunks, to leave the cache to the traffic
+	private static final long CHUNK_PAUSE = 100;
+
+	private final ClusteredSipStack clusteredSipStack;
+	private final long period;
+	private final long graceTime;
+	private final int chunkSize;
+	private final int maxRate;
+	private final ScheduledExecutorService scheduler;
+	private final Map<EntryType, AtomicLong> reapedEntries = new EnumMap<EntryType, AtomicLong>(EntryType.class);
+	// only accessed by the reaper thread
+	private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+	private volatile int orphanCandidates;
+	private long pass;
+
+	private static class Candidate {
+		final EntryType type;
+		final String id;
+		final long version;
+		final long firstSeen;
+		final long firstPass;
+		long lastPass;
+
+		Candidate(EntryType type, String id, long version, long firstSeen, long firstPass) {
+			this.type = type;
+			this.id = id;
+			this.version = version;
+			this.firstSeen = firstSeen;
+			this.firstPass = firstPass;
+		}
+	}
+
+	/**
+	 * @param clusteredSipStack the stack whose cache is scanned
+	 * @param period the time in milliseconds between the end of a pass and the start of the next one
+	 * @param graceTime the time in milliseconds an entry has to look orphan before being removed
+	 * @param chunkSize the number of entries scanned at once
+	 * @param maxRate the maximum number of entries removed per second, 0 or less for no limit
+	 */
+	public OrphanEntryReaperService(ClusteredSipStack clusteredSipStack, long period, long graceTime, int chunkSize, int maxRate) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.period = period;
+		this.graceTime = graceTime;
+		this.chunkSize = chunkSize;
+		this.maxRate = maxRate;
+		for (EntryType type : EntryType.values()) {
+			reapedEntries.put(type, new AtomicLong());
+		}
+		final ThreadFactory threadFactory = new DaemonThreadFactory("OrphanEntryReaper");
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = threadFactory.newThread(runnable);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	public void start() {
+		if(!(clusteredSipStack.getSipCache() instanceof OrphanEntryScanner)) {
+			clusteredSipStack.getStackLogger().logWarning("Cannot reap the orphan entries since the SipCache " + 
+					clusteredSipStack.getSipCache().getClass().getName() + " can't scan them");
+			return;
+		}
+		scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return the number of entries of the given type removed since the start of the stack
+	 */
+	public long getReapedEntries(EntryType type) {
+		return reapedEntries.get(type).get();
+	}
+
+	/**
+	 * @return the number of entries of all types removed since the start of the stack
+	 */
+	public long getReapedEntries() {
+		long total = 0;
+		for (AtomicLong count : reapedEntries.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of entries looking orphan at the end of the last pass, not removed yet
+	 */
+	public int getOrphanCandidates() {
+		return orphanCandidates;
+	}
+
+	public void run() {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		final OrphanEntryScanner scanner = (OrphanEntryScanner) clusteredSipStack.getSipCache();
+		final long currentPass = ++pass;
+		final long now = System.currentTimeMillis();
+		final OrphanEntryScanner.Visitor visitor = new OrphanEntryScanner.Visitor() {
+			public void orphanCandidate(EntryType type, String id, long version) {
+				final String key = type + "/" + id;
+				Candidate candidate = candidates.get(key);
+				// a dialog or transaction whose version moved is still in use
+				if(candidate == null || candidate.version != version) {
+					candidate = new Candidate(type, id, version, now, currentPass);
+					candidates.put(key, candidate);
+				}
+				candidate.lastPass = currentPass;
+			}
+		};
+		try {
+			final Set<String> nodeIds = scanner.getNodeIds();
+			boolean more = true;
+			while(more) {
+				more = scanner.scan(chunkSize, nodeIds, visitor);
+				if(more) {
+					Thread.sleep(CHUNK_PAUSE);
+				}
+			}
+			reap(scanner, currentPass, now);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SipCacheException e) {
+			logger.logError("Couldn't scan the cache for orphan entries", e);
+		} catch (RuntimeException e) {
+			// an exception would cancel the next passes
+			logger.logError("Couldn't reap the orphan entries", e);
+		}
+	}
+
+	private void reap(OrphanEntryScanner scanner, long currentPass, long now) throws InterruptedException, SipCacheException {
+		final StackLogger logger = clusteredSipStack.getStackLogger();
+		// the members may have changed during the pass
+		final Set<String> nodeIds = scanner.getNodeIds();
+		final long interval = maxRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRate : 0;
+		long next = System.nanoTime();
+		int reaped = 0;
+		final Iterator<Candidate> iterator = candidates.values().iterator();
+		while(iterator.hasNext()) {
+			final Candidate candidate = iterator.next();
+			if(candidate.lastPass != currentPass) {
+				// not orphan anymore
+				iterator.remove();
+				continue;
+			}
+			if(candidate.firstPass == currentPass || now - candidate.firstSeen < graceTime) {
+				// only seen orphan once, or not long enough
+				continue;
+			}
+			if(candidate.type == EntryType.DIALOG && nodeIds == null) {
+				// the owner of the dialog may be a node not identified yet
+				continue;
+			}
+			if(interval > 0) {
+				final long wait = next - System.nanoTime();
+				if(wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				next = Math.max(next, System.nanoTime() - interval) + interval;
+			}
+			try {
+				if(scanner.removeOrphan(candidate.type, candidate.id, candidate.version, nodeIds)) {
+					reapedEntries.get(candidate.type).incrementAndGet();
+					reaped++;
+				} else if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					logger.logDebug(candidate.type + " " + candidate.id + " is not orphan anymore, not removing it");
+				}
+			} catch (SipCacheException e) {
+				logger.logError("Couldn't remove the orphan " + candidate.type + " " + candidate.id, e);
+			}
+			iterator.remove();
+		}
+		orphanCandidates = candidates.size();
+		if(reaped > 0 && logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("removed " + reaped + " orphan entries from the cache, " + orphanCandidates + " entries look orphan for less than " + graceTime + "ms");
+		}
+	}
+}
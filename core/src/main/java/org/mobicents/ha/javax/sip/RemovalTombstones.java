@@ -0,0 +1,94 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers for a short time the ids of the dialogs or transactions this node removed from the distributed cache.
+ * 
+ * The removals are sent without waiting for them, so a late request for a removed dialog could otherwise still find it 
+ * in the cache and bring it back locally before the removal lands. The removal of an id still found in the tombstones isn't sent again,
+ * for instance when another copy of the same transaction is removed.
+ * They expire after a fixed time, the expired ones being purged while new ones are added.
+ */
+public class RemovalTombstones {
+
+	// number of tombstones added between two purges of the expired ones
+	private static final int PURGE_INTERVAL = 1024;
+
+	private final ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger additions = new AtomicInteger();
+	private final long duration;
+
+	/**
+	 * @param duration the time in milliseconds a tombstone is kept
+	 */
+	public RemovalTombstones(long duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 * Records the removal of an id
+	 * @return false if the id was already removed and its tombstone is still alive, in which case the removal doesn't need to be sent again
+	 */
+	public boolean add(String id) {
+		final long now = System.currentTimeMillis();
+		if(additions.incrementAndGet() % PURGE_INTERVAL == 0) {
+			purge(now);
+		}
+		final Long expiry = tombstones.put(id, Long.valueOf(now + duration));
+		return expiry == null || expiry.longValue() <= now;
+	}
+
+	/**
+	 * @return true if the id was removed recently, it must not be fetched from the distributed cache
+	 */
+	public boolean contains(String id) {
+		final Long expiry = tombstones.get(id);
+		if(expiry == null) {
+			return false;
+		}
+		if(expiry.longValue() <= System.currentTimeMillis()) {
+			tombstones.remove(id, expiry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of tombstones, including the expired ones not purged yet
+	 */
+	public int size() {
+		return tombstones.size();
+	}
+
+	private void purge(long now) {
+		final Iterator<Long> expiries = tombstones.values().iterator();
+		while(expiries.hasNext()) {
+			if(expiries.next().longValue() <= now) {
+				expiries.remove();
+			}
+		}
+	}
+}
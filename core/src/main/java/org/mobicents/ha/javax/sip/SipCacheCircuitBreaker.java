@@ -0,0 +1,381 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Bounds the time the threads of the stack wait for the distributed cache, so that a stalled cache 
+ * (GC pause, partition migration, network issue) doesn't block the processing of the SIP messages.
+ * 
+ * Each blocking operation is run by an operation thread and given up after the operation timeout.
+ * After a number of consecutive timed out or failed operations the circuit opens: HA is degraded,
+ * the stack doesn't read from the cache anymore as if it was in local mode, and the dialogs that couldn't be
+ * written or removed are queued, up to a maximum, to be written on a best effort basis when the cache is back.
+ * A queued dialog is marked as not stored, see {@link HASipDialog#stateNotStored()}, so that it writes its full state when the 
+ * cache is back, whatever the changes encoded and lost while degraded.
+ * While degraded the cache is probed periodically, the circuit closing on the first successful probe.
+ */
+public class SipCacheCircuitBreaker {
+
+	// dialog id looked up to probe the cache, never matching any real dialog
+	private static final String PROBE_DIALOG_ID = "SipCacheCircuitBreakerProbe";
+
+	private final ClusteredSipStackExt clusteredSipStack;
+	private final long operationTimeout;
+	private final int failureThreshold;
+	private final long probePeriod;
+	private final int pendingDialogsMaxSize;
+	private final ThreadPoolExecutor operations;
+	private final ScheduledExecutorService prober;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicBoolean open = new AtomicBoolean();
+	private volatile long openTime;
+	private final ConcurrentHashMap<String, HASipDialog> pendingDialogs = new ConcurrentHashMap<String, HASipDialog>();
+	private final ConcurrentHashMap<String, Boolean> pendingDialogRemovals = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong timedOutOperations = new AtomicLong();
+	private final AtomicLong failedOperations = new AtomicLong();
+	private final AtomicLong degradations = new AtomicLong();
+	private final AtomicLong droppedDialogs = new AtomicLong();
+
+	/**
+	 * @param clusteredSipStack the stack whose cache operations are guarded
+	 * @param operationTimeout the time in milliseconds after which a cache operation is given up
+	 * @param failureThreshold the number of consecutive timed out or failed operations opening the circuit
+	 * @param probePeriod the time in milliseconds between two probes of the cache while the circuit is open
+	 * @param pendingDialogsMaxSize the maximum number of dialog writes and removals queued while the circuit is open
+	 * @param maxOperationThreads the maximum number of operations running at the same time, including the ones given up and still blocked
+	 */
+	public SipCacheCircuitBreaker(ClusteredSipStackExt clusteredSipStack, long operationTimeout, int failureThreshold, long probePeriod, 
+			int pendingDialogsMaxSize, int maxOperationThreads) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.operationTimeout = operationTimeout;
+		this.failureThreshold = failureThreshold;
+		this.probePeriod = probePeriod;
+		this.pendingDialogsMaxSize = pendingDialogsMaxSize;
+		// no queue, an operation that can't get a thread fails right away instead of waiting behind the blocked ones
+		this.operations = new ThreadPoolExecutor(0, maxOperationThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
+				new DaemonThreadFactory("SipCacheOperation", clusteredSipStack.isVirtualThreads()));
+		this.prober = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("SipCacheProbe"));
+	}
+
+	/**
+	 * @return true if HA is degraded, the stack not using the cache until it answers again
+	 */
+	public boolean isOpen() {
+		return open.get();
+	}
+
+	public SIPDialog getDialog(final String dialogId) throws SipCacheException {
+		return call(new Callable<SIPDialog>() {
+			public SIPDialog call() throws Exception {
+				return clusteredSipStack.getSipCache().getDialog(dialogId);
+			}
+		});
+	}
+
+	public void updateDialog(final SIPDialog dialog) throws SipCacheException {
+		call(new Callable<Void>() {
+			public Void call() throws Exception {
+				clusteredSipStack.getSipCache().updateDialog(dialog);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes the dialog to the cache, or queues it if HA is degraded
+	 * @return true if the dialog has been written, false if the cache holds a version at least as recent or if it has been queued
+	 */
+	public boolean putDialog(final SIPDialog dialog) throws SipCacheException {
+		if(!open.get()) {
+			try {
+				return call(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return Boolean.valueOf(ClusteredSipStackImpl.putDialogIfNewer(clusteredSipStack.getSipCache(), dialog));
+					}
+				}).booleanValue();
+			} catch (SipCacheException e) {
+				if(!open.get()) {
+					throw e;
+				}
+			}
+		}
+		return queueDialog(dialog.getDialogId(), (HASipDialog) dialog);
+	}
+
+	/**
+	 * Queues the write of a dialog until the cache answers again, when HA is degraded
+	 * @return false, the dialog not being written
+	 */
+	boolean queueDialog(String dialogId, HASipDialog dialog) {
+		// its full state is written when the cache is back, even if it is dropped here its next write will carry it
+		dialog.stateNotStored();
+		if(pendingDialogs.containsKey(dialogId) || pendingSize() < pendingDialogsMaxSize) {
+			pendingDialogs.put(dialogId, dialog);
+		} else {
+			droppedDialogs.incrementAndGet();
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the dialog from the cache, or queues its removal if HA is degraded
+	 */
+	public void removeDialog(final String dialogId) throws SipCacheException {
+		pendingDialogs.remove(dialogId);
+		if(!open.get()) {
+			try {
+				call(new Callable<Void>() {
+					public Void call() throws Exception {
+						clusteredSipStack.getSipCache().removeDialog(dialogId);
+						return null;
+					}
+				});
+				return;
+			} catch (SipCacheException e) {
+				if(!open.get()) {
+					throw e;
+				}
+			}
+		}
+		queueDialogRemoval(dialogId);
+	}
+
+	/**
+	 * Queues the removal of a dialog without trying to remove it first, when HA is degraded
+	 */
+	public void queueDialogRemoval(String dialogId) {
+		pendingDialogs.remove(dialogId);
+		if(pendingSize() < pendingDialogsMaxSize) {
+			pendingDialogRemovals.put(dialogId, Boolean.TRUE);
+		} else {
+			droppedDialogs.incrementAndGet();
+		}
+	}
+
+	public SIPServerTransaction getServerTransaction(final String transactionId) throws SipCacheException {
+		return call(new Callable<SIPServerTransaction>() {
+			public SIPServerTransaction call() throws Exception {
+				return clusteredSipStack.getSipCache().getServerTransaction(transactionId);
+			}
+		});
+	}
+
+	public SIPClientTransaction getClientTransaction(final String transactionId) throws SipCacheException {
+		return call(new Callable<SIPClientTransaction>() {
+			public SIPClientTransaction call() throws Exception {
+				return clusteredSipStack.getSipCache().getClientTransaction(transactionId);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of cache operations given up after the operation timeout since the start of the stack
+	 */
+	public long getTimedOutOperations() {
+		return timedOutOperations.get();
+	}
+
+	/**
+	 * @return the number of cache operations that failed or couldn't get a thread since the start of the stack
+	 */
+	public long getFailedOperations() {
+		return failedOperations.get();
+	}
+
+	/**
+	 * @return the number of times HA has been degraded since the start of the stack
+	 */
+	public long getDegradations() {
+		return degradations.get();
+	}
+
+	/**
+	 * @return the time in milliseconds since HA is degraded, 0 if it isn't
+	 */
+	public long getDegradedTime() {
+		return open.get() ? System.currentTimeMillis() - openTime : 0;
+	}
+
+	/**
+	 * @return the number of dialog writes and removals queued until the cache answers again
+	 */
+	public int getPendingDialogs() {
+		return pendingSize();
+	}
+
+	/**
+	 * @return the number of dialog writes and removals dropped since the start of the stack because the queue was full
+	 */
+	public long getDroppedDialogs() {
+		return droppedDialogs.get();
+	}
+
+	public void stop() {
+		prober.shutdownNow();
+		operations.shutdownNow();
+	}
+
+	private int pendingSize() {
+		return pendingDialogs.size() + pendingDialogRemovals.size();
+	}
+
+	private <T> T call(Callable<T> operation) throws SipCacheException {
+		if(open.get()) {
+			throw new SipCacheException("HA is degraded, the distributed cache is not used until it answers again");
+		}
+		try {
+			final T result = execute(operation);
+			consecutiveFailures.set(0);
+			return result;
+		} catch (SipCacheException e) {
+			if(consecutiveFailures.incrementAndGet() >= failureThreshold) {
+				open();
+			}
+			throw e;
+		}
+	}
+
+	private <T> T execute(Callable<T> operation) throws SipCacheException {
+		final Future<T> future;
+		try {
+			future = operations.submit(operation);
+		} catch (RejectedExecutionException e) {
+			failedOperations.incrementAndGet();
+			throw new SipCacheException("no thread available to run the cache operation, too many operations are blocked", e);
+		}
+		try {
+			return future.get(operationTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			timedOutOperations.incrementAndGet();
+			throw new SipCacheException("the cache operation didn't complete in " + operationTimeout + "ms", e);
+		} catch (ExecutionException e) {
+			failedOperations.incrementAndGet();
+			if(e.getCause() instanceof SipCacheException) {
+				throw (SipCacheException) e.getCause();
+			}
+			throw new SipCacheException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			throw new SipCacheException("interrupted while waiting for the cache operation", e);
+		}
+	}
+
+	private void open() {
+		if(open.compareAndSet(false, true)) {
+			openTime = System.currentTimeMillis();
+			degradations.incrementAndGet();
+			clusteredSipStack.getStackLogger().logWarning("HA degraded after " + failureThreshold + 
+					" consecutive timed out or failed cache operations, the distributed cache is not used until it answers again");
+			scheduleProbe();
+		}
+	}
+
+	private void scheduleProbe() {
+		try {
+			prober.schedule(new Runnable() {
+				public void run() {
+					probe();
+				}
+			}, probePeriod, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped
+		}
+	}
+
+	private void probe() {
+		try {
+			execute(new Callable<SIPDialog>() {
+				public SIPDialog call() throws Exception {
+					return clusteredSipStack.getSipCache().getDialog(PROBE_DIALOG_ID);
+				}
+			});
+		} catch (SipCacheException e) {
+			if(clusteredSipStack.getStackLogger().isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredSipStack.getStackLogger().logDebug("the distributed cache still doesn't answer : " + e.getMessage());
+			}
+			scheduleProbe();
+			return;
+		}
+		consecutiveFailures.set(0);
+		open.set(false);
+		if(clusteredSipStack.getStackLogger().isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredSipStack.getStackLogger().logInfo("HA restored after " + (System.currentTimeMillis() - openTime) + 
+					"ms, writing the " + pendingSize() + " queued dialogs to the distributed cache");
+		}
+		writePendingDialogs();
+	}
+
+	/**
+	 * Writes the dialogs queued while HA was degraded, stopping if it gets degraded again
+	 */
+	private void writePendingDialogs() {
+		final Iterator<String> removals = pendingDialogRemovals.keySet().iterator();
+		while(removals.hasNext() && !open.get()) {
+			final String dialogId = removals.next();
+			removals.remove();
+			try {
+				removeDialog(dialogId);
+			} catch (SipCacheException e) {
+				clusteredSipStack.getStackLogger().logError("problem removing dialog " + dialogId + " from the distributed cache", e);
+			}
+		}
+		final Iterator<Entry<String, HASipDialog>> writes = pendingDialogs.entrySet().iterator();
+		while(writes.hasNext() && !open.get()) {
+			final Entry<String, HASipDialog> write = writes.next();
+			if(pendingDialogs.remove(write.getKey(), write.getValue())) {
+				try {
+					// queued again by the dialog if HA gets degraded again, its full state is written otherwise
+					if(!write.getValue().storePendingState()) {
+						clusteredSipStack.getStackLogger().logWarning("dialog " + write.getKey() + " queued while HA was degraded couldn't be written, it is written with its next change");
+					}
+				} catch (RuntimeException e) {
+					clusteredSipStack.getStackLogger().logError("problem writing dialog " + write.getKey() + " to the distributed cache", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the JVM running the stack supports them, through reflection since the stack is built for older JVMs.
+ * 
+ * The threads waiting for the cache, such as the dialog replication ones, can then be counted in thousands without as many platform threads, 
+ * the virtual threads blocked on I/O releasing their carrier thread. On older JVMs the platform threads are kept.
+ * The carrier threads are shared by the whole JVM, so the stack leaves their number to the command line, 
+ * see the jdk.virtualThreadScheduler.parallelism and jdk.virtualThreadScheduler.maxPoolSize system properties.
+ */
+public final class VirtualThreads {
+
+	private static final Method OF_VIRTUAL = getMethod(Thread.class, "ofVirtual");
+	private static final Method NAME = getMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+	private static final Method FACTORY = getMethod("java.lang.Thread$Builder", "factory");
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+	}
+
+	/**
+	 * @param name the prefix of the names of the threads, followed by their number
+	 * @return a factory of virtual threads, null if the JVM doesn't support them
+	 */
+	public static ThreadFactory newThreadFactory(String name) {
+		if(!isSupported()) {
+			return null;
+		}
+		try {
+			final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name, Long.valueOf(1));
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Method getMethod(String className, String methodName, Class<?>... parameterTypes) {
+		try {
+			return getMethod(Class.forName(className), methodName, parameterTypes);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static Method getMethod(Class<?> type, String methodName, Class<?>... parameterTypes) {
+		try {
+			return type.getMethod(methodName, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.concurrent.Future;
+
+/**
+ * Non blocking counterpart of the {@link SipCache} operations, implemented by the caches able to send them
+ * without waiting for the other nodes, so that the SIP threads don't wait for the round trip when they don't need the result.
+ * The {@link BlockingAsyncSipCache} adapts the other caches.
+ * 
+ * A failed operation completes its future with an {@link java.util.concurrent.ExecutionException} and is logged by the cache,
+ * so that callers not waiting for the result don't lose it. Operations on the same key are only guaranteed to be applied
+ * in order if the future of the previous one completed.
+ */
+public interface AsyncSipCache {
+	/**
+	 * @see SipCache#getDialog(String)
+	 */
+	Future<SIPDialog> getDialogAsync(String dialogId);
+	/**
+	 * @see SipCache#putDialog(SIPDialog)
+	 */
+	Future<Void> putDialogAsync(SIPDialog dialog);
+	/**
+	 * @see SipCache#removeDialog(String)
+	 */
+	Future<Void> removeDialogAsync(String dialogId);
+	/**
+	 * @see SipCache#putServerTransaction(SIPServerTransaction)
+	 */
+	Future<Void> putServerTransactionAsync(SIPServerTransaction serverTransaction);
+	/**
+	 * @see SipCache#removeServerTransaction(String)
+	 */
+	Future<Void> removeServerTransactionAsync(String transactionId);
+	/**
+	 * @see SipCache#putClientTransaction(SIPClientTransaction)
+	 */
+	Future<Void> putClientTransactionAsync(SIPClientTransaction clientTransaction);
+	/**
+	 * @see SipCache#removeClientTransaction(String)
+	 */
+	Future<Void> removeClientTransactionAsync(String transactionId);
+}
@@ -0,0 +1,229 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+
+/**
+ * {@link AsyncSipCache} running the operations of a blocking {@link SipCache}, such as the JBoss Cache one, on a pool of threads
+ * so that the SIP message processing threads don't wait for them.
+ * 
+ * The pool is striped: the operations of a same dialog or transaction are always run by the same single threaded stripe,
+ * so a removal is never applied before a previous put. When the queue of a stripe is full the calling thread waits for room.
+ * Without threads the operations are run on the calling thread and the returned futures are already completed.
+ */
+public class BlockingAsyncSipCache implements AsyncSipCache {
+
+	// time given to the stripes to run the queued operations when stopping
+	private static final long STOP_TIMEOUT = 5000;
+	private static final int STRIPE_QUEUE_SIZE = 10000;
+
+	private final ClusteredSipStack clusteredSipStack;
+	private final SipCache sipCache;
+	private final ThreadPoolExecutor[] stripes;
+
+	/**
+	 * Runs the operations on the calling thread
+	 */
+	public BlockingAsyncSipCache(ClusteredSipStack clusteredSipStack, SipCache sipCache) {
+		this(clusteredSipStack, sipCache, 0, null);
+	}
+
+	/**
+	 * @param threadCount the number of threads running the operations, each one being a stripe, 0 to run them on the calling thread
+	 * @param threadFactory creates the threads running the operations
+	 */
+	public BlockingAsyncSipCache(ClusteredSipStack clusteredSipStack, SipCache sipCache, int threadCount, ThreadFactory threadFactory) {
+		this.clusteredSipStack = clusteredSipStack;
+		this.sipCache = sipCache;
+		final RejectedExecutionHandler waitForRoom = new WaitForRoomPolicy();
+		stripes = new ThreadPoolExecutor[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, 
+					new LinkedBlockingQueue<Runnable>(STRIPE_QUEUE_SIZE), threadFactory, waitForRoom);
+		}
+	}
+
+	/**
+	 * Runs the queued operations and stops the threads, the next operations failing
+	 */
+	public void stop() {
+		for (ThreadPoolExecutor stripe : stripes) {
+			stripe.shutdown();
+		}
+		final long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		try {
+			for (ThreadPoolExecutor stripe : stripes) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0) {
+					stripe.awaitTermination(remaining, TimeUnit.MILLISECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		int queuedOperations = 0;
+		for (ThreadPoolExecutor stripe : stripes) {
+			queuedOperations += stripe.getQueue().size();
+		}
+		if(queuedOperations > 0) {
+			clusteredSipStack.getStackLogger().logWarning(queuedOperations + " distributed cache operations still queued after " + STOP_TIMEOUT + "ms, they are lost");
+		}
+	}
+
+	public Future<SIPDialog> getDialogAsync(final String dialogId) {
+		return run("getting dialog", dialogId, new Callable<SIPDialog>() {
+			public SIPDialog call() throws Exception {
+				return sipCache.getDialog(dialogId);
+			}
+		});
+	}
+
+	public Future<Void> putDialogAsync(final SIPDialog dialog) {
+		return run("storing dialog", dialog.getDialogId(), new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.putDialog(dialog);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> removeDialogAsync(final String dialogId) {
+		return run("removing dialog", dialogId, new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.removeDialog(dialogId);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> putServerTransactionAsync(final SIPServerTransaction serverTransaction) {
+		return run("storing server transaction", serverTransaction.getTransactionId(), new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.putServerTransaction(serverTransaction);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> removeServerTransactionAsync(final String transactionId) {
+		return run("removing server transaction", transactionId, new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.removeServerTransaction(transactionId);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> putClientTransactionAsync(final SIPClientTransaction clientTransaction) {
+		return run("storing client transaction", clientTransaction.getTransactionId(), new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.putClientTransaction(clientTransaction);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> removeClientTransactionAsync(final String transactionId) {
+		return run("removing client transaction", transactionId, new Callable<Void>() {
+			public Void call() throws Exception {
+				sipCache.removeClientTransaction(transactionId);
+				return null;
+			}
+		});
+	}
+
+	private <T> Future<T> run(String operation, String id, Callable<T> callable) {
+		final LoggingCallable<T> loggingCallable = new LoggingCallable<T>(operation, id, callable);
+		if(stripes.length == 0) {
+			return SipCacheFutures.completed(loggingCallable);
+		}
+		final FutureTask<T> future = new FutureTask<T>(loggingCallable);
+		try {
+			stripes[(id.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(future);
+		} catch (RejectedExecutionException e) {
+			// not run on the calling thread, it could overtake the operations of the same id still queued
+			clusteredSipStack.getStackLogger().logError("problem " + operation + " " + id + " in the distributed cache", e);
+			return SipCacheFutures.failed(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for room in the queue of the stripe instead of running the operation on the calling thread,
+	 * which could overtake the operations of the same id already queued
+	 */
+	private static class WaitForRoomPolicy implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable operation, ThreadPoolExecutor stripe) {
+			if(stripe.isShutdown()) {
+				throw new RejectedExecutionException("distributed cache operations stopped");
+			}
+			try {
+				stripe.getQueue().put(operation);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("interrupted while waiting for room in the distributed cache operations queue", e);
+			}
+			if(stripe.isShutdown() && stripe.getQueue().remove(operation)) {
+				// stopped while waiting, the queue won't be run anymore
+				throw new RejectedExecutionException("distributed cache operations stopped");
+			}
+		}
+	}
+
+	/**
+	 * Logs the failure of the operation, the callers usually not waiting for the result
+	 */
+	private class LoggingCallable<T> implements Callable<T> {
+		private final String operation;
+		private final String id;
+		private final Callable<T> callable;
+
+		LoggingCallable(String operation, String id, Callable<T> callable) {
+			this.operation = operation;
+			this.id = id;
+			this.callable = callable;
+		}
+
+		public T call() throws Exception {
+			try {
+				return callable.call();
+			} catch (Exception e) {
+				clusteredSipStack.getStackLogger().logError("problem " + operation + " " + id + " in the distributed cache", e);
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.SIPDialog;
+
+/**
+ * Implemented by the {@link SipCache} implementations checking the version of a dialog before writing it,
+ * so that a dialog whose local state is outdated can be told instead of silently not being written.
+ */
+public interface ConditionalDialogWriter {
+	/**
+	 * Same as {@link SipCache#putDialog(SIPDialog)}, reporting whether the dialog was written
+	 * @param dialog the dialog to store
+	 * @return false if the cache already holds a version of the dialog at least as recent, in which case nothing was stored
+	 */
+	boolean putDialogIfNewer(SIPDialog dialog) throws SipCacheException;
+}
@@ -0,0 +1,130 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+/**
+ * Counting Bloom filter of strings, supporting removals.
+ * It never answers false for a string that has been added and not removed since, but may answer true for a string
+ * that has never been added, with a probability depending on the number of strings it holds compared to its expected size.
+ * Counters are bytes saturating at 255, a saturated counter is never decremented anymore to keep the filter free of false negatives.
+ * 
+ * Not thread safe.
+ */
+public class CountingBloomFilter {
+
+	private static final int SATURATED = 0xFF;
+
+	private final byte[] counters;
+	private final int hashFunctions;
+
+	/**
+	 * @param expectedElements the number of strings the filter is expected to hold at the same time
+	 * @param falsePositiveProbability the false positive probability wanted when holding the expected number of strings
+	 */
+	public CountingBloomFilter(int expectedElements, double falsePositiveProbability) {
+		final double ln2 = Math.log(2);
+		int size = (int) Math.ceil(-expectedElements * Math.log(falsePositiveProbability) / (ln2 * ln2));
+		counters = new byte[Math.max(size, 64)];
+		hashFunctions = Math.max(1, (int) Math.round((double) counters.length / expectedElements * ln2));
+	}
+
+	public void add(String element) {
+		final int hash1 = hash1(element);
+		final int hash2 = hash2(element);
+		for (int i = 0; i < hashFunctions; i++) {
+			final int index = index(hash1, hash2, i);
+			final int counter = counters[index] & 0xFF;
+			if(counter < SATURATED) {
+				counters[index] = (byte) (counter + 1);
+			}
+		}
+	}
+
+	/**
+	 * Removes a string, it must have been added before otherwise the filter may start answering false for strings it holds
+	 */
+	public void remove(String element) {
+		final int hash1 = hash1(element);
+		final int hash2 = hash2(element);
+		for (int i = 0; i < hashFunctions; i++) {
+			final int index = index(hash1, hash2, i);
+			final int counter = counters[index] & 0xFF;
+			if(counter > 0 && counter < SATURATED) {
+				counters[index] = (byte) (counter - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the string is definitely not in the filter, true if it may be
+	 */
+	public boolean mightContain(String element) {
+		final int hash1 = hash1(element);
+		final int hash2 = hash2(element);
+		for (int i = 0; i < hashFunctions; i++) {
+			if(counters[index(hash1, hash2, i)] == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = 0;
+		}
+	}
+
+	public int getSize() {
+		return counters.length;
+	}
+
+	public int getHashFunctions() {
+		return hashFunctions;
+	}
+
+	private int index(int hash1, int hash2, int i) {
+		final int combined = hash1 + i * hash2;
+		return (combined & Integer.MAX_VALUE) % counters.length;
+	}
+
+	private static int hash1(String element) {
+		// spreads the String hash code the same way as the murmur3 finalizer
+		int h = element.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int hash2(String element) {
+		// FNV-1a over the chars, made odd so that all the hash functions differ
+		int h = 0x811c9dc5;
+		for (int i = 0; i < element.length(); i++) {
+			h ^= element.charAt(i);
+			h *= 0x01000193;
+		}
+		return h | 1;
+	}
+}
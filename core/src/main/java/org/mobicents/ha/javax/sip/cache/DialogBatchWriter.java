@@ -0,0 +1,38 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.Collection;
+
+/**
+ * Implemented by the {@link SipCache} implementations able to write several dialogs in fewer operations than one per dialog,
+ * used by the {@link org.mobicents.ha.javax.sip.DialogWriteBehindQueue} to flush its pending writes.
+ */
+public interface DialogBatchWriter {
+	/**
+	 * Same as calling {@link SipCache#putDialog(SIPDialog)} for each dialog, the dialogs having different ids
+	 * @param dialogs the dialogs to write
+	 * @return the dialogs not stored because the cache already holds a version at least as recent, empty if all of them were stored
+	 */
+	Collection<SIPDialog> putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException;
+}
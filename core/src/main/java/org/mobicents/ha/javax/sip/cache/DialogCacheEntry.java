@@ -0,0 +1,128 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Single cache value holding the encoded meta data of a dialog, its application data and its version,
+ * so that a dialog can be read or written in one cache operation.
+ * Used by the backends when the {@link SipCache#SINGLE_DIALOG_CACHE_ENTRY} property is set to true.
+ */
+public class DialogCacheEntry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] metaData;
+	private final Object applicationData;
+	private final long version;
+
+	public DialogCacheEntry(byte[] metaData, Object applicationData) throws SipCacheException {
+		this.metaData = metaData;
+		this.applicationData = applicationData;
+		this.version = DialogStateCodec.readVersion(metaData);
+	}
+
+	/**
+	 * @return the meta data encoded with the {@link DialogStateCodec}
+	 */
+	public byte[] getMetaData() {
+		return metaData;
+	}
+
+	public Object getApplicationData() {
+		return applicationData;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Entries are equal if they hold the same meta data, 
+	 * so that a cache can replace an entry only if it still holds the one read before it was merged
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof DialogCacheEntry)) {
+			return false;
+		}
+		final DialogCacheEntry other = (DialogCacheEntry) obj;
+		return version == other.version && Arrays.equals(metaData, other.metaData);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (int) (version ^ (version >>> 32)) + Arrays.hashCode(metaData);
+	}
+
+	/**
+	 * Applies replicated meta data and application data on top of a cached value
+	 * @param cached the cached value, either a {@link DialogCacheEntry} or meta data stored in its own entry by a previous release
+	 * @param metaData the encoded meta data to apply
+	 * @param applicationData the application data to apply, the cached one is kept if null
+	 * @return the resulting entry or null if the cached value is not older than the meta data to apply
+	 */
+	public static DialogCacheEntry merge(Object cached, byte[] metaData, Object applicationData) throws SipCacheException {
+		return merge(cached, null, metaData, applicationData);
+	}
+
+	/**
+	 * Applies replicated meta data and application data on top of a cached value
+	 * @param cached the cached value, either a {@link DialogCacheEntry} or meta data stored in its own entry by a previous release
+	 * @param legacyApplicationData the application data stored in its own entry by a previous release, 
+	 * only kept if the cached value is meta data stored by a previous release and no application data is applied
+	 * @param metaData the encoded meta data to apply
+	 * @param applicationData the application data to apply, the cached one is kept if null
+	 * @return the resulting entry or null if the cached value is not older than the meta data to apply
+	 */
+	public static DialogCacheEntry merge(Object cached, Object legacyApplicationData, byte[] metaData, Object applicationData) throws SipCacheException {
+		final byte[] cachedMetaData;
+		final long cachedVersion;
+		final Object cachedApplicationData;
+		if(cached instanceof DialogCacheEntry) {
+			final DialogCacheEntry cachedEntry = (DialogCacheEntry) cached;
+			cachedMetaData = cachedEntry.metaData;
+			cachedVersion = cachedEntry.version;
+			cachedApplicationData = cachedEntry.applicationData;
+		} else {
+			cachedMetaData = DialogStateCodec.asByteArray(cached);
+			cachedVersion = DialogStateCodec.readVersion(cachedMetaData);
+			cachedApplicationData = legacyApplicationData;
+		}
+		if(cachedVersion >= DialogStateCodec.readVersion(metaData)) {
+			return null;
+		}
+		return new DialogCacheEntry(DialogStateCodec.merge(cachedMetaData, metaData),
+				applicationData != null ? applicationData : cachedApplicationData);
+	}
+
+	/**
+	 * @return true if the cached value is meta data stored by a previous release, 
+	 * whose application data is in its own entry until it is merged into a {@link DialogCacheEntry}
+	 */
+	public static boolean isLegacy(Object cached) {
+		return cached != null && !(cached instanceof DialogCacheEntry);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+/**
+ * Notified by the cache about each dialog added to or removed from the distributed cache by any node of the cluster,
+ * including the local one, so that a local view of the ids of the existing dialogs can be maintained.
+ */
+public interface DialogKeyListener {
+	/**
+	 * Called for each dialog added to the cache, including the ones already in the cache when the notifications start
+	 * @param dialogId the id of the dialog
+	 */
+	void dialogKeyAdded(String dialogId);
+	/**
+	 * Called for each dialog removed from or evicted out of the cache, only after it has been notified as added
+	 * @param dialogId the id of the dialog
+	 */
+	void dialogKeyRemoved(String dialogId);
+	/**
+	 * Called when all the dialogs have been removed from the cache
+	 */
+	void allDialogKeysRemoved();
+	/**
+	 * Called once the dialogs already in the cache when the notifications started have all been notified,
+	 * the ids notified can't be trusted to be complete before that
+	 */
+	void dialogKeysLoaded();
+}
@@ -0,0 +1,34 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+/**
+ * Implemented by the {@link SipCache} implementations able to notify the stack about all the dialogs 
+ * added to and removed from the cluster, see {@link DialogKeyListener}.
+ */
+public interface DialogKeyNotifier {
+	/**
+	 * Set the listener to notify about the dialogs added and removed, to be called before the cache is started
+	 * @param dialogKeyListener the listener to notify
+	 */
+	void setDialogKeyListener(DialogKeyListener dialogKeyListener);
+}
@@ -0,0 +1,216 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers locally whether a dialog that is not in the local stack may be in the distributed cache, 
+ * so that requests for unknown dialogs (stray BYEs, scanners, retransmissions for calls already ended) don't all trigger a remote lookup.
+ * 
+ * It combines 2 optional filters :
+ * <ul>
+ * <li>a counting Bloom filter of the ids of all the dialogs in the cluster, maintained from the notifications of a {@link DialogKeyNotifier} cache.
+ * It is only used once the cache notified that the dialogs already present have been loaded.
+ * Since the notifications are asynchronous, a dialog just written by another node may be missing from it, 
+ * so it is bypassed during a grace period after each failover, when this node starts receiving the requests of the dialogs of another node.</li>
+ * <li>a short lived negative cache of the dialog ids recently not found in the distributed cache, 
+ * dropped as soon as the dialog is added or written by any node.</li>
+ * </ul>
+ */
+public class DialogLookupFilter implements DialogKeyListener {
+
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	private final CountingBloomFilter bloomFilter;
+	private volatile boolean bloomFilterLoaded = false;
+	private final long failoverGracePeriod;
+	private volatile long bloomFilterBypassedUntil = 0;
+	private final Map<String, Long> negativeCache;
+	private final long negativeCacheTTL;
+	// incremented each time a dialog may have been added, to detect the additions happening while a dialog is looked up
+	private final AtomicLong additions = new AtomicLong();
+
+	/**
+	 * @param expectedDialogs the number of dialogs expected in the cluster at the same time, 0 to not maintain a Bloom filter
+	 * @param failoverGracePeriod the time in milliseconds during which the Bloom filter is bypassed after a failover
+	 * @param negativeCacheMaxSize the maximum number of dialog ids to remember as not found, 0 to disable the negative cache
+	 * @param negativeCacheTTL the time in milliseconds during which a dialog id is remembered as not found
+	 */
+	public DialogLookupFilter(int expectedDialogs, long failoverGracePeriod, final int negativeCacheMaxSize, long negativeCacheTTL) {
+		this.bloomFilter = expectedDialogs > 0 ? new CountingBloomFilter(expectedDialogs, FALSE_POSITIVE_PROBABILITY) : null;
+		this.failoverGracePeriod = failoverGracePeriod;
+		this.negativeCacheTTL = negativeCacheTTL;
+		if(negativeCacheMaxSize > 0 && negativeCacheTTL > 0) {
+			this.negativeCache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					return size() > negativeCacheMaxSize;
+				}
+			};
+		} else {
+			this.negativeCache = null;
+		}
+	}
+
+	/**
+	 * @param dialogId the id of the dialog to look up
+	 * @return false if the dialog is known not to be in the distributed cache, true if it has to be looked up
+	 */
+	public boolean mightExist(String dialogId) {
+		if(bloomFilter != null && bloomFilterLoaded && System.currentTimeMillis() >= bloomFilterBypassedUntil) {
+			synchronized (bloomFilter) {
+				if(!bloomFilter.mightContain(dialogId)) {
+					return false;
+				}
+			}
+		}
+		if(negativeCache != null) {
+			synchronized (negativeCache) {
+				final Long expiration = negativeCache.get(dialogId);
+				if(expiration != null) {
+					if(expiration.longValue() > System.currentTimeMillis()) {
+						return false;
+					}
+					negativeCache.remove(dialogId);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Bypass the Bloom filter during the failover grace period, 
+	 * the dialogs of the node that failed may not all have been notified to this node yet
+	 */
+	public void failover() {
+		bloomFilterBypassedUntil = System.currentTimeMillis() + failoverGracePeriod;
+	}
+
+	/**
+	 * To be called before looking a dialog up in the distributed cache
+	 * @return the token to pass to {@link #notFound(String, long)} if the dialog is not found
+	 */
+	public long getAdditionCount() {
+		return additions.get();
+	}
+
+	/**
+	 * Remember that a dialog was not found in the distributed cache, 
+	 * unless a dialog may have been added since the token was taken
+	 * @param dialogId the id of the dialog not found
+	 * @param additionCount the value of {@link #getAdditionCount()} before the lookup
+	 */
+	public void notFound(String dialogId, long additionCount) {
+		if(negativeCache == null) {
+			return;
+		}
+		synchronized (negativeCache) {
+			if(additions.get() != additionCount) {
+				return;
+			}
+			negativeCache.put(dialogId, Long.valueOf(System.currentTimeMillis() + negativeCacheTTL));
+		}
+	}
+
+	/**
+	 * Forget that a dialog was not found, it has been written by a node of the cluster
+	 * @param dialogId the id of the dialog
+	 */
+	public void invalidate(String dialogId) {
+		if(negativeCache == null) {
+			return;
+		}
+		synchronized (negativeCache) {
+			additions.incrementAndGet();
+			negativeCache.remove(dialogId);
+		}
+	}
+
+	/**
+	 * Forget all the dialogs not found
+	 */
+	public void invalidateAll() {
+		if(negativeCache == null) {
+			return;
+		}
+		synchronized (negativeCache) {
+			additions.incrementAndGet();
+			negativeCache.clear();
+		}
+	}
+
+	/**
+	 * @return true if the Bloom filter of the dialogs in the cluster is maintained and has been loaded
+	 */
+	public boolean isBloomFilterLoaded() {
+		return bloomFilter != null && bloomFilterLoaded;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogKeyListener#dialogKeyAdded(java.lang.String)
+	 */
+	public void dialogKeyAdded(String dialogId) {
+		if(bloomFilter != null) {
+			synchronized (bloomFilter) {
+				bloomFilter.add(dialogId);
+			}
+		}
+		invalidate(dialogId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogKeyListener#dialogKeyRemoved(java.lang.String)
+	 */
+	public void dialogKeyRemoved(String dialogId) {
+		if(bloomFilter != null) {
+			synchronized (bloomFilter) {
+				bloomFilter.remove(dialogId);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogKeyListener#allDialogKeysRemoved()
+	 */
+	public void allDialogKeysRemoved() {
+		if(bloomFilter != null) {
+			synchronized (bloomFilter) {
+				bloomFilter.clear();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogKeyListener#dialogKeysLoaded()
+	 */
+	public void dialogKeysLoaded() {
+		bloomFilterLoaded = true;
+	}
+}
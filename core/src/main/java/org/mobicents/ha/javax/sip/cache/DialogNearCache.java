@@ -0,0 +1,160 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Local cache of the last version of each dialog this node knows to be the one in the distributed cache,
+ * either because it replicated it or because it read it from the cache.
+ * It allows the stack to know that a local dialog is up to date without any call to the distributed cache,
+ * as long as no other node wrote the dialog in the meantime, which the cache notifies through a {@link DialogInvalidationListener}.
+ * 
+ * The number of dialogs is bounded, the least recently used ones are dropped first, and entries expire after a time to live
+ * to protect against lost invalidations.
+ * 
+ * Each dialog id maps to one of a fixed number of stamps incremented by the invalidations of the dialogs mapped to it,
+ * so that an invalidation only prevents the versions of the few dialogs sharing its stamp from being recorded concurrently.
+ */
+public class DialogNearCache implements DialogInvalidationListener {
+
+	private final int maxSize;
+	private final long timeToLive;
+	private final Map<String, long[]> versions;
+	private static final int STAMPS = 4096;
+	// incremented on each invalidation of the dialogs mapped to them, to detect the ones happening while a version is read from or written to the cache
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+	/**
+	 * @param maxSize the maximum number of dialogs to keep
+	 * @param timeToLive the time in milliseconds after which an entry is not trusted anymore, 0 or less for no expiration
+	 */
+	public DialogNearCache(final int maxSize, long timeToLive) {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.versions = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * To be called before reading a dialog from or writing a dialog to the distributed cache
+	 * @param dialogId the id of the dialog
+	 * @return the token to pass to {@link #put(String, long, long)} once the operation is done
+	 */
+	public long getInvalidationCount(String dialogId) {
+		return stamps.get(stamp(dialogId));
+	}
+
+	/**
+	 * Record the version of a dialog as being the one in the distributed cache.
+	 * Nothing is recorded if an invalidation of a dialog sharing its stamp happened since the token was taken, since it may relate to this dialog.
+	 * @param dialogId the id of the dialog
+	 * @param version the version read from or written to the distributed cache
+	 * @param invalidationCount the value of {@link #getInvalidationCount(String)} before the cache operation
+	 */
+	public void put(String dialogId, long version, long invalidationCount) {
+		synchronized (versions) {
+			if(stamps.get(stamp(dialogId)) != invalidationCount) {
+				return;
+			}
+			versions.put(dialogId, new long[] {version, System.currentTimeMillis()});
+		}
+	}
+
+	/**
+	 * @param dialogId the id of the dialog
+	 * @param version the version of the local dialog
+	 * @return true if the local dialog is known to be at least as recent as the one in the distributed cache
+	 */
+	public boolean isCurrent(String dialogId, long version) {
+		synchronized (versions) {
+			final long[] entry = versions.get(dialogId);
+			if(entry == null) {
+				return false;
+			}
+			if(timeToLive > 0 && System.currentTimeMillis() - entry[1] > timeToLive) {
+				versions.remove(dialogId);
+				return false;
+			}
+			return entry[0] <= version;
+		}
+	}
+
+	/**
+	 * Forget the version of a dialog, once it has been removed locally
+	 * @param dialogId the id of the dialog
+	 */
+	public void remove(String dialogId) {
+		synchronized (versions) {
+			versions.remove(dialogId);
+		}
+	}
+
+	public int size() {
+		synchronized (versions) {
+			return versions.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogInvalidationListener#dialogInvalidated(java.lang.String)
+	 */
+	public void dialogInvalidated(String dialogId) {
+		synchronized (versions) {
+			stamps.incrementAndGet(stamp(dialogId));
+			versions.remove(dialogId);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogInvalidationListener#allDialogsInvalidated()
+	 */
+	public void allDialogsInvalidated() {
+		synchronized (versions) {
+			for (int i = 0; i < STAMPS; i++) {
+				stamps.incrementAndGet(i);
+			}
+			versions.clear();
+		}
+	}
+
+	private static int stamp(String dialogId) {
+		return (dialogId.hashCode() & 0x7fffffff) % STAMPS;
+	}
+}
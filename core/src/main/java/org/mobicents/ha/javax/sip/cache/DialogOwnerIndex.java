@@ -0,0 +1,38 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.Set;
+
+/**
+ * Implemented by the {@link SipCache} implementations able to find the dialogs owned by a node,
+ * the node that replicated them last, without going through all the dialogs of the cluster.
+ */
+public interface DialogOwnerIndex {
+	/**
+	 * @param ownerId the id of the owner node, see {@link org.mobicents.ha.javax.sip.ClusteredSipStackExt#getNodeId()}
+	 * @param localOnly true to only get the dialogs primarily stored on this node, so that the nodes
+	 * taking over the dialogs of a failed node share them, false to get all the dialogs of the owner 
+	 * @return the ids of the dialogs owned by the node
+	 */
+	Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException;
+}
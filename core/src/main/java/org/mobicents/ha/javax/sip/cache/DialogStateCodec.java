@@ -0,0 +1,600 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Versioned binary codec for the dialog meta data replicated by {@link AbstractHASipDialog}.
+ *
+ * The fields known to the codec are the ones used as keys of the dialog meta data map. They are written in a fixed order
+ * after a header made of the format version, a presence bit mask and a bit mask holding the values of the boolean fields.
+ * Numbers are written as zigzag varints and strings as UTF-8 bytes prefixed by their length (0 meaning null).
+ * The upper bits of the format version byte carry a flag telling whether the fields are a full state of the dialog or only
+ * a delta that can only be merged into an existing entry.
+ *
+ * An instance holds a reusable buffer and is not thread safe, use {@link #getInstance()} to get the one bound to the current thread.
+ * Reading bytes that are truncated or not encoded by this codec fails with a {@link SipCacheException}.
+ */
+public final class DialogStateCodec {
+
+	public static final int FORMAT_VERSION = 1;
+	private static final int FORMAT_VERSION_MASK = 0x0F;
+	private static final int FULL_STATE_FLAG = 0x10;
+
+	private static final int TYPE_LONG = 0;
+	private static final int TYPE_BOOLEAN = 1;
+	private static final int TYPE_STRING = 2;
+	private static final int TYPE_STRING_ARRAY = 3;
+
+	// the order of the fields is part of the wire format, only append new fields at the end
+	private static final String[] FIELDS = new String[] {
+		AbstractHASipDialog.VERSION,
+		AbstractHASipDialog.DIALOG_STATE,
+		AbstractHASipDialog.DIALOG_METHOD,
+		AbstractHASipDialog.LAST_RESPONSE,
+		AbstractHASipDialog.IS_REINVITE,
+		AbstractHASipDialog.ROUTE_LIST,
+		AbstractHASipDialog.TERMINATE_ON_BYE,
+		AbstractHASipDialog.REMOTE_TARGET,
+		AbstractHASipDialog.EVENT_HEADER,
+		AbstractHASipDialog.B2BUA,
+		AbstractHASipDialog.IS_SERVER,
+		AbstractHASipDialog.FIRST_TX_SECURE,
+		AbstractHASipDialog.FIRST_TX_ID,
+		AbstractHASipDialog.ENABLE_CSEQ_VALIDATION,
+		AbstractHASipDialog.FIRST_TX_METHOD,
+		AbstractHASipDialog.CONTACT_HEADER,
+		AbstractHASipDialog.IS_LATEST_TX_SERVER,
+		AbstractHASipDialog.REMOTE_TAG,
+		AbstractHASipDialog.LOCAL_TAG,
+		AbstractHASipDialog.REMOTE_CSEQ,
+		AbstractHASipDialog.LOCAL_CSEQ,
+		AbstractHASipDialog.OWNER,
+		AbstractHASipDialog.OWNERSHIP_LEASE_EXPIRATION,
+		AbstractHASipDialog.LAST_RESPONSE_FINGERPRINT
+	};
+	private static final int[] TYPES = new int[] {
+		TYPE_LONG,
+		TYPE_LONG,
+		TYPE_STRING,
+		TYPE_STRING,
+		TYPE_BOOLEAN,
+		TYPE_STRING_ARRAY,
+		TYPE_BOOLEAN,
+		TYPE_STRING,
+		TYPE_STRING,
+		TYPE_BOOLEAN,
+		TYPE_BOOLEAN,
+		TYPE_BOOLEAN,
+		TYPE_STRING,
+		TYPE_BOOLEAN,
+		TYPE_STRING,
+		TYPE_STRING,
+		TYPE_BOOLEAN,
+		TYPE_STRING,
+		TYPE_STRING,
+		TYPE_LONG,
+		TYPE_LONG,
+		TYPE_STRING,
+		TYPE_LONG,
+		TYPE_LONG
+	};
+	private static final Map<String, Integer> ORDINALS = new HashMap<String, Integer>();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<DialogStateCodec> INSTANCES = new ThreadLocal<DialogStateCodec>() {
+		@Override
+		protected DialogStateCodec initialValue() {
+			return new DialogStateCodec();
+		}
+	};
+
+	static {
+		for (int i = 0; i < FIELDS.length; i++) {
+			ORDINALS.put(FIELDS[i], Integer.valueOf(i));
+		}
+	}
+
+	private boolean fullState;
+	private long presence;
+	private long booleans;
+	private final long[] longValues = new long[FIELDS.length];
+	private final Object[] objectValues = new Object[FIELDS.length];
+	private byte[] buffer = new byte[512];
+	private int position;
+
+	public DialogStateCodec() {}
+
+	/**
+	 * @return the codec bound to the current thread, reset and ready to be filled
+	 */
+	public static DialogStateCodec getInstance() {
+		return INSTANCES.get().reset();
+	}
+
+	/**
+	 * Clears all the fields previously put or read
+	 * @return this codec
+	 */
+	public DialogStateCodec reset() {
+		fullState = false;
+		presence = 0;
+		booleans = 0;
+		for (int i = 0; i < objectValues.length; i++) {
+			objectValues[i] = null;
+		}
+		position = 0;
+		return this;
+	}
+
+	public void putLong(String key, long value) {
+		final int ordinal = ordinal(key, TYPE_LONG);
+		longValues[ordinal] = value;
+		presence |= 1L << ordinal;
+	}
+
+	public void putBoolean(String key, boolean value) {
+		final int ordinal = ordinal(key, TYPE_BOOLEAN);
+		if(value) {
+			booleans |= 1L << ordinal;
+		} else {
+			booleans &= ~(1L << ordinal);
+		}
+		presence |= 1L << ordinal;
+	}
+
+	/**
+	 * Put a field value the same way it would be put in the dialog meta data map.
+	 * A null value for a number or boolean field removes the field.
+	 */
+	public void put(String key, Object value) {
+		final Integer ordinal = ORDINALS.get(key);
+		if(ordinal == null) {
+			throw new IllegalArgumentException("Unknown dialog meta data key " + key);
+		}
+		final int i = ordinal.intValue();
+		switch (TYPES[i]) {
+		case TYPE_LONG:
+			if(value == null) {
+				presence &= ~(1L << i);
+			} else {
+				putLong(key, ((Number) value).longValue());
+			}
+			break;
+		case TYPE_BOOLEAN:
+			if(value == null) {
+				presence &= ~(1L << i);
+			} else {
+				putBoolean(key, ((Boolean) value).booleanValue());
+			}
+			break;
+		default:
+			objectValues[i] = value;
+			presence |= 1L << i;
+			break;
+		}
+	}
+
+	public void putAll(Map<String, Object> metaData) {
+		for (Entry<String, Object> entry : metaData.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @param fullState true if the fields put in this codec are the full state of the dialog, false if they are a delta
+	 */
+	public void setFullState(boolean fullState) {
+		this.fullState = fullState;
+	}
+
+	public boolean isFullState() {
+		return fullState;
+	}
+
+	public boolean contains(String key) {
+		final Integer ordinal = ORDINALS.get(key);
+		return ordinal != null && (presence & (1L << ordinal.intValue())) != 0;
+	}
+
+	/**
+	 * @return the fields of this codec as a dialog meta data map, with the value types expected by {@link AbstractHASipDialog#setMetaDataToReplicate(Map, boolean)}
+	 */
+	public Map<String, Object> toMap() {
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		for (int i = 0; i < FIELDS.length; i++) {
+			if((presence & (1L << i)) == 0) {
+				continue;
+			}
+			switch (TYPES[i]) {
+			case TYPE_LONG:
+				if(AbstractHASipDialog.DIALOG_STATE.equals(FIELDS[i])) {
+					metaData.put(FIELDS[i], Integer.valueOf((int) longValues[i]));
+				} else {
+					metaData.put(FIELDS[i], Long.valueOf(longValues[i]));
+				}
+				break;
+			case TYPE_BOOLEAN:
+				metaData.put(FIELDS[i], Boolean.valueOf((booleans & (1L << i)) != 0));
+				break;
+			default:
+				metaData.put(FIELDS[i], objectValues[i]);
+				break;
+			}
+		}
+		return metaData;
+	}
+
+	/**
+	 * @return a copy of the encoded form of the fields of this codec
+	 */
+	public byte[] toByteArray() {
+		position = 0;
+		ensureCapacity(1);
+		buffer[position++] = (byte) (fullState ? FORMAT_VERSION | FULL_STATE_FLAG : FORMAT_VERSION);
+		writeVarLong(presence);
+		writeVarLong(booleans & presence);
+		for (int i = 0; i < FIELDS.length; i++) {
+			if((presence & (1L << i)) == 0) {
+				continue;
+			}
+			switch (TYPES[i]) {
+			case TYPE_LONG:
+				writeVarLong((longValues[i] << 1) ^ (longValues[i] >> 63));
+				break;
+			case TYPE_STRING:
+				writeString((String) objectValues[i]);
+				break;
+			case TYPE_STRING_ARRAY:
+				final String[] values = (String[]) objectValues[i];
+				if(values == null) {
+					writeVarLong(0);
+				} else {
+					writeVarLong(values.length + 1);
+					for (String value : values) {
+						writeString(value);
+					}
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		final byte[] encoded = new byte[position];
+		System.arraycopy(buffer, 0, encoded, 0, position);
+		return encoded;
+	}
+
+	/**
+	 * Read the encoded fields passed in parameter into this codec, overriding the fields already present with the same key.
+	 * Reading a full state makes the codec hold a full state.
+	 * @param encoded the encoded fields
+	 * @return this codec
+	 * @throws SipCacheException if the encoded fields are truncated or of an unsupported format version
+	 */
+	public DialogStateCodec read(byte[] encoded) throws SipCacheException {
+		checkFormatVersion(encoded);
+		fullState |= (encoded[0] & FULL_STATE_FLAG) != 0;
+		final int[] cursor = new int[] {1};
+		final long readPresence = readVarLong(encoded, cursor);
+		final long readBooleans = readVarLong(encoded, cursor);
+		for (int i = 0; i < FIELDS.length; i++) {
+			final long bit = 1L << i;
+			if((readPresence & bit) == 0) {
+				continue;
+			}
+			switch (TYPES[i]) {
+			case TYPE_LONG:
+				final long zigzag = readVarLong(encoded, cursor);
+				longValues[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+				break;
+			case TYPE_BOOLEAN:
+				booleans = (booleans & ~bit) | (readBooleans & bit);
+				break;
+			case TYPE_STRING:
+				objectValues[i] = readString(encoded, cursor);
+				break;
+			case TYPE_STRING_ARRAY:
+				final long length = readVarLong(encoded, cursor);
+				if(length == 0) {
+					objectValues[i] = null;
+				} else {
+					// each element takes at least one byte, a larger length can only come from corrupted bytes
+					checkRemaining(encoded, cursor, length - 1);
+					final String[] values = new String[(int) length - 1];
+					for (int j = 0; j < values.length; j++) {
+						values[j] = readString(encoded, cursor);
+					}
+					objectValues[i] = values;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		presence |= readPresence;
+		return this;
+	}
+
+	/**
+	 * Encode a dialog meta data map, the map is considered to be the full state of the dialog
+	 */
+	public static byte[] encode(Map<String, Object> metaData) {
+		final DialogStateCodec codec = getInstance();
+		codec.putAll(metaData);
+		codec.setFullState(true);
+		return codec.toByteArray();
+	}
+
+	/**
+	 * Decode encoded dialog meta data into a dialog meta data map
+	 */
+	public static Map<String, Object> decode(byte[] encoded) throws SipCacheException {
+		return getInstance().read(encoded).toMap();
+	}
+
+	/**
+	 * Overlay the fields of update on top of the fields of cached
+	 * @return the encoded result of the merge
+	 */
+	public static byte[] merge(byte[] cached, byte[] update) throws SipCacheException {
+		return getInstance().read(cached).read(update).toByteArray();
+	}
+
+	/**
+	 * @return true if the encoded dialog meta data is a full state, false if it is a delta
+	 */
+	public static boolean isFullState(byte[] encoded) {
+		return (encoded[0] & FULL_STATE_FLAG) != 0;
+	}
+
+	/**
+	 * Read only the version from encoded dialog meta data, without decoding the other fields
+	 * @return the version or -1 if the version is not part of the encoded fields
+	 * @throws SipCacheException if the encoded fields are truncated or of an unsupported format version
+	 */
+	public static long readVersion(byte[] encoded) throws SipCacheException {
+		checkFormatVersion(encoded);
+		final int[] cursor = new int[] {1};
+		final long readPresence = readVarLong(encoded, cursor);
+		// VERSION is the first field so its value comes first
+		if((readPresence & 1L) == 0) {
+			return -1;
+		}
+		readVarLong(encoded, cursor);
+		final long zigzag = readVarLong(encoded, cursor);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Read the owner from encoded dialog meta data
+	 * @return the id of the node owning the dialog or null if the owner is not part of the encoded fields
+	 */
+	public static String readOwner(byte[] encoded) throws SipCacheException {
+		final DialogStateCodec codec = getInstance().read(encoded);
+		return codec.contains(AbstractHASipDialog.OWNER) ? (String) codec.objectValues[ORDINALS.get(AbstractHASipDialog.OWNER).intValue()] : null;
+	}
+
+	/**
+	 * Read only the owner from dialog meta data as stored in a cache, either encoded, in a {@link DialogCacheEntry}, in an {@link EncodedDialogMetaData} or as a map stored by a previous release
+	 * @return the id of the node owning the dialog or null if it is not known
+	 */
+	@SuppressWarnings("unchecked")
+	public static String readStoredOwner(Object storedMetaData) throws SipCacheException {
+		if(storedMetaData == null) {
+			return null;
+		}
+		if(storedMetaData instanceof byte[]) {
+			return readOwner((byte[]) storedMetaData);
+		}
+		if(storedMetaData instanceof DialogCacheEntry) {
+			return readOwner(((DialogCacheEntry) storedMetaData).getMetaData());
+		}
+		if(storedMetaData instanceof EncodedDialogMetaData) {
+			return readOwner(((EncodedDialogMetaData) storedMetaData).getMetaData());
+		}
+		return (String) ((Map<String, Object>) storedMetaData).get(AbstractHASipDialog.OWNER);
+	}
+
+	/**
+	 * Read only the version from dialog meta data as stored in a cache, either encoded, in a {@link DialogCacheEntry}, in an {@link EncodedDialogMetaData} or as a map stored by a previous release
+	 * @return the version or -1 if the version is not known
+	 */
+	@SuppressWarnings("unchecked")
+	public static long readStoredVersion(Object storedMetaData) throws SipCacheException {
+		if(storedMetaData == null) {
+			return -1;
+		}
+		if(storedMetaData instanceof byte[]) {
+			return readVersion((byte[]) storedMetaData);
+		}
+		if(storedMetaData instanceof DialogCacheEntry) {
+			return ((DialogCacheEntry) storedMetaData).getVersion();
+		}
+		if(storedMetaData instanceof EncodedDialogMetaData) {
+			return ((EncodedDialogMetaData) storedMetaData).getVersion();
+		}
+		final Long version = (Long) ((Map<String, Object>) storedMetaData).get(AbstractHASipDialog.VERSION);
+		return version != null ? version.longValue() : -1;
+	}
+
+	/**
+	 * Convert dialog meta data as stored in a cache, either encoded, in a {@link DialogCacheEntry}, in an {@link EncodedDialogMetaData} or as a map stored by a previous release, to a map
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> asMap(Object storedMetaData) throws SipCacheException {
+		if(storedMetaData == null) {
+			return null;
+		}
+		if(storedMetaData instanceof byte[]) {
+			return decode((byte[]) storedMetaData);
+		}
+		if(storedMetaData instanceof DialogCacheEntry) {
+			return decode(((DialogCacheEntry) storedMetaData).getMetaData());
+		}
+		if(storedMetaData instanceof EncodedDialogMetaData) {
+			return decode(((EncodedDialogMetaData) storedMetaData).getMetaData());
+		}
+		return (Map<String, Object>) storedMetaData;
+	}
+
+	/**
+	 * Convert dialog meta data as stored in a cache, either encoded, in a {@link DialogCacheEntry}, in an {@link EncodedDialogMetaData} or as a map stored by a previous release, to its encoded form
+	 */
+	@SuppressWarnings("unchecked")
+	public static byte[] asByteArray(Object storedMetaData) {
+		if(storedMetaData == null) {
+			return null;
+		}
+		if(storedMetaData instanceof byte[]) {
+			return (byte[]) storedMetaData;
+		}
+		if(storedMetaData instanceof DialogCacheEntry) {
+			return ((DialogCacheEntry) storedMetaData).getMetaData();
+		}
+		if(storedMetaData instanceof EncodedDialogMetaData) {
+			return ((EncodedDialogMetaData) storedMetaData).getMetaData();
+		}
+		return encode((Map<String, Object>) storedMetaData);
+	}
+
+	private static int ordinal(String key, int type) {
+		final Integer ordinal = ORDINALS.get(key);
+		if(ordinal == null || TYPES[ordinal.intValue()] != type) {
+			throw new IllegalArgumentException("Unknown dialog meta data key " + key + " for type " + type);
+		}
+		return ordinal.intValue();
+	}
+
+	private void ensureCapacity(int length) {
+		if(position + length > buffer.length) {
+			final byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + length)];
+			System.arraycopy(buffer, 0, newBuffer, 0, position);
+			buffer = newBuffer;
+		}
+	}
+
+	private void writeVarLong(long value) {
+		ensureCapacity(10);
+		while((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void writeString(String value) {
+		if(value == null) {
+			writeVarLong(0);
+			return;
+		}
+		final int length = value.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if(c < 0x80) {
+				utfLength++;
+			} else if(c < 0x800) {
+				utfLength += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				utfLength += 4;
+				i++;
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// unpaired surrogate, replaced the same way the JDK encoder does
+				utfLength++;
+			} else {
+				utfLength += 3;
+			}
+		}
+		writeVarLong(utfLength + 1);
+		ensureCapacity(utfLength);
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if(c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if(c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				buffer[position++] = (byte) '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static void checkFormatVersion(byte[] encoded) throws SipCacheException {
+		if(encoded == null || encoded.length == 0) {
+			throw new SipCacheException("Empty dialog state");
+		}
+		final int formatVersion = encoded[0] & FORMAT_VERSION_MASK;
+		if(formatVersion != FORMAT_VERSION) {
+			throw new SipCacheException("Unsupported dialog state format version " + formatVersion);
+		}
+	}
+
+	private static void checkRemaining(byte[] encoded, int[] cursor, long length) throws SipCacheException {
+		if(length < 0 || length > encoded.length - cursor[0]) {
+			throw new SipCacheException("Truncated dialog state, " + length + " bytes expected at offset " + cursor[0] + " of " + encoded.length);
+		}
+	}
+
+	private static long readVarLong(byte[] encoded, int[] cursor) throws SipCacheException {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if(shift > 63) {
+				throw new SipCacheException("Malformed dialog state, varint too long at offset " + cursor[0]);
+			}
+			checkRemaining(encoded, cursor, 1);
+			b = encoded[cursor[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+
+	private static String readString(byte[] encoded, int[] cursor) throws SipCacheException {
+		final long length = readVarLong(encoded, cursor);
+		if(length == 0) {
+			return null;
+		}
+		checkRemaining(encoded, cursor, length - 1);
+		final String value = new String(encoded, cursor[0], (int) length - 1, UTF8);
+		cursor[0] += length - 1;
+		return value;
+	}
+}
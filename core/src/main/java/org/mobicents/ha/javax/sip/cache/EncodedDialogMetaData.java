@@ -0,0 +1,69 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Cache value holding the encoded meta data of a dialog whose application data is stored in its own entry.
+ * Unlike a byte array it is compared by content, so that a cache comparing the values on the node owning the entry
+ * can replace it only if it still holds the one read before it was merged.
+ */
+public class EncodedDialogMetaData implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] metaData;
+	private final long version;
+
+	public EncodedDialogMetaData(byte[] metaData) throws SipCacheException {
+		this.metaData = metaData;
+		this.version = DialogStateCodec.readVersion(metaData);
+	}
+
+	/**
+	 * @return the meta data encoded with the {@link DialogStateCodec}
+	 */
+	public byte[] getMetaData() {
+		return metaData;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof EncodedDialogMetaData)) {
+			return false;
+		}
+		final EncodedDialogMetaData other = (EncodedDialogMetaData) obj;
+		return version == other.version && Arrays.equals(metaData, other.metaData);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (int) (version ^ (version >>> 32)) + Arrays.hashCode(metaData);
+	}
+}
@@ -79,6 +79,7 @@ public class NoCache implements SipCache {
 		
 	}
 
+	@Deprecated
 	public void evictDialog(String dialogId) {
 		
 	}
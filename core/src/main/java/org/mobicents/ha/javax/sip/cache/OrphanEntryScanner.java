@@ -0,0 +1,84 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.Set;
+
+/**
+ * Implemented by the {@link SipCache} implementations able to go through the entries primarily stored on this node
+ * to find the ones leaked in the cache, see {@link org.mobicents.ha.javax.sip.OrphanEntryReaperService}.
+ * The scan goes chunk by chunk so that it never holds the cache for long, each call continuing where the previous one stopped.
+ */
+public interface OrphanEntryScanner {
+
+	enum EntryType {
+		/** a dialog owned by a node that left the cluster */
+		DIALOG,
+		/** application data of a dialog whose meta data isn't in the cache */
+		DIALOG_APPLICATION_DATA,
+		/** owner index entry of a dialog that isn't in the cache */
+		DIALOG_OWNER,
+		/** server transaction whose dialog isn't in the cache, or application data without transaction */
+		SERVER_TRANSACTION,
+		/** client transaction whose dialog isn't in the cache, or application data without transaction */
+		CLIENT_TRANSACTION
+	}
+
+	interface Visitor {
+		/**
+		 * Called for each entry looking orphan, it is only removed once it looked orphan long enough
+		 * @param type the type of the entry
+		 * @param id the id of the dialog or transaction
+		 * @param version the version of the dialog, the hash of the meta data of a transaction, 0 for the other entries
+		 */
+		void orphanCandidate(EntryType type, String id, long version);
+	}
+
+	/**
+	 * @return the ids of the nodes currently in the cluster, see {@link org.mobicents.ha.javax.sip.ClusteredSipStackExt#getNodeId()},
+	 * null if some of them can't be identified
+	 */
+	Set<String> getNodeIds() throws SipCacheException;
+
+	/**
+	 * Scans the next chunk of the entries primarily stored on this node
+	 * @param chunkSize the maximum number of entries to go through
+	 * @param nodeIds the ids of the nodes currently in the cluster, the dialogs owned by other nodes being orphan candidates,
+	 * null to not consider any dialog as orphan
+	 * @param visitor called for each orphan candidate
+	 * @return false once all the entries have been scanned, the next call starting a new pass
+	 */
+	boolean scan(int chunkSize, Set<String> nodeIds, Visitor visitor) throws SipCacheException;
+
+	/**
+	 * Removes an orphan entry from the cache, along with the entries it holds, only if it still looks orphan at the time of the removal:
+	 * a dialog only if it still has the version seen by the scans and its owner is still not in the cluster, 
+	 * the application data and owner index entry of a dialog only if the dialog is still not in the cache,
+	 * a transaction only if it still has the meta data seen by the scans and its dialog is still not in the cache,
+	 * the application data of a transaction only if the transaction is still not in the cache
+	 * @param type the type of the entry
+	 * @param id the id of the dialog or transaction
+	 * @param version the version of the dialog or the hash of the meta data of the transaction seen by the scans, 0 for the other entries
+	 * @param nodeIds the ids of the nodes currently in the cluster
+	 * @return true if the entry was removed, false if it is not orphan anymore
+	 */
+	boolean removeOrphan(EntryType type, String id, long version, Set<String> nodeIds) throws SipCacheException;
+}
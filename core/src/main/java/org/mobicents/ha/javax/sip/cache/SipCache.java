@@ -43,6 +43,19 @@ public interface SipCache {
 	public static final String DIALOG_PARENT_FQN_ELEMENT = "Dialogs";
 	public static final String SERVER_TX_PARENT_FQN_ELEMENT = "ServerTransactions";
 	public static final String CLIENT_TX_PARENT_FQN_ELEMENT = "ClientTransactions";
+	public static final String DIALOG_OWNERS_PARENT_FQN_ELEMENT = "DialogOwners";
+	/**
+	 * When set to true, backends supporting it store the meta data and application data of a dialog in a single {@link DialogCacheEntry}
+	 */
+	public static final String SINGLE_DIALOG_CACHE_ENTRY = "org.mobicents.ha.javax.sip.SINGLE_DIALOG_CACHE_ENTRY";
+	/**
+	 * {@link #LEGACY_WRITE_FORMAT} by default, the format of the dialog meta data written to the cache.
+	 * The previous releases only read the legacy map, set it to {@link #ENCODED_WRITE_FORMAT} once every node of the cluster is upgraded.
+	 * Both formats are read whatever the setting, and {@link #SINGLE_DIALOG_CACHE_ENTRY} is only honored with the encoded format.
+	 */
+	public static final String DIALOG_CACHE_WRITE_FORMAT = "org.mobicents.ha.javax.sip.DIALOG_CACHE_WRITE_FORMAT";
+	public static final String LEGACY_WRITE_FORMAT = "LEGACY";
+	public static final String ENCODED_WRITE_FORMAT = "ENCODED";
 
 	/**
 	 * Set the Clustered Sip Stack that created this sip cache instance 
@@ -96,9 +109,12 @@ public interface SipCache {
 	void removeDialog(String dialogId) throws SipCacheException;
 
 	/**
-	 * Evict the dialog from the cache memory
+	 * Evict the dialog from the memory of this node only, the other nodes of the cluster keep it
 	 * @param dialogId the id of the dialog to evict
+	 * @deprecated the stack doesn't evict the dialogs from the cache anymore, the passivated dialogs are only dropped 
+	 * from the local tables, see {@link org.mobicents.ha.javax.sip.ClusteredSipStackExt#passivateDialogIfCurrent(org.mobicents.ha.javax.sip.HASipDialog)}
 	 */
+	@Deprecated
 	void evictDialog(String dialogId);
 	
 	/**
@@ -0,0 +1,107 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers building the futures returned by the {@link AsyncSipCache} implementations
+ */
+public final class SipCacheFutures {
+
+	private SipCacheFutures() {
+	}
+
+	/**
+	 * Runs the operation on the calling thread
+	 * @return a future already completed with the result or the failure of the operation
+	 */
+	public static <T> Future<T> completed(Callable<T> operation) {
+		final FutureTask<T> future = new FutureTask<T>(operation);
+		future.run();
+		return future;
+	}
+
+	/**
+	 * @return a future already completed with the given failure
+	 */
+	public static <T> Future<T> failed(final Exception failure) {
+		return completed(new Callable<T>() {
+			public T call() throws Exception {
+				throw failure;
+			}
+		});
+	}
+
+	/**
+	 * @return a future completing once all the given futures completed, failing with the first failure found
+	 */
+	public static Future<Void> allOf(final List<? extends Future<?>> futures) {
+		return new Future<Void>() {
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = false;
+				for (Future<?> future : futures) {
+					cancelled |= future.cancel(mayInterruptIfRunning);
+				}
+				return cancelled;
+			}
+
+			public boolean isCancelled() {
+				for (Future<?> future : futures) {
+					if(future.isCancelled()) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			public boolean isDone() {
+				for (Future<?> future : futures) {
+					if(!future.isDone()) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			public Void get() throws InterruptedException, ExecutionException {
+				for (Future<?> future : futures) {
+					future.get();
+				}
+				return null;
+			}
+
+			public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+				final long deadline = System.nanoTime() + unit.toNanos(timeout);
+				for (Future<?> future : futures) {
+					future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+				return null;
+			}
+		};
+	}
+}
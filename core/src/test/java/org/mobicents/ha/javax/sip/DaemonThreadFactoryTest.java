@@ -0,0 +1,71 @@
+package org.mobicents.ha.javax.sip;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the threads of the background services are daemon threads, virtual ones only when asked for
+ * and supported by the JVM running the tests, platform ones otherwise
+ */
+public class DaemonThreadFactoryTest extends TestCase {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private static boolean isVirtual(Thread thread) throws Exception {
+		try {
+			return ((Boolean) Thread.class.getMethod("isVirtual").invoke(thread)).booleanValue();
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public void testPlatformThreads() throws Exception {
+		final DaemonThreadFactory threadFactory = new DaemonThreadFactory("Service");
+		final Thread first = threadFactory.newThread(NOTHING);
+		final Thread second = threadFactory.newThread(NOTHING);
+		assertEquals("Service-1", first.getName());
+		assertEquals("Service-2", second.getName());
+		assertTrue(first.isDaemon());
+		assertFalse(isVirtual(first));
+	}
+
+	public void testVirtualThreadsWhenSupported() throws Exception {
+		final Thread thread = new DaemonThreadFactory("Service", true).newThread(NOTHING);
+		assertTrue(thread.isDaemon());
+		assertTrue(thread.getName().startsWith("Service-"));
+		assertEquals(VirtualThreads.newThreadFactory("Service-") != null, isVirtual(thread));
+	}
+
+	public void testThreadsRun() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(2);
+		final Runnable task = new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		};
+		new DaemonThreadFactory("Service").newThread(task).start();
+		new DaemonThreadFactory("Service", true).newThread(task).start();
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testVirtualThreadFactoryOnlyWhenSupported() throws Exception {
+		final ThreadFactory threadFactory = VirtualThreads.newThreadFactory("Service-");
+		if(!VirtualThreads.isSupported()) {
+			assertNull(threadFactory);
+			return;
+		}
+		if(threadFactory != null) {
+			final Thread first = threadFactory.newThread(NOTHING);
+			final Thread second = threadFactory.newThread(NOTHING);
+			assertEquals("Service-1", first.getName());
+			assertEquals("Service-2", second.getName());
+			assertTrue(isVirtual(first));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+import gov.nist.javax.sip.stack.ConfirmedReplicationSipDialog;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.DialogState;
+import javax.sip.ListeningPoint;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.balancing.only.javax.sip.SipStackImpl;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationNotifier;
+import org.mobicents.ha.javax.sip.cache.NoCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Checks that a confirmed dialog replicated by this node is not checked against the distributed cache
+ * while this node holds its ownership lease, and is again once another node wrote it
+ */
+public class DialogOwnershipLeaseTest extends TestCase {
+	private static final String RESPONSE = "SIP/2.0 200 OK\r\n" +
+			"Via: SIP/2.0/UDP 127.0.0.1:5080;branch=z9hG4bK-lease\r\n" +
+			"From: <sip:alice@127.0.0.1>;tag=fromtag\r\n" +
+			"To: <sip:bob@127.0.0.1>;tag=totag\r\n" +
+			"Call-ID: callid\r\n" +
+			"CSeq: 1 INVITE\r\n" +
+			"Contact: <sip:bob@127.0.0.1:5095>\r\n" +
+			"Content-Length: 0\r\n\r\n";
+
+	/**
+	 * A distributed cache counting the checks of the local dialogs, instantiated by the stack from its class name
+	 */
+	public static class InvalidatingCache extends NoCache implements DialogInvalidationNotifier {
+		static final AtomicInteger updates = new AtomicInteger();
+		static DialogInvalidationListener listener;
+
+		@Override
+		public boolean inLocalMode() {
+			return false;
+		}
+
+		@Override
+		public void updateDialog(SIPDialog sipDialog) throws SipCacheException {
+			updates.incrementAndGet();
+		}
+
+		public void setDialogInvalidationListener(DialogInvalidationListener dialogInvalidationListener) {
+			listener = dialogInvalidationListener;
+		}
+	}
+
+	private ClusteredSipStackImpl sipStack;
+	private AbstractHASipDialog dialog;
+
+	@Override
+	protected void setUp() throws Exception {
+		InvalidatingCache.updates.set(0);
+		InvalidatingCache.listener = null;
+		final Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "DialogOwnershipLeaseTest");
+		properties.setProperty(ClusteredSipStack.CACHE_CLASS_NAME_PROPERTY, InvalidatingCache.class.getName());
+		properties.setProperty(ClusteredSipStack.NODE_ID, "node1");
+		properties.setProperty(ClusteredSipStack.DIALOG_OWNERSHIP_LEASE, "60000");
+		sipStack = new SipStackImpl(properties);
+		final ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 5095, ListeningPoint.UDP);
+		final SipProviderImpl sipProvider = (SipProviderImpl) sipStack.createSipProvider(listeningPoint);
+
+		final SIPResponse response = (SIPResponse) new MessageFactoryImpl().createResponse(RESPONSE);
+		dialog = new ConfirmedReplicationSipDialog(sipProvider, response);
+		dialog.setLastResponse(response);
+		dialog.setState(DialogState._CONFIRMED);
+		sipStack.putDialog(dialog);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sipStack.stop();
+	}
+
+	public void testLeaseSkipsCacheUntilInvalidated() throws Exception {
+		assertNotNull(InvalidatingCache.listener);
+		// not replicated yet, so not owned
+		assertFalse(dialog.isOwnershipLeaseHeld());
+		assertSame(dialog, sipStack.getDialog(dialog.getDialogId()));
+		assertEquals(1, InvalidatingCache.updates.get());
+
+		// the replication takes the lease
+		assertEquals("node1", dialog.getMetaDataToReplicate().get(AbstractHASipDialog.OWNER));
+		assertTrue(dialog.isOwnershipLeaseHeld());
+		assertSame(dialog, sipStack.getDialog(dialog.getDialogId()));
+		assertSame(dialog, sipStack.getDialog(dialog.getDialogId()));
+		assertEquals(1, InvalidatingCache.updates.get());
+
+		// another node wrote the dialog
+		InvalidatingCache.listener.dialogInvalidated(dialog.getDialogId());
+		assertFalse(dialog.isOwnershipLeaseHeld());
+		assertSame(dialog, sipStack.getDialog(dialog.getDialogId()));
+		assertEquals(2, InvalidatingCache.updates.get());
+	}
+
+	public void testLeasesReleasedOnViewChange() throws Exception {
+		dialog.getMetaDataToReplicate();
+		assertTrue(dialog.isOwnershipLeaseHeld());
+		InvalidatingCache.listener.allDialogsInvalidated();
+		assertFalse(dialog.isOwnershipLeaseHeld());
+	}
+}
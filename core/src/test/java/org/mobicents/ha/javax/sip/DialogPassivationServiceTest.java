@@ -0,0 +1,54 @@
+package org.mobicents.ha.javax.sip;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.DialogPassivationService.LeastRecentlyUsed;
+
+/**
+ * Checks the selection of the least recently used dialogs passivated when there are too many dialogs stored locally
+ */
+public class DialogPassivationServiceTest extends TestCase {
+
+	private static HASipDialog dialog(String dialogId, long lastAccessedTime) {
+		return Stubs.stub(HASipDialog.class, "getDialogIdToReplicate", dialogId, "getLastAccessedTime", Long.valueOf(lastAccessedTime));
+	}
+
+	private static Set<String> dialogIds(Collection<HASipDialog> dialogs) {
+		final Set<String> dialogIds = new HashSet<String>();
+		for (HASipDialog dialog : dialogs) {
+			dialogIds.add(dialog.getDialogIdToReplicate());
+		}
+		return dialogIds;
+	}
+
+	public void testLeastRecentlyUsedKept() throws Exception {
+		final LeastRecentlyUsed leastRecentlyUsed = new LeastRecentlyUsed(3);
+		final long[] lastAccessedTimes = {50, 10, 70, 30, 90, 20, 60};
+		for (int i = 0; i < lastAccessedTimes.length; i++) {
+			leastRecentlyUsed.offer(dialog("dialog-" + lastAccessedTimes[i], lastAccessedTimes[i]));
+		}
+		final Set<String> expected = new HashSet<String>();
+		expected.add("dialog-10");
+		expected.add("dialog-20");
+		expected.add("dialog-30");
+		assertEquals(expected, dialogIds(leastRecentlyUsed.getDialogs()));
+	}
+
+	public void testFewerDialogsThanExcess() throws Exception {
+		final LeastRecentlyUsed leastRecentlyUsed = new LeastRecentlyUsed(5);
+		leastRecentlyUsed.offer(dialog("dialog-a", 20));
+		leastRecentlyUsed.offer(dialog("dialog-b", 10));
+		assertEquals(2, leastRecentlyUsed.getDialogs().size());
+	}
+
+	public void testSameLastAccessedTimeNotReplaced() throws Exception {
+		final LeastRecentlyUsed leastRecentlyUsed = new LeastRecentlyUsed(1);
+		leastRecentlyUsed.offer(dialog("dialog-a", 10));
+		leastRecentlyUsed.offer(dialog("dialog-b", 10));
+		assertEquals("dialog-a", leastRecentlyUsed.getDialogs().iterator().next().getDialogIdToReplicate());
+	}
+}
@@ -0,0 +1,102 @@
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.balancing.only.javax.sip.SipStackImpl;
+import org.mobicents.ha.javax.sip.cache.NoCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Checks that the threads asking for a dialog while it is being recovered from the distributed cache
+ * wait for the ongoing recovery instead of reading the cache again
+ */
+public class DialogRecoverySingleFlightTest extends TestCase {
+	private static final String DIALOG_ID = "callid:fromtag:totag";
+	private static final int THREADS = 5;
+
+	/**
+	 * A distributed cache whose reads block until released, instantiated by the stack from its class name
+	 */
+	public static class BlockingCache extends NoCache {
+		static final AtomicInteger reads = new AtomicInteger();
+		static CountDownLatch release;
+
+		@Override
+		public boolean inLocalMode() {
+			return false;
+		}
+
+		@Override
+		public SIPDialog getDialog(String dialogId) throws SipCacheException {
+			reads.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+	}
+
+	private ClusteredSipStackImpl sipStack;
+
+	@Override
+	protected void setUp() throws Exception {
+		BlockingCache.reads.set(0);
+		BlockingCache.release = new CountDownLatch(1);
+		final Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "DialogRecoverySingleFlightTest");
+		properties.setProperty(ClusteredSipStack.CACHE_CLASS_NAME_PROPERTY, BlockingCache.class.getName());
+		sipStack = new SipStackImpl(properties);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		BlockingCache.release.countDown();
+		sipStack.stop();
+	}
+
+	public void testConcurrentLookupsReadTheCacheOnce() throws Exception {
+		final List<Thread> threads = new ArrayList<Thread>();
+		final AtomicInteger notFound = new AtomicInteger();
+		for (int i = 0; i < THREADS; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					if(sipStack.getDialog(DIALOG_ID) == null) {
+						notFound.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		// all the threads are either reading the cache or waiting for the read
+		for (Thread thread : threads) {
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(Thread.State.WAITING, thread.getState());
+		}
+		assertEquals(1, BlockingCache.reads.get());
+
+		BlockingCache.release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		assertEquals(THREADS, notFound.get());
+		assertEquals(1, BlockingCache.reads.get());
+
+		// the recovery is over, the next lookup reads the cache again
+		assertNull(sipStack.getDialog(DIALOG_ID));
+		assertEquals(2, BlockingCache.reads.get());
+	}
+}
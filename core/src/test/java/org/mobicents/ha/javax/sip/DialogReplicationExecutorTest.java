@@ -0,0 +1,102 @@
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the {@link DialogReplicationExecutor} writes the dialogs in order and never on the calling thread
+ */
+public class DialogReplicationExecutorTest extends TestCase {
+
+	/**
+	 * Dialog recording the calls made to it, the writes waiting for the gate to open
+	 */
+	private static class Dialog implements InvocationHandler {
+		final String dialogId;
+		final List<String> calls;
+		final CountDownLatch gate;
+
+		Dialog(String dialogId, List<String> calls, CountDownLatch gate) {
+			this.dialogId = dialogId;
+			this.calls = calls;
+			this.gate = gate;
+		}
+
+		HASipDialog proxy() {
+			return (HASipDialog) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HASipDialog.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("getDialogIdToReplicate".equals(method.getName())) {
+				return dialogId;
+			}
+			if("storePendingState".equals(method.getName())) {
+				gate.await();
+				calls.add(Thread.currentThread().getName() + " " + dialogId);
+				return Boolean.TRUE;
+			}
+			if("stateNotStored".equals(method.getName())) {
+				calls.add("not stored " + dialogId);
+			}
+			return null;
+		}
+	}
+
+	public void testWritesInOrderOffCallingThread() throws InterruptedException {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch gate = new CountDownLatch(1);
+		final DialogReplicationExecutor executor = new DialogReplicationExecutor(Stubs.stack(), 1, 10);
+		executor.replicate(new Dialog("dialog-a", calls, gate).proxy());
+		executor.replicate(new Dialog("dialog-b", calls, gate).proxy());
+		// the calling thread doesn't wait for the cache
+		assertTrue(calls.isEmpty());
+		gate.countDown();
+		executor.stop();
+		assertEquals(2, calls.size());
+		assertTrue(calls.get(0).endsWith("dialog-a"));
+		assertTrue(calls.get(1).endsWith("dialog-b"));
+		assertFalse(calls.get(0).startsWith(Thread.currentThread().getName() + " "));
+	}
+
+	public void testWriteRefusedOnceStopped() {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		final DialogReplicationExecutor executor = new DialogReplicationExecutor(Stubs.stack(), 1, 10);
+		executor.stop();
+		executor.replicate(new Dialog("dialog-a", calls, new CountDownLatch(0)).proxy());
+		// not written on the calling thread, the full state is written next time
+		assertEquals(Collections.singletonList("not stored dialog-a"), calls);
+	}
+
+	public void testWaitForRoom() throws InterruptedException {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch gate = new CountDownLatch(1);
+		final DialogReplicationExecutor executor = new DialogReplicationExecutor(Stubs.stack(), 1, 1);
+		final Dialog dialog = new Dialog("dialog-a", calls, gate);
+		// the first write is taken by the thread, the second one fills the queue
+		executor.replicate(dialog.proxy());
+		executor.replicate(dialog.proxy());
+		final Thread blocked = new Thread() {
+			public void run() {
+				executor.replicate(dialog.proxy());
+			}
+		};
+		blocked.start();
+		final long deadline = System.currentTimeMillis() + 1000;
+		while(executor.getBlockedSubmissions() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, executor.getBlockedSubmissions());
+		gate.countDown();
+		blocked.join(TimeUnit.SECONDS.toMillis(1));
+		executor.stop();
+		assertEquals(3, calls.size());
+	}
+}
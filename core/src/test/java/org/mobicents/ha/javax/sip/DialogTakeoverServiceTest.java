@@ -0,0 +1,175 @@
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.DialogOwnerIndex;
+import org.mobicents.ha.javax.sip.cache.SipCache;
+
+/**
+ * Checks that the {@link DialogTakeoverService} recovers the dialogs of a node through the stack
+ * with a bounded number of threads, once per takeover in progress, and never the dialogs of the local node
+ */
+public class DialogTakeoverServiceTest extends TestCase {
+
+	/**
+	 * Stack recovering the dialogs of the owner index of its cache, the recoveries blocking until released
+	 */
+	private static class Stack implements InvocationHandler {
+		final Set<String> dialogIds = new LinkedHashSet<String>();
+		final ConcurrentLinkedQueue<Object[]> lookups = new ConcurrentLinkedQueue<Object[]>();
+		final ConcurrentLinkedQueue<String> recoveries = new ConcurrentLinkedQueue<String>();
+		final AtomicInteger recovering = new AtomicInteger();
+		final AtomicInteger maxRecovering = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final ClusteredSipStackExt stack;
+
+		Stack(String... dialogIds) {
+			this(true, dialogIds);
+		}
+
+		Stack(boolean ownerIndex, String... dialogIds) {
+			this.dialogIds.addAll(Arrays.asList(dialogIds));
+			final Class<?>[] cacheTypes = ownerIndex ? new Class<?>[] {SipCache.class, DialogOwnerIndex.class} : new Class<?>[] {SipCache.class};
+			final SipCache cache = (SipCache) Proxy.newProxyInstance(getClass().getClassLoader(), cacheTypes, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if("getDialogIds".equals(method.getName())) {
+						lookups.add(args);
+						return Stack.this.dialogIds;
+					}
+					return null;
+				}
+			});
+			stack = Stubs.stack("getNodeId", "node1", "getSipCache", cache);
+		}
+
+		ClusteredSipStackExt proxy() {
+			return (ClusteredSipStackExt) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ClusteredSipStackExt.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("getDialog".equals(method.getName())) {
+				final int current = recovering.incrementAndGet();
+				int max = maxRecovering.get();
+				while (current > max && !maxRecovering.compareAndSet(max, current)) {
+					max = maxRecovering.get();
+				}
+				try {
+					release.await();
+				} finally {
+					recovering.decrementAndGet();
+				}
+				recoveries.add((String) args[0]);
+				return null;
+			}
+			return method.invoke(stack, args);
+		}
+
+		void awaitRecoveries(int count) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (recoveries.size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(count, recoveries.size());
+		}
+	}
+
+	private DialogTakeoverService takeoverService;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(takeoverService != null) {
+			takeoverService.stop();
+		}
+	}
+
+	public void testDialogsOfOwnerRecovered() throws Exception {
+		final Stack stack = new Stack("dialog-a", "dialog-b", "dialog-c");
+		stack.release.countDown();
+		takeoverService = new DialogTakeoverService(stack.proxy(), 2, 0);
+		takeoverService.takeOver("node2", true);
+		stack.awaitRecoveries(3);
+		assertEquals(stack.dialogIds, new LinkedHashSet<String>(stack.recoveries));
+		assertEquals(1, stack.lookups.size());
+		assertEquals("node2", stack.lookups.peek()[0]);
+		assertEquals(Boolean.TRUE, stack.lookups.peek()[1]);
+	}
+
+	public void testParallelismBounded() throws Exception {
+		final Stack stack = new Stack("dialog-a", "dialog-b", "dialog-c", "dialog-d", "dialog-e");
+		takeoverService = new DialogTakeoverService(stack.proxy(), 2, 0);
+		takeoverService.takeOver("node2", false);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (stack.recovering.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(2, stack.recovering.get());
+
+		stack.release.countDown();
+		stack.awaitRecoveries(5);
+		assertEquals(2, stack.maxRecovering.get());
+	}
+
+	public void testOngoingTakeoverNotRepeated() throws Exception {
+		final Stack stack = new Stack("dialog-a");
+		takeoverService = new DialogTakeoverService(stack.proxy(), 1, 0);
+		takeoverService.takeOver("node2", false);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (stack.recovering.get() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// requested again by another load balancer meanwhile
+		takeoverService.takeOver("node2", false);
+		stack.release.countDown();
+		stack.awaitRecoveries(1);
+		Thread.sleep(100);
+		assertEquals(1, stack.lookups.size());
+
+		// the takeover is over, the dialogs written since by the node are taken over as well
+		takeoverService.takeOver("node2", false);
+		stack.awaitRecoveries(2);
+		assertEquals(2, stack.lookups.size());
+	}
+
+	public void testOwnDialogsNotTakenOver() throws Exception {
+		final Stack stack = new Stack("dialog-a");
+		stack.release.countDown();
+		takeoverService = new DialogTakeoverService(stack.proxy(), 1, 0);
+		takeoverService.takeOver("node1", false);
+		takeoverService.takeOver(null, false);
+		Thread.sleep(100);
+		assertTrue(stack.lookups.isEmpty());
+		assertTrue(stack.recoveries.isEmpty());
+	}
+
+	public void testCacheWithoutOwnerIndex() throws Exception {
+		final Stack stack = new Stack(false, "dialog-a");
+		stack.release.countDown();
+		takeoverService = new DialogTakeoverService(stack.proxy(), 1, 0);
+		takeoverService.takeOver("node2", false);
+		Thread.sleep(100);
+		assertTrue(stack.recoveries.isEmpty());
+	}
+
+	public void testMaxRate() throws Exception {
+		final Stack stack = new Stack("dialog-a", "dialog-b", "dialog-c", "dialog-d", "dialog-e");
+		stack.release.countDown();
+		takeoverService = new DialogTakeoverService(stack.proxy(), 5, 20);
+		final long start = System.nanoTime();
+		takeoverService.takeOver("node2", false);
+		stack.awaitRecoveries(5);
+		// the fifth dialog is recovered 4 intervals of 50ms after the first one
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+	}
+}
@@ -0,0 +1,146 @@
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Checks that the {@link DialogWriteBehindQueue} retries the writes failed by the cache and never blocks the calling thread
+ */
+public class DialogWriteBehindQueueTest extends TestCase {
+
+	private static final long TIMEOUT = 2000;
+
+	/**
+	 * Dialog whose first writes fail
+	 */
+	private static class Dialog implements InvocationHandler {
+		final String dialogId;
+		final AtomicInteger failures;
+		final AtomicInteger writes = new AtomicInteger();
+		volatile Thread writingThread;
+
+		Dialog(String dialogId, int failures) {
+			this.dialogId = dialogId;
+			this.failures = new AtomicInteger(failures);
+		}
+
+		HASipDialog proxy() {
+			return (HASipDialog) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HASipDialog.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("getDialogIdToReplicate".equals(method.getName())) {
+				return dialogId;
+			}
+			if("hasPendingState".equals(method.getName())) {
+				return Boolean.TRUE;
+			}
+			if("storePendingState".equals(method.getName())) {
+				writes.incrementAndGet();
+				writingThread = Thread.currentThread();
+				return Boolean.valueOf(failures.getAndDecrement() <= 0);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Cache whose first removals fail
+	 */
+	private static class Cache implements InvocationHandler {
+		final AtomicInteger failures;
+		final AtomicInteger removals = new AtomicInteger();
+
+		Cache(int failures) {
+			this.failures = new AtomicInteger(failures);
+		}
+
+		SipCache proxy() {
+			return (SipCache) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SipCache.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("removeDialog".equals(method.getName())) {
+				removals.incrementAndGet();
+				if(failures.getAndDecrement() > 0) {
+					throw new SipCacheException("cache unavailable");
+				}
+			}
+			return null;
+		}
+	}
+
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(counter.get() < value && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(value, counter.get());
+	}
+
+	public void testFailedWriteIsRetried() throws InterruptedException {
+		final DialogWriteBehindQueue queue = new DialogWriteBehindQueue(Stubs.stack("getSipCache", new Cache(0).proxy()), 1, 10, 10, 10);
+		queue.start();
+		try {
+			final Dialog dialog = new Dialog("dialog-a", 1);
+			queue.put(dialog.proxy());
+			waitFor(dialog.writes, 2);
+			assertEquals(1, queue.getRetriedWrites());
+			assertEquals(0, queue.getRejectedWrites());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	public void testFailedRemovalIsRetried() throws InterruptedException {
+		final Cache cache = new Cache(1);
+		final DialogWriteBehindQueue queue = new DialogWriteBehindQueue(Stubs.stack("getSipCache", cache.proxy()), 1, 10, 10, 10);
+		queue.start();
+		try {
+			queue.remove("dialog-a");
+			waitFor(cache.removals, 2);
+			assertEquals(1, queue.getRetriedWrites());
+		} finally {
+			queue.stop();
+		}
+	}
+
+	public void testFullQueueRejectsWrites() {
+		// the writer is not started so that the writes stay pending, one pending write per writer at most
+		final DialogWriteBehindQueue queue = new DialogWriteBehindQueue(Stubs.stack("getSipCache", new Cache(0).proxy()), 1, 10, 10, 1);
+		final Dialog dialogA = new Dialog("dialog-a", 0);
+		final Dialog dialogB = new Dialog("dialog-b", 0);
+		queue.put(dialogA.proxy());
+		queue.put(dialogB.proxy());
+		assertEquals(1, queue.getRejectedWrites());
+		// the writes of a pending dialog are always coalesced
+		queue.put(dialogA.proxy());
+		assertEquals(1, queue.getCoalescedWrites());
+		assertEquals(1, queue.getRejectedWrites());
+		// the removals are accepted up to twice the capacity
+		queue.remove("dialog-c");
+		assertEquals(2, queue.getPendingWrites());
+		queue.remove("dialog-d");
+		assertEquals(2, queue.getRejectedWrites());
+		// nothing was written by the calling thread
+		assertEquals(0, dialogA.writes.get());
+		assertEquals(0, dialogB.writes.get());
+	}
+
+	public void testWriteAfterStop() {
+		final DialogWriteBehindQueue queue = new DialogWriteBehindQueue(Stubs.stack("getSipCache", new Cache(0).proxy()), 1, 10, 10, 10);
+		queue.start();
+		queue.stop();
+		final Dialog dialog = new Dialog("dialog-a", 0);
+		queue.put(dialog.proxy());
+		assertEquals(1, dialog.writes.get());
+		assertSame(Thread.currentThread(), dialog.writingThread);
+	}
+}
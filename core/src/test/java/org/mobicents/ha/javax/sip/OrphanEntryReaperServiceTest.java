@@ -0,0 +1,108 @@
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.EntryType;
+import org.mobicents.ha.javax.sip.cache.SipCache;
+
+/**
+ * Checks that the {@link OrphanEntryReaperService} only removes the entries seen orphan on two passes with the same version,
+ * and only counts the entries the cache actually removed
+ */
+public class OrphanEntryReaperServiceTest extends TestCase {
+
+	/**
+	 * Cache reporting a dialog as orphan on each pass, and removing it only if told to
+	 */
+	private static class Cache implements InvocationHandler {
+		final Set<String> nodeIds = Collections.singleton("node1");
+		final List<Object[]> removals = new ArrayList<Object[]>();
+		volatile boolean stillOrphan = true;
+		volatile EntryType type = EntryType.DIALOG;
+		volatile long version = 3;
+
+		SipCache proxy() {
+			return (SipCache) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SipCache.class, OrphanEntryScanner.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("getNodeIds".equals(method.getName())) {
+				return nodeIds;
+			}
+			if("scan".equals(method.getName())) {
+				((OrphanEntryScanner.Visitor) args[2]).orphanCandidate(type, "dialog-a", version);
+				return Boolean.FALSE;
+			}
+			if("removeOrphan".equals(method.getName())) {
+				removals.add(args);
+				return Boolean.valueOf(stillOrphan);
+			}
+			return null;
+		}
+	}
+
+	public void testRemoval() {
+		final Cache cache = new Cache();
+		final OrphanEntryReaperService reaper = new OrphanEntryReaperService(Stubs.stack("getSipCache", cache.proxy()), 60000, 0, 10, 0);
+		reaper.run();
+		// only seen orphan once
+		assertTrue(cache.removals.isEmpty());
+		assertEquals(1, reaper.getOrphanCandidates());
+		reaper.run();
+		assertEquals(1, cache.removals.size());
+		final Object[] removal = cache.removals.get(0);
+		assertEquals(EntryType.DIALOG, removal[0]);
+		assertEquals("dialog-a", removal[1]);
+		// the cache checks again the version and the owner against the current members
+		assertEquals(Long.valueOf(3), removal[2]);
+		assertEquals(cache.nodeIds, removal[3]);
+		assertEquals(1, reaper.getReapedEntries(EntryType.DIALOG));
+		assertEquals(0, reaper.getOrphanCandidates());
+	}
+
+	public void testDialogNotOrphanAnymore() {
+		final Cache cache = new Cache();
+		// the dialog was taken over between the scan and the removal
+		cache.stillOrphan = false;
+		final OrphanEntryReaperService reaper = new OrphanEntryReaperService(Stubs.stack("getSipCache", cache.proxy()), 60000, 0, 10, 0);
+		reaper.run();
+		reaper.run();
+		assertEquals(1, cache.removals.size());
+		assertEquals(0, reaper.getReapedEntries());
+	}
+
+	public void testGraceTime() {
+		final Cache cache = new Cache();
+		final OrphanEntryReaperService reaper = new OrphanEntryReaperService(Stubs.stack("getSipCache", cache.proxy()), 60000, 60000, 10, 0);
+		reaper.run();
+		reaper.run();
+		assertTrue(cache.removals.isEmpty());
+		assertEquals(1, reaper.getOrphanCandidates());
+	}
+
+	public void testTransactionInUseKept() {
+		final Cache cache = new Cache();
+		cache.type = EntryType.SERVER_TRANSACTION;
+		final OrphanEntryReaperService reaper = new OrphanEntryReaperService(Stubs.stack("getSipCache", cache.proxy()), 60000, 0, 10, 0);
+		for (int pass = 0; pass < 3; pass++) {
+			// the meta data of the transaction changes along its state
+			cache.version++;
+			reaper.run();
+		}
+		assertTrue(cache.removals.isEmpty());
+
+		reaper.run();
+		assertEquals(1, cache.removals.size());
+		assertEquals(Long.valueOf(cache.version), cache.removals.get(0)[2]);
+		assertEquals(1, reaper.getReapedEntries(EntryType.SERVER_TRANSACTION));
+	}
+}
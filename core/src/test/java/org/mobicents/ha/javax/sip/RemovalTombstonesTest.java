@@ -0,0 +1,27 @@
+package org.mobicents.ha.javax.sip;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the lifecycle of the {@link RemovalTombstones}
+ */
+public class RemovalTombstonesTest extends TestCase {
+
+	public void testRemovalSentOnce() {
+		final RemovalTombstones tombstones = new RemovalTombstones(60000);
+		assertFalse(tombstones.contains("tx-a"));
+		assertTrue(tombstones.add("tx-a"));
+		assertTrue(tombstones.contains("tx-a"));
+		assertFalse(tombstones.add("tx-a"));
+		assertFalse(tombstones.contains("tx-b"));
+	}
+
+	public void testExpiry() throws InterruptedException {
+		final RemovalTombstones tombstones = new RemovalTombstones(50);
+		assertTrue(tombstones.add("tx-a"));
+		Thread.sleep(100);
+		assertFalse(tombstones.contains("tx-a"));
+		assertEquals(0, tombstones.size());
+		assertTrue(tombstones.add("tx-a"));
+	}
+}
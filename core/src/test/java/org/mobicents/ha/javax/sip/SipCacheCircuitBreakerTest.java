@@ -0,0 +1,193 @@
+package org.mobicents.ha.javax.sip;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.SipCache;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Checks that the {@link SipCacheCircuitBreaker} degrades HA when the cache fails and writes the queued dialogs once it is back
+ */
+public class SipCacheCircuitBreakerTest extends TestCase {
+
+	private static final long TIMEOUT = 2000;
+
+	/**
+	 * Cache failing or stalling on demand, the dialogs written by the {@link Dialog}s are kept with their version
+	 */
+	private static class Cache implements InvocationHandler {
+		volatile boolean down;
+		volatile long stall;
+		final Map<String, Long> versions = new ConcurrentHashMap<String, Long>();
+		final Set<String> removals = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger calls = new AtomicInteger();
+
+		SipCache proxy() {
+			return (SipCache) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SipCache.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			calls.incrementAndGet();
+			if(stall > 0) {
+				Thread.sleep(stall);
+			}
+			if(down) {
+				throw new SipCacheException("cache unavailable");
+			}
+			if("removeDialog".equals(method.getName())) {
+				removals.add((String) args[0]);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Dialog only writing itself when it wasn't stored, like the full state written after {@link HASipDialog#stateNotStored()}
+	 */
+	private static class Dialog implements InvocationHandler {
+		final String dialogId;
+		final Cache cache;
+		volatile long version;
+		volatile boolean notStored;
+
+		Dialog(String dialogId, Cache cache) {
+			this.dialogId = dialogId;
+			this.cache = cache;
+		}
+
+		HASipDialog proxy() {
+			return (HASipDialog) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HASipDialog.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("stateNotStored".equals(method.getName())) {
+				notStored = true;
+			} else if("hasPendingState".equals(method.getName())) {
+				return Boolean.valueOf(notStored);
+			} else if("storePendingState".equals(method.getName())) {
+				if(notStored) {
+					cache.versions.put(dialogId, Long.valueOf(version));
+					notStored = false;
+				}
+				return Boolean.TRUE;
+			}
+			return null;
+		}
+	}
+
+	private Cache cache;
+	private SipCacheCircuitBreaker breaker;
+
+	@Override
+	protected void setUp() throws Exception {
+		cache = new Cache();
+		breaker = new SipCacheCircuitBreaker(Stubs.stack("getSipCache", cache.proxy()), 200, 2, 20, 2, 10);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		breaker.stop();
+	}
+
+	private void degrade() {
+		for (int i = 0; i < 2; i++) {
+			try {
+				breaker.getDialog("dialog");
+				fail("the cache is down");
+			} catch (SipCacheException e) {
+				// expected
+			}
+		}
+		assertTrue(breaker.isOpen());
+	}
+
+	private void waitForRecovery() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while((breaker.isOpen() || breaker.getPendingDialogs() > 0) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(breaker.isOpen());
+		assertEquals(0, breaker.getPendingDialogs());
+	}
+
+	public void testDegradation() throws SipCacheException {
+		breaker.stop();
+		// no probe during the test
+		breaker = new SipCacheCircuitBreaker(Stubs.stack("getSipCache", cache.proxy()), 200, 2, 60000, 2, 10);
+		cache.down = true;
+		try {
+			breaker.getDialog("dialog");
+			fail("the cache is down");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		assertFalse(breaker.isOpen());
+		degrade();
+		assertEquals(1, breaker.getDegradations());
+		assertEquals(2, breaker.getFailedOperations());
+		// the cache isn't called anymore
+		assertEquals(2, cache.calls.get());
+		try {
+			breaker.getDialog("dialog");
+			fail("HA is degraded");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		assertEquals(2, cache.calls.get());
+	}
+
+	public void testTimeout() {
+		cache.stall = 1000;
+		degrade();
+		assertEquals(2, breaker.getTimedOutOperations());
+	}
+
+	public void testRecoveryWritesQueuedDialogs() throws Exception {
+		final Dialog dialog = new Dialog("dialog-a", cache);
+		dialog.version = 1;
+		cache.down = true;
+		degrade();
+
+		// the dialog changes while HA is degraded, its changes were encoded and can't be written
+		dialog.version = 2;
+		assertFalse(breaker.queueDialog(dialog.dialogId, dialog.proxy()));
+		breaker.queueDialogRemoval("dialog-b");
+		assertEquals(2, breaker.getPendingDialogs());
+		assertTrue(cache.versions.isEmpty());
+
+		cache.down = false;
+		waitForRecovery();
+		assertEquals(Long.valueOf(2), cache.versions.get("dialog-a"));
+		assertTrue(cache.removals.contains("dialog-b"));
+	}
+
+	public void testDroppedDialogs() throws Exception {
+		cache.down = true;
+		degrade();
+		final Dialog dialogA = new Dialog("dialog-a", cache);
+		final Dialog dialogB = new Dialog("dialog-b", cache);
+		final Dialog dialogC = new Dialog("dialog-c", cache);
+		breaker.queueDialog(dialogA.dialogId, dialogA.proxy());
+		breaker.queueDialog(dialogB.dialogId, dialogB.proxy());
+		breaker.queueDialog(dialogC.dialogId, dialogC.proxy());
+		assertEquals(2, breaker.getPendingDialogs());
+		assertEquals(1, breaker.getDroppedDialogs());
+		// the dropped dialog still writes its full state with its next write
+		assertTrue(dialogC.notStored);
+
+		cache.down = false;
+		waitForRecovery();
+		assertEquals(2, cache.versions.size());
+		assertFalse(cache.versions.containsKey("dialog-c"));
+	}
+}
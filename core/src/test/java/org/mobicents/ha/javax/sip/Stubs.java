@@ -0,0 +1,70 @@
+package org.mobicents.ha.javax.sip;
+
+import gov.nist.core.StackLogger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dynamic stubs of the stack interfaces for the unit tests of the services used by the stack,
+ * the methods not given a value return null, false or 0
+ */
+public class Stubs implements InvocationHandler {
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	/**
+	 * @param values pairs of method name and value returned by the method
+	 * @return a stack returning the values passed in param and a logger not logging anything
+	 */
+	public static ClusteredSipStackExt stack(Object... values) {
+		final Stubs stubs = new Stubs(values);
+		if(!stubs.values.containsKey("getStackLogger")) {
+			stubs.values.put("getStackLogger", stub(StackLogger.class));
+		}
+		return stub(ClusteredSipStackExt.class, stubs);
+	}
+
+	public static <T> T stub(Class<T> type, Object... values) {
+		return stub(type, new Stubs(values));
+	}
+
+	private static <T> T stub(Class<T> type, Stubs stubs) {
+		return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, stubs));
+	}
+
+	private Stubs(Object... values) {
+		for (int i = 0; i < values.length; i += 2) {
+			this.values.put((String) values[i], values[i + 1]);
+		}
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if(method.getDeclaringClass() == Object.class) {
+			if("equals".equals(method.getName())) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			if("hashCode".equals(method.getName())) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			return "stub " + method.getDeclaringClass().getSimpleName();
+		}
+		if(values.containsKey(method.getName())) {
+			return values.get(method.getName());
+		}
+		final Class<?> returnType = method.getReturnType();
+		if(returnType == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if(returnType == int.class) {
+			return Integer.valueOf(0);
+		}
+		if(returnType == long.class) {
+			return Long.valueOf(0);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,103 @@
+package org.mobicents.ha.javax.sip.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.Stubs;
+
+/**
+ * Checks that the {@link BlockingAsyncSipCache} runs the operations off the calling thread, in order for a same id
+ */
+public class BlockingAsyncSipCacheTest extends TestCase {
+
+	/**
+	 * Cache recording the removed dialogs, the removal of dialog-a waiting for the gate to open and the one of dialog-b failing,
+	 * both dialogs being run by different stripes with 2 threads
+	 */
+	private static class Cache implements InvocationHandler {
+		final List<String> removals = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		SipCache proxy() {
+			return (SipCache) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SipCache.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if("removeDialog".equals(method.getName())) {
+				if("dialog-a".equals(args[0])) {
+					gate.await();
+				}
+				if("dialog-b".equals(args[0])) {
+					throw new SipCacheException("failing");
+				}
+				removals.add(Thread.currentThread().getName() + " " + args[0]);
+			}
+			return null;
+		}
+	}
+
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	public void testCallingThread() throws Exception {
+		final Cache cache = new Cache();
+		final BlockingAsyncSipCache asyncSipCache = new BlockingAsyncSipCache(Stubs.stack(), cache.proxy());
+		final Future<Void> removal = asyncSipCache.removeDialogAsync("dialog-c");
+		assertTrue(removal.isDone());
+		assertEquals(Thread.currentThread().getName() + " dialog-c", cache.removals.get(0));
+	}
+
+	public void testOperationsOfSameIdInOrder() throws Exception {
+		final Cache cache = new Cache();
+		final BlockingAsyncSipCache asyncSipCache = new BlockingAsyncSipCache(Stubs.stack(), cache.proxy(), 2, DAEMON_THREADS);
+		final Future<Void> blocked = asyncSipCache.removeDialogAsync("dialog-a");
+		final Future<Void> failing = asyncSipCache.removeDialogAsync("dialog-b");
+		final Future<Void> blockedAgain = asyncSipCache.removeDialogAsync("dialog-a");
+		// the calling thread doesn't wait for the cache
+		assertFalse(blocked.isDone());
+		assertFalse(blockedAgain.isDone());
+		try {
+			failing.get(1, TimeUnit.SECONDS);
+			fail("the failure of the operation is given by its future");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SipCacheException);
+		}
+		cache.gate.countDown();
+		blockedAgain.get(1, TimeUnit.SECONDS);
+		assertTrue(blocked.isDone());
+		assertEquals(2, cache.removals.size());
+		// both run by the stripe of their id
+		assertEquals(cache.removals.get(0), cache.removals.get(1));
+		asyncSipCache.stop();
+	}
+
+	public void testStopped() throws Exception {
+		final Cache cache = new Cache();
+		final BlockingAsyncSipCache asyncSipCache = new BlockingAsyncSipCache(Stubs.stack(), cache.proxy(), 1, DAEMON_THREADS);
+		asyncSipCache.removeDialogAsync("dialog-c").get(1, TimeUnit.SECONDS);
+		asyncSipCache.stop();
+		try {
+			asyncSipCache.removeDialogAsync("dialog-d").get();
+			fail("the operations are refused once stopped");
+		} catch (ExecutionException e) {
+			// expected
+		}
+		assertEquals(1, cache.removals.size());
+	}
+}
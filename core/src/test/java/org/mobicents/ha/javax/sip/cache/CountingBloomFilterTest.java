@@ -0,0 +1,60 @@
+package org.mobicents.ha.javax.sip.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the {@link CountingBloomFilter} has no false negatives and a bounded rate of false positives
+ */
+public class CountingBloomFilterTest extends TestCase {
+
+	public void testNoFalseNegatives() {
+		final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("dialog-" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("dialog-" + i));
+		}
+	}
+
+	public void testFalsePositiveRate() {
+		final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("dialog-" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if(filter.mightContain("unknown-" + i)) {
+				falsePositives++;
+			}
+		}
+		// a few times the wanted probability leaves room for the hash functions not being ideal
+		assertTrue(falsePositives + " false positives", falsePositives < 500);
+	}
+
+	public void testRemoval() {
+		final CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		filter.add("dialog-a");
+		filter.add("dialog-b");
+		filter.add("dialog-b");
+		filter.remove("dialog-a");
+		filter.remove("dialog-b");
+		assertFalse(filter.mightContain("dialog-a"));
+		// added twice, still held once
+		assertTrue(filter.mightContain("dialog-b"));
+		filter.clear();
+		assertFalse(filter.mightContain("dialog-b"));
+	}
+
+	public void testSaturatedCounterNeverDecremented() {
+		final CountingBloomFilter filter = new CountingBloomFilter(1, 0.5);
+		for (int i = 0; i < 300; i++) {
+			filter.add("dialog-a");
+		}
+		for (int i = 0; i < 300; i++) {
+			filter.remove("dialog-a");
+		}
+		// the count was lost when the counters saturated, the filter keeps answering true rather than risking a false negative
+		assertTrue(filter.mightContain("dialog-a"));
+	}
+}
@@ -0,0 +1,50 @@
+package org.mobicents.ha.javax.sip.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks which lookups of dialogs are skipped by the {@link DialogLookupFilter}
+ */
+public class DialogLookupFilterTest extends TestCase {
+
+	public void testBloomFilterOnlyUsedOnceLoaded() {
+		final DialogLookupFilter filter = new DialogLookupFilter(1000, 60000, 0, 0);
+		assertTrue(filter.mightExist("dialog-a"));
+		filter.dialogKeyAdded("dialog-b");
+		filter.dialogKeysLoaded();
+		assertTrue(filter.isBloomFilterLoaded());
+		assertFalse(filter.mightExist("dialog-a"));
+		assertTrue(filter.mightExist("dialog-b"));
+		filter.dialogKeyRemoved("dialog-b");
+		assertFalse(filter.mightExist("dialog-b"));
+	}
+
+	public void testBloomFilterBypassedAfterFailover() throws InterruptedException {
+		final DialogLookupFilter filter = new DialogLookupFilter(1000, 50, 0, 0);
+		filter.dialogKeysLoaded();
+		assertFalse(filter.mightExist("dialog-a"));
+		// the addition of the dialogs of the failed node may not have been notified yet
+		filter.failover();
+		assertTrue(filter.mightExist("dialog-a"));
+		Thread.sleep(100);
+		assertFalse(filter.mightExist("dialog-a"));
+	}
+
+	public void testNegativeCache() {
+		final DialogLookupFilter filter = new DialogLookupFilter(0, 0, 100, 60000);
+		filter.notFound("dialog-a", filter.getAdditionCount());
+		assertFalse(filter.mightExist("dialog-a"));
+		assertTrue(filter.mightExist("dialog-b"));
+		filter.invalidate("dialog-a");
+		assertTrue(filter.mightExist("dialog-a"));
+	}
+
+	public void testAdditionDuringLookup() {
+		final DialogLookupFilter filter = new DialogLookupFilter(0, 0, 100, 60000);
+		final long additionCount = filter.getAdditionCount();
+		// another node wrote the dialog while this one was looking it up
+		filter.invalidate("dialog-a");
+		filter.notFound("dialog-a", additionCount);
+		assertTrue(filter.mightExist("dialog-a"));
+	}
+}
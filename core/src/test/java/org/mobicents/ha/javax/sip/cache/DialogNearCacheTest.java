@@ -0,0 +1,81 @@
+package org.mobicents.ha.javax.sip.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the versions recorded by the {@link DialogNearCache} and their invalidation
+ */
+public class DialogNearCacheTest extends TestCase {
+
+	private DialogNearCache nearCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		nearCache = new DialogNearCache(100, 0);
+	}
+
+	public void testPut() {
+		assertFalse(nearCache.isCurrent("dialog-a", 1));
+		nearCache.put("dialog-a", 2, nearCache.getInvalidationCount("dialog-a"));
+		assertFalse(nearCache.isCurrent("dialog-a", 1));
+		assertTrue(nearCache.isCurrent("dialog-a", 2));
+		assertTrue(nearCache.isCurrent("dialog-a", 3));
+		nearCache.remove("dialog-a");
+		assertFalse(nearCache.isCurrent("dialog-a", 2));
+	}
+
+	public void testInvalidationDuringOperation() {
+		final long invalidationCount = nearCache.getInvalidationCount("dialog-a");
+		// another node wrote the dialog while this one was reading or writing it
+		nearCache.dialogInvalidated("dialog-a");
+		nearCache.put("dialog-a", 2, invalidationCount);
+		assertFalse(nearCache.isCurrent("dialog-a", 2));
+	}
+
+	public void testInvalidationOfOtherDialogDuringOperation() {
+		final long invalidationCount = nearCache.getInvalidationCount("dialog-a");
+		// "dialog-b" doesn't share its stamp with "dialog-a", their hash codes only differ by one
+		nearCache.dialogInvalidated("dialog-b");
+		nearCache.put("dialog-a", 2, invalidationCount);
+		assertTrue(nearCache.isCurrent("dialog-a", 2));
+	}
+
+	public void testInvalidation() {
+		nearCache.put("dialog-a", 2, nearCache.getInvalidationCount("dialog-a"));
+		nearCache.put("dialog-b", 2, nearCache.getInvalidationCount("dialog-b"));
+		nearCache.dialogInvalidated("dialog-a");
+		assertFalse(nearCache.isCurrent("dialog-a", 2));
+		assertTrue(nearCache.isCurrent("dialog-b", 2));
+	}
+
+	public void testAllDialogsInvalidated() {
+		nearCache.put("dialog-a", 2, nearCache.getInvalidationCount("dialog-a"));
+		final long invalidationCount = nearCache.getInvalidationCount("dialog-b");
+		nearCache.allDialogsInvalidated();
+		assertFalse(nearCache.isCurrent("dialog-a", 2));
+		assertEquals(0, nearCache.size());
+		nearCache.put("dialog-b", 2, invalidationCount);
+		assertFalse(nearCache.isCurrent("dialog-b", 2));
+	}
+
+	public void testMaxSize() {
+		nearCache = new DialogNearCache(2, 0);
+		nearCache.put("dialog-a", 1, nearCache.getInvalidationCount("dialog-a"));
+		nearCache.put("dialog-b", 1, nearCache.getInvalidationCount("dialog-b"));
+		// the least recently used dialog is dropped first
+		assertTrue(nearCache.isCurrent("dialog-a", 1));
+		nearCache.put("dialog-c", 1, nearCache.getInvalidationCount("dialog-c"));
+		assertEquals(2, nearCache.size());
+		assertTrue(nearCache.isCurrent("dialog-a", 1));
+		assertFalse(nearCache.isCurrent("dialog-b", 1));
+		assertTrue(nearCache.isCurrent("dialog-c", 1));
+	}
+
+	public void testTimeToLive() throws InterruptedException {
+		nearCache = new DialogNearCache(100, 50);
+		nearCache.put("dialog-a", 1, nearCache.getInvalidationCount("dialog-a"));
+		assertTrue(nearCache.isCurrent("dialog-a", 1));
+		Thread.sleep(100);
+		assertFalse(nearCache.isCurrent("dialog-a", 1));
+	}
+}
@@ -0,0 +1,172 @@
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the encoding of the dialog meta data replicated by the dialogs, see {@link DialogStateCodec}
+ */
+public class DialogStateCodecTest extends TestCase {
+
+	private static Map<String, Object> fullState() {
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		metaData.put(AbstractHASipDialog.VERSION, Long.valueOf(3));
+		metaData.put(AbstractHASipDialog.DIALOG_STATE, Integer.valueOf(1));
+		metaData.put(AbstractHASipDialog.DIALOG_METHOD, "INVITE");
+		metaData.put(AbstractHASipDialog.LAST_RESPONSE, "SIP/2.0 200 OK\r\n\r\n");
+		metaData.put(AbstractHASipDialog.LAST_RESPONSE_FINGERPRINT, Long.valueOf(-7046029254386353131L));
+		metaData.put(AbstractHASipDialog.IS_REINVITE, Boolean.FALSE);
+		metaData.put(AbstractHASipDialog.ROUTE_LIST, new String[] {"<sip:proxy1;lr>", "<sip:proxy2;lr>"});
+		metaData.put(AbstractHASipDialog.B2BUA, Boolean.TRUE);
+		metaData.put(AbstractHASipDialog.REMOTE_TAG, "remote");
+		metaData.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		metaData.put(AbstractHASipDialog.REMOTE_CSEQ, Long.valueOf(1));
+		metaData.put(AbstractHASipDialog.LOCAL_CSEQ, Long.valueOf(-1));
+		metaData.put(AbstractHASipDialog.OWNER, "node1");
+		return metaData;
+	}
+
+	public void testRoundTrip() throws Exception {
+		final Map<String, Object> metaData = fullState();
+		final byte[] encoded = DialogStateCodec.encode(metaData);
+		assertTrue(DialogStateCodec.isFullState(encoded));
+
+		final Map<String, Object> decoded = DialogStateCodec.decode(encoded);
+		assertEquals(metaData.size(), decoded.size());
+		for (Map.Entry<String, Object> field : metaData.entrySet()) {
+			if(field.getValue() instanceof String[]) {
+				assertTrue(field.getKey(), Arrays.equals((String[]) field.getValue(), (String[]) decoded.get(field.getKey())));
+			} else {
+				assertEquals(field.getKey(), field.getValue(), decoded.get(field.getKey()));
+			}
+		}
+	}
+
+	public void testNullFields() throws Exception {
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		metaData.put(AbstractHASipDialog.VERSION, Long.valueOf(1));
+		metaData.put(AbstractHASipDialog.REMOTE_TARGET, null);
+		metaData.put(AbstractHASipDialog.ROUTE_LIST, null);
+		final Map<String, Object> decoded = DialogStateCodec.decode(DialogStateCodec.encode(metaData));
+		assertTrue(decoded.containsKey(AbstractHASipDialog.REMOTE_TARGET));
+		assertNull(decoded.get(AbstractHASipDialog.REMOTE_TARGET));
+		assertTrue(decoded.containsKey(AbstractHASipDialog.ROUTE_LIST));
+		assertNull(decoded.get(AbstractHASipDialog.ROUTE_LIST));
+	}
+
+	public void testMergeDeltaIntoFullState() throws Exception {
+		final byte[] cached = DialogStateCodec.encode(fullState());
+
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.putLong(AbstractHASipDialog.VERSION, 4);
+		codec.putLong(AbstractHASipDialog.LOCAL_CSEQ, 2);
+		codec.putBoolean(AbstractHASipDialog.B2BUA, false);
+		final byte[] delta = codec.toByteArray();
+		assertFalse(DialogStateCodec.isFullState(delta));
+
+		final byte[] merged = DialogStateCodec.merge(cached, delta);
+		assertTrue(DialogStateCodec.isFullState(merged));
+		final Map<String, Object> decoded = DialogStateCodec.decode(merged);
+		assertEquals(Long.valueOf(4), decoded.get(AbstractHASipDialog.VERSION));
+		assertEquals(Long.valueOf(2), decoded.get(AbstractHASipDialog.LOCAL_CSEQ));
+		assertEquals(Boolean.FALSE, decoded.get(AbstractHASipDialog.B2BUA));
+		// the fields absent from the delta are kept
+		assertEquals("remote", decoded.get(AbstractHASipDialog.REMOTE_TAG));
+		assertEquals(Long.valueOf(1), decoded.get(AbstractHASipDialog.REMOTE_CSEQ));
+		assertEquals(Boolean.FALSE, decoded.get(AbstractHASipDialog.IS_REINVITE));
+	}
+
+	public void testMergeDeltas() throws Exception {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.putLong(AbstractHASipDialog.VERSION, 4);
+		codec.put(AbstractHASipDialog.REMOTE_TAG, "remote");
+		final byte[] older = codec.toByteArray();
+		codec.reset();
+		codec.putLong(AbstractHASipDialog.VERSION, 5);
+		codec.putLong(AbstractHASipDialog.LOCAL_CSEQ, 3);
+		final byte[] newer = codec.toByteArray();
+
+		final byte[] merged = DialogStateCodec.merge(older, newer);
+		assertFalse(DialogStateCodec.isFullState(merged));
+		assertEquals(5, DialogStateCodec.readVersion(merged));
+		final Map<String, Object> decoded = DialogStateCodec.decode(merged);
+		assertEquals(3, decoded.size());
+		assertEquals("remote", decoded.get(AbstractHASipDialog.REMOTE_TAG));
+		assertEquals(Long.valueOf(3), decoded.get(AbstractHASipDialog.LOCAL_CSEQ));
+	}
+
+	public void testReadVersion() throws Exception {
+		assertEquals(3, DialogStateCodec.readVersion(DialogStateCodec.encode(fullState())));
+
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		assertEquals(-1, DialogStateCodec.readVersion(codec.toByteArray()));
+
+		codec.reset();
+		codec.putLong(AbstractHASipDialog.VERSION, Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, DialogStateCodec.readVersion(codec.toByteArray()));
+	}
+
+	public void testReadStoredVersion() throws Exception {
+		final Map<String, Object> metaData = fullState();
+		assertEquals(3, DialogStateCodec.readStoredVersion(metaData));
+		assertEquals(3, DialogStateCodec.readStoredVersion(DialogStateCodec.encode(metaData)));
+		assertEquals(-1, DialogStateCodec.readStoredVersion(null));
+	}
+
+	public void testReadStoredOwner() throws Exception {
+		final Map<String, Object> metaData = fullState();
+		assertEquals("node1", DialogStateCodec.readStoredOwner(metaData));
+		assertEquals("node1", DialogStateCodec.readStoredOwner(DialogStateCodec.encode(metaData)));
+		assertEquals("node1", DialogStateCodec.readStoredOwner(new DialogCacheEntry(DialogStateCodec.encode(metaData), null)));
+		metaData.remove(AbstractHASipDialog.OWNER);
+		assertNull(DialogStateCodec.readStoredOwner(DialogStateCodec.encode(metaData)));
+		assertNull(DialogStateCodec.readStoredOwner(null));
+	}
+
+	public void testUnsupportedFormatVersion() throws Exception {
+		final byte[] encoded = DialogStateCodec.encode(fullState());
+		encoded[0] = (byte) ((encoded[0] & 0xF0) | (DialogStateCodec.FORMAT_VERSION + 1));
+		try {
+			DialogStateCodec.readVersion(encoded);
+			fail("the version of an unknown format can't be read");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		try {
+			DialogStateCodec.decode(encoded);
+			fail("an unknown format can't be decoded");
+		} catch (SipCacheException e) {
+			// expected
+		}
+	}
+
+	public void testTruncatedInput() throws Exception {
+		final byte[] encoded = DialogStateCodec.encode(fullState());
+		for (int length = 0; length < encoded.length; length++) {
+			try {
+				DialogStateCodec.decode(Arrays.copyOf(encoded, length));
+				fail("the dialog state truncated to " + length + " bytes can't be decoded");
+			} catch (SipCacheException e) {
+				// expected
+			}
+		}
+		try {
+			DialogStateCodec.readVersion(Arrays.copyOf(encoded, 2));
+			fail("the version of a truncated dialog state can't be read");
+		} catch (SipCacheException e) {
+			// expected
+		}
+		try {
+			DialogStateCodec.decode(null);
+			fail("a missing dialog state can't be decoded");
+		} catch (SipCacheException e) {
+			// expected
+		}
+	}
+}
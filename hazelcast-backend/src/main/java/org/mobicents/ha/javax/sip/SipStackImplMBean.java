@@ -30,5 +30,21 @@ public interface SipStackImplMBean {
 	public int getNumberOfClientTransactions();
 	public int getNumberOfServerTransactions();
 	public int getNumberOfDialogs();
+	public long getNumberOfPassivatedDialogs();
+	public long getNumberOfReapedOrphanEntries();
+	public int getNumberOfOrphanCandidates();
+	public int getNumberOfPendingDialogWrites();
+	public long getNumberOfCoalescedDialogWrites();
+	public long getNumberOfRejectedDialogWrites();
+	public long getNumberOfRetriedDialogWrites();
+	public int getNumberOfQueuedDialogReplications();
+	public long getNumberOfBlockedDialogReplications();
 	public boolean isLocalMode();
+	public boolean isHADegraded();
+	public long getHADegradedTime();
+	public long getNumberOfHADegradations();
+	public long getNumberOfTimedOutCacheOperations();
+	public long getNumberOfFailedCacheOperations();
+	public int getNumberOfDialogsQueuedWhileHADegraded();
+	public long getNumberOfDialogsDroppedWhileHADegraded();
 }
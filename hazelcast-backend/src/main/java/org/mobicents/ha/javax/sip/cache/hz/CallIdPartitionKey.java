@@ -0,0 +1,84 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.core.Separators;
+
+import java.io.Serializable;
+
+import com.hazelcast.core.PartitionAware;
+
+/**
+ * Cache key partitioned on the Call-ID of the dialog it identifies, so that all the dialogs of a call
+ * (early and confirmed dialogs, forked dialogs) and their application data end up on the same partition.
+ */
+public final class CallIdPartitionKey implements PartitionAware<String>, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String key;
+	private final String partitionKey;
+
+	public CallIdPartitionKey(String key, String partitionKey) {
+		this.key = key;
+		this.partitionKey = partitionKey;
+	}
+
+	/**
+	 * The dialog id is made of the Call-ID followed by the local tag and, once the dialog is established, the remote tag,
+	 * separated by colons. Since the Call-ID may contain colons too, its end can't be found in the dialog id.
+	 * The dialogs are partitioned on the part of the dialog id before its first colon instead, which only depends on the Call-ID.
+	 * @param dialogId a dialog id made of the Call-ID followed by the tags, separated by colons
+	 * @return the key of the dialog partitioned on its Call-ID
+	 */
+	public static CallIdPartitionKey fromDialogId(String dialogId) {
+		final int index = dialogId.indexOf(Separators.COLON);
+		return new CallIdPartitionKey(dialogId, index > 0 ? dialogId.substring(0, index) : dialogId);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof CallIdPartitionKey)) {
+			return false;
+		}
+		return key.equals(((CallIdPartitionKey) obj).key);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+}
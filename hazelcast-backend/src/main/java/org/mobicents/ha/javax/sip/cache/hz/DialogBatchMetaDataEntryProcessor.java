@@ -0,0 +1,88 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Merges the encoded meta data of several dialogs into their entries, to be run with {@link com.hazelcast.core.IMap#executeOnKeys}
+ * on the keys owned by a single member, so that the member only receives the meta data of its own dialogs.
+ * Each entry is processed as by the {@link DialogMetaDataEntryProcessor}, with the same results, 
+ * the owner and application data of the dialogs whose meta data was applied being written by the caller.
+ */
+public class DialogBatchMetaDataEntryProcessor implements EntryProcessor<Object, Object>, EntryBackupProcessor<Object, Object> {
+	private static final long serialVersionUID = 1L;
+
+	// the meta data and application data of each dialog, by key
+	private Map<Object, Object[]> updates;
+	private boolean singleEntry;
+	private boolean legacyFormat;
+
+	/**
+	 * @param updates the meta data and application data of each dialog, by key, 
+	 * the application data being only needed when single entries are used
+	 */
+	public DialogBatchMetaDataEntryProcessor(Map<Object, Object[]> updates, boolean singleEntry) {
+		this(updates, singleEntry, false);
+	}
+
+	/**
+	 * @param legacyFormat true to store the meta data as a map, ignored if single entries are used
+	 */
+	public DialogBatchMetaDataEntryProcessor(Map<Object, Object[]> updates, boolean singleEntry, boolean legacyFormat) {
+		this.updates = updates;
+		this.singleEntry = singleEntry;
+		this.legacyFormat = legacyFormat && !singleEntry;
+	}
+
+	public Object process(Entry<Object, Object> entry) {
+		final Object[] update = updates.get(entry.getKey());
+		if(update == null) {
+			return DialogMetaDataEntryProcessor.OUTDATED;
+		}
+		try {
+			return DialogMetaDataEntryProcessor.apply(entry, (byte[]) update[0], update[1], singleEntry, legacyFormat);
+		} catch (SipCacheException e) {
+			return e;
+		}
+	}
+
+	public EntryBackupProcessor<Object, Object> getBackupProcessor() {
+		return this;
+	}
+
+	public void processBackup(Entry<Object, Object> entry) {
+		final Object[] update = updates.get(entry.getKey());
+		if(update != null) {
+			try {
+				DialogMetaDataEntryProcessor.apply(entry, (byte[]) update[0], update[1], singleEntry, legacyFormat);
+			} catch (SipCacheException e) {
+				// the primary entry was left untouched as well, the caller gets the exception from it
+			}
+		}
+	}
+}
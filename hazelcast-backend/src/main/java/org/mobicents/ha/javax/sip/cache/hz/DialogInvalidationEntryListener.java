@@ -0,0 +1,98 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
+
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+
+/**
+ * Listens to the dialogs map and to the cluster membership to notify a {@link DialogInvalidationListener}
+ * about the dialogs written or removed by other members.
+ * Events caused by the local member are ignored since the local stack already knows about them.
+ */
+public class DialogInvalidationEntryListener extends EntryAdapter<Object, Object> implements MembershipListener {
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogInvalidationEntryListener.class);
+
+	private final DialogInvalidationListener dialogInvalidationListener;
+
+	public DialogInvalidationEntryListener(DialogInvalidationListener dialogInvalidationListener) {
+		this.dialogInvalidationListener = dialogInvalidationListener;
+	}
+
+	@Override
+	public void entryAdded(EntryEvent<Object, Object> event) {
+		invalidate(event);
+	}
+
+	@Override
+	public void entryUpdated(EntryEvent<Object, Object> event) {
+		invalidate(event);
+	}
+
+	@Override
+	public void entryRemoved(EntryEvent<Object, Object> event) {
+		invalidate(event);
+	}
+
+	@Override
+	public void entryEvicted(EntryEvent<Object, Object> event) {
+		invalidate(event);
+	}
+
+	private void invalidate(EntryEvent<Object, Object> event) {
+		if(event.getMember() != null && event.getMember().localMember()) {
+			return;
+		}
+		// keys are either the dialog id or a CallIdPartitionKey whose string form is the dialog id
+		final String dialogId = event.getKey().toString();
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("dialog " + dialogId + " changed by member " + event.getMember() + ", invalidating it");
+		}
+		dialogInvalidationListener.dialogInvalidated(dialogId);
+	}
+
+	public void memberAdded(MembershipEvent membershipEvent) {
+		allDialogsInvalidated(membershipEvent);
+	}
+
+	public void memberRemoved(MembershipEvent membershipEvent) {
+		allDialogsInvalidated(membershipEvent);
+	}
+
+	public void memberAttributeChanged(MemberAttributeEvent memberAttributeEvent) {
+	}
+
+	private void allDialogsInvalidated(MembershipEvent membershipEvent) {
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("cluster membership changed " + membershipEvent + ", invalidating all dialogs");
+		}
+		// events may have been missed while partitions were migrating
+		dialogInvalidationListener.allDialogsInvalidated();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mobicents.ha.javax.sip.cache.DialogKeyListener;
+
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.MapEvent;
+
+/**
+ * Notifies a {@link DialogKeyListener} about all the dialogs added to and removed from the dialogs map by any member.
+ * 
+ * The listener has to be registered on the map before {@link #load(Set)} is called with the keys of the map,
+ * the events received in the meantime are held and replayed after the keys, so that a dialog is never notified 
+ * as removed without having been notified as added first.
+ */
+public class DialogKeyEntryListener extends EntryAdapter<Object, Object> {
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogKeyEntryListener.class);
+
+	private final DialogKeyListener dialogKeyListener;
+	private List<Object[]> pendingEvents = new ArrayList<Object[]>();
+
+	public DialogKeyEntryListener(DialogKeyListener dialogKeyListener) {
+		this.dialogKeyListener = dialogKeyListener;
+	}
+
+	/**
+	 * Notifies the keys already in the map, then the events received since the registration of the listener
+	 * @param keys the keys of the dialogs map, read after the registration of this listener
+	 */
+	public void load(Set<Object> keys) {
+		final Set<String> notifiedDialogIds = new HashSet<String>();
+		for (Object key : keys) {
+			final String dialogId = key.toString();
+			if(notifiedDialogIds.add(dialogId)) {
+				dialogKeyListener.dialogKeyAdded(dialogId);
+			}
+		}
+		synchronized (this) {
+			for (Object[] pendingEvent : pendingEvents) {
+				final String dialogId = (String) pendingEvent[0];
+				if(pendingEvent[1] == Boolean.TRUE) {
+					if(notifiedDialogIds.add(dialogId)) {
+						dialogKeyListener.dialogKeyAdded(dialogId);
+					}
+				} else if(notifiedDialogIds.remove(dialogId)) {
+					dialogKeyListener.dialogKeyRemoved(dialogId);
+				}
+			}
+			pendingEvents = null;
+			dialogKeyListener.dialogKeysLoaded();
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Loaded the ids of " + keys.size() + " dialogs from the cache");
+		}
+	}
+
+	@Override
+	public void entryAdded(EntryEvent<Object, Object> event) {
+		keyChanged(event.getKey().toString(), true);
+	}
+
+	@Override
+	public void entryRemoved(EntryEvent<Object, Object> event) {
+		keyChanged(event.getKey().toString(), false);
+	}
+
+	@Override
+	public void entryEvicted(EntryEvent<Object, Object> event) {
+		keyChanged(event.getKey().toString(), false);
+	}
+
+	@Override
+	public void mapCleared(MapEvent event) {
+		allKeysRemoved();
+	}
+
+	@Override
+	public void mapEvicted(MapEvent event) {
+		allKeysRemoved();
+	}
+
+	private synchronized void keyChanged(String dialogId, boolean added) {
+		if(pendingEvents != null) {
+			pendingEvents.add(new Object[] {dialogId, Boolean.valueOf(added)});
+		} else if(added) {
+			dialogKeyListener.dialogKeyAdded(dialogId);
+		} else {
+			dialogKeyListener.dialogKeyRemoved(dialogId);
+		}
+	}
+
+	private synchronized void allKeysRemoved() {
+		if(pendingEvents != null) {
+			// the keys read by load may be stale as well, the filter would still only give false positives
+			pendingEvents.clear();
+		}
+		dialogKeyListener.allDialogKeysRemoved();
+	}
+}
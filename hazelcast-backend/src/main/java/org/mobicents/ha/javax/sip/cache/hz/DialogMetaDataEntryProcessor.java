@@ -0,0 +1,174 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map.Entry;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Merges encoded dialog meta data into the entry of the dialog on the partition owner,
+ * so that the version check and the merge happen atomically in a single call.
+ * The meta data is only applied if its version is newer than the one of the cached entry.
+ * When single entries are used, the application data is stored alongside in a {@link DialogCacheEntry}.
+ * 
+ * The processor only touches the entry it runs on, it doesn't reach the other maps from the partition thread. 
+ * The owner of the dialog and its application data, when stored in their own maps, are written by the caller 
+ * once the result tells that the meta data was applied.
+ *
+ * The result of the processing is one of {@link #APPLIED}, {@link #OUTDATED}, {@link #NOT_FOUND}, 
+ * {@link #LEGACY_APPLICATION_DATA} or {@link #MIGRATED}.
+ * {@link #NOT_FOUND} means that a delta was sent while the entry doesn't exist anymore, the full state has to be sent instead.
+ * With single entries, {@link #LEGACY_APPLICATION_DATA} means that the entry was stored by a previous release with its application data
+ * in its own map, the application data has to be read and sent along so that it is kept in the single entry. 
+ * {@link #MIGRATED} means that the meta data was applied over such an entry, whose application data entry can then be removed.
+ * A {@link SipCacheException} is returned as is if the meta data in the entry or the one sent can't be decoded.
+ * 
+ * With the legacy write format, the merged meta data is stored as the map read by the previous releases instead of its encoded form.
+ */
+public class DialogMetaDataEntryProcessor implements EntryProcessor<Object, Object>, EntryBackupProcessor<Object, Object> {
+	private static final long serialVersionUID = 1L;
+
+	public static final Integer APPLIED = Integer.valueOf(0);
+	public static final Integer OUTDATED = Integer.valueOf(1);
+	public static final Integer NOT_FOUND = Integer.valueOf(2);
+	public static final Integer LEGACY_APPLICATION_DATA = Integer.valueOf(3);
+	public static final Integer MIGRATED = Integer.valueOf(4);
+
+	private byte[] metaData;
+	private Object applicationData;
+	private boolean singleEntry;
+	private boolean legacyFormat;
+	private Object legacyApplicationData;
+	private boolean legacyApplicationDataRead;
+
+	public DialogMetaDataEntryProcessor(byte[] metaData) {
+		this(metaData, null, false);
+	}
+
+	/**
+	 * @param applicationData the application data to store in the single entry, ignored if single entries are not used
+	 */
+	public DialogMetaDataEntryProcessor(byte[] metaData, Object applicationData, boolean singleEntry) {
+		this(metaData, applicationData, singleEntry, false);
+	}
+
+	/**
+	 * @param legacyFormat true to store the meta data as a map, ignored if single entries are used
+	 */
+	public DialogMetaDataEntryProcessor(byte[] metaData, Object applicationData, boolean singleEntry, boolean legacyFormat) {
+		this.metaData = metaData;
+		this.applicationData = applicationData;
+		this.singleEntry = singleEntry;
+		this.legacyFormat = legacyFormat && !singleEntry;
+	}
+
+	/**
+	 * @param legacyApplicationData the application data read from its own map after a {@link #LEGACY_APPLICATION_DATA} result, may be null
+	 */
+	public DialogMetaDataEntryProcessor(byte[] metaData, Object applicationData, boolean singleEntry, Object legacyApplicationData) {
+		this(metaData, applicationData, singleEntry);
+		this.legacyApplicationData = legacyApplicationData;
+		this.legacyApplicationDataRead = true;
+	}
+
+	public Object process(Entry<Object, Object> entry) {
+		try {
+			if(legacyApplicationDataRead) {
+				return apply(entry, metaData, applicationData, legacyApplicationData, singleEntry, legacyFormat);
+			}
+			return apply(entry, metaData, applicationData, singleEntry, legacyFormat);
+		} catch (SipCacheException e) {
+			return e;
+		}
+	}
+
+	public EntryBackupProcessor<Object, Object> getBackupProcessor() {
+		return this;
+	}
+
+	public void processBackup(Entry<Object, Object> entry) {
+		try {
+			if(legacyApplicationDataRead) {
+				apply(entry, metaData, applicationData, legacyApplicationData, singleEntry, legacyFormat);
+			} else {
+				apply(entry, metaData, applicationData, singleEntry, legacyFormat);
+			}
+		} catch (SipCacheException e) {
+			// the primary entry was left untouched as well, the caller gets the exception from it
+		}
+	}
+
+	/**
+	 * @return true if the result is {@link #APPLIED} or {@link #MIGRATED}
+	 */
+	public static boolean isApplied(Object result) {
+		return APPLIED.equals(result) || MIGRATED.equals(result);
+	}
+
+	/**
+	 * Merges the meta data into the entry, shared with the {@link DialogBatchMetaDataEntryProcessor}
+	 * @return one of {@link #APPLIED}, {@link #OUTDATED}, {@link #NOT_FOUND}, {@link #LEGACY_APPLICATION_DATA} or {@link #MIGRATED}
+	 */
+	static Object apply(Entry<Object, Object> entry, byte[] metaData, Object applicationData, boolean singleEntry, boolean legacyFormat) throws SipCacheException {
+		if(singleEntry && applicationData == null && DialogCacheEntry.isLegacy(entry.getValue())) {
+			return LEGACY_APPLICATION_DATA;
+		}
+		return apply(entry, metaData, applicationData, null, singleEntry, legacyFormat);
+	}
+
+	private static Object apply(Entry<Object, Object> entry, byte[] metaData, Object applicationData, Object legacyApplicationData, 
+			boolean singleEntry, boolean legacyFormat) throws SipCacheException {
+		final Object cachedMetaData = entry.getValue();
+		if(cachedMetaData == null) {
+			if(!DialogStateCodec.isFullState(metaData)) {
+				return NOT_FOUND;
+			}
+			if(singleEntry) {
+				entry.setValue(new DialogCacheEntry(metaData, applicationData));
+			} else {
+				entry.setValue(legacyFormat ? DialogStateCodec.decode(metaData) : metaData);
+			}
+			return APPLIED;
+		}
+		if(singleEntry) {
+			final DialogCacheEntry mergedEntry = DialogCacheEntry.merge(cachedMetaData, legacyApplicationData, metaData, applicationData);
+			if(mergedEntry == null) {
+				return OUTDATED;
+			}
+			entry.setValue(mergedEntry);
+			return DialogCacheEntry.isLegacy(cachedMetaData) ? MIGRATED : APPLIED;
+		}
+		// entries stored as a map are converted on the fly
+		final byte[] cachedEncodedMetaData = DialogStateCodec.asByteArray(cachedMetaData);
+		if(DialogStateCodec.readVersion(cachedEncodedMetaData) < DialogStateCodec.readVersion(metaData)) {
+			final byte[] mergedMetaData = DialogStateCodec.merge(cachedEncodedMetaData, metaData);
+			entry.setValue(legacyFormat ? DialogStateCodec.decode(mergedMetaData) : mergedMetaData);
+			return APPLIED;
+		}
+		return OUTDATED;
+	}
+}
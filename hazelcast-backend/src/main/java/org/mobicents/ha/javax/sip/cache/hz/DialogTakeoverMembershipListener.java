@@ -0,0 +1,62 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+
+/**
+ * Asks the stack to take over the dialogs of the members leaving the cluster.
+ * Each member publishes the node id of its stack as a member attribute, and each member left
+ * takes over the dialogs of the failed node stored in its own partitions.
+ */
+public class DialogTakeoverMembershipListener implements MembershipListener {
+	public static final String NODE_ID_ATTRIBUTE = "org.mobicents.ha.javax.sip.NODE_ID";
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogTakeoverMembershipListener.class);
+
+	private final ClusteredSipStackExt clusteredSipStack;
+
+	public DialogTakeoverMembershipListener(ClusteredSipStackExt clusteredSipStack) {
+		this.clusteredSipStack = clusteredSipStack;
+	}
+
+	public void memberAdded(MembershipEvent membershipEvent) {
+	}
+
+	public void memberRemoved(MembershipEvent membershipEvent) {
+		final String nodeId = membershipEvent.getMember().getStringAttribute(NODE_ID_ATTRIBUTE);
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("member " + membershipEvent.getMember() + " of node " + nodeId + " left the cluster");
+		}
+		if (nodeId != null) {
+			clusteredSipStack.takeOverDialogs(nodeId, true);
+		}
+	}
+
+	public void memberAttributeChanged(MemberAttributeEvent memberAttributeEvent) {
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.Map.Entry;
+
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * Reads only the version of a dialog on the partition owner, so that checking whether a local dialog is up to date
+ * doesn't transfer its whole meta data and application data. The entry is left untouched.
+ * The result is the version of the dialog or -1 if the dialog is not in the cache,
+ * a {@link SipCacheException} being returned as is if its meta data can't be decoded.
+ */
+public class DialogVersionEntryProcessor extends AbstractEntryProcessor<Object, Object> {
+	private static final long serialVersionUID = 1L;
+
+	public DialogVersionEntryProcessor() {
+		super(false);
+	}
+
+	public Object process(Entry<Object, Object> entry) {
+		try {
+			return Long.valueOf(DialogStateCodec.readStoredVersion(entry.getValue()));
+		} catch (SipCacheException e) {
+			return e;
+		}
+	}
+}
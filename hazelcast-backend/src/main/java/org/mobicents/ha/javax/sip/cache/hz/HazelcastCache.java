@@ -27,48 +27,94 @@ import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.io.FileNotFoundException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+import org.mobicents.ha.javax.sip.cache.AsyncSipCache;
+import org.mobicents.ha.javax.sip.cache.ConditionalDialogWriter;
+import org.mobicents.ha.javax.sip.cache.DialogBatchWriter;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationNotifier;
+import org.mobicents.ha.javax.sip.cache.DialogKeyListener;
+import org.mobicents.ha.javax.sip.cache.DialogKeyNotifier;
+import org.mobicents.ha.javax.sip.cache.DialogOwnerIndex;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheFutures;
 
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.XmlConfigBuilder;
+import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ICompletableFuture;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
 
 /**
  * Implementation of the SipCache interface, backed by a Hazelcast Cache 3.0.X
  * The configuration of Hazelcast Cache can be set throught the following Restcomm SIP Stack property :
  * <b>org.mobicents.ha.javax.sip.HAZELCAST_CACHE_CONFIG_PATH</b>
  * 
+ * Setting <b>org.mobicents.ha.javax.sip.HAZELCAST_CALL_ID_PARTITIONING</b> to true stores the dialogs and their application data
+ * with keys partitioned on the Call-ID so that all the dialogs of a call are on the same member.
+ * Transactions stay keyed by transaction id since they are looked up by branch id only.
+ * 
+ * The owner of each dialog is kept in the cache.dialogOwners map, indexed on its values, 
+ * so that the dialogs of a node can be found without going through all the dialogs.
+ * The id of the node is set as an attribute of its member, so that the ids of the nodes in the cluster are known.
+ * 
+ * The dialog cache TTL and the max idle times are set on the configuration of the maps before the instance is created,
+ * unless the configuration already defines them. A Hazelcast instance created beforehand is used as is.
+ * 
  * @author icivico@gmail.com
  *
  */
-public class HazelcastCache implements SipCache {
+public class HazelcastCache implements SipCache, ConditionalDialogWriter, AsyncSipCache, DialogBatchWriter, DialogInvalidationNotifier, DialogKeyNotifier, DialogOwnerIndex, OrphanEntryScanner {
 	
 	public static final String HAZELCAST_CACHE_CONFIG_PATH = "org.mobicents.ha.javax.sip.HAZELCAST_CACHE_CONFIG_PATH";
 	public static final String DEFAULT_FILE_CONFIG_PATH = "META-INF/cache-configuration.xml"; 
 	public static final String HAZELCAST_INSTANCE_NAME = "org.mobicents.ha.javax.sip.HAZELCAST_INSTANCE_NAME";
 	public static final String DEFAULT_HAZELCAST_INSTANCE_NAME = "jain-sip-ha";
+	public static final String HAZELCAST_CALL_ID_PARTITIONING = "org.mobicents.ha.javax.sip.HAZELCAST_CALL_ID_PARTITIONING";
 	private static StackLogger clusteredlogger = CommonLogger.getLogger(HazelcastCache.class);
 	
 	private Properties configProperties = null;
 	protected HazelcastInstance hz;
 	private ClusteredSipStack stack;
-	private IMap<String, Object> dialogs;
-	private IMap<String, Object> appDataMap;
+	private IMap<Object, Object> dialogs;
+	private IMap<Object, Object> appDataMap;
+	private IMap<Object, String> dialogOwners;
+	private boolean callIdPartitioning;
+	private boolean singleDialogEntry;
+	private boolean legacyWriteFormat;
 	private IMap<String, Object> serverTransactions;
 	private IMap<String, Object> serverTransactionsApp;
 	private IMap<String, Object> clientTransactions;
 	private IMap<String, Object> clientTransactionsApp;
 	
+	private DialogInvalidationListener dialogInvalidationListener;
+	private String dialogInvalidationEntryListenerId;
+	private String dialogInvalidationMembershipListenerId;
+	private DialogKeyListener dialogKeyListener;
+	private String dialogKeyEntryListenerId;
+	private String dialogTakeoverMembershipListenerId;
+	
 	private SIPDialogCacheData dialogCacheData;
 	private SIPServerTransactionCacheData serverTXCacheData;
 	private SIPClientTransactionCacheData clientTXCacheData;
+	private OrphanEntryScan orphanEntryScan;
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if (dialogId == null) 
@@ -81,15 +127,26 @@ public class HazelcastCache implements SipCache {
 	}
 	
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		putDialogIfNewer(dialog);
+	}
+	
+	public boolean putDialogIfNewer(SIPDialog dialog) throws SipCacheException {
 		if (dialog == null) 
 			throw new SipCacheException("SipDialog is null");
 		
 		if (dialogCacheData != null)
-			dialogCacheData.putDialog(dialog);
+			return dialogCacheData.putDialog(dialog);
 		else
 			throw new SipCacheException("No SIPClientTransactionCache");
 	}
 	
+	public Collection<SIPDialog> putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCacheData");
+	}
+	
 	public void updateDialog(SIPDialog dialog) throws SipCacheException {
 		if (dialog == null) 
 			throw new SipCacheException("SipDialog is null");
@@ -110,9 +167,9 @@ public class HazelcastCache implements SipCache {
 			throw new SipCacheException("No SIPClientTransactionCache");
 	}
 	
+	@Deprecated
 	public void evictDialog(String dialogId) {
-		if (dialogCacheData != null)
-			dialogCacheData.evictDialog(dialogId);
+		// no-op, the entries are held by the partition owners, evicting them would remove the dialog from the whole cluster
 	}
 	
 	public SIPClientTransaction getClientTransaction(String txId) 
@@ -139,6 +196,85 @@ public class HazelcastCache implements SipCache {
 			throw new SipCacheException("No SIPClientTransactionCache");
 	}
 	
+	public Future<SIPDialog> getDialogAsync(String dialogId) {
+		if (dialogCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPDialogCacheData"));
+		return logFailure("getting dialog " + dialogId, dialogCacheData.getDialogAsync(dialogId));
+	}
+	
+	/**
+	 * The merge of the dialog on the partition owner and the writes depending on its result are chained by their callbacks, 
+	 * a dialog not written because the cache holds a version at least as recent doesn't fail the write
+	 */
+	public Future<Void> putDialogAsync(SIPDialog dialog) {
+		if (dialogCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPDialogCacheData"));
+		return logFailures("storing dialog " + dialog.getDialogId(), Collections.<Future<?>>singletonList(dialogCacheData.putDialogAsync(dialog)));
+	}
+	
+	public Future<Void> removeDialogAsync(String dialogId) {
+		if (dialogCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPDialogCacheData"));
+		return logFailures("removing dialog " + dialogId, dialogCacheData.removeDialogAsync(dialogId));
+	}
+	
+	public Future<Void> putServerTransactionAsync(SIPServerTransaction serverTransaction) {
+		if (serverTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPServerTransactionCache"));
+		return logFailures("storing server transaction " + serverTransaction.getTransactionId(), serverTXCacheData.putServerTransactionAsync(serverTransaction));
+	}
+	
+	public Future<Void> removeServerTransactionAsync(String txId) {
+		if (serverTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPServerTransactionCache"));
+		return logFailures("removing server transaction " + txId, serverTXCacheData.removeServerTransactionAsync(txId));
+	}
+	
+	public Future<Void> putClientTransactionAsync(SIPClientTransaction clientTransaction) {
+		if (clientTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPClientTransactionCache"));
+		return logFailures("storing client transaction " + clientTransaction.getTransactionId(), clientTXCacheData.putClientTransactionAsync(clientTransaction));
+	}
+	
+	public Future<Void> removeClientTransactionAsync(String txId) {
+		if (clientTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPClientTransactionCache"));
+		return logFailures("removing client transaction " + txId, clientTXCacheData.removeClientTransactionAsync(txId));
+	}
+	
+	/**
+	 * Logs the failure of an asynchronous read
+	 */
+	private <T> Future<T> logFailure(final String operation, Future<T> future) {
+		SettableCompletableFuture.andThen(future, new ExecutionCallback<T>() {
+			public void onResponse(T response) {
+			}
+			public void onFailure(Throwable t) {
+				clusteredlogger.logError("problem " + operation + " in the distributed cache", t instanceof Exception ? (Exception) t : new Exception(t));
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Logs the failures of asynchronous operations, the callers usually not waiting for their result
+	 */
+	@SuppressWarnings("unchecked")
+	private Future<Void> logFailures(final String operation, List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			if (future instanceof ICompletableFuture) {
+				((ICompletableFuture<Object>) future).andThen(new ExecutionCallback<Object>() {
+					public void onResponse(Object response) {
+					}
+					public void onFailure(Throwable t) {
+						clusteredlogger.logError("problem " + operation + " in the distributed cache", t instanceof Exception ? (Exception) t : new Exception(t));
+					}
+				});
+			}
+		}
+		return SipCacheFutures.allOf(futures);
+	}
+	
 	public SIPServerTransaction getServerTransaction(String txId) 
 			throws SipCacheException {
 		if (serverTXCacheData != null)
@@ -187,26 +323,144 @@ public class HazelcastCache implements SipCache {
 				
 			}
 			cfg.setInstanceName(instanceName);
+			configureExpiry(cfg);
 	        hz = Hazelcast.newHazelcastInstance(cfg);
+		} else if (getLongProperty(ClusteredSipStack.DIALOG_CACHE_TTL) > 0 || getLongProperty(ClusteredSipStack.DIALOG_CACHE_MAX_IDLE) > 0 || 
+				getLongProperty(ClusteredSipStack.TRANSACTION_CACHE_MAX_IDLE) > 0) {
+			clusteredlogger.logWarning("Mobicents JAIN SIP Hazelcast Cache instance " + instanceName + " already exists, " + 
+					"the dialog cache TTL and the cache max idle times are not applied to its maps, they have to be set in its configuration");
 		}
 		dialogs = hz.getMap("cache.dialogs");
 		appDataMap = hz.getMap("cache.appdata");
+		dialogOwners = hz.getMap("cache.dialogOwners");
+		dialogOwners.addIndex(SIPDialogCacheData.OWNER_ATTRIBUTE, false);
 		serverTransactions = hz.getMap("cache.serverTX");
 		serverTransactionsApp = hz.getMap("cache.serverTXApp");
 		clientTransactions = hz.getMap("cache.clientTX");
 		clientTransactionsApp = hz.getMap("cache.clientTXApp");
+		callIdPartitioning = Boolean.valueOf(configProperties.getProperty(HAZELCAST_CALL_ID_PARTITIONING, "false"));
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Mobicents JAIN SIP Hazelcast Cache Call-ID partitioning : " + callIdPartitioning);
+		}
+		legacyWriteFormat = !ENCODED_WRITE_FORMAT.equalsIgnoreCase(configProperties.getProperty(DIALOG_CACHE_WRITE_FORMAT, LEGACY_WRITE_FORMAT));
+		singleDialogEntry = Boolean.valueOf(configProperties.getProperty(SINGLE_DIALOG_CACHE_ENTRY, "false"));
+		if (singleDialogEntry && legacyWriteFormat) {
+			clusteredlogger.logWarning("Mobicents JAIN SIP Hazelcast Cache single dialog entry ignored, it requires " + 
+					DIALOG_CACHE_WRITE_FORMAT + " to be set to " + ENCODED_WRITE_FORMAT);
+			singleDialogEntry = false;
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Mobicents JAIN SIP Hazelcast Cache legacy write format : " + legacyWriteFormat + ", single dialog entry : " + singleDialogEntry);
+		}
+	}
+	
+	/**
+	 * An entry processor can't set the TTL of an entry, the dialog cache TTL is applied to the whole dialog maps 
+	 * unless the Hazelcast configuration already defines one. The max idle times are map wide as well.
+	 * This is done before the instance is created, so that all the members agree on it.
+	 * The stack is not configured yet, the properties are read directly.
+	 */
+	private void configureExpiry(Config cfg) {
+		final long dialogCacheTTL = getLongProperty(ClusteredSipStack.DIALOG_CACHE_TTL);
+		final long dialogCacheMaxIdle = getLongProperty(ClusteredSipStack.DIALOG_CACHE_MAX_IDLE);
+		final long transactionCacheMaxIdle = getLongProperty(ClusteredSipStack.TRANSACTION_CACHE_MAX_IDLE);
+		for (String mapName : new String[] {"cache.dialogs", "cache.appdata", "cache.dialogOwners"}) {
+			configureExpiry(cfg, mapName, dialogCacheTTL, dialogCacheMaxIdle);
+		}
+		for (String mapName : new String[] {"cache.serverTX", "cache.serverTXApp", "cache.clientTX", "cache.clientTXApp"}) {
+			// the TTL of the transactions is set on each entry
+			configureExpiry(cfg, mapName, 0, transactionCacheMaxIdle);
+		}
+	}
+	
+	private long getLongProperty(String name) {
+		return Long.parseLong(configProperties.getProperty(name, "0"));
+	}
+	
+	private void configureExpiry(Config cfg, String mapName, long ttl, long maxIdle) {
+		if (ttl <= 0 && maxIdle <= 0) {
+			return;
+		}
+		MapConfig mapConfig = cfg.getMapConfig(mapName);
+		if (!mapName.equals(mapConfig.getName())) {
+			// a wildcard configuration may be shared with other maps, the map gets its own copy
+			mapConfig = new MapConfig(mapConfig);
+			mapConfig.setName(mapName);
+			cfg.addMapConfig(mapConfig);
+		}
+		// rounded up, 0 meaning no expiry
+		if (ttl > 0 && mapConfig.getTimeToLiveSeconds() == 0) {
+			mapConfig.setTimeToLiveSeconds((int) ((ttl + 999) / 1000));
+		}
+		if (maxIdle > 0 && mapConfig.getMaxIdleSeconds() == 0) {
+			mapConfig.setMaxIdleSeconds((int) ((maxIdle + 999) / 1000));
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Mobicents JAIN SIP Hazelcast Cache " + mapName + " TTL : " + mapConfig.getTimeToLiveSeconds() + 
+					"s max idle : " + mapConfig.getMaxIdleSeconds() + "s");
+		}
+	}
+	
+	/**
+	 * @return the configuration of the map, read without creating one if the map has none of its own
+	 */
+	private static MapConfig getMapConfig(HazelcastInstance hz, String mapName) {
+		final Map<String, MapConfig> mapConfigs = hz.getConfig().getMapConfigs();
+		final MapConfig mapConfig = mapConfigs.get(mapName);
+		return mapConfig != null ? mapConfig : mapConfigs.get("default");
 	}
 	
 	public void start() throws SipCacheException {
 		dialogCacheData = new SIPDialogCacheData(stack, 
-				dialogs, appDataMap);
+				dialogs, appDataMap, callIdPartitioning, singleDialogEntry, legacyWriteFormat);
+		dialogCacheData.setDialogOwners(dialogOwners);
+		// the application data and owner entries live as long as the dialog entries, which expire map wide
+		final MapConfig dialogsConfig = getMapConfig(hz, "cache.dialogs");
+		if (dialogsConfig != null) {
+			dialogCacheData.setExpiry(dialogsConfig.getTimeToLiveSeconds() * 1000L, dialogsConfig.getMaxIdleSeconds() > 0);
+		}
+		dialogCacheData.setPartitionService(hz.getPartitionService());
 		serverTXCacheData = new SIPServerTransactionCacheData(stack, 
 				serverTransactions, serverTransactionsApp);
 		clientTXCacheData = new SIPClientTransactionCacheData(stack, 
 				clientTransactions, clientTransactionsApp);
+		orphanEntryScan = new OrphanEntryScan(dialogCacheData, dialogs, appDataMap, dialogOwners, 
+				serverTransactions, serverTransactionsApp, clientTransactions, clientTransactionsApp);
+		if (stack instanceof ClusteredSipStackExt) {
+			final ClusteredSipStackExt stackExt = (ClusteredSipStackExt) stack;
+			if (stackExt.getNodeId() != null) {
+				hz.getCluster().getLocalMember().setStringAttribute(DialogTakeoverMembershipListener.NODE_ID_ATTRIBUTE, stackExt.getNodeId());
+			}
+			dialogTakeoverMembershipListenerId = hz.getCluster().addMembershipListener(new DialogTakeoverMembershipListener(stackExt));
+		}
+		if (dialogInvalidationListener != null) {
+			DialogInvalidationEntryListener listener = new DialogInvalidationEntryListener(dialogInvalidationListener);
+			dialogInvalidationEntryListenerId = dialogs.addEntryListener(listener, false);
+			dialogInvalidationMembershipListenerId = hz.getCluster().addMembershipListener(listener);
+		}
+		if (dialogKeyListener != null) {
+			DialogKeyEntryListener listener = new DialogKeyEntryListener(dialogKeyListener);
+			dialogKeyEntryListenerId = dialogs.addEntryListener(listener, false);
+			// the keys are read once the listener is registered so that no dialog is missed
+			listener.load(dialogs.keySet());
+		}
 	}
 
 	public void stop() throws SipCacheException {
+		if (dialogInvalidationEntryListenerId != null) {
+			dialogs.removeEntryListener(dialogInvalidationEntryListenerId);
+			hz.getCluster().removeMembershipListener(dialogInvalidationMembershipListenerId);
+			dialogInvalidationEntryListenerId = null;
+			dialogInvalidationMembershipListenerId = null;
+		}
+		if (dialogKeyEntryListenerId != null) {
+			dialogs.removeEntryListener(dialogKeyEntryListenerId);
+			dialogKeyEntryListenerId = null;
+		}
+		if (dialogTakeoverMembershipListenerId != null) {
+			hz.getCluster().removeMembershipListener(dialogTakeoverMembershipListenerId);
+			dialogTakeoverMembershipListenerId = null;
+		}
 		clientTXCacheData = null;
 		serverTXCacheData = null;
 		dialogCacheData = null;
@@ -220,6 +474,60 @@ public class HazelcastCache implements SipCache {
 		return false;
 	}
 	
+	public void setDialogInvalidationListener(DialogInvalidationListener dialogInvalidationListener) {
+		this.dialogInvalidationListener = dialogInvalidationListener;
+	}
+	
+	public void setDialogKeyListener(DialogKeyListener dialogKeyListener) {
+		this.dialogKeyListener = dialogKeyListener;
+	}
+	
+	public Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogIds(ownerId, localOnly);
+		else
+			throw new SipCacheException("No SIPDialogCacheData");
+	}
+	
+	public Set<String> getNodeIds() throws SipCacheException {
+		final Set<Member> members = hz.getCluster().getMembers();
+		final Set<String> nodeIds = new HashSet<String>(members.size());
+		for (Member member : members) {
+			final String nodeId = member.getStringAttribute(DialogTakeoverMembershipListener.NODE_ID_ATTRIBUTE);
+			if (nodeId == null) {
+				// member not started yet or not a SIP stack
+				return null;
+			}
+			nodeIds.add(nodeId);
+		}
+		return nodeIds;
+	}
+	
+	public boolean scan(int chunkSize, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		if (orphanEntryScan != null)
+			return orphanEntryScan.scan(chunkSize, nodeIds, visitor);
+		else
+			throw new SipCacheException("No OrphanEntryScan");
+	}
+	
+	public boolean removeOrphan(EntryType type, String id, long version, Set<String> nodeIds) throws SipCacheException {
+		if (dialogCacheData == null)
+			throw new SipCacheException("No SIPDialogCacheData");
+		
+		switch (type) {
+			case DIALOG:
+				return dialogCacheData.removeOrphanDialog(id, version, nodeIds);
+			case DIALOG_APPLICATION_DATA:
+				return dialogCacheData.removeApplicationData(id);
+			case DIALOG_OWNER:
+				return dialogCacheData.removeDialogOwner(id);
+			default:
+				if (orphanEntryScan == null)
+					throw new SipCacheException("No OrphanEntryScan");
+				return orphanEntryScan.removeOrphanTransaction(type, id, version);
+		}
+	}
+	
 	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
 		stack = clusteredStack;
 	}
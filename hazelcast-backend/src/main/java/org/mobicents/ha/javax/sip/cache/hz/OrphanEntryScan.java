@@ -0,0 +1,195 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.javax.sip.stack.MobicentsHASIPClientTransaction;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.EntryType;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.Visitor;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * Goes through the keys of the entries whose primary copy is stored on this member, map after map,
+ * keeping its position between two chunks. The entries are read locally, only the check of the dialog
+ * of a transaction may go to another member when the dialogs are partitioned on their Call-ID.
+ * A transaction is reported with the hash of its meta data, which changes along its state, so that a transaction still in use 
+ * isn't considered orphan for long, and is only removed if it still has the same meta data and its dialog is still absent.
+ */
+public class OrphanEntryScan {
+
+	private static final int DIALOGS = 0;
+	private static final int APPLICATION_DATA = 1;
+	private static final int DIALOG_OWNERS = 2;
+	private static final int SERVER_TRANSACTIONS = 3;
+	private static final int SERVER_TRANSACTIONS_APPLICATION_DATA = 4;
+	private static final int CLIENT_TRANSACTIONS = 5;
+	private static final int CLIENT_TRANSACTIONS_APPLICATION_DATA = 6;
+	private static final int PHASES = 7;
+
+	private final SIPDialogCacheData dialogCacheData;
+	private final IMap<Object, Object> dialogs;
+	private final IMap<Object, Object> appDataMap;
+	private final IMap<Object, String> dialogOwners;
+	private final IMap<String, Object> serverTransactions;
+	private final IMap<String, Object> serverTransactionsApp;
+	private final IMap<String, Object> clientTransactions;
+	private final IMap<String, Object> clientTransactionsApp;
+	private int phase = -1;
+	private Iterator<?> keys;
+
+	public OrphanEntryScan(SIPDialogCacheData dialogCacheData, IMap<Object, Object> dialogs, IMap<Object, Object> appDataMap, IMap<Object, String> dialogOwners,
+			IMap<String, Object> serverTransactions, IMap<String, Object> serverTransactionsApp,
+			IMap<String, Object> clientTransactions, IMap<String, Object> clientTransactionsApp) {
+		this.dialogCacheData = dialogCacheData;
+		this.dialogs = dialogs;
+		this.appDataMap = appDataMap;
+		this.dialogOwners = dialogOwners;
+		this.serverTransactions = serverTransactions;
+		this.serverTransactionsApp = serverTransactionsApp;
+		this.clientTransactions = clientTransactions;
+		this.clientTransactionsApp = clientTransactionsApp;
+	}
+
+	public synchronized boolean scan(int chunkSize, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		int scanned = 0;
+		while (scanned < chunkSize) {
+			if (keys == null || !keys.hasNext()) {
+				if (++phase == PHASES) {
+					phase = -1;
+					keys = null;
+					return false;
+				}
+				final IMap<?, ?> map = getMap(phase);
+				// the local key set is a snapshot, entries added during the pass are seen on the next one
+				keys = map != null ? map.localKeySet().iterator() : null;
+				continue;
+			}
+			scan(keys.next(), nodeIds, visitor);
+			scanned++;
+		}
+		return true;
+	}
+
+	private IMap<?, ?> getMap(int phase) {
+		switch (phase) {
+			case DIALOGS: return dialogs;
+			case APPLICATION_DATA: return appDataMap;
+			case DIALOG_OWNERS: return dialogOwners;
+			case SERVER_TRANSACTIONS: return serverTransactions;
+			case SERVER_TRANSACTIONS_APPLICATION_DATA: return serverTransactionsApp;
+			case CLIENT_TRANSACTIONS: return clientTransactions;
+			default: return clientTransactionsApp;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void scan(Object key, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		switch (phase) {
+			case DIALOGS:
+				if (nodeIds != null && dialogOwners != null) {
+					final String owner = dialogOwners.get(key);
+					if (owner != null && !nodeIds.contains(owner)) {
+						final long version = DialogStateCodec.readStoredVersion(dialogs.get(key));
+						if (version >= 0) {
+							visitor.orphanCandidate(EntryType.DIALOG, SIPDialogCacheData.getDialogId(key), version);
+						}
+					}
+				}
+				break;
+			case APPLICATION_DATA:
+				if (!dialogs.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.DIALOG_APPLICATION_DATA, SIPDialogCacheData.getDialogId(key), 0);
+				}
+				break;
+			case DIALOG_OWNERS:
+				if (!dialogs.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.DIALOG_OWNER, SIPDialogCacheData.getDialogId(key), 0);
+				}
+				break;
+			case SERVER_TRANSACTIONS: {
+				final Map<String, Object> metaData = (Map<String, Object>) serverTransactions.get(key);
+				final String dialogId = metaData != null ? (String) metaData.get(MobicentsHASIPServerTransaction.DIALOG_ID) : null;
+				if (dialogId != null && !dialogCacheData.containsDialog(dialogId)) {
+					visitor.orphanCandidate(EntryType.SERVER_TRANSACTION, (String) key, metaData.hashCode());
+				}
+				break;
+			}
+			case SERVER_TRANSACTIONS_APPLICATION_DATA:
+				if (!serverTransactions.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.SERVER_TRANSACTION, (String) key, 0);
+				}
+				break;
+			case CLIENT_TRANSACTIONS: {
+				final Map<String, Object> metaData = (Map<String, Object>) clientTransactions.get(key);
+				final String dialogId = metaData != null ? (String) metaData.get(MobicentsHASIPClientTransaction.DIALOG_ID) : null;
+				if (dialogId != null && !dialogCacheData.containsDialog(dialogId)) {
+					visitor.orphanCandidate(EntryType.CLIENT_TRANSACTION, (String) key, metaData.hashCode());
+				}
+				break;
+			}
+			default:
+				if (!clientTransactions.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.CLIENT_TRANSACTION, (String) key, 0);
+				}
+		}
+	}
+
+	/**
+	 * Removes a transaction whose dialog isn't in the cache, or the application data of a transaction that isn't,
+	 * only if it still looks orphan. The transaction is locked meanwhile so that it can't be written between the check and the removal.
+	 * @param metaDataHash the hash of the meta data of the transaction seen by the scans, 0 for application data without transaction
+	 * @return true if the entry was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean removeOrphanTransaction(EntryType type, String txId, long metaDataHash) {
+		final boolean server = type == EntryType.SERVER_TRANSACTION;
+		final IMap<String, Object> transactions = server ? serverTransactions : clientTransactions;
+		final IMap<String, Object> transactionsApp = server ? serverTransactionsApp : clientTransactionsApp;
+		transactions.lock(txId);
+		try {
+			final Map<String, Object> metaData = (Map<String, Object>) transactions.get(txId);
+			if (metaData == null) {
+				if (metaDataHash != 0 || !transactionsApp.containsKey(txId)) {
+					return false;
+				}
+				transactionsApp.delete(txId);
+				return true;
+			}
+			final String dialogId = (String) metaData.get(server ? MobicentsHASIPServerTransaction.DIALOG_ID : MobicentsHASIPClientTransaction.DIALOG_ID);
+			if (metaData.hashCode() != metaDataHash || dialogId == null || dialogCacheData.containsDialog(dialogId)) {
+				return false;
+			}
+			transactions.delete(txId);
+			transactionsApp.delete(txId);
+			return true;
+		} finally {
+			transactions.unlock(txId);
+		}
+	}
+}
@@ -10,11 +10,16 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import com.hazelcast.core.IMap;
@@ -64,18 +69,63 @@ public class SIPClientTransactionCacheData {
 			
 			// metadata
 			Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
-			clientTransactions.put(clientTransaction.getTransactionId(), metaData);
+			put(clientTransactions, clientTransaction.getTransactionId(), metaData);
 			
 			// app data
 			final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
 			if(transactionAppData != null) {
-				clientTransactionsApp.put(clientTransaction.getTransactionId(), transactionAppData);
+				put(clientTransactionsApp, clientTransaction.getTransactionId(), transactionAppData);
 			}
 		} catch (Exception e) {
 			throw new SipCacheException(e);
 		}
 	}
 	
+	/**
+	 * @return the transaction cache TTL of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheTTL() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheTTL() : 0;
+	}
+	
+	/**
+	 * Transactions are stored with the TTL of the stack, so that the ones never removed 
+	 * because their node crashed don't stay in the cache forever
+	 */
+	private void put(IMap<String, Object> map, String txId, Object value) {
+		final long ttl = getTransactionCacheTTL();
+		if (ttl > 0) {
+			map.put(txId, value, ttl, TimeUnit.MILLISECONDS);
+		} else {
+			map.put(txId, value);
+		}
+	}
+	
+	/**
+	 * Same as {@link #putClientTransaction(SIPClientTransaction)} without waiting for the writes,
+	 * the meta data being read on the calling thread
+	 */
+	public List<Future<?>> putClientTransactionAsync(SIPClientTransaction clientTransaction) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransactionAsync(" + clientTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPClientTransaction haClientTransaction = (MobicentsHASIPClientTransaction) clientTransaction;
+		final List<Future<?>> puts = new ArrayList<Future<?>>(2);
+		puts.add(putAsync(clientTransactions, clientTransaction.getTransactionId(), haClientTransaction.getMetaDataToReplicate()));
+		final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
+		if(transactionAppData != null) {
+			puts.add(putAsync(clientTransactionsApp, clientTransaction.getTransactionId(), transactionAppData));
+		}
+		return puts;
+	}
+	private Future<Object> putAsync(IMap<String, Object> map, String txId, Object value) {
+		final long ttl = getTransactionCacheTTL();
+		if (ttl > 0) {
+			return map.putAsync(txId, value, ttl, TimeUnit.MILLISECONDS);
+		}
+		return map.putAsync(txId, value);
+	}
+	
 	public void removeClientTransaction(String txId) 
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
@@ -83,6 +133,14 @@ public class SIPClientTransactionCacheData {
 		clientTransactions.remove(txId);
 		clientTransactionsApp.remove(txId);
 	}
+	public List<Future<?>> removeClientTransactionAsync(String txId) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransactionAsync(" + txId + ")");
+		final List<Future<?>> removals = new ArrayList<Future<?>>(2);
+		removals.add(clientTransactions.removeAsync(txId));
+		removals.add(clientTransactionsApp.removeAsync(txId));
+		return removals;
+	}
 	
 	public MobicentsHASIPClientTransaction createClientTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
 		MobicentsHASIPClientTransaction haClientTransaction = null; 
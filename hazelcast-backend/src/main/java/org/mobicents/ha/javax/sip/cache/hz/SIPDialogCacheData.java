@@ -7,8 +7,19 @@ import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -16,73 +27,667 @@ import javax.sip.address.Address;
 import javax.sip.header.ContactHeader;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
+import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.query.Predicate;
+import com.hazelcast.query.Predicates;
 
 public class SIPDialogCacheData {
+	// the owner is the value itself in the dialog owners map
+	public static final String OWNER_ATTRIBUTE = "this";
 
 	private ClusteredSipStack stack;
 	private StackLogger clusteredlogger;
-	private IMap<String, Object> dialogs;
-	private IMap<String, Object> appDataMap;
+	private IMap<Object, Object> dialogs;
+	private IMap<Object, Object> appDataMap;
+	private IMap<Object, String> dialogOwners;
+	private PartitionService partitionService;
+	private boolean callIdPartitioning;
+	private boolean singleEntry;
+	private boolean legacyFormat;
+	private long timeToLive;
+	private boolean maxIdle;
 	
 	public SIPDialogCacheData(ClusteredSipStack s, 
-			IMap<String, Object> dialogCache,
-			IMap<String, Object> dialogAppCache) {
+			IMap<Object, Object> dialogCache,
+			IMap<Object, Object> dialogAppCache,
+			boolean partitionOnCallId,
+			boolean singleDialogEntry) {
+		this(s, dialogCache, dialogAppCache, partitionOnCallId, singleDialogEntry, false);
+	}
+	
+	/**
+	 * @param legacyWriteFormat true to store the meta data of the dialogs as the map read by the previous releases, 
+	 * ignored if single entries are used
+	 */
+	public SIPDialogCacheData(ClusteredSipStack s, 
+			IMap<Object, Object> dialogCache,
+			IMap<Object, Object> dialogAppCache,
+			boolean partitionOnCallId,
+			boolean singleDialogEntry,
+			boolean legacyWriteFormat) {
 		stack = s;
 		clusteredlogger = s.getStackLogger();
 		dialogs = dialogCache;
 		appDataMap = dialogAppCache;
+		callIdPartitioning = partitionOnCallId;
+		singleEntry = singleDialogEntry;
+		legacyFormat = legacyWriteFormat && !singleDialogEntry;
+	}
+	
+	/**
+	 * @param dialogOwners the map holding the owner of each dialog, with the same keys as the dialogs and indexed on its values
+	 */
+	public void setDialogOwners(IMap<Object, String> dialogOwners) {
+		this.dialogOwners = dialogOwners;
+	}
+	
+	/**
+	 * An entry processor can't set the TTL of the dialog entry, so the dialogs expire map wide.
+	 * The application data and owner entries get the TTL of the dialogs map so that they don't outlive 
+	 * or expire before the dialog entry, whatever the configuration of their own maps.
+	 * @param timeToLive the TTL of the dialogs map in milliseconds, 0 if the dialogs don't expire
+	 * @param maxIdle true if the dialogs map has a max idle time, the owner being then written on each replication
+	 */
+	public void setExpiry(long timeToLive, boolean maxIdle) {
+		this.timeToLive = timeToLive;
+		this.maxIdle = maxIdle;
+	}
+	
+	/**
+	 * @param partitionService used to group the dialogs written at once by the member owning them
+	 */
+	public void setPartitionService(PartitionService partitionService) {
+		this.partitionService = partitionService;
+	}
+	
+	/**
+	 * @return the key of the dialog in the maps, partitioned on its Call-ID if enabled
+	 */
+	private Object getKey(String dialogId) {
+		return callIdPartitioning ? CallIdPartitionKey.fromDialogId(dialogId) : dialogId;
+	}
+	
+	/**
+	 * @return the id of the dialog stored under the given key
+	 */
+	public static String getDialogId(Object key) {
+		return key instanceof CallIdPartitionKey ? ((CallIdPartitionKey) key).getKey() : (String) key;
+	}
+	
+	public boolean containsDialog(String dialogId) {
+		return dialogs.containsKey(getKey(dialogId));
+	}
+	
+	/**
+	 * Removes a dialog owned by a node that left the cluster along with its other entries, 
+	 * only if it still has the version seen orphan and its owner is still not in the cluster.
+	 * The dialog is locked meanwhile so that no write of the dialog is applied between the check and the removal.
+	 * @return true if the dialog was removed
+	 */
+	public boolean removeOrphanDialog(String dialogId, long version, Set<String> nodeIds) throws SipCacheException {
+		final Object key = getKey(dialogId);
+		dialogs.lock(key);
+		try {
+			final Object dialogMetaData = dialogs.get(key);
+			if (dialogMetaData == null || DialogStateCodec.readStoredVersion(dialogMetaData) != version) {
+				return false;
+			}
+			String owner = DialogStateCodec.readStoredOwner(dialogMetaData);
+			if (owner == null && dialogOwners != null) {
+				owner = dialogOwners.get(key);
+			}
+			if (owner == null || nodeIds.contains(owner)) {
+				return false;
+			}
+			dialogs.delete(key);
+			appDataMap.delete(key);
+			if (dialogOwners != null) {
+				dialogOwners.delete(key);
+			}
+			return true;
+		} finally {
+			dialogs.unlock(key);
+		}
+	}
+	
+	/**
+	 * Removes the application data of a dialog whose meta data isn't in the cache anymore,
+	 * the dialog is locked meanwhile so that it can't be written between the check and the removal
+	 * @return true if the application data was removed
+	 */
+	public boolean removeApplicationData(String dialogId) {
+		final Object key = getKey(dialogId);
+		dialogs.lock(key);
+		try {
+			if (dialogs.containsKey(key)) {
+				return false;
+			}
+			appDataMap.delete(key);
+			return true;
+		} finally {
+			dialogs.unlock(key);
+		}
+	}
+	
+	/**
+	 * Removes the owner index entry of a dialog that isn't in the cache anymore,
+	 * the dialog is locked meanwhile so that it can't be written between the check and the removal
+	 * @return true if the owner index entry was removed
+	 */
+	public boolean removeDialogOwner(String dialogId) {
+		if (dialogOwners == null) {
+			return false;
+		}
+		final Object key = getKey(dialogId);
+		dialogs.lock(key);
+		try {
+			if (dialogs.containsKey(key)) {
+				return false;
+			}
+			dialogOwners.delete(key);
+			return true;
+		} finally {
+			dialogs.unlock(key);
+		}
+	}
+	
+	/**
+	 * Reads the meta data and application data of the dialog, 
+	 * either from its single entry or from both maps in parallel
+	 */
+	private Object[] getDialogEntries(String dialogId) throws SipCacheException {
+		final Object key = getKey(dialogId);
+		Object[] entries = null;
+		if(singleEntry) {
+			final Object value = dialogs.get(key);
+			if(value == null || value instanceof DialogCacheEntry) {
+				entries = new Object[] {value, null};
+			} else {
+				// meta data stored by a previous release, its application data is in its own map until the next replication
+				entries = new Object[] {value, appDataMap.get(key)};
+			}
+		} else {
+			// both entries share the key and so the partition, the two reads go to the same member
+			final Future<Object> metaData = dialogs.getAsync(key);
+			final Future<Object> appData = appDataMap.getAsync(key);
+			try {
+				entries = new Object[] {metaData.get(), appData.get()};
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SipCacheException("Interrupted while retrieving the following dialog " + dialogId + " from the Cache", e);
+			} catch (ExecutionException e) {
+				throw new SipCacheException("A problem occured while retrieving the following dialog " + dialogId + " from the Cache", e.getCause());
+			}
+		}
+		if(entries[0] instanceof DialogCacheEntry) {
+			final DialogCacheEntry entry = (DialogCacheEntry) entries[0];
+			entries[0] = entry.getMetaData();
+			entries[1] = entry.getApplicationData();
+		}
+		return entries;
 	}
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logTrace("getDialog("+ dialogId +")");
 		
-		Object metaData = dialogs.get(dialogId);
-		Object appData = appDataMap.get(dialogId);
+		final Object[] entries = getDialogEntries(dialogId);
+		final Object metaData = entries[0];
+		final Object appData = entries[1];
 		if (metaData != null) {
-			return (SIPDialog) createDialog(dialogId, (Map<String, Object>) metaData, appData);
+			return (SIPDialog) createDialog(dialogId, DialogStateCodec.asMap(metaData), appData);
 			
 		} else {
 			return null;
 		}
 	}
 	
-	public void putDialog(SIPDialog dialog) throws SipCacheException {
+	/**
+	 * Same as {@link #getDialog(String)} without blocking the calling thread, 
+	 * the dialog is built by the thread completing the last read of its entries
+	 */
+	public Future<SIPDialog> getDialogAsync(final String dialogId) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logTrace("getDialogAsync("+ dialogId +")");
+		
+		final SettableCompletableFuture<SIPDialog> dialog = new SettableCompletableFuture<SIPDialog>();
+		final Object key = getKey(dialogId);
+		// both entries share the key and so the partition, the two reads go to the same member
+		final Future<Object> appData = singleEntry ? null : appDataMap.getAsync(key);
+		SettableCompletableFuture.andThen(dialogs.getAsync(key), new ExecutionCallback<Object>() {
+			public void onResponse(final Object metaData) {
+				if (metaData == null || metaData instanceof DialogCacheEntry) {
+					completeDialog(dialog, dialogId, metaData, null);
+					return;
+				}
+				// with single entries, meta data stored by a previous release has its application data in its own map until the next replication
+				SettableCompletableFuture.andThen(appData != null ? appData : appDataMap.getAsync(key), new ExecutionCallback<Object>() {
+					public void onResponse(Object dialogAppData) {
+						completeDialog(dialog, dialogId, metaData, dialogAppData);
+					}
+					public void onFailure(Throwable t) {
+						dialog.complete(null, t);
+					}
+				});
+			}
+			public void onFailure(Throwable t) {
+				dialog.complete(null, t);
+			}
+		});
+		return dialog;
+	}
+	
+	private void completeDialog(SettableCompletableFuture<SIPDialog> dialog, String dialogId, Object metaData, Object appData) {
+		if (metaData == null) {
+			dialog.complete(null, null);
+			return;
+		}
+		if (metaData instanceof DialogCacheEntry) {
+			appData = ((DialogCacheEntry) metaData).getApplicationData();
+			metaData = ((DialogCacheEntry) metaData).getMetaData();
+		}
+		try {
+			dialog.complete((SIPDialog) createDialog(dialogId, DialogStateCodec.asMap(metaData), appData), null);
+		} catch (SipCacheException e) {
+			dialog.complete(null, e);
+		}
+	}
+	
+	/**
+	 * @return false if the cache holds a version of the dialog at least as recent, in which case nothing was written
+	 */
+	public boolean putDialog(SIPDialog dialog) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
 			clusteredlogger.logDebug("putDialog(" + dialog.getDialogId() + ")");
 		}
 		
-		final HASipDialog haSipDialog = (HASipDialog) dialog;
+		return writeDialog((HASipDialog) dialog);
+	}
+	
+	boolean writeDialog(HASipDialog haSipDialog) throws SipCacheException {
+		byte[] dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(); 
+		final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
+		final Object key = getKey(haSipDialog.getDialogIdToReplicate());
+		if (dialogMetaData == null) {
+			if (dialogAppData != null && !singleEntry) {
+				// no meta data to check the version against
+				set(appDataMap, key, dialogAppData, timeToLive);
+			}
+			return true;
+		}
+		// version check and merge are done on the partition owner in a single call
+		Object result = dialogs.executeOnKey(key, newEntryProcessor(dialogMetaData, dialogAppData));
+		if (DialogMetaDataEntryProcessor.NOT_FOUND.equals(result)) {
+			// a delta can't be applied if the entry is not in the cache anymore, replicate the full state instead
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + getDialogId(key) + " not found in the cache, replicating its full state");
+			}
+			dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(true);
+			result = dialogs.executeOnKey(key, newEntryProcessor(dialogMetaData, dialogAppData));
+		}
+		if (DialogMetaDataEntryProcessor.LEGACY_APPLICATION_DATA.equals(result)) {
+			result = applyOverLegacyEntry(key, dialogMetaData, dialogAppData);
+		}
+		checkResult(key, result);
+		if (!DialogMetaDataEntryProcessor.isApplied(result)) {
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + getDialogId(key) + " version " + haSipDialog.getVersion() + " is not newer than the one in the cache, not replicating it");
+			}
+			return false;
+		}
+		final List<Future<?>> writes = writeDependentEntriesAsync(key, dialogMetaData, dialogAppData, result);
+		try {
+			for (Future<?> write : writes) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SipCacheException("Interrupted while putting the following dialog " + getDialogId(key) + " into the Cache", e);
+		} catch (ExecutionException e) {
+			throw new SipCacheException("A problem occured while putting the following dialog " + getDialogId(key) + " into the Cache", e.getCause());
+		}
+		return true;
+	}
+	
+	/**
+	 * Same as {@link #putDialog(SIPDialog)} without blocking the calling thread
+	 * @return the write of the dialog, completed with false if the cache holds a version of the dialog at least as recent
+	 */
+	public Future<Boolean> putDialogAsync(SIPDialog dialog) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogAsync(" + dialog.getDialogId() + ")");
+		}
 		
-		Object dialogMetaData = haSipDialog.getMetaDataToReplicate(); 
-		if (dialogMetaData != null) {
-			if (dialogs.containsKey(dialog.getDialogId())) {
-				Map<String, Object> cachedMetaData = (Map<String, Object>)dialogs.get(dialog.getDialogId());
-				Long currentVersion = (Long)((Map<String, Object>)dialogMetaData).get(AbstractHASipDialog.VERSION);
-				Long cacheVersion = (Long)((Map<String, Object>)cachedMetaData).get(AbstractHASipDialog.VERSION);
-				if ( cacheVersion.longValue() < currentVersion.longValue()) {
-					for(Entry<String, Object> e : ((Map<String, Object>)dialogMetaData).entrySet()) {
-						cachedMetaData.put(e.getKey(), e.getValue());
+		return writeDialogAsync((HASipDialog) dialog);
+	}
+	
+	Future<Boolean> writeDialogAsync(HASipDialog haSipDialog) {
+		final DialogWrite write = new DialogWrite(haSipDialog);
+		write.start();
+		return write.written;
+	}
+	
+	/**
+	 * The write of a dialog, each call being issued from the callback of the previous one: 
+	 * the merge of its meta data on the partition owner, the merge of its full state if the entry of a delta wasn't found,
+	 * the move of the application data of an entry stored by a previous release, and then the writes of its other entries
+	 */
+	private class DialogWrite implements ExecutionCallback<Object> {
+		private final SettableCompletableFuture<Boolean> written = new SettableCompletableFuture<Boolean>();
+		private final HASipDialog dialog;
+		private final Object key;
+		private final Object dialogAppData;
+		private byte[] dialogMetaData;
+		private boolean fullStateResent;
+		
+		DialogWrite(HASipDialog dialog) {
+			this.dialog = dialog;
+			this.key = getKey(dialog.getDialogIdToReplicate());
+			this.dialogAppData = dialog.getApplicationDataToReplicate();
+		}
+		
+		void start() {
+			dialogMetaData = dialog.getEncodedMetaDataToReplicate();
+			if (dialogMetaData != null) {
+				// version check and merge are done on the partition owner in a single call
+				dialogs.submitToKey(key, newEntryProcessor(dialogMetaData, dialogAppData), this);
+			} else if (dialogAppData != null && !singleEntry) {
+				// no meta data to check the version against
+				completeOnceWritten(Collections.<Future<?>>singletonList(putAsync(appDataMap, key, dialogAppData, timeToLive)));
+			} else {
+				written.complete(Boolean.TRUE, null);
+			}
+		}
+		
+		public void onResponse(Object result) {
+			if (DialogMetaDataEntryProcessor.NOT_FOUND.equals(result) && !fullStateResent) {
+				// a delta can't be applied if the entry is not in the cache anymore, replicate the full state instead
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("dialog " + getDialogId(key) + " not found in the cache, replicating its full state");
+				}
+				fullStateResent = true;
+				dialogMetaData = dialog.getEncodedMetaDataToReplicate(true);
+				dialogs.submitToKey(key, newEntryProcessor(dialogMetaData, dialogAppData), this);
+				return;
+			}
+			if (DialogMetaDataEntryProcessor.LEGACY_APPLICATION_DATA.equals(result)) {
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("dialog " + getDialogId(key) + " stored by a previous release, moving its application data into its entry");
+				}
+				SettableCompletableFuture.andThen(appDataMap.getAsync(key), new ExecutionCallback<Object>() {
+					public void onResponse(Object legacyAppData) {
+						dialogs.submitToKey(key, new DialogMetaDataEntryProcessor(dialogMetaData, dialogAppData, singleEntry, legacyAppData), DialogWrite.this);
+					}
+					public void onFailure(Throwable t) {
+						DialogWrite.this.onFailure(t);
 					}
-					dialogs.replace(dialog.getDialogId(), cachedMetaData);
+				});
+				return;
+			}
+			try {
+				checkResult(key, result);
+				if (!DialogMetaDataEntryProcessor.isApplied(result)) {
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + getDialogId(key) + " version " + dialog.getVersion() + " is not newer than the one in the cache, not replicating it");
+					}
+					written.complete(Boolean.FALSE, null);
+					return;
 				}
-				
-			} else {
-				dialogs.put(dialog.getDialogId(), dialogMetaData);
+				completeOnceWritten(writeDependentEntriesAsync(key, dialogMetaData, dialogAppData, result));
+			} catch (SipCacheException e) {
+				written.complete(null, e);
+			}
+		}
+		
+		public void onFailure(Throwable t) {
+			written.complete(null, t);
+		}
+		
+		private void completeOnceWritten(List<Future<?>> writes) {
+			final AtomicInteger pending = new AtomicInteger(writes.size());
+			if (writes.isEmpty()) {
+				written.complete(Boolean.TRUE, null);
+				return;
+			}
+			for (Future<?> write : writes) {
+				SettableCompletableFuture.andThen(write, new ExecutionCallback<Object>() {
+					public void onResponse(Object response) {
+						if (pending.decrementAndGet() == 0) {
+							written.complete(Boolean.TRUE, null);
+						}
+					}
+					public void onFailure(Throwable t) {
+						written.complete(null, t);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Writes the owner and application data entries of a dialog once its meta data was applied, 
+	 * rather than from the partition thread applying it. The entries share the key and so the partition of the dialog entry.
+	 * Unlike the meta data, application data stored in its own entry isn't versioned, 
+	 * two nodes writing the same dialog at once may leave the application data of either, single entries don't have this issue.
+	 * @param result the result of the entry processor, {@link DialogMetaDataEntryProcessor#MIGRATED} removing the application data entry
+	 * @return the writes of the entries
+	 */
+	private List<Future<?>> writeDependentEntriesAsync(Object key, byte[] dialogMetaData, Object dialogAppData, Object result) throws SipCacheException {
+		final List<Future<?>> writes = new ArrayList<Future<?>>(2);
+		if (dialogOwners != null) {
+			final String owner = getOwnerToWrite(dialogMetaData, timeToLive);
+			if (owner != null) {
+				writes.add(putAsync(dialogOwners, key, owner, timeToLive));
 			}
 		}
+		if (DialogMetaDataEntryProcessor.MIGRATED.equals(result)) {
+			// the application data is in the single entry from now on
+			writes.add(appDataMap.removeAsync(key));
+		} else if (dialogAppData != null && !singleEntry) {
+			writes.add(putAsync(appDataMap, key, dialogAppData, timeToLive));
+		}
+		return writes;
+	}
+	
+	/**
+	 * Writes several dialogs with one call per member owning some of them instead of one call per dialog,
+	 * each member receiving only the meta data of its own dialogs. 
+	 * The owners and application data of the dialogs applied are then written with a putAll per map.
+	 * @return the dialogs not written because the cache holds a version at least as recent
+	 */
+	public Collection<SIPDialog> putDialogs(Collection<SIPDialog> sipDialogs) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogs(" + sipDialogs.size() + ")");
+		}
 		
-		Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
-		if (dialogAppData != null) {
-			if (appDataMap.containsKey(dialog.getDialogId()))
-				appDataMap.replace(dialog.getDialogId(), dialogAppData);
-			else 
-				appDataMap.put(dialog.getDialogId(), dialogAppData);
+		final List<HASipDialog> haSipDialogs = new ArrayList<HASipDialog>(sipDialogs.size());
+		for (SIPDialog dialog : sipDialogs) {
+			haSipDialogs.add((HASipDialog) dialog);
+		}
+		final Collection<HASipDialog> outdated = writeDialogs(haSipDialogs);
+		final List<SIPDialog> outdatedDialogs = new ArrayList<SIPDialog>(outdated.size());
+		for (HASipDialog dialog : outdated) {
+			outdatedDialogs.add((SIPDialog) dialog);
+		}
+		return outdatedDialogs;
+	}
+	
+	Collection<HASipDialog> writeDialogs(Collection<HASipDialog> haSipDialogs) throws SipCacheException {
+		final Map<Object, HASipDialog> dialogsPerKey = new HashMap<Object, HASipDialog>();
+		final Map<Object, Object> appDataPerKey = new HashMap<Object, Object>();
+		final Map<Member, Map<Object, Object[]>> updatesPerMember = new HashMap<Member, Map<Object, Object[]>>();
+		final Map<Object, Object> appData = new HashMap<Object, Object>();
+		for (HASipDialog haSipDialog : haSipDialogs) {
+			final byte[] dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(); 
+			final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
+			final Object key = getKey(haSipDialog.getDialogIdToReplicate());
+			dialogsPerKey.put(key, haSipDialog);
+			if (dialogMetaData != null) {
+				// the owner may be null while the partition migrates, the keys are still routed by Hazelcast
+				final Member member = partitionService.getPartition(key).getOwner();
+				Map<Object, Object[]> updates = updatesPerMember.get(member);
+				if (updates == null) {
+					updates = new HashMap<Object, Object[]>();
+					updatesPerMember.put(member, updates);
+				}
+				// the application data only goes to the partition owners when it is part of the dialog entries
+				updates.put(key, new Object[] {dialogMetaData, singleEntry ? dialogAppData : null});
+				appDataPerKey.put(key, dialogAppData);
+			} else if (dialogAppData != null && !singleEntry) {
+				// no meta data to check the version against
+				appData.put(key, dialogAppData);
+			}
+		}
+		
+		final List<HASipDialog> outdated = new ArrayList<HASipDialog>();
+		final Map<Object, String> owners = new HashMap<Object, String>();
+		final List<Object> migrated = new ArrayList<Object>();
+		for (Map<Object, Object[]> updates : updatesPerMember.values()) {
+			final Map<Object, Object> results = dialogs.executeOnKeys(updates.keySet(), new DialogBatchMetaDataEntryProcessor(updates, singleEntry, legacyFormat));
+			for (Entry<Object, Object[]> update : updates.entrySet()) {
+				final Object key = update.getKey();
+				final HASipDialog haSipDialog = dialogsPerKey.get(key);
+				final Object dialogAppData = appDataPerKey.get(key);
+				byte[] dialogMetaData = (byte[]) update.getValue()[0];
+				Object result = results.get(key);
+				if (DialogMetaDataEntryProcessor.NOT_FOUND.equals(result)) {
+					// same as putDialog, the few dialogs not found anymore are written one by one with their full state
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + getDialogId(key) + " not found in the cache, replicating its full state");
+					}
+					dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(true);
+					result = dialogs.executeOnKey(key, newEntryProcessor(dialogMetaData, dialogAppData));
+				}
+				if (DialogMetaDataEntryProcessor.LEGACY_APPLICATION_DATA.equals(result)) {
+					result = applyOverLegacyEntry(key, dialogMetaData, dialogAppData);
+				}
+				checkResult(key, result);
+				if (!DialogMetaDataEntryProcessor.isApplied(result)) {
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + getDialogId(key) + " version " + haSipDialog.getVersion() + " is not newer than the one in the cache, not replicating it");
+					}
+					outdated.add(haSipDialog);
+					continue;
+				}
+				if (dialogOwners != null) {
+					final String owner = getOwnerToWrite(dialogMetaData, timeToLive);
+					if (owner != null) {
+						owners.put(key, owner);
+					}
+				}
+				if (DialogMetaDataEntryProcessor.MIGRATED.equals(result)) {
+					migrated.add(key);
+				} else if (dialogAppData != null && !singleEntry) {
+					appData.put(key, dialogAppData);
+				}
+			}
+		}
+		
+		if (!owners.isEmpty()) {
+			putAll(dialogOwners, owners, timeToLive);
+		}
+		if (!appData.isEmpty()) {
+			putAll(appDataMap, appData, timeToLive);
+		}
+		for (Object key : migrated) {
+			// the application data is in the single entry from now on
+			appDataMap.delete(key);
+		}
+		return outdated;
+	}
+	
+	/**
+	 * Writes a dialog over an entry stored by a previous release, 
+	 * along with the application data that release stored in its own map so that it is kept in the single entry
+	 */
+	private Object applyOverLegacyEntry(Object key, byte[] dialogMetaData, Object dialogAppData) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("dialog " + getDialogId(key) + " stored by a previous release, moving its application data into its entry");
+		}
+		return dialogs.executeOnKey(key, new DialogMetaDataEntryProcessor(dialogMetaData, dialogAppData, singleEntry, appDataMap.get(key)));
+	}
+	
+	/**
+	 * @return the processor merging the meta data of a dialog, along with its application data when single entries are used
+	 */
+	private DialogMetaDataEntryProcessor newEntryProcessor(byte[] dialogMetaData, Object dialogAppData) {
+		return new DialogMetaDataEntryProcessor(dialogMetaData, singleEntry ? dialogAppData : null, singleEntry, legacyFormat);
+	}
+	
+	/**
+	 * @throws SipCacheException if the entry processor couldn't decode the meta data
+	 */
+	private static void checkResult(Object key, Object result) throws SipCacheException {
+		if (result instanceof SipCacheException) {
+			throw new SipCacheException("A problem occured while putting the following dialog " + getDialogId(key) + " into the Cache", (SipCacheException) result);
+		}
+	}
+	
+	/**
+	 * @return the owner to write along the meta data of a dialog, null if it doesn't need to be written
+	 */
+	private String getOwnerToWrite(byte[] dialogMetaData, long cacheTTL) throws SipCacheException {
+		// the owner is only part of the meta data when it changed, 
+		// it is still written when it expires so that it lives as long as the dialog
+		final String owner = DialogStateCodec.readOwner(dialogMetaData);
+		if (owner == null && (cacheTTL > 0 || maxIdle) && stack instanceof ClusteredSipStackExt) {
+			return ((ClusteredSipStackExt) stack).getNodeId();
+		}
+		return owner;
+	}
+	
+	/**
+	 * putAll only applies the TTL of the map configuration, the values are put asynchronously when they get their own TTL
+	 */
+	private static <V> void putAll(IMap<Object, V> map, Map<Object, V> values, long ttl) throws SipCacheException {
+		if (ttl <= 0) {
+			map.putAll(values);
+			return;
+		}
+		final List<Future<V>> puts = new ArrayList<Future<V>>();
+		for (Entry<Object, V> value : values.entrySet()) {
+			puts.add(map.putAsync(value.getKey(), value.getValue(), ttl, TimeUnit.MILLISECONDS));
+		}
+		try {
+			for (Future<V> put : puts) {
+				put.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SipCacheException("Interrupted while writing " + values.size() + " entries to " + map.getName(), e);
+		} catch (ExecutionException e) {
+			throw new SipCacheException("A problem occured while writing " + values.size() + " entries to " + map.getName(), e.getCause());
+		}
+	}
+	
+	/**
+	 * Same as {@link #set(IMap, Object, Object, long)} without waiting for the write
+	 */
+	private static <V> Future<V> putAsync(IMap<Object, V> map, Object key, V value, long ttl) {
+		if (ttl > 0) {
+			return map.putAsync(key, value, ttl, TimeUnit.MILLISECONDS);
+		}
+		return map.putAsync(key, value);
+	}
+	
+	/**
+	 * a TTL of 0 given to Hazelcast would mean no expiry, overriding the one of the map configuration
+	 */
+	private static <V> void set(IMap<Object, V> map, Object key, V value, long ttl) {
+		if (ttl > 0) {
+			map.set(key, value, ttl, TimeUnit.MILLISECONDS);
+		} else {
+			map.set(key, value);
 		}
 	}
 	
@@ -91,24 +696,67 @@ public class SIPDialogCacheData {
 			clusteredlogger.logDebug("updateDialog(" + dialog.getDialogId() + ")");
 		
 		final HASipDialog haSipDialog = (HASipDialog) dialog;
-		final Object dialogMetaData = dialogs.get(dialog.getDialogId());
-		final Object dialogAppData = appDataMap.get(dialog.getDialogId()); 
+		// probe the version first, the full state is only fetched if the cached one is newer
+		final Object result = dialogs.executeOnKey(getKey(dialog.getDialogId()), new DialogVersionEntryProcessor());
+		if(result instanceof SipCacheException) {
+			throw new SipCacheException("A problem occured while retrieving the following dialog " + dialog.getDialogId() + " from the Cache", (SipCacheException) result);
+		}
+		final Long cacheVersion = (Long) result;
+		if(cacheVersion == null || cacheVersion.longValue() <= haSipDialog.getVersion()) {
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("HA SIP Dialog " + dialog.getDialogId() + " version " + haSipDialog.getVersion() + " is not older than the one in the cache " + cacheVersion + ", not updating it");
+			}
+			return;
+		}
+		final Object[] entries = getDialogEntries(dialog.getDialogId());
 	    
-		updateDialog(haSipDialog, (Map<String, Object>)dialogMetaData, dialogAppData);
+		updateDialog(haSipDialog, DialogStateCodec.asMap(entries[0]), entries[1]);
 	}
 	
 	public void removeDialog(String dialogId) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("removeDialog(" + dialogId + ")");
 		
-		dialogs.remove(dialogId);
+		final Object key = getKey(dialogId);
+		dialogs.remove(key);
+		appDataMap.delete(key);
+		if (dialogOwners != null) {
+			dialogOwners.delete(key);
+		}
 	}
 	
-	public void evictDialog(String dialogId) {
+	public List<Future<?>> removeDialogAsync(String dialogId) {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
-			clusteredlogger.logDebug("evictDialog(" + dialogId + ")");
+			clusteredlogger.logDebug("removeDialogAsync(" + dialogId + ")");
 		
-		dialogs.remove(dialogId);
+		final Object key = getKey(dialogId);
+		final List<Future<?>> removals = new ArrayList<Future<?>>(3);
+		removals.add(dialogs.removeAsync(key));
+		removals.add(appDataMap.removeAsync(key));
+		if (dialogOwners != null) {
+			removals.add(dialogOwners.removeAsync(key));
+		}
+		return removals;
+	}
+	
+	/**
+	 * Queries the index of the dialog owners map, without reading the dialogs themselves
+	 * @param ownerId the id of the owner node
+	 * @param localOnly true to only get the dialogs whose primary copy is stored on this member
+	 * @return the ids of the dialogs owned by the node
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException {
+		if (dialogOwners == null) {
+			throw new SipCacheException("No dialog owners map");
+		}
+		final Predicate predicate = Predicates.equal(OWNER_ATTRIBUTE, ownerId);
+		final Set<Object> keys = localOnly ? dialogOwners.localKeySet(predicate) : dialogOwners.keySet(predicate);
+		final Set<String> dialogIds = new HashSet<String>(keys.size());
+		for (Object key : keys) {
+			dialogIds.add(getDialogId(key));
+		}
+		return dialogIds;
 	}
 	
 	private HASipDialog createDialog(String dialogId, Map<String, Object> dialogMetaData, 
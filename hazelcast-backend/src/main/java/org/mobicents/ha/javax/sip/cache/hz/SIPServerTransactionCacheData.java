@@ -10,11 +10,16 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import com.hazelcast.core.IMap;
@@ -64,18 +69,63 @@ public class SIPServerTransactionCacheData {
 			
 			// meta data
 			Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
-			serverTransactions.put(serverTransaction.getTransactionId(), metaData);
+			put(serverTransactions, serverTransaction.getTransactionId(), metaData);
 			
 			// app data
 			final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
 			if(transactionAppData != null) {
-				serverTransactionsApp.put(serverTransaction.getTransactionId(), transactionAppData);
+				put(serverTransactionsApp, serverTransaction.getTransactionId(), transactionAppData);
 			}
 		} catch (Exception e) {
 			throw new SipCacheException(e);
 		}
 	}
 
+	/**
+	 * @return the transaction cache TTL of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheTTL() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheTTL() : 0;
+	}
+	
+	/**
+	 * Transactions are stored with the TTL of the stack, so that the ones never removed 
+	 * because their node crashed don't stay in the cache forever
+	 */
+	private void put(IMap<String, Object> map, String txId, Object value) {
+		final long ttl = getTransactionCacheTTL();
+		if (ttl > 0) {
+			map.put(txId, value, ttl, TimeUnit.MILLISECONDS);
+		} else {
+			map.put(txId, value);
+		}
+	}
+	
+	/**
+	 * Same as {@link #putServerTransaction(SIPServerTransaction)} without waiting for the writes,
+	 * the meta data being read on the calling thread
+	 */
+	public List<Future<?>> putServerTransactionAsync(SIPServerTransaction serverTransaction) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransactionAsync(" + serverTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPServerTransaction haServerTransaction = (MobicentsHASIPServerTransaction) serverTransaction;
+		final List<Future<?>> puts = new ArrayList<Future<?>>(2);
+		puts.add(putAsync(serverTransactions, serverTransaction.getTransactionId(), haServerTransaction.getMetaDataToReplicate()));
+		final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
+		if(transactionAppData != null) {
+			puts.add(putAsync(serverTransactionsApp, serverTransaction.getTransactionId(), transactionAppData));
+		}
+		return puts;
+	}
+	private Future<Object> putAsync(IMap<String, Object> map, String txId, Object value) {
+		final long ttl = getTransactionCacheTTL();
+		if (ttl > 0) {
+			return map.putAsync(txId, value, ttl, TimeUnit.MILLISECONDS);
+		}
+		return map.putAsync(txId, value);
+	}
+	
 	public void removeServerTransaction(String txId) 
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
@@ -83,6 +133,14 @@ public class SIPServerTransactionCacheData {
 		serverTransactions.remove(txId);
 		serverTransactionsApp.remove(txId);
 	}
+	public List<Future<?>> removeServerTransactionAsync(String txId) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransactionAsync(" + txId + ")");
+		final List<Future<?>> removals = new ArrayList<Future<?>>(2);
+		removals.add(serverTransactions.removeAsync(txId));
+		removals.add(serverTransactionsApp.removeAsync(txId));
+		return removals;
+	}
 	
 	public MobicentsHASIPServerTransaction createServerTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
 		MobicentsHASIPServerTransaction haServerTransaction = null; 
@@ -0,0 +1,166 @@
+/*
+ * TeleStax, Open Source Cloud Communications.
+ * Copyright 2011-2013 and individual contributors by the @authors tag.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.ICompletableFuture;
+
+/**
+ * Future of an operation made of several asynchronous calls, each one issued from the callback of the previous one,
+ * completed by the callback of the last one. It can't be cancelled.
+ */
+class SettableCompletableFuture<T> implements ICompletableFuture<T> {
+	private final CountDownLatch completion = new CountDownLatch(1);
+	private final List<Object[]> callbacks = new ArrayList<Object[]>(1);
+	private boolean done;
+	private T value;
+	private Throwable failure;
+
+	/**
+	 * Completes the future and calls back its callbacks
+	 * @param value the result of the operation, ignored if it failed
+	 * @param failure the cause of the failure of the operation, null if it succeeded
+	 * @return false if the future was already completed
+	 */
+	@SuppressWarnings("unchecked")
+	boolean complete(T value, Throwable failure) {
+		final List<Object[]> completionCallbacks;
+		synchronized (this) {
+			if(done) {
+				return false;
+			}
+			done = true;
+			this.value = value;
+			this.failure = failure;
+			completionCallbacks = new ArrayList<Object[]>(callbacks);
+			callbacks.clear();
+		}
+		completion.countDown();
+		for (Object[] callback : completionCallbacks) {
+			callBack((ExecutionCallback<T>) callback[0], (Executor) callback[1]);
+		}
+		return true;
+	}
+
+	public void andThen(ExecutionCallback<T> callback) {
+		andThen(callback, null);
+	}
+
+	public void andThen(ExecutionCallback<T> callback, Executor executor) {
+		synchronized (this) {
+			if(!done) {
+				callbacks.add(new Object[] {callback, executor});
+				return;
+			}
+		}
+		callBack(callback, executor);
+	}
+
+	private void callBack(final ExecutionCallback<T> callback, Executor executor) {
+		if(executor == null) {
+			respond(callback);
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				callBack(callback, null);
+			}
+		});
+	}
+
+	private void respond(ExecutionCallback<T> callback) {
+		final T result;
+		final Throwable cause;
+		synchronized (this) {
+			result = value;
+			cause = failure;
+		}
+		if(cause != null) {
+			callback.onFailure(cause);
+		} else {
+			callback.onResponse(result);
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		return completion.getCount() == 0;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		completion.await();
+		return result();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!completion.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private synchronized T result() throws ExecutionException {
+		if(failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	/**
+	 * Calls back once the future completed, from the thread completing it if it is an {@link ICompletableFuture},
+	 * from the calling thread once it completed otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	static <V> void andThen(Future<? extends V> future, ExecutionCallback<V> callback) {
+		if(future instanceof ICompletableFuture) {
+			((ICompletableFuture<V>) future).andThen(callback);
+			return;
+		}
+		final V result;
+		try {
+			result = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			callback.onFailure(e);
+			return;
+		} catch (ExecutionException e) {
+			callback.onFailure(e.getCause());
+			return;
+		}
+		callback.onResponse(result);
+	}
+}
@@ -52,6 +52,7 @@ import junit.framework.TestCase;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
 
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -993,8 +994,8 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs
+				.get(shootme1.dialog.getDialogId()));
 		Object data = appData.get(shootme1.dialog.getDialogId());
 
 		assertNotNull(dialogId);
@@ -1092,8 +1093,8 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs
+				.get(shootme1.dialog.getDialogId()));
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
@@ -52,6 +52,7 @@ import junit.framework.TestCase;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
 
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -987,7 +988,7 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs.get(shootme1.dialog.getDialogId()));
 		Object data = appData.get(shootme1.dialog.getDialogId());
 
 		assertNotNull(dialogId);
@@ -1123,7 +1124,7 @@ public class EarlyDialogRecoveryTest extends TestCase {
 		Thread.sleep(1000);
 		
 		// check dialog metada
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(dialogId);
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs.get(dialogId));
 		assertNotNull(cachedMetaData);
 		assertEquals(cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE), DialogState.TERMINATED.getValue());
 		
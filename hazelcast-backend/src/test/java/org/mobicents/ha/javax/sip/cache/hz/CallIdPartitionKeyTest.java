@@ -0,0 +1,32 @@
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that all the dialogs of a call are partitioned alike by the {@link CallIdPartitionKey}
+ */
+public class CallIdPartitionKeyTest extends TestCase {
+
+	public void testEarlyAndConfirmedDialogs() {
+		final CallIdPartitionKey early = CallIdPartitionKey.fromDialogId("a84b4c76e66710@pc33.atlanta.com:1928301774");
+		final CallIdPartitionKey confirmed = CallIdPartitionKey.fromDialogId("a84b4c76e66710@pc33.atlanta.com:1928301774:a6c85cf");
+		final CallIdPartitionKey forked = CallIdPartitionKey.fromDialogId("a84b4c76e66710@pc33.atlanta.com:1928301774:314159");
+		assertEquals(early.getPartitionKey(), confirmed.getPartitionKey());
+		assertEquals(early.getPartitionKey(), forked.getPartitionKey());
+		assertFalse(confirmed.equals(forked));
+	}
+
+	public void testCallIdWithColons() {
+		final CallIdPartitionKey early = CallIdPartitionKey.fromDialogId("a84b4c76e66710@[2001:db8::1]:5060:1928301774");
+		final CallIdPartitionKey confirmed = CallIdPartitionKey.fromDialogId("a84b4c76e66710@[2001:db8::1]:5060:1928301774:a6c85cf");
+		assertEquals(early.getPartitionKey(), confirmed.getPartitionKey());
+		assertEquals("a84b4c76e66710@[2001", confirmed.getPartitionKey());
+	}
+
+	public void testKeyIsDialogId() {
+		final CallIdPartitionKey key = CallIdPartitionKey.fromDialogId("callid:local:remote");
+		assertEquals("callid:local:remote", key.getKey());
+		assertEquals(key, CallIdPartitionKey.fromDialogId("callid:local:remote"));
+		assertEquals("callid:local:remote", SIPDialogCacheData.getDialogId(key));
+	}
+}
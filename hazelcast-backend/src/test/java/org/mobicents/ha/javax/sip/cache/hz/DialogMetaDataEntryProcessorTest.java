@@ -0,0 +1,133 @@
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+
+/**
+ * Checks the merge of the dialog meta data done on the partition owner by the {@link DialogMetaDataEntryProcessor}
+ */
+public class DialogMetaDataEntryProcessorTest extends TestCase {
+
+	private static byte[] fullState(long version) {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.setFullState(true);
+		codec.putLong(AbstractHASipDialog.VERSION, version);
+		codec.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		return codec.toByteArray();
+	}
+
+	private static byte[] delta(long version) {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.putLong(AbstractHASipDialog.VERSION, version);
+		codec.putLong(AbstractHASipDialog.LOCAL_CSEQ, version);
+		return codec.toByteArray();
+	}
+
+	private static Entry<Object, Object> entry(Object value) {
+		return new SimpleEntry<Object, Object>("dialog", value);
+	}
+
+	public void testBackupMergesMetaData() throws Exception {
+		final Entry<Object, Object> entry = entry(fullState(3));
+		final DialogMetaDataEntryProcessor processor = new DialogMetaDataEntryProcessor(delta(4));
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, processor.process(entry));
+
+		final Entry<Object, Object> backup = entry(fullState(3));
+		processor.getBackupProcessor().processBackup(backup);
+		assertEquals(4, DialogStateCodec.readStoredVersion(backup.getValue()));
+		assertTrue(Arrays.equals((byte[]) entry.getValue(), (byte[]) backup.getValue()));
+	}
+
+	public void testBatchResultPerDialog() throws Exception {
+		final Map<Object, Object[]> updates = new HashMap<Object, Object[]>();
+		updates.put("dialog-a", new Object[] {delta(2), null});
+		updates.put("dialog-b", new Object[] {delta(2), null});
+		final DialogBatchMetaDataEntryProcessor processor = new DialogBatchMetaDataEntryProcessor(updates, false);
+
+		final Entry<Object, Object> a = new SimpleEntry<Object, Object>("dialog-a", fullState(1));
+		final byte[] newer = fullState(2);
+		final Entry<Object, Object> b = new SimpleEntry<Object, Object>("dialog-b", newer);
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, processor.process(a));
+		assertEquals(DialogMetaDataEntryProcessor.OUTDATED, processor.process(b));
+		assertEquals(2, DialogStateCodec.readStoredVersion(a.getValue()));
+		assertSame(newer, b.getValue());
+		// a key the batch has no update for is left alone
+		assertEquals(DialogMetaDataEntryProcessor.OUTDATED, processor.process(new SimpleEntry<Object, Object>("dialog-c", fullState(1))));
+	}
+
+	public void testSingleEntryBatchKeepsApplicationData() throws Exception {
+		final Map<Object, Object[]> updates = new HashMap<Object, Object[]>();
+		updates.put("dialog", new Object[] {delta(2), "appdata"});
+		final Entry<Object, Object> entry = entry(new DialogCacheEntry(fullState(1), null));
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, new DialogBatchMetaDataEntryProcessor(updates, true).process(entry));
+		assertEquals("appdata", ((DialogCacheEntry) entry.getValue()).getApplicationData());
+	}
+
+	public void testDeltaNotFound() throws Exception {
+		final Entry<Object, Object> entry = entry(null);
+		assertEquals(DialogMetaDataEntryProcessor.NOT_FOUND, new DialogMetaDataEntryProcessor(delta(2)).process(entry));
+		assertNull(entry.getValue());
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, new DialogMetaDataEntryProcessor(fullState(2)).process(entry));
+		assertEquals(2, DialogStateCodec.readStoredVersion(entry.getValue()));
+	}
+
+	public void testOutdated() throws Exception {
+		final Entry<Object, Object> entry = entry(fullState(3));
+		assertEquals(DialogMetaDataEntryProcessor.OUTDATED, new DialogMetaDataEntryProcessor(delta(3)).process(entry));
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, new DialogMetaDataEntryProcessor(delta(4)).process(entry));
+		assertEquals(Long.valueOf(4), DialogStateCodec.asMap(entry.getValue()).get(AbstractHASipDialog.LOCAL_CSEQ));
+		assertEquals("local", DialogStateCodec.asMap(entry.getValue()).get(AbstractHASipDialog.LOCAL_TAG));
+	}
+
+	public void testSingleEntryKeepsApplicationData() throws Exception {
+		final Entry<Object, Object> entry = entry(new DialogCacheEntry(fullState(1), "appdata"));
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, new DialogMetaDataEntryProcessor(delta(2), null, true).process(entry));
+		assertEquals("appdata", ((DialogCacheEntry) entry.getValue()).getApplicationData());
+		assertEquals(2, ((DialogCacheEntry) entry.getValue()).getVersion());
+	}
+
+	public void testSingleEntryOverLegacyEntry() throws Exception {
+		// meta data stored by a previous release, its application data is in its own map
+		final byte[] legacyMetaData = fullState(1);
+		final Entry<Object, Object> entry = entry(legacyMetaData);
+		assertEquals(DialogMetaDataEntryProcessor.LEGACY_APPLICATION_DATA, new DialogMetaDataEntryProcessor(delta(2), null, true).process(entry));
+		assertSame(legacyMetaData, entry.getValue());
+
+		assertEquals(DialogMetaDataEntryProcessor.MIGRATED, new DialogMetaDataEntryProcessor(delta(2), null, true, "legacy appdata").process(entry));
+		final DialogCacheEntry migrated = (DialogCacheEntry) entry.getValue();
+		assertEquals("legacy appdata", migrated.getApplicationData());
+		assertEquals(2, migrated.getVersion());
+		assertEquals("local", DialogStateCodec.asMap(migrated).get(AbstractHASipDialog.LOCAL_TAG));
+		assertTrue(DialogMetaDataEntryProcessor.isApplied(DialogMetaDataEntryProcessor.MIGRATED));
+	}
+
+	public void testSingleEntryOverLegacyEntryWithApplicationData() throws Exception {
+		final Entry<Object, Object> entry = entry(fullState(1));
+		// the application data replicated replaces the one stored by the previous release, which doesn't need to be read
+		assertEquals(DialogMetaDataEntryProcessor.MIGRATED, new DialogMetaDataEntryProcessor(delta(2), "appdata", true).process(entry));
+		assertEquals("appdata", ((DialogCacheEntry) entry.getValue()).getApplicationData());
+	}
+
+	public void testLegacyApplicationDataIgnoredOverSingleEntry() throws Exception {
+		// another node migrated the entry between the read of the legacy application data and the write
+		final Entry<Object, Object> entry = entry(new DialogCacheEntry(fullState(2), "appdata"));
+		assertEquals(DialogMetaDataEntryProcessor.APPLIED, new DialogMetaDataEntryProcessor(delta(3), null, true, "legacy appdata").process(entry));
+		assertEquals("appdata", ((DialogCacheEntry) entry.getValue()).getApplicationData());
+	}
+
+	public void testDialogCacheEntryEquality() throws Exception {
+		assertEquals(new DialogCacheEntry(fullState(1), "appdata"), new DialogCacheEntry(fullState(1), null));
+		assertEquals(new DialogCacheEntry(fullState(1), null).hashCode(), new DialogCacheEntry(fullState(1), null).hashCode());
+		assertFalse(new DialogCacheEntry(fullState(1), null).equals(new DialogCacheEntry(fullState(2), null)));
+	}
+}
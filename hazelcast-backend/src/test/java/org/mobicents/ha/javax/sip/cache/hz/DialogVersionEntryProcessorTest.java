@@ -0,0 +1,75 @@
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Checks the version read on the partition owner by the {@link DialogVersionEntryProcessor},
+ * whatever the format the dialog was stored in
+ */
+public class DialogVersionEntryProcessorTest extends TestCase {
+
+	private static byte[] fullState(long version) {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.setFullState(true);
+		codec.putLong(AbstractHASipDialog.VERSION, version);
+		codec.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		return codec.toByteArray();
+	}
+
+	private static Entry<Object, Object> entry(Object value) {
+		return new SimpleEntry<Object, Object>("dialog", value);
+	}
+
+	public void testEncodedVersion() throws Exception {
+		final byte[] metaData = fullState(3);
+		final Entry<Object, Object> entry = entry(metaData);
+		assertEquals(Long.valueOf(3), new DialogVersionEntryProcessor().process(entry));
+		assertSame(metaData, entry.getValue());
+	}
+
+	public void testSingleEntryVersion() throws Exception {
+		final DialogCacheEntry cached = new DialogCacheEntry(fullState(5), "appdata");
+		final Entry<Object, Object> entry = entry(cached);
+		assertEquals(Long.valueOf(5), new DialogVersionEntryProcessor().process(entry));
+		assertSame(cached, entry.getValue());
+	}
+
+	public void testLegacyMapVersion() throws Exception {
+		// meta data stored by a previous release
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		metaData.put(AbstractHASipDialog.VERSION, Long.valueOf(7));
+		metaData.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		assertEquals(Long.valueOf(7), new DialogVersionEntryProcessor().process(entry(metaData)));
+
+		metaData.remove(AbstractHASipDialog.VERSION);
+		assertEquals(Long.valueOf(-1), new DialogVersionEntryProcessor().process(entry(metaData)));
+	}
+
+	public void testMissingDialog() throws Exception {
+		final Entry<Object, Object> entry = entry(null);
+		assertEquals(Long.valueOf(-1), new DialogVersionEntryProcessor().process(entry));
+		assertNull(entry.getValue());
+	}
+
+	public void testCorruptMetaDataReturned() throws Exception {
+		final byte[] corrupt = new byte[0];
+		final Entry<Object, Object> entry = entry(corrupt);
+		assertTrue(new DialogVersionEntryProcessor().process(entry) instanceof SipCacheException);
+		assertSame(corrupt, entry.getValue());
+	}
+
+	public void testNoBackup() throws Exception {
+		assertNull(new DialogVersionEntryProcessor().getBackupProcessor());
+	}
+}
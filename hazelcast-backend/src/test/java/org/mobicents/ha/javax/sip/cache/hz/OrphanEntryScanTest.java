@@ -0,0 +1,121 @@
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.Stubs;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.EntryType;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.Visitor;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Checks against an embedded member that the {@link OrphanEntryScan} reports the transactions whose dialog is absent
+ * with the hash of their meta data, and only removes them if they still look orphan
+ */
+public class OrphanEntryScanTest extends TestCase {
+
+	private HazelcastInstance hazelcastInstance;
+	private IMap<Object, Object> dialogs;
+	private IMap<String, Object> serverTransactions;
+	private IMap<String, Object> serverTransactionsApp;
+	private OrphanEntryScan scan;
+
+	@Override
+	protected void setUp() throws Exception {
+		final Config config = new Config();
+		config.setProperty("hazelcast.phone.home.enabled", "false");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+		hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+		dialogs = hazelcastInstance.getMap("dialogs");
+		final IMap<Object, Object> appData = hazelcastInstance.getMap("appdata");
+		serverTransactions = hazelcastInstance.getMap("serverTransactions");
+		serverTransactionsApp = hazelcastInstance.getMap("serverTransactionsApp");
+		final SIPDialogCacheData dialogCacheData = new SIPDialogCacheData(Stubs.stack(), dialogs, appData, false, false);
+		scan = new OrphanEntryScan(dialogCacheData, dialogs, appData, null, serverTransactions, serverTransactionsApp,
+				hazelcastInstance.<String, Object>getMap("clientTransactions"), hazelcastInstance.<String, Object>getMap("clientTransactionsApp"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		hazelcastInstance.shutdown();
+	}
+
+	private static Map<String, Object> transaction(String dialogId, int state) {
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		metaData.put(MobicentsHASIPServerTransaction.DIALOG_ID, dialogId);
+		metaData.put(MobicentsHASIPServerTransaction.CURRENT_STATE, Integer.valueOf(state));
+		return metaData;
+	}
+
+	private List<Object[]> scan() throws Exception {
+		final List<Object[]> candidates = new ArrayList<Object[]>();
+		final Visitor visitor = new Visitor() {
+			public void orphanCandidate(EntryType type, String id, long version) {
+				candidates.add(new Object[] {type, id, Long.valueOf(version)});
+			}
+		};
+		boolean more = true;
+		while (more) {
+			more = scan.scan(100, null, visitor);
+		}
+		return candidates;
+	}
+
+	public void testTransactionReportedWithMetaDataHash() throws Exception {
+		final Map<String, Object> metaData = transaction("dialog", 1);
+		serverTransactions.set("tx", metaData);
+		final List<Object[]> candidates = scan();
+		assertEquals(1, candidates.size());
+		assertEquals(EntryType.SERVER_TRANSACTION, candidates.get(0)[0]);
+		assertEquals("tx", candidates.get(0)[1]);
+		assertEquals(Long.valueOf(metaData.hashCode()), candidates.get(0)[2]);
+	}
+
+	public void testTransactionRemovedOnlyIfStillOrphan() throws Exception {
+		serverTransactions.set("tx", transaction("dialog", 1));
+		serverTransactionsApp.set("tx", "appdata");
+		final long seen = transaction("dialog", 1).hashCode();
+
+		// the transaction moved on since the scan
+		serverTransactions.set("tx", transaction("dialog", 2));
+		assertFalse(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", seen));
+		// its dialog was written since the scan
+		serverTransactions.set("tx", transaction("dialog", 1));
+		dialogs.set("dialog", new byte[0]);
+		assertFalse(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", seen));
+		assertNotNull(serverTransactions.get("tx"));
+
+		dialogs.delete("dialog");
+		assertTrue(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", seen));
+		assertNull(serverTransactions.get("tx"));
+		assertNull(serverTransactionsApp.get("tx"));
+		assertFalse(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", seen));
+	}
+
+	public void testApplicationDataRemovedOnlyWithoutTransaction() throws Exception {
+		serverTransactionsApp.set("tx", "appdata");
+		final List<Object[]> candidates = scan();
+		assertEquals(1, candidates.size());
+		assertEquals(Long.valueOf(0), candidates.get(0)[2]);
+
+		// the transaction was written since the scan
+		serverTransactions.set("tx", transaction("dialog", 1));
+		assertFalse(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", 0));
+		assertEquals("appdata", serverTransactionsApp.get("tx"));
+
+		serverTransactions.delete("tx");
+		assertTrue(scan.removeOrphanTransaction(EntryType.SERVER_TRANSACTION, "tx", 0));
+		assertNull(serverTransactionsApp.get("tx"));
+	}
+}
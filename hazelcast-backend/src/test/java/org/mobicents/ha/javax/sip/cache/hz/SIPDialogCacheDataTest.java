@@ -0,0 +1,181 @@
+package org.mobicents.ha.javax.sip.cache.hz;
+
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mobicents.ha.javax.sip.HASipDialog;
+import org.mobicents.ha.javax.sip.Stubs;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Checks against an embedded member that the owner and application data entries of a dialog
+ * are written after its meta data was applied by the entry processors, and only then
+ */
+public class SIPDialogCacheDataTest extends TestCase {
+
+	private HazelcastInstance hazelcastInstance;
+	private IMap<Object, Object> dialogs;
+	private IMap<Object, Object> appData;
+	private IMap<Object, String> owners;
+
+	@Override
+	protected void setUp() throws Exception {
+		final Config config = new Config();
+		config.setProperty("hazelcast.phone.home.enabled", "false");
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+		hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+		dialogs = hazelcastInstance.getMap("dialogs");
+		appData = hazelcastInstance.getMap("appdata");
+		owners = hazelcastInstance.getMap("owners");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		hazelcastInstance.shutdown();
+	}
+
+	private SIPDialogCacheData cacheData(boolean singleEntry) {
+		return cacheData(singleEntry, false);
+	}
+
+	private SIPDialogCacheData cacheData(boolean singleEntry, boolean legacyFormat) {
+		final SIPDialogCacheData cacheData = new SIPDialogCacheData(Stubs.stack("getNodeId", "node1"), dialogs, appData, false, singleEntry, legacyFormat);
+		cacheData.setDialogOwners(owners);
+		cacheData.setPartitionService(hazelcastInstance.getPartitionService());
+		return cacheData;
+	}
+
+	private static byte[] fullState(long version) {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.setFullState(true);
+		codec.putLong(AbstractHASipDialog.VERSION, version);
+		codec.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		codec.put(AbstractHASipDialog.OWNER, "node1");
+		return codec.toByteArray();
+	}
+
+	private static byte[] delta(long version) {
+		final DialogStateCodec codec = new DialogStateCodec();
+		codec.putLong(AbstractHASipDialog.VERSION, version);
+		codec.putLong(AbstractHASipDialog.LOCAL_CSEQ, version);
+		return codec.toByteArray();
+	}
+
+	private static HASipDialog dialog(String dialogId, byte[] metaData, Object applicationData) {
+		return Stubs.stub(HASipDialog.class, "getDialogIdToReplicate", dialogId,
+				"getEncodedMetaDataToReplicate", metaData, "getApplicationDataToReplicate", applicationData);
+	}
+
+	/**
+	 * @return a dialog whose full state differs from the meta data it replicates by default
+	 */
+	private static HASipDialog dialog(String dialogId, final byte[] metaData, final byte[] fullState, Object applicationData) {
+		final HASipDialog dialog = dialog(dialogId, metaData, applicationData);
+		return (HASipDialog) Proxy.newProxyInstance(HASipDialog.class.getClassLoader(), new Class<?>[] {HASipDialog.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getEncodedMetaDataToReplicate".equals(method.getName()) && args != null) {
+					return fullState;
+				}
+				return method.invoke(dialog, args);
+			}
+		});
+	}
+
+	public void testDependentEntriesWrittenOnceApplied() throws Exception {
+		final SIPDialogCacheData cacheData = cacheData(false);
+		assertTrue(cacheData.writeDialog(dialog("dialog", fullState(1), "appdata")));
+		assertEquals("node1", owners.get("dialog"));
+		assertEquals("appdata", appData.get("dialog"));
+
+		owners.delete("dialog");
+		assertFalse(cacheData.writeDialog(dialog("dialog", fullState(1), "outdated appdata")));
+		assertEquals("appdata", appData.get("dialog"));
+		assertNull(owners.get("dialog"));
+
+		assertTrue(cacheData.writeDialog(dialog("dialog", delta(2), "appdata 2")));
+		assertEquals("appdata 2", appData.get("dialog"));
+		assertEquals(2, DialogStateCodec.readStoredVersion(dialogs.get("dialog")));
+	}
+
+	public void testBatchWritesDependentEntriesOfAppliedDialogsOnly() throws Exception {
+		dialogs.set("dialog-b", fullState(2));
+		final List<HASipDialog> batch = new ArrayList<HASipDialog>();
+		final HASipDialog outdated = dialog("dialog-b", delta(2), "appdata-b");
+		batch.add(dialog("dialog-a", fullState(1), "appdata-a"));
+		batch.add(outdated);
+
+		final Collection<HASipDialog> notWritten = cacheData(false).writeDialogs(batch);
+		assertEquals(1, notWritten.size());
+		assertSame(outdated, notWritten.iterator().next());
+		assertEquals("appdata-a", appData.get("dialog-a"));
+		assertEquals("node1", owners.get("dialog-a"));
+		assertNull(appData.get("dialog-b"));
+		assertNull(owners.get("dialog-b"));
+	}
+
+	public void testLegacyApplicationDataMovedIntoSingleEntry() throws Exception {
+		// stored by a previous release, the application data in its own map
+		dialogs.set("dialog", fullState(1));
+		appData.set("dialog", "legacy appdata");
+
+		assertTrue(cacheData(true).writeDialog(dialog("dialog", delta(2), null)));
+		final DialogCacheEntry entry = (DialogCacheEntry) dialogs.get("dialog");
+		assertEquals(2, entry.getVersion());
+		assertEquals("legacy appdata", entry.getApplicationData());
+		assertNull(appData.get("dialog"));
+	}
+
+	public void testLegacyFormatWritesMaps() throws Exception {
+		final SIPDialogCacheData cacheData = cacheData(false, true);
+		assertTrue(cacheData.writeDialog(dialog("dialog", fullState(1), "appdata")));
+		assertTrue(dialogs.get("dialog") instanceof Map);
+
+		assertTrue(cacheData.writeDialog(dialog("dialog", delta(2), "appdata 2")));
+		final Map<?, ?> stored = (Map<?, ?>) dialogs.get("dialog");
+		assertEquals(Long.valueOf(2), stored.get(AbstractHASipDialog.VERSION));
+		assertEquals(Long.valueOf(2), stored.get(AbstractHASipDialog.LOCAL_CSEQ));
+		assertEquals("local", stored.get(AbstractHASipDialog.LOCAL_TAG));
+		assertEquals("appdata 2", appData.get("dialog"));
+
+		// entries written in the encoded format by an upgraded node are read and merged as well
+		dialogs.set("dialog", fullState(3));
+		assertTrue(cacheData.writeDialog(dialog("dialog", delta(4), null)));
+		assertEquals(4, DialogStateCodec.readStoredVersion(dialogs.get("dialog")));
+		assertTrue(dialogs.get("dialog") instanceof Map);
+	}
+
+	public void testAsyncDeltaOfMissingEntryWritesFullState() throws Exception {
+		final SIPDialogCacheData cacheData = cacheData(false);
+		assertEquals(Boolean.TRUE, cacheData.writeDialogAsync(dialog("dialog", delta(2), fullState(2), "appdata")).get());
+		final byte[] stored = DialogStateCodec.asByteArray(dialogs.get("dialog"));
+		assertTrue(DialogStateCodec.isFullState(stored));
+		assertEquals(2, DialogStateCodec.readVersion(stored));
+		assertEquals("local", DialogStateCodec.decode(stored).get(AbstractHASipDialog.LOCAL_TAG));
+		assertEquals("appdata", appData.get("dialog"));
+		assertEquals("node1", owners.get("dialog"));
+
+		assertEquals(Boolean.FALSE, cacheData.writeDialogAsync(dialog("dialog", delta(2), fullState(2), "outdated appdata")).get());
+		assertEquals("appdata", appData.get("dialog"));
+	}
+
+	public void testAsyncGetOfMissingDialog() throws Exception {
+		assertNull(cacheData(false).getDialogAsync("dialog").get());
+		assertNull(cacheData(true).getDialogAsync("dialog").get());
+	}
+}
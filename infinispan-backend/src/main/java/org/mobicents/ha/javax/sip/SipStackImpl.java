@@ -33,7 +33,6 @@ import javax.sip.SipException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
 import org.mobicents.ha.javax.sip.ClusteredSipStackImpl;
-import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.LoadBalancerHeartBeatingService;
 import org.mobicents.ha.javax.sip.LoadBalancerHeartBeatingServiceImpl;
 import org.mobicents.ha.javax.sip.cache.NoCache;
@@ -108,14 +107,6 @@ public class SipStackImpl extends ClusteredSipStackImpl implements SipStackImplM
 		return getSipCache().inLocalMode();
 	}
 	
-	/*
-	 * (non-Javadoc)
-	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#passivateDialog(org.mobicents.ha.javax.sip.HASipDialog)
-	 */
-	public void passivateDialog(HASipDialog dialog) {
-		// not supported on load balancing mode only
-	}
-
 	public MessageProcessor[] getStackMessageProcessors() {
 		return getMessageProcessors();
 	}
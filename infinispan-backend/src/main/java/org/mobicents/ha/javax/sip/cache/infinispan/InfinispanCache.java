@@ -27,7 +27,15 @@ import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -36,9 +44,22 @@ import javax.naming.NamingException;
 
 import org.infinispan.Cache;
 import org.infinispan.manager.CacheContainer;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
+import org.mobicents.ha.javax.sip.cache.AsyncSipCache;
+import org.mobicents.ha.javax.sip.cache.ConditionalDialogWriter;
+import org.mobicents.ha.javax.sip.cache.DialogBatchWriter;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationNotifier;
+import org.mobicents.ha.javax.sip.cache.DialogOwnerIndex;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner;
 import org.mobicents.ha.javax.sip.cache.SipCache;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheFutures;
 
 /**
  * Implementation of the SipCache interface, backed by an Infinispan Cache
@@ -52,11 +73,15 @@ import org.mobicents.ha.javax.sip.cache.SipCacheException;
  * If neither the Infinispan cache configuration path property, nor the CacheManager JNDI name are specified, then a default Infinispan config will be used, which can be found at:
  * <b>META-INF/cache-configuration.xml</b> 
  * 
+ * The id of each node is kept in the cache.nodes cache under the address of its cache manager, 
+ * so that the ids of the nodes in the cluster are known. The orphan entries are only scanned by the coordinator
+ * since each node holds all the entries in the replicated mode of the default configuration.
+ * 
  * @author <A HREF="mailto:posfai.gergely@ext.alerant.hu">Gergely Posfai</A>
  * @author <A HREF="mailto:kokuti.andras@ext.alerant.hu">Andras Kokuti</A>
  *
  */
-public class InfinispanCache implements SipCache {
+public class InfinispanCache implements SipCache, ConditionalDialogWriter, AsyncSipCache, DialogBatchWriter, DialogInvalidationNotifier, DialogOwnerIndex, OrphanEntryScanner {
 	
 	public static final String INFINISPAN_CACHE_CONFIG_PATH = "org.mobicents.ha.javax.sip.INFINISPAN_CACHE_CONFIG_PATH";
 	public static final String DEFAULT_FILE_CONFIG_PATH = "META-INF/cache-configuration.xml"; 
@@ -68,16 +93,22 @@ public class InfinispanCache implements SipCache {
 	private ClusteredSipStack stack;
 	private Cache<String, Object> dialogs;
 	private Cache<String, Object> appDataMap;
+	private Cache<String, Long> dialogVersions;
+	private Cache<String, String> dialogOwners;
 	private Cache<String, Object> serverTransactions;
 	private Cache<String, Object> serverTransactionsApp;
 	private Cache<String, Object> clientTransactions;
 	private Cache<String, Object> clientTransactionsApp;
+	private Cache<String, String> nodes;
 	
 	private CacheContainer cm;
+	private InfinispanCacheListener dialogsCacheListener;
+	private DialogInvalidationListener dialogInvalidationListener;
 	
 	private SIPDialogCacheData dialogCacheData;
 	private SIPServerTransactionCacheData serverTXCacheData;
 	private SIPClientTransactionCacheData clientTXCacheData;
+	private OrphanEntryScan orphanEntryScan;
 	
 	public SIPDialog getDialog(String dialogId) throws SipCacheException {
 		if (dialogId == null) 
@@ -90,15 +121,26 @@ public class InfinispanCache implements SipCache {
 	}
 	
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
+		putDialogIfNewer(dialog);
+	}
+	
+	public boolean putDialogIfNewer(SIPDialog dialog) throws SipCacheException {
 		if (dialog == null) 
 			throw new SipCacheException("SipDialog is null");
 		
 		if (dialogCacheData != null)
-			dialogCacheData.putDialog(dialog);
+			return dialogCacheData.putDialog(dialog);
 		else
 			throw new SipCacheException("No SIPClientTransactionCache");
 	}
 	
+	public Collection<SIPDialog> putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.putDialogs(dialogs);
+		else
+			throw new SipCacheException("No SIPDialogCacheData");
+	}
+	
 	public void updateDialog(SIPDialog dialog) throws SipCacheException {
 		if (dialog == null) 
 			throw new SipCacheException("SipDialog is null");
@@ -120,6 +162,7 @@ public class InfinispanCache implements SipCache {
 		}
 	}
 	
+	@Deprecated
 	public void evictDialog(String dialogId) {
 		if (dialogCacheData != null)
 			dialogCacheData.evictDialog(dialogId);
@@ -149,6 +192,84 @@ public class InfinispanCache implements SipCache {
 			throw new SipCacheException("No SIPClientTransactionCache");
 	}
 	
+	/**
+	 * The caches are replicated, the dialog is read locally on the calling thread
+	 */
+	public Future<SIPDialog> getDialogAsync(final String dialogId) {
+		return SipCacheFutures.completed(new Callable<SIPDialog>() {
+			public SIPDialog call() throws Exception {
+				try {
+					return getDialog(dialogId);
+				} catch (SipCacheException e) {
+					clusteredlogger.logError("problem getting dialog " + dialogId + " from the distributed cache", e);
+					throw e;
+				}
+			}
+		});
+	}
+	
+	public Future<Void> putDialogAsync(SIPDialog dialog) {
+		if (dialogCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPDialogCacheData"));
+		return logFailures("storing dialog " + dialog.getDialogId(), dialogCacheData.putDialogAsync(dialog));
+	}
+	
+	public Future<Void> removeDialogAsync(String dialogId) {
+		if (dialogCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPDialogCacheData"));
+		return logFailures("removing dialog " + dialogId, dialogCacheData.removeDialogAsync(dialogId));
+	}
+	
+	public Future<Void> putServerTransactionAsync(SIPServerTransaction serverTransaction) {
+		if (serverTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPServerTransactionCache"));
+		return logFailures("storing server transaction " + serverTransaction.getTransactionId(), serverTXCacheData.putServerTransactionAsync(serverTransaction));
+	}
+	
+	public Future<Void> removeServerTransactionAsync(String txId) {
+		if (serverTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPServerTransactionCache"));
+		return logFailures("removing server transaction " + txId, serverTXCacheData.removeServerTransactionAsync(txId));
+	}
+	
+	public Future<Void> putClientTransactionAsync(SIPClientTransaction clientTransaction) {
+		if (clientTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPClientTransactionCache"));
+		return logFailures("storing client transaction " + clientTransaction.getTransactionId(), clientTXCacheData.putClientTransactionAsync(clientTransaction));
+	}
+	
+	public Future<Void> removeClientTransactionAsync(String txId) {
+		if (clientTXCacheData == null)
+			return SipCacheFutures.failed(new SipCacheException("No SIPClientTransactionCache"));
+		return logFailures("removing client transaction " + txId, clientTXCacheData.removeClientTransactionAsync(txId));
+	}
+	
+	/**
+	 * Logs the failures of asynchronous operations, the callers usually not waiting for their result
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Future<Void> logFailures(final String operation, List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			if (future instanceof NotifyingFuture) {
+				((NotifyingFuture) future).attachListener(new FutureListener() {
+					public void futureDone(Future future) {
+						try {
+							future.get();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (ExecutionException e) {
+							final Throwable cause = e.getCause();
+							clusteredlogger.logError("problem " + operation + " in the distributed cache", cause instanceof Exception ? (Exception) cause : e);
+						} catch (CancellationException e) {
+							// nothing to log
+						}
+					}
+				});
+			}
+		}
+		return SipCacheFutures.allOf(futures);
+	}
+	
 	public SIPServerTransaction getServerTransaction(String txId) 
 			throws SipCacheException {
 		if (serverTXCacheData != null)
@@ -221,6 +342,8 @@ public class InfinispanCache implements SipCache {
 					if(dialogCacheData != null) {
 						dialogCacheData.setDialogs(dialogs);
 						dialogCacheData.setAppDataMap(appDataMap);
+						dialogCacheData.setDialogVersions(dialogVersions);
+						dialogCacheData.setDialogOwners(dialogOwners);
 					}
 					if(serverTXCacheData != null) {
 						serverTXCacheData.setServerTransactions(serverTransactions);
@@ -251,6 +374,8 @@ public class InfinispanCache implements SipCache {
 			if(dialogCacheData != null) {
 				dialogCacheData.setDialogs(dialogs);
 				dialogCacheData.setAppDataMap(appDataMap);
+				dialogCacheData.setDialogVersions(dialogVersions);
+				dialogCacheData.setDialogOwners(dialogOwners);
 			}
 			if(serverTXCacheData != null) {
 				serverTXCacheData.setServerTransactions(serverTransactions);
@@ -264,31 +389,66 @@ public class InfinispanCache implements SipCache {
 	}
 
 	private void setupCacheStructures() {
-		InfinispanCacheListener dialogsCacheListener = new InfinispanCacheListener(stack);
+		dialogsCacheListener = new InfinispanCacheListener(stack);
+		dialogsCacheListener.setDialogInvalidationListener(dialogInvalidationListener);
 		
 		dialogs = cm.getCache("cache.dialogs");
 		appDataMap = cm.getCache("cache.appdata");
+		dialogVersions = cm.getCache("cache.dialogVersions");
+		dialogOwners = cm.getCache("cache.dialogOwners");
 		serverTransactions = cm.getCache("cache.serverTX");
 		serverTransactionsApp = cm.getCache("cache.serverTXApp");
 		clientTransactions = cm.getCache("cache.clientTX");
 		clientTransactionsApp = cm.getCache("cache.clientTXApp");
+		nodes = cm.getCache("cache.nodes");
+		if(dialogCacheData != null) {
+			// set up after the start of the stack
+			registerNode();
+		}
 		
 		dialogs.addListener(dialogsCacheListener);
+		dialogs.getCacheManager().addListener(dialogsCacheListener);
 	}
 	
 	public void start() throws SipCacheException {
 		dialogCacheData = new SIPDialogCacheData(stack, 
 				dialogs, appDataMap);
+		dialogCacheData.setDialogVersions(dialogVersions);
+		dialogCacheData.setDialogOwners(dialogOwners);
+		final boolean legacyWriteFormat = !ENCODED_WRITE_FORMAT.equalsIgnoreCase(configProperties.getProperty(DIALOG_CACHE_WRITE_FORMAT, LEGACY_WRITE_FORMAT));
+		boolean singleDialogEntry = Boolean.valueOf(configProperties.getProperty(SINGLE_DIALOG_CACHE_ENTRY, "false"));
+		if (singleDialogEntry && legacyWriteFormat) {
+			clusteredlogger.logWarning("Mobicents JAIN SIP Infinispan Cache single dialog entry ignored, it requires " + 
+					DIALOG_CACHE_WRITE_FORMAT + " to be set to " + ENCODED_WRITE_FORMAT);
+			singleDialogEntry = false;
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			clusteredlogger.logInfo("Mobicents JAIN SIP Infinispan Cache legacy write format : " + legacyWriteFormat + ", single dialog entry : " + singleDialogEntry);
+		}
+		dialogCacheData.setLegacyFormat(legacyWriteFormat);
+		dialogCacheData.setSingleEntry(singleDialogEntry);
 		serverTXCacheData = new SIPServerTransactionCacheData(stack, 
 				serverTransactions, serverTransactionsApp);
 		clientTXCacheData = new SIPClientTransactionCacheData(stack, 
 				clientTransactions, clientTransactionsApp);
+		orphanEntryScan = new OrphanEntryScan(dialogCacheData, serverTXCacheData, clientTXCacheData);
+		registerNode();
+	}
+	
+	/**
+	 * Stores the id of this node under the address of its cache manager, once the caches are set up
+	 */
+	private void registerNode() {
+		if(cm instanceof EmbeddedCacheManager && nodes != null && stack instanceof ClusteredSipStackExt && ((ClusteredSipStackExt) stack).getNodeId() != null) {
+			nodes.put(((EmbeddedCacheManager) cm).getAddress().toString(), ((ClusteredSipStackExt) stack).getNodeId());
+		}
 	}
 
 	public void stop() throws SipCacheException {
 		clientTXCacheData = null;
 		serverTXCacheData = null;
 		dialogCacheData = null;
+		orphanEntryScan = null;
 	}
 	
 	public void setConfigurationProperties(Properties configurationProperties) {
@@ -299,10 +459,87 @@ public class InfinispanCache implements SipCache {
 		return false;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogOwnerIndex#getDialogIds(java.lang.String, boolean)
+	 */
+	public Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException {
+		if (dialogCacheData != null)
+			return dialogCacheData.getDialogIds(ownerId, localOnly);
+		else
+			throw new SipCacheException("No SIPDialogCacheData");
+	}
+	
+	public Set<String> getNodeIds() throws SipCacheException {
+		if(!(cm instanceof EmbeddedCacheManager) || nodes == null) {
+			return null;
+		}
+		final EmbeddedCacheManager cacheManager = (EmbeddedCacheManager) cm;
+		final List<Address> members = cacheManager.getMembers();
+		if(members == null) {
+			return null;
+		}
+		final Set<String> addresses = new HashSet<String>(members.size());
+		final Set<String> nodeIds = new HashSet<String>(members.size());
+		for (Address member : members) {
+			final String nodeId = nodes.get(member.toString());
+			if(nodeId == null) {
+				// member not started yet or not a SIP stack
+				return null;
+			}
+			addresses.add(member.toString());
+			nodeIds.add(nodeId);
+		}
+		if(cacheManager.isCoordinator()) {
+			// the entries of the members that left are dropped by the coordinator
+			for (String address : new HashSet<String>(nodes.keySet())) {
+				if(!addresses.contains(address)) {
+					nodes.remove(address);
+				}
+			}
+		}
+		return nodeIds;
+	}
+	
+	public boolean scan(int chunkSize, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		if(orphanEntryScan == null) {
+			throw new SipCacheException("No OrphanEntryScan");
+		}
+		if(cm instanceof EmbeddedCacheManager && !((EmbeddedCacheManager) cm).isCoordinator()) {
+			return false;
+		}
+		return orphanEntryScan.scan(chunkSize, nodeIds, visitor);
+	}
+	
+	public boolean removeOrphan(EntryType type, String id, long version, Set<String> nodeIds) throws SipCacheException {
+		if (dialogCacheData == null)
+			throw new SipCacheException("No SIPDialogCacheData");
+		
+		switch (type) {
+			case DIALOG:
+				return dialogCacheData.removeOrphanDialog(id, version, nodeIds);
+			case DIALOG_APPLICATION_DATA:
+				return dialogCacheData.removeApplicationData(id);
+			case DIALOG_OWNER:
+				return dialogCacheData.removeDialogOwner(id);
+			default:
+				if (orphanEntryScan == null)
+					throw new SipCacheException("No OrphanEntryScan");
+				return orphanEntryScan.removeOrphanTransaction(type, id, version);
+		}
+	}
+	
 	public void setClusteredSipStack(ClusteredSipStack clusteredStack) {
 		stack = clusteredStack;
 	}
 	
+	public void setDialogInvalidationListener(DialogInvalidationListener dialogInvalidationListener) {
+		this.dialogInvalidationListener = dialogInvalidationListener;
+		if(dialogsCacheListener != null) {
+			dialogsCacheListener.setDialogInvalidationListener(dialogInvalidationListener);
+		}
+	}
+	
 	public CacheContainer getCacheManager(){
 		return cm;
 	}
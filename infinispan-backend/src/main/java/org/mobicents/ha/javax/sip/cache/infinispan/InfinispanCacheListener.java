@@ -20,9 +20,14 @@
 package org.mobicents.ha.javax.sip.cache.infinispan;
 
 import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
 import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
 import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.cache.DialogInvalidationListener;
 
 import gov.nist.core.CommonLogger;
 import gov.nist.core.StackLogger;
@@ -44,12 +49,44 @@ public class InfinispanCacheListener {
 	private static StackLogger clusteredlogger = CommonLogger.getLogger(InfinispanCacheListener.class);
 
 	private ClusteredSipStack clusteredSipStack;
+	private volatile DialogInvalidationListener dialogInvalidationListener;
 	
 	
 	public InfinispanCacheListener(ClusteredSipStack clusteredSipStack) {
 		this.clusteredSipStack = clusteredSipStack;
 	}
 	
+	public void setDialogInvalidationListener(DialogInvalidationListener dialogInvalidationListener) {
+		this.dialogInvalidationListener = dialogInvalidationListener;
+	}
+	
+	@CacheEntryModified
+	public void cacheEntryModifiedHandler(CacheEntryModifiedEvent<?, ?> event){
+		final DialogInvalidationListener listener = dialogInvalidationListener;
+		if (listener == null || event.isPre() || event.isOriginLocal()) {
+			return;
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("sipStack " + clusteredSipStack + 
+					" entry modified remotely : " + event.getKey());
+		}
+		listener.dialogInvalidated((String)event.getKey());
+	}
+	
+	@ViewChanged
+	public void viewChangedHandler(ViewChangedEvent event){
+		final DialogInvalidationListener listener = dialogInvalidationListener;
+		if (listener == null) {
+			return;
+		}
+		if (clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("sipStack " + clusteredSipStack + 
+					" view changed : " + event.getNewMembers());
+		}
+		// modifications may have been missed while the cluster was rebalancing
+		listener.allDialogsInvalidated();
+	}
+	
 	@CacheEntryRemoved
 	public void cacheEntryRemovedHandler(CacheEntryRemovedEvent<?, ?> event){
 		
@@ -58,6 +95,10 @@ public class InfinispanCacheListener {
 					" entry removed : " + event.getKey() + " - " + event.getValue());
 		}
 		
+		final DialogInvalidationListener listener = dialogInvalidationListener;
+		if (listener != null && !event.isPre() && !event.isOriginLocal()) {
+			listener.dialogInvalidated((String)event.getKey());
+		}
 		clusteredSipStack.remoteDialogRemoval((String)event.getKey());
 	}
 	
@@ -0,0 +1,159 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
+
+/**
+ * Orders the asynchronous writes of a same key. Infinispan runs its asynchronous operations on a pool of threads
+ * without any per key ordering, so the removal of a transaction could be applied before the put of one of its previous 
+ * states and resurrect it until it expires. Each write of a key is only issued once the previous one completed,
+ * the writes of different keys still running in parallel.
+ */
+class OrderedAsyncWrites {
+
+	/**
+	 * Issues the asynchronous operations of a write
+	 */
+	interface Write {
+		List<Future<?>> issue();
+	}
+
+	// last write submitted for each key, removed once completed if no other write was chained to it
+	private final ConcurrentHashMap<String, OrderedWrite> lastWrites = new ConcurrentHashMap<String, OrderedWrite>();
+
+	/**
+	 * Issues the write once the previous write of the key completed, whether it succeeded or not
+	 * @return a future completing once all the operations of the write completed, failing with the first failure
+	 */
+	NotifyingFuture<Void> submit(String key, Write write) {
+		final OrderedWrite orderedWrite = new OrderedWrite(key, write);
+		final OrderedWrite previous = lastWrites.put(key, orderedWrite);
+		if(previous == null || !previous.chain(orderedWrite)) {
+			orderedWrite.issue();
+		}
+		return orderedWrite;
+	}
+
+	/**
+	 * @return the number of keys having writes not completed yet
+	 */
+	int getPendingKeys() {
+		return lastWrites.size();
+	}
+
+	private class OrderedWrite extends SettableNotifyingFuture<Void> implements FutureListener<Object> {
+		private final String key;
+		private final Write write;
+		private int pendingOperations;
+		private boolean completed;
+		private Throwable failure;
+		private OrderedWrite next;
+
+		OrderedWrite(String key, Write write) {
+			this.key = key;
+			this.write = write;
+		}
+
+		/**
+		 * @return false if this write already completed, the next one having to be issued by the caller
+		 */
+		synchronized boolean chain(OrderedWrite next) {
+			if(completed) {
+				return false;
+			}
+			this.next = next;
+			return true;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void issue() {
+			final List<Future<?>> operations;
+			try {
+				operations = write.issue();
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					failure = e;
+				}
+				complete();
+				return;
+			}
+			synchronized (this) {
+				pendingOperations = operations.size();
+			}
+			if(operations.isEmpty()) {
+				complete();
+				return;
+			}
+			for (Future<?> operation : operations) {
+				if(operation instanceof NotifyingFuture) {
+					((NotifyingFuture) operation).attachListener(this);
+				} else {
+					futureDone((Future) operation);
+				}
+			}
+		}
+
+		public void futureDone(Future<Object> operation) {
+			boolean done;
+			synchronized (this) {
+				try {
+					operation.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					if(failure == null) {
+						failure = e.getCause();
+					}
+				} catch (RuntimeException e) {
+					// cancelled
+					if(failure == null) {
+						failure = e;
+					}
+				}
+				done = --pendingOperations == 0;
+			}
+			if(done) {
+				complete();
+			}
+		}
+
+		private void complete() {
+			final OrderedWrite nextWrite;
+			final Throwable writeFailure;
+			synchronized (this) {
+				completed = true;
+				nextWrite = next;
+				writeFailure = failure;
+			}
+			lastWrites.remove(key, this);
+			complete(null, writeFailure);
+			if(nextWrite != null) {
+				nextWrite.issue();
+			}
+		}
+	}
+}
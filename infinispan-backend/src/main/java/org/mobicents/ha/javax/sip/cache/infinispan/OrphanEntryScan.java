@@ -0,0 +1,189 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import gov.nist.javax.sip.stack.MobicentsHASIPClientTransaction;
+import gov.nist.javax.sip.stack.MobicentsHASIPServerTransaction;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.EntryType;
+import org.mobicents.ha.javax.sip.cache.OrphanEntryScanner.Visitor;
+import org.mobicents.ha.javax.sip.cache.SipCacheException;
+
+/**
+ * Goes through the keys of the caches, cache after cache, keeping its position between two chunks.
+ * The caches are read through the cache data objects since they may be set up after the start of the stack.
+ * A transaction is reported with the hash of its meta data, which changes along its state, so that a transaction still in use 
+ * isn't considered orphan for long, and is only removed if it still has the same meta data and its dialog is still absent.
+ */
+public class OrphanEntryScan {
+
+	private static final int DIALOGS = 0;
+	private static final int APPLICATION_DATA = 1;
+	private static final int DIALOG_OWNERS = 2;
+	private static final int SERVER_TRANSACTIONS = 3;
+	private static final int SERVER_TRANSACTIONS_APPLICATION_DATA = 4;
+	private static final int CLIENT_TRANSACTIONS = 5;
+	private static final int CLIENT_TRANSACTIONS_APPLICATION_DATA = 6;
+	private static final int PHASES = 7;
+
+	private final SIPDialogCacheData dialogCacheData;
+	private final SIPServerTransactionCacheData serverTXCacheData;
+	private final SIPClientTransactionCacheData clientTXCacheData;
+	private int phase = -1;
+	private Iterator<String> keys;
+
+	public OrphanEntryScan(SIPDialogCacheData dialogCacheData, 
+			SIPServerTransactionCacheData serverTXCacheData, SIPClientTransactionCacheData clientTXCacheData) {
+		this.dialogCacheData = dialogCacheData;
+		this.serverTXCacheData = serverTXCacheData;
+		this.clientTXCacheData = clientTXCacheData;
+	}
+
+	public synchronized boolean scan(int chunkSize, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		int scanned = 0;
+		while (scanned < chunkSize) {
+			if (keys == null || !keys.hasNext()) {
+				if (++phase == PHASES) {
+					phase = -1;
+					keys = null;
+					return false;
+				}
+				final Cache<String, ?> cache = getCache(phase);
+				// the key set is a view of the local data container, concurrent updates don't break the iteration
+				keys = cache != null ? cache.keySet().iterator() : null;
+				continue;
+			}
+			scan(keys.next(), nodeIds, visitor);
+			scanned++;
+		}
+		return true;
+	}
+
+	private Cache<String, ?> getCache(int phase) {
+		switch (phase) {
+			case DIALOGS: return dialogCacheData.getDialogs();
+			case APPLICATION_DATA: return dialogCacheData.getAppDataMap();
+			case DIALOG_OWNERS: return dialogCacheData.getDialogOwners();
+			case SERVER_TRANSACTIONS: return serverTXCacheData.getServerTransactions();
+			case SERVER_TRANSACTIONS_APPLICATION_DATA: return serverTXCacheData.getServerTransactionsApp();
+			case CLIENT_TRANSACTIONS: return clientTXCacheData.getClientTransactions();
+			default: return clientTXCacheData.getClientTransactionsApp();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void scan(String key, Set<String> nodeIds, Visitor visitor) throws SipCacheException {
+		final Cache<String, Object> dialogs = dialogCacheData.getDialogs();
+		switch (phase) {
+			case DIALOGS:
+				if (nodeIds != null && dialogCacheData.getDialogOwners() != null) {
+					final String owner = dialogCacheData.getDialogOwners().get(key);
+					if (owner != null && !nodeIds.contains(owner)) {
+						final long version = DialogStateCodec.readStoredVersion(dialogs.get(key));
+						if (version >= 0) {
+							visitor.orphanCandidate(EntryType.DIALOG, key, version);
+						}
+					}
+				}
+				break;
+			case APPLICATION_DATA:
+				if (!dialogs.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.DIALOG_APPLICATION_DATA, key, 0);
+				}
+				break;
+			case DIALOG_OWNERS:
+				if (!dialogs.containsKey(key)) {
+					visitor.orphanCandidate(EntryType.DIALOG_OWNER, key, 0);
+				}
+				break;
+			case SERVER_TRANSACTIONS: {
+				final Map<String, Object> metaData = (Map<String, Object>) serverTXCacheData.getServerTransactions().get(key);
+				final String dialogId = metaData != null ? (String) metaData.get(MobicentsHASIPServerTransaction.DIALOG_ID) : null;
+				if (dialogId != null && !dialogs.containsKey(dialogId)) {
+					visitor.orphanCandidate(EntryType.SERVER_TRANSACTION, key, metaData.hashCode());
+				}
+				break;
+			}
+			case SERVER_TRANSACTIONS_APPLICATION_DATA:
+				if (!serverTXCacheData.getServerTransactions().containsKey(key)) {
+					visitor.orphanCandidate(EntryType.SERVER_TRANSACTION, key, 0);
+				}
+				break;
+			case CLIENT_TRANSACTIONS: {
+				final Map<String, Object> metaData = (Map<String, Object>) clientTXCacheData.getClientTransactions().get(key);
+				final String dialogId = metaData != null ? (String) metaData.get(MobicentsHASIPClientTransaction.DIALOG_ID) : null;
+				if (dialogId != null && !dialogs.containsKey(dialogId)) {
+					visitor.orphanCandidate(EntryType.CLIENT_TRANSACTION, key, metaData.hashCode());
+				}
+				break;
+			}
+			default:
+				if (!clientTXCacheData.getClientTransactions().containsKey(key)) {
+					visitor.orphanCandidate(EntryType.CLIENT_TRANSACTION, key, 0);
+				}
+		}
+	}
+
+	/**
+	 * Removes a transaction whose dialog isn't in the cache, or the application data of a transaction that isn't,
+	 * only if it still looks orphan. The meta data of the transaction is only removed if the cache still holds the one checked, 
+	 * application data removed while its transaction was written meanwhile is put back.
+	 * @param metaDataHash the hash of the meta data of the transaction seen by the scans, 0 for application data without transaction
+	 * @return true if the entry was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean removeOrphanTransaction(EntryType type, String txId, long metaDataHash) {
+		final boolean server = type == EntryType.SERVER_TRANSACTION;
+		final Cache<String, Object> transactions = server ? serverTXCacheData.getServerTransactions() : clientTXCacheData.getClientTransactions();
+		final Cache<String, Object> transactionsApp = server ? serverTXCacheData.getServerTransactionsApp() : clientTXCacheData.getClientTransactionsApp();
+		final Map<String, Object> metaData = (Map<String, Object>) transactions.get(txId);
+		if (metaData == null) {
+			if (metaDataHash != 0) {
+				return false;
+			}
+			final Object appData = transactionsApp.remove(txId);
+			if (appData == null) {
+				return false;
+			}
+			if (transactions.containsKey(txId)) {
+				transactionsApp.putIfAbsent(txId, appData);
+				return false;
+			}
+			return true;
+		}
+		final String dialogId = (String) metaData.get(server ? MobicentsHASIPServerTransaction.DIALOG_ID : MobicentsHASIPClientTransaction.DIALOG_ID);
+		if (metaData.hashCode() != metaDataHash || dialogId == null || dialogCacheData.getDialogs().containsKey(dialogId)) {
+			return false;
+		}
+		// the meta data only holds strings, numbers and addresses, compared by content
+		if (!transactions.remove(txId, metaData)) {
+			return false;
+		}
+		transactionsApp.remove(txId);
+		return true;
+	}
+}
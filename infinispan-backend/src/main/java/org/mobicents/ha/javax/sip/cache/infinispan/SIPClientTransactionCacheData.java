@@ -29,11 +29,17 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import org.infinispan.Cache;
@@ -53,6 +59,8 @@ public class SIPClientTransactionCacheData {
 	private StackLogger logger;
 	private Cache<String, Object> clientTransactions;
 	private Cache<String, Object> clientTransactionsApp;
+	// the asynchronous writes of a transaction are applied in order, the last one being usually its removal
+	private final OrderedAsyncWrites orderedWrites = new OrderedAsyncWrites();
 	
 	public SIPClientTransactionCacheData(
 			ClusteredSipStack s, Cache<String, Object> clientTXCache,
@@ -92,12 +100,15 @@ public class SIPClientTransactionCacheData {
 			
 			// metadata
 			Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
-			getClientTransactions().put(clientTransaction.getTransactionId(), metaData);
+			// transactions left behind by a crashed node expire, negative lifespans and max idle times never expire
+			final long lifespan = getTransactionCacheTTL() > 0 ? getTransactionCacheTTL() : -1;
+			final long maxIdle = getTransactionCacheMaxIdle() > 0 ? getTransactionCacheMaxIdle() : -1;
+			getClientTransactions().put(clientTransaction.getTransactionId(), metaData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
 			
 			// app data
 			final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
 			if(transactionAppData != null) {
-				getClientTransactionsApp().put(clientTransaction.getTransactionId(), transactionAppData);
+				getClientTransactionsApp().put(clientTransaction.getTransactionId(), transactionAppData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
 			}
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -108,8 +119,76 @@ public class SIPClientTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeClientTransaction(" + txId + ")");
-		getClientTransactions().remove(txId);
-		getClientTransactionsApp().remove(txId);
+		// waits for the asynchronous writes of the transaction still pending, which would otherwise resurrect it
+		try {
+			orderedWrites.submit(txId, removal(txId)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SipCacheException("Interrupted while removing the client transaction " + txId, e);
+		} catch (ExecutionException e) {
+			throw new SipCacheException("A problem occured while removing the client transaction " + txId, e.getCause());
+		}
+	}
+	
+	/**
+	 * Same as {@link #putClientTransaction(SIPClientTransaction)} without waiting for the writes,
+	 * the meta data being read on the calling thread
+	 */
+	public List<Future<?>> putClientTransactionAsync(SIPClientTransaction clientTransaction) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putClientTransactionAsync(" + clientTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPClientTransaction haClientTransaction = (MobicentsHASIPClientTransaction) clientTransaction;
+		final long lifespan = getTransactionCacheTTL() > 0 ? getTransactionCacheTTL() : -1;
+		final long maxIdle = getTransactionCacheMaxIdle() > 0 ? getTransactionCacheMaxIdle() : -1;
+		final String txId = clientTransaction.getTransactionId();
+		final Map<String, Object> metaData = haClientTransaction.getMetaDataToReplicate();
+		final Object transactionAppData = haClientTransaction.getApplicationDataToReplicate();
+		final List<Future<?>> puts = new ArrayList<Future<?>>(1);
+		puts.add(orderedWrites.submit(txId, new OrderedAsyncWrites.Write() {
+			public List<Future<?>> issue() {
+				final List<Future<?>> operations = new ArrayList<Future<?>>(2);
+				operations.add(getClientTransactions().putAsync(txId, metaData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS));
+				if(transactionAppData != null) {
+					operations.add(getClientTransactionsApp().putAsync(txId, transactionAppData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS));
+				}
+				return operations;
+			}
+		}));
+		return puts;
+	}
+	
+	public List<Future<?>> removeClientTransactionAsync(String txId) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeClientTransactionAsync(" + txId + ")");
+		final List<Future<?>> removals = new ArrayList<Future<?>>(1);
+		removals.add(orderedWrites.submit(txId, removal(txId)));
+		return removals;
+	}
+	
+	/**
+	 * @return the transaction cache TTL of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheTTL() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheTTL() : 0;
+	}
+	
+	/**
+	 * @return the transaction cache max idle time of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheMaxIdle() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheMaxIdle() : 0;
+	}
+	
+	private OrderedAsyncWrites.Write removal(final String txId) {
+		return new OrderedAsyncWrites.Write() {
+			public List<Future<?>> issue() {
+				final List<Future<?>> operations = new ArrayList<Future<?>>(2);
+				operations.add(getClientTransactions().removeAsync(txId));
+				operations.add(getClientTransactionsApp().removeAsync(txId));
+				return operations;
+			}
+		};
 	}
 	
 	public MobicentsHASIPClientTransaction createClientTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
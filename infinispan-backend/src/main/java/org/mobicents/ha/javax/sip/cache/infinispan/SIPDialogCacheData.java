@@ -26,8 +26,19 @@ import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -35,11 +46,21 @@ import javax.sip.address.Address;
 import javax.sip.header.ContactHeader;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.HASipDialog;
 import org.mobicents.ha.javax.sip.HASipDialogFactory;
+import org.mobicents.ha.javax.sip.cache.DialogCacheEntry;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.EncodedDialogMetaData;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
+import org.mobicents.ha.javax.sip.cache.SipCacheFutures;
 
+import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
 
 /**
  * This class modifies the original SIPDialogCacheData ( @see org.mobicents.ha.javax.sip.cache.hz.SIPDialogCacheData ) 
@@ -51,11 +72,17 @@ import org.infinispan.Cache;
  */
 
 public class SIPDialogCacheData {
+	// conditional writes of the entry of a dialog attempted before giving up when other nodes keep writing it
+	private static final int MAX_WRITE_ATTEMPTS = 8;
 
 	private ClusteredSipStack stack;
 	private StackLogger clusteredlogger;
 	private Cache<String, Object> dialogs;
 	private Cache<String, Object> appDataMap;
+	private Cache<String, Long> dialogVersions;
+	private Cache<String, String> dialogOwners;
+	private boolean singleEntry;
+	private boolean legacyFormat;
 	
 	public SIPDialogCacheData(ClusteredSipStack s, 
 			Cache<String, Object> dialogCache,
@@ -70,47 +97,98 @@ public class SIPDialogCacheData {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logTrace("getDialog("+ dialogId +")");
 		
-		Object metaData = getDialogs().get(dialogId);
-		Object appData = getAppDataMap().get(dialogId);
+		final Object[] entries = getDialogEntries(dialogId);
+		final Object metaData = entries[0];
+		final Object appData = entries[1];
 		if (metaData != null) {
-			return (SIPDialog) createDialog(dialogId, (Map<String, Object>) metaData, appData);
+			return (SIPDialog) createDialog(dialogId, DialogStateCodec.asMap(metaData), appData);
 			
 		} else {
 			return null;
 		}
 	}
 	
-	public void putDialog(SIPDialog dialog) throws SipCacheException {
+	/**
+	 * @return false if the cache holds a version of the dialog at least as recent, 
+	 * or if its entry changed or was removed since it was read, in which case nothing was written
+	 */
+	public boolean putDialog(SIPDialog dialog) throws SipCacheException {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
 			clusteredlogger.logDebug("putDialog(" + dialog.getDialogId() + ")");
 		}
 		
-		final HASipDialog haSipDialog = (HASipDialog) dialog;
+		return writeDialog((HASipDialog) dialog);
+	}
+	
+	boolean writeDialog(HASipDialog dialog) throws SipCacheException {
+		final DialogWrites writes = new DialogWrites(getMaxIdle());
+		addDialog(writes, dialog);
+		return writes.flush().isEmpty();
+	}
+	
+	/**
+	 * Same as {@link #putDialog(SIPDialog)} without waiting for the writes, 
+	 * the cached entries are read on the calling thread to merge the changes of the dialog
+	 */
+	public List<Future<?>> putDialogAsync(SIPDialog dialog) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogAsync(" + dialog.getDialogId() + ")");
+		}
 		
-		Object dialogMetaData = haSipDialog.getMetaDataToReplicate(); 
-		if (dialogMetaData != null) {
-			if (getDialogs().containsKey(dialog.getDialogId())) {
-				Map<String, Object> cachedMetaData = (Map<String, Object>)getDialogs().get(dialog.getDialogId());
-				Long currentVersion = (Long)((Map<String, Object>)dialogMetaData).get(AbstractHASipDialog.VERSION);
-				Long cacheVersion = (Long)((Map<String, Object>)cachedMetaData).get(AbstractHASipDialog.VERSION);
-				if ( cacheVersion.longValue() < currentVersion.longValue()) {
-					for(Entry<String, Object> e : ((Map<String, Object>)dialogMetaData).entrySet()) {
-						cachedMetaData.put(e.getKey(), e.getValue());
-					}
-					getDialogs().replace(dialog.getDialogId(), cachedMetaData);
-				}
-				
-			} else {
-				getDialogs().put(dialog.getDialogId(), dialogMetaData);
-			}
+		final DialogWrites writes = new DialogWrites(getMaxIdle());
+		try {
+			addDialog(writes, (HASipDialog) dialog);
+		} catch (SipCacheException e) {
+			return Collections.<Future<?>>singletonList(SipCacheFutures.failed(e));
+		}
+		return writes.flushAsync();
+	}
+	
+	/**
+	 * Writes several dialogs with concurrent conditional writes of their entries, 
+	 * then a single putAll per cache and lifespan for the other entries of the dialogs written
+	 * @return the dialogs not written because the cache holds a version at least as recent 
+	 * or because their entry changed or was removed since it was read
+	 */
+	public Collection<SIPDialog> putDialogs(Collection<SIPDialog> sipDialogs) throws SipCacheException {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE)) {
+			clusteredlogger.logDebug("putDialogs(" + sipDialogs.size() + ")");
 		}
 		
-		Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
-		if (dialogAppData != null) {
-			if (getAppDataMap().containsKey(dialog.getDialogId()))
-				getAppDataMap().replace(dialog.getDialogId(), dialogAppData);
-			else 
-				getAppDataMap().put(dialog.getDialogId(), dialogAppData);
+		final DialogWrites writes = new DialogWrites(getMaxIdle());
+		for (SIPDialog dialog : sipDialogs) {
+			addDialog(writes, (HASipDialog) dialog);
+		}
+		final Collection<HASipDialog> outdated = writes.flush();
+		final List<SIPDialog> outdatedDialogs = new ArrayList<SIPDialog>(outdated.size());
+		for (HASipDialog dialog : outdated) {
+			outdatedDialogs.add((SIPDialog) dialog);
+		}
+		return outdatedDialogs;
+	}
+	
+	/**
+	 * Merges the changes of the dialog with its cached entry and adds the resulting write to the writes,
+	 * the dialog is added to the outdated ones if the cached meta data is at least as recent as its changes
+	 */
+	private void addDialog(DialogWrites writes, HASipDialog haSipDialog) throws SipCacheException {
+		final String dialogId = haSipDialog.getDialogIdToReplicate();
+		final byte[] dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(); 
+		final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
+		// negative lifespans never expire
+		final long cacheTTL = haSipDialog.getCacheTTL();
+		final long lifespan = cacheTTL > 0 ? cacheTTL : -1;
+		if (dialogMetaData == null) {
+			if (dialogAppData != null && !singleEntry) {
+				writes.put(getAppDataMap(), dialogId, dialogAppData, lifespan);
+			}
+			return;
+		}
+		final DialogWrite write = new DialogWrite(haSipDialog, dialogMetaData, dialogAppData, lifespan, getMaxIdle());
+		if (write.merge(getDialogs().get(dialogId))) {
+			writes.add(write);
+		} else {
+			writes.outdated(haSipDialog);
 		}
 	}
 	
@@ -119,10 +197,459 @@ public class SIPDialogCacheData {
 			clusteredlogger.logDebug("updateDialog(" + dialog.getDialogId() + ")");
 		
 		final HASipDialog haSipDialog = (HASipDialog) dialog;
-		final Object dialogMetaData = getDialogs().get(dialog.getDialogId());
-		final Object dialogAppData = getAppDataMap().get(dialog.getDialogId()); 
+		if(getDialogVersions() != null) {
+			// probe the version first, the full state is only fetched if the cached one is newer
+			final Long cacheVersion = getDialogVersions().get(dialog.getDialogId());
+			if(cacheVersion != null && cacheVersion.longValue() <= haSipDialog.getVersion()) {
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("HA SIP Dialog " + dialog.getDialogId() + " version " + haSipDialog.getVersion() + " is not older than the one in the cache " + cacheVersion + ", not updating it");
+				}
+				return;
+			}
+		}
+		final Object[] entries = getDialogEntries(dialog.getDialogId());
 	    
-		updateDialog(haSipDialog, (Map<String, Object>)dialogMetaData, dialogAppData);
+		updateDialog(haSipDialog, DialogStateCodec.asMap(entries[0]), entries[1]);
+	}
+	
+	/**
+	 * @return the max idle time of the dialog entries in milliseconds, negative for none as expected by Infinispan.
+	 * The idle time of an entry is tracked by each node on its own, as the lifespan it only expires 
+	 * the entries of the dialogs neither read nor replicated anymore, left behind by a crashed node
+	 */
+	private long getMaxIdle() {
+		final long maxIdle = stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getDialogCacheMaxIdle() : 0;
+		return maxIdle > 0 ? maxIdle : -1;
+	}
+	
+	/**
+	 * The owner is only part of the meta data when it changed, it is still written on each replication 
+	 * if the dialog expires so that both entries live as long
+	 * @return the owner to write in its own small entry, used to find the dialogs of a node without going through 
+	 * the dialogs themselves, null if it doesn't need to be written
+	 */
+	private String getOwnerToWrite(byte[] dialogMetaData, long lifespan, long maxIdle) throws SipCacheException {
+		final String owner = DialogStateCodec.readOwner(dialogMetaData);
+		if(owner == null && (lifespan > 0 || maxIdle > 0) && stack instanceof ClusteredSipStackExt) {
+			return ((ClusteredSipStackExt) stack).getNodeId();
+		}
+		return owner;
+	}
+	
+	/**
+	 * The conditional write of the entry of a dialog, along with the other entries of the dialog 
+	 * which are only written if the entry of the dialog was.
+	 * When another node wrote the entry since it was read, the entry is read again and the changes of the dialog
+	 * are merged into it, unless it is now at least as recent as the changes.
+	 */
+	private class DialogWrite {
+		private final HASipDialog dialog;
+		private final Object dialogAppData;
+		private final long lifespan;
+		private final long maxIdle;
+		private byte[] dialogMetaData;
+		private Object cachedValue;
+		private Object value;
+		private long version;
+		private int attempts;
+		
+		DialogWrite(HASipDialog dialog, byte[] dialogMetaData, Object dialogAppData, long lifespan, long maxIdle) {
+			this.dialog = dialog;
+			this.dialogMetaData = dialogMetaData;
+			this.dialogAppData = dialogAppData;
+			this.lifespan = lifespan;
+			this.maxIdle = maxIdle;
+		}
+		
+		String getDialogId() {
+			return dialog.getDialogIdToReplicate();
+		}
+		
+		/**
+		 * Merges the changes of the dialog into the value of its entry, 
+		 * entries stored as a map being converted on the fly, and the result stored as a map with the legacy write format
+		 * @param cached the value of the entry read from the cache, null if there is none
+		 * @return false if the cached meta data is at least as recent as the changes, nothing having to be written
+		 */
+		boolean merge(Object cached) throws SipCacheException {
+			attempts++;
+			cachedValue = cached;
+			if (cached == null) {
+				if(!DialogStateCodec.isFullState(dialogMetaData)) {
+					// a delta can't be applied if the entry is not in the cache anymore, replicate the full state instead
+					if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						clusteredlogger.logDebug("dialog " + getDialogId() + " not found in the cache, replicating its full state");
+					}
+					dialogMetaData = dialog.getEncodedMetaDataToReplicate(true);
+				}
+				version = DialogStateCodec.readVersion(dialogMetaData);
+				value = singleEntry ? new DialogCacheEntry(dialogMetaData, dialogAppData) : toValue(dialogMetaData);
+				return true;
+			}
+			if (singleEntry) {
+				// the application data of an entry stored by a previous release is in its own entry, it is moved into the single entry
+				final Object legacyAppData = dialogAppData == null && DialogCacheEntry.isLegacy(cached) ? getAppDataMap().get(getDialogId()) : null;
+				final DialogCacheEntry mergedEntry = DialogCacheEntry.merge(cached, legacyAppData, dialogMetaData, dialogAppData);
+				if (mergedEntry == null) {
+					return false;
+				}
+				version = mergedEntry.getVersion();
+				value = mergedEntry;
+				return true;
+			}
+			final byte[] cachedEncodedMetaData = DialogStateCodec.asByteArray(cached);
+			version = DialogStateCodec.readVersion(dialogMetaData);
+			if (DialogStateCodec.readVersion(cachedEncodedMetaData) >= version) {
+				return false;
+			}
+			value = toValue(DialogStateCodec.merge(cachedEncodedMetaData, dialogMetaData));
+			return true;
+		}
+		
+		/**
+		 * @return the value of the entry of a dialog whose application data is stored in its own entry
+		 */
+		private Object toValue(byte[] metaData) throws SipCacheException {
+			return legacyFormat ? DialogStateCodec.decode(metaData) : new EncodedDialogMetaData(metaData);
+		}
+		
+		/**
+		 * Reads the entry of the dialog again and merges the changes of the dialog into it
+		 * @return false if the entry is now at least as recent as the changes or if it changed too many times meanwhile
+		 */
+		boolean mergeAgain() throws SipCacheException {
+			if (attempts >= MAX_WRITE_ATTEMPTS) {
+				if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+					clusteredlogger.logDebug("dialog " + getDialogId() + " changed " + attempts + " times while it was written, giving up");
+				}
+				return false;
+			}
+			if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+				clusteredlogger.logDebug("dialog " + getDialogId() + " written by another node meanwhile, merging its changes again");
+			}
+			return merge(getDialogs().get(getDialogId()));
+		}
+		
+		/**
+		 * Creates the entry of the dialog only if it is still absent, or replaces it only if it still holds the value read.
+		 * Maps stored by a previous release can't be compared once transferred, their route arrays being compared by reference,
+		 * so they are replaced as long as they are present.
+		 */
+		@SuppressWarnings("rawtypes")
+		NotifyingFuture writeAsync() {
+			if (cachedValue == null) {
+				return getDialogs().putIfAbsentAsync(getDialogId(), value, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+			}
+			if (isComparable(cachedValue)) {
+				return getDialogs().replaceAsync(getDialogId(), cachedValue, value, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+			}
+			return getDialogs().replaceAsync(getDialogId(), value, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * @param result the result of {@link #writeAsync()}
+		 * @return true if the entry of the dialog was written
+		 */
+		boolean isWritten(Object result) {
+			if (cachedValue == null) {
+				return result == null;
+			}
+			if (isComparable(cachedValue)) {
+				return Boolean.TRUE.equals(result);
+			}
+			return result != null;
+		}
+		
+		/**
+		 * Same as the writes and retries of {@link DialogWrites#flush()} without waiting for them, 
+		 * the other entries of the dialog being written once the write of its entry succeeded.
+		 * The entry is read again on the thread completing the write that failed.
+		 * @return a future completing once the entry of the dialog was written or turned out to be at least as recent as the changes
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		NotifyingFuture<Void> writeWithRetriesAsync() {
+			final SettableNotifyingFuture<Void> completion = new SettableNotifyingFuture<Void>();
+			writeAsync().attachListener(new FutureListener() {
+				public void futureDone(Future future) {
+					try {
+						if (isWritten(future.get())) {
+							final DialogWrites entries = new DialogWrites(maxIdle);
+							addEntries(entries);
+							entries.putAllAsync();
+							completion.complete(null, null);
+						} else if (mergeAgain()) {
+							writeAsync().attachListener(this);
+						} else {
+							if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+								clusteredlogger.logDebug("dialog " + getDialogId() + " version " + dialog.getVersion() + " is not newer than the one in the cache, not replicating it");
+							}
+							completion.complete(null, null);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						completion.complete(null, e);
+					} catch (ExecutionException e) {
+						completion.complete(null, e.getCause());
+					} catch (SipCacheException e) {
+						completion.complete(null, e);
+					} catch (RuntimeException e) {
+						completion.complete(null, e);
+					}
+				}
+			});
+			return completion;
+		}
+		
+		/**
+		 * Adds the other entries of the dialog, written once the entry of the dialog was
+		 */
+		void addEntries(DialogWrites writes) throws SipCacheException {
+			final String dialogId = getDialogId();
+			if (getDialogOwners() != null) {
+				final String owner = getOwnerToWrite(dialogMetaData, lifespan, maxIdle);
+				if (owner != null) {
+					writes.put(getDialogOwners(), dialogId, owner, lifespan);
+				}
+			}
+			if (singleEntry) {
+				if (DialogCacheEntry.isLegacy(cachedValue)) {
+					writes.remove(getAppDataMap(), dialogId);
+				}
+			} else if (dialogAppData != null) {
+				writes.put(getAppDataMap(), dialogId, dialogAppData, lifespan);
+			}
+			if (getDialogVersions() != null) {
+				// stores the version of the dialog in its own small entry, used to check if a local dialog is up to date without transferring its meta data
+				writes.putVersion(new DialogVersionWrite(getDialogVersions(), dialogId, version, lifespan, maxIdle));
+			}
+		}
+	}
+	
+	/**
+	 * @return true if the cached value compares by content, so that it can be replaced only if the cache still holds it
+	 */
+	private static boolean isComparable(Object cachedValue) {
+		return cachedValue instanceof DialogCacheEntry || cachedValue instanceof EncodedDialogMetaData;
+	}
+	
+	/**
+	 * The write of the version entry of a dialog, only replacing a lower version. 
+	 * The entries of a dialog written concurrently by several nodes are written in any order once their dialog entry was, 
+	 * a plain put could leave a version lower than the one of the dialog entry and the local dialogs would then not be updated.
+	 */
+	private static class DialogVersionWrite implements FutureListener<Object> {
+		private final Cache<String, Long> versions;
+		private final String dialogId;
+		private final Long version;
+		private final long lifespan;
+		private final long maxIdle;
+		
+		DialogVersionWrite(Cache<String, Long> versions, String dialogId, long version, long lifespan, long maxIdle) {
+			this.versions = versions;
+			this.dialogId = dialogId;
+			this.version = Long.valueOf(version);
+			this.lifespan = lifespan;
+			this.maxIdle = maxIdle;
+		}
+		
+		void write() {
+			Long cachedVersion = versions.putIfAbsent(dialogId, version, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+			while (cachedVersion != null && cachedVersion.longValue() < version.longValue()) {
+				if (versions.replace(dialogId, cachedVersion, version, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+				// another node wrote the version meanwhile
+				cachedVersion = versions.putIfAbsent(dialogId, version, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		/**
+		 * Same as {@link #write()} without blocking, each conditional write is chained on the result of the previous one
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void writeAsync() {
+			((NotifyingFuture) versions.putIfAbsentAsync(dialogId, version, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS)).attachListener(this);
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public void futureDone(Future<Object> future) {
+			final Object result;
+			try {
+				result = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// without version entry the local dialogs are checked against the dialog entry, never against an older version
+				versions.removeAsync(dialogId);
+				return;
+			}
+			if (result instanceof Long) {
+				final Long cachedVersion = (Long) result;
+				if (cachedVersion.longValue() < version.longValue()) {
+					((NotifyingFuture) versions.replaceAsync(dialogId, cachedVersion, version, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS)).attachListener(this);
+				}
+			} else if (Boolean.FALSE.equals(result)) {
+				// another node wrote the version meanwhile
+				writeAsync();
+			}
+		}
+	}
+	
+	/**
+	 * The writes of one or more dialogs. The entries of the dialogs are written concurrently with conditional writes,
+	 * the other entries are grouped by cache and lifespan so that each group is written with a single putAll,
+	 * the entries made obsolete by the writes are then removed.
+	 * The previous values of the other entries are never needed, so they are not fetched from the other nodes.
+	 */
+	private static class DialogWrites {
+		private final List<DialogWrite> dialogWrites = new ArrayList<DialogWrite>();
+		private final List<HASipDialog> outdated = new ArrayList<HASipDialog>();
+		private final Map<Cache<String, ?>, Map<Long, Map<String, Object>>> writes = new LinkedHashMap<Cache<String, ?>, Map<Long, Map<String, Object>>>();
+		private final List<Object[]> removals = new ArrayList<Object[]>();
+		private final List<DialogVersionWrite> versionWrites = new ArrayList<DialogVersionWrite>();
+		private final long maxIdle;
+		
+		/**
+		 * @param maxIdle the max idle time of the entries in milliseconds, negative for none
+		 */
+		DialogWrites(long maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+		
+		void add(DialogWrite write) {
+			dialogWrites.add(write);
+		}
+		
+		void outdated(HASipDialog dialog) {
+			outdated.add(dialog);
+		}
+		
+		void put(Cache<String, ?> cache, String key, Object value, long lifespan) {
+			Map<Long, Map<String, Object>> cacheWrites = writes.get(cache);
+			if(cacheWrites == null) {
+				cacheWrites = new HashMap<Long, Map<String, Object>>();
+				writes.put(cache, cacheWrites);
+			}
+			Map<String, Object> lifespanWrites = cacheWrites.get(Long.valueOf(lifespan));
+			if(lifespanWrites == null) {
+				lifespanWrites = new HashMap<String, Object>();
+				cacheWrites.put(Long.valueOf(lifespan), lifespanWrites);
+			}
+			lifespanWrites.put(key, value);
+		}
+		
+		void remove(Cache<String, ?> cache, String key) {
+			removals.add(new Object[] {cache, key});
+		}
+		
+		void putVersion(DialogVersionWrite versionWrite) {
+			versionWrites.add(versionWrite);
+		}
+		
+		/**
+		 * @return the dialogs not written
+		 */
+		@SuppressWarnings("unchecked")
+		Collection<HASipDialog> flush() throws SipCacheException {
+			final List<Future<?>> results = new ArrayList<Future<?>>(dialogWrites.size());
+			for (DialogWrite write : dialogWrites) {
+				results.add(write.writeAsync());
+			}
+			for (int i = 0; i < dialogWrites.size(); i++) {
+				final DialogWrite write = dialogWrites.get(i);
+				Future<?> result = results.get(i);
+				boolean written;
+				while (!(written = write.isWritten(get(write, result))) && write.mergeAgain()) {
+					result = write.writeAsync();
+				}
+				if (written) {
+					write.addEntries(this);
+				} else {
+					outdated.add(write.dialog);
+				}
+			}
+			for (Entry<Cache<String, ?>, Map<Long, Map<String, Object>>> cacheWrites : writes.entrySet()) {
+				final AdvancedCache<String, Object> cache = getAdvancedCache(cacheWrites.getKey());
+				for (Entry<Long, Map<String, Object>> lifespanWrites : cacheWrites.getValue().entrySet()) {
+					cache.putAll(lifespanWrites.getValue(), lifespanWrites.getKey().longValue(), TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+				}
+			}
+			for (Object[] removal : removals) {
+				getAdvancedCache((Cache<String, ?>) removal[0]).remove(removal[1]);
+			}
+			for (DialogVersionWrite versionWrite : versionWrites) {
+				versionWrite.write();
+			}
+			return outdated;
+		}
+		
+		/**
+		 * @return the result of the write of the entry of a dialog
+		 */
+		private Object get(DialogWrite write, Future<?> result) throws SipCacheException {
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SipCacheException("Interrupted while putting the following dialog " + write.getDialogId() + " into the Cache", e);
+			} catch (ExecutionException e) {
+				throw new SipCacheException("A problem occured while putting the following dialog " + write.getDialogId() + " into the Cache", e.getCause());
+			}
+		}
+		
+		/**
+		 * The other entries of a dialog are written once the write of its entry succeeded
+		 */
+		List<Future<?>> flushAsync() {
+			final List<Future<?>> puts = new ArrayList<Future<?>>();
+			for (DialogWrite write : dialogWrites) {
+				puts.add(write.writeWithRetriesAsync());
+			}
+			puts.addAll(putAllAsync());
+			return puts;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private List<Future<?>> putAllAsync() {
+			final List<Future<?>> puts = new ArrayList<Future<?>>();
+			for (Entry<Cache<String, ?>, Map<Long, Map<String, Object>>> cacheWrites : writes.entrySet()) {
+				final AdvancedCache<String, Object> cache = getAdvancedCache(cacheWrites.getKey());
+				for (Entry<Long, Map<String, Object>> lifespanWrites : cacheWrites.getValue().entrySet()) {
+					puts.add(cache.putAllAsync(lifespanWrites.getValue(), lifespanWrites.getKey().longValue(), TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS));
+				}
+			}
+			for (Object[] removal : removals) {
+				puts.add(getAdvancedCache((Cache<String, ?>) removal[0]).removeAsync(removal[1]));
+			}
+			// only written once the entry of their dialog was, nobody waits for them
+			for (DialogVersionWrite versionWrite : versionWrites) {
+				versionWrite.writeAsync();
+			}
+			return puts;
+		}
+		
+		@SuppressWarnings("unchecked")
+		private AdvancedCache<String, Object> getAdvancedCache(Cache<String, ?> cache) {
+			return ((Cache<String, Object>) cache).getAdvancedCache().withFlags(Flag.SKIP_REMOTE_LOOKUP);
+		}
+	}
+	
+	/**
+	 * Reads the meta data and application data of the dialog, 
+	 * a single read is needed if the dialog is stored in a single entry
+	 */
+	private Object[] getDialogEntries(String dialogId) {
+		final Object metaData = getDialogs().get(dialogId);
+		if(metaData instanceof DialogCacheEntry) {
+			final DialogCacheEntry entry = (DialogCacheEntry) metaData;
+			return new Object[] {entry.getMetaData(), entry.getApplicationData()};
+		}
+		if(singleEntry && metaData == null) {
+			return new Object[] {null, null};
+		}
+		// meta data stored in its own entry, by a previous release if single entries are used
+		return new Object[] {metaData, getAppDataMap().get(dialogId)};
 	}
 	
 	public void removeDialog(String dialogId) throws SipCacheException {
@@ -130,13 +657,123 @@ public class SIPDialogCacheData {
 			clusteredlogger.logDebug("removeDialog(" + dialogId + ")");
 		
 		getDialogs().remove(dialogId);
+		getAppDataMap().remove(dialogId);
+		if(getDialogVersions() != null) {
+			getDialogVersions().remove(dialogId);
+		}
+		if(getDialogOwners() != null) {
+			getDialogOwners().remove(dialogId);
+		}
+	}
+	
+	public List<Future<?>> removeDialogAsync(String dialogId) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			clusteredlogger.logDebug("removeDialogAsync(" + dialogId + ")");
+		
+		final List<Future<?>> removals = new ArrayList<Future<?>>(4);
+		removals.add(getDialogs().removeAsync(dialogId));
+		removals.add(getAppDataMap().removeAsync(dialogId));
+		if(getDialogVersions() != null) {
+			removals.add(getDialogVersions().removeAsync(dialogId));
+		}
+		if(getDialogOwners() != null) {
+			removals.add(getDialogOwners().removeAsync(dialogId));
+		}
+		return removals;
 	}
 	
+	/**
+	 * Evicts the entries of the dialog from the memory of this node, the other nodes of the cluster keep their copies
+	 */
 	public void evictDialog(String dialogId) {
 		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			clusteredlogger.logDebug("evictDialog(" + dialogId + ")");
 		
-		getDialogs().remove(dialogId);
+		getDialogs().evict(dialogId);
+		getAppDataMap().evict(dialogId);
+		if(getDialogVersions() != null) {
+			getDialogVersions().evict(dialogId);
+		}
+		if(getDialogOwners() != null) {
+			getDialogOwners().evict(dialogId);
+		}
+	}
+	
+	/**
+	 * Removes a dialog owned by a node that left the cluster along with its other entries, 
+	 * only if it still has the version seen orphan and its owner is still not in the cluster.
+	 * The entry is only removed if the cache still holds the one checked, 
+	 * the maps stored by a previous release can't be compared once transferred so they are removed right after the check.
+	 * @return true if the dialog was removed
+	 */
+	public boolean removeOrphanDialog(String dialogId, long version, Set<String> nodeIds) throws SipCacheException {
+		final Object dialogMetaData = getDialogs().get(dialogId);
+		if(dialogMetaData == null || DialogStateCodec.readStoredVersion(dialogMetaData) != version) {
+			return false;
+		}
+		String owner = DialogStateCodec.readStoredOwner(dialogMetaData);
+		if(owner == null && getDialogOwners() != null) {
+			owner = getDialogOwners().get(dialogId);
+		}
+		if(owner == null || nodeIds.contains(owner)) {
+			return false;
+		}
+		if(isComparable(dialogMetaData)) {
+			if(!getDialogs().remove(dialogId, dialogMetaData)) {
+				return false;
+			}
+		} else {
+			getDialogs().remove(dialogId);
+		}
+		getAppDataMap().remove(dialogId);
+		if(getDialogVersions() != null) {
+			getDialogVersions().remove(dialogId);
+		}
+		if(getDialogOwners() != null) {
+			getDialogOwners().remove(dialogId);
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes the application data of a dialog whose meta data isn't in the cache anymore, 
+	 * put back if the dialog was written meanwhile
+	 * @return true if the application data was removed, false if the dialog is in the cache again
+	 */
+	public boolean removeApplicationData(String dialogId) {
+		if(getDialogs().containsKey(dialogId)) {
+			return false;
+		}
+		final Object appData = getAppDataMap().remove(dialogId);
+		if(appData == null) {
+			return false;
+		}
+		if(getDialogs().containsKey(dialogId)) {
+			// the dialog was written between the check and the removal, its application data is put back
+			getAppDataMap().putIfAbsent(dialogId, appData);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes the owner entry of a dialog that isn't in the cache anymore
+	 * @return true if the owner entry was removed, false if the dialog is in the cache again
+	 */
+	public boolean removeDialogOwner(String dialogId) {
+		if(getDialogOwners() == null || getDialogs().containsKey(dialogId)) {
+			return false;
+		}
+		final String owner = getDialogOwners().remove(dialogId);
+		if(owner == null) {
+			return false;
+		}
+		if(getDialogs().containsKey(dialogId)) {
+			// same as the application data
+			getDialogOwners().putIfAbsent(dialogId, owner);
+			return false;
+		}
+		return true;
 	}
 	
 	private HASipDialog createDialog(String dialogId, Map<String, Object> dialogMetaData, 
@@ -257,4 +894,99 @@ public class SIPDialogCacheData {
 	public void setAppDataMap(Cache<String, Object> appDataMap) {
 		this.appDataMap = appDataMap;
 	}
+
+	/**
+	 * @return the dialogVersions
+	 */
+	public Cache<String, Long> getDialogVersions() {
+		return dialogVersions;
+	}
+
+	/**
+	 * @param dialogVersions the dialogVersions to set
+	 */
+	public void setDialogVersions(Cache<String, Long> dialogVersions) {
+		this.dialogVersions = dialogVersions;
+	}
+
+	/**
+	 * @return the dialogOwners
+	 */
+	public Cache<String, String> getDialogOwners() {
+		return dialogOwners;
+	}
+
+	/**
+	 * @param dialogOwners the dialogOwners to set
+	 */
+	public void setDialogOwners(Cache<String, String> dialogOwners) {
+		this.dialogOwners = dialogOwners;
+	}
+
+	/**
+	 * Goes through the owner entries stored on this node, which hold all of them in replicated mode.
+	 * The owner entries are small so that the dialogs themselves are neither transferred nor decoded.
+	 * @param ownerId the id of the owner node
+	 * @param localOnly true to only keep the dialogs this node is the primary owner of, the key being
+	 * hashed over the current members in replicated mode, so that the nodes taking over share the dialogs
+	 * @return the ids of the dialogs owned by the node
+	 */
+	public Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException {
+		if(getDialogOwners() == null) {
+			throw new SipCacheException("No dialog owners cache");
+		}
+		final AdvancedCache<String, String> advancedCache = getDialogOwners().getAdvancedCache();
+		final DistributionManager distributionManager = advancedCache.getDistributionManager();
+		final org.infinispan.remoting.transport.Address localAddress = advancedCache.getCacheManager().getAddress();
+		final List<org.infinispan.remoting.transport.Address> members = advancedCache.getCacheManager().getMembers();
+		// no member in local mode, this node holds all the entries
+		final boolean filter = localOnly && localAddress != null && members != null && !members.isEmpty();
+		final Set<String> dialogIds = new HashSet<String>();
+		for (Entry<String, String> entry : getDialogOwners().entrySet()) {
+			if(ownerId.equals(entry.getValue())) {
+				if(filter) {
+					final org.infinispan.remoting.transport.Address primaryOwner = distributionManager != null ? 
+							distributionManager.getPrimaryLocation(entry.getKey()) : 
+							members.get((entry.getKey().hashCode() & Integer.MAX_VALUE) % members.size());
+					if(!localAddress.equals(primaryOwner)) {
+						continue;
+					}
+				}
+				dialogIds.add(entry.getKey());
+			}
+		}
+		if(localOnly && clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("dialogs of owner " + ownerId + " primarily stored on this node : " + dialogIds.size());
+		}
+		return dialogIds;
+	}
+
+	/**
+	 * @return true if the meta data and application data of a dialog are stored in a single entry
+	 */
+	public boolean isSingleEntry() {
+		return singleEntry;
+	}
+
+	/**
+	 * @param singleEntry true to store the meta data and application data of a dialog in a single entry
+	 */
+	public void setSingleEntry(boolean singleEntry) {
+		this.singleEntry = singleEntry;
+	}
+
+	/**
+	 * @return true if the meta data of the dialogs is stored as the map read by the previous releases
+	 */
+	public boolean isLegacyFormat() {
+		return legacyFormat;
+	}
+
+	/**
+	 * @param legacyFormat true to store the meta data of the dialogs as the map read by the previous releases, 
+	 * ignored if single entries are used
+	 */
+	public void setLegacyFormat(boolean legacyFormat) {
+		this.legacyFormat = legacyFormat;
+	}
 }
@@ -29,11 +29,17 @@ import gov.nist.javax.sip.stack.SIPTransactionStack;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sip.PeerUnavailableException;
 
 import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.ClusteredSipStackExt;
 import org.mobicents.ha.javax.sip.cache.SipCacheException;
 
 import org.infinispan.Cache;
@@ -53,6 +59,8 @@ public class SIPServerTransactionCacheData {
 	private StackLogger logger;
 	private Cache<String, Object> serverTransactions;
 	private Cache<String, Object> serverTransactionsApp;
+	// the asynchronous writes of a transaction are applied in order, the last one being usually its removal
+	private final OrderedAsyncWrites orderedWrites = new OrderedAsyncWrites();
 	
 	public SIPServerTransactionCacheData(ClusteredSipStack s, 
 			Cache<String, Object> serverTXCache,
@@ -92,12 +100,15 @@ public class SIPServerTransactionCacheData {
 			
 			// meta data
 			Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
-			getServerTransactions().put(serverTransaction.getTransactionId(), metaData);
+			// transactions left behind by a crashed node expire, negative lifespans and max idle times never expire
+			final long lifespan = getTransactionCacheTTL() > 0 ? getTransactionCacheTTL() : -1;
+			final long maxIdle = getTransactionCacheMaxIdle() > 0 ? getTransactionCacheMaxIdle() : -1;
+			getServerTransactions().put(serverTransaction.getTransactionId(), metaData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
 			
 			// app data
 			final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
 			if(transactionAppData != null) {
-				getServerTransactionsApp().put(serverTransaction.getTransactionId(), transactionAppData);
+				getServerTransactionsApp().put(serverTransaction.getTransactionId(), transactionAppData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
 			}
 		} catch (Exception e) {
 			throw new SipCacheException(e);
@@ -108,8 +119,76 @@ public class SIPServerTransactionCacheData {
 			throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
 			logger.logDebug("removeServerTransaction(" + txId + ")");
-		getServerTransactions().remove(txId);
-		getServerTransactionsApp().remove(txId);
+		// waits for the asynchronous writes of the transaction still pending, which would otherwise resurrect it
+		try {
+			orderedWrites.submit(txId, removal(txId)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SipCacheException("Interrupted while removing the server transaction " + txId, e);
+		} catch (ExecutionException e) {
+			throw new SipCacheException("A problem occured while removing the server transaction " + txId, e.getCause());
+		}
+	}
+	
+	/**
+	 * Same as {@link #putServerTransaction(SIPServerTransaction)} without waiting for the writes,
+	 * the meta data being read on the calling thread
+	 */
+	public List<Future<?>> putServerTransactionAsync(SIPServerTransaction serverTransaction) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("putServerTransactionAsync(" + serverTransaction.getTransactionId() + ")");
+		
+		final MobicentsHASIPServerTransaction haServerTransaction = (MobicentsHASIPServerTransaction) serverTransaction;
+		final long lifespan = getTransactionCacheTTL() > 0 ? getTransactionCacheTTL() : -1;
+		final long maxIdle = getTransactionCacheMaxIdle() > 0 ? getTransactionCacheMaxIdle() : -1;
+		final String txId = serverTransaction.getTransactionId();
+		final Map<String, Object> metaData = haServerTransaction.getMetaDataToReplicate();
+		final Object transactionAppData = haServerTransaction.getApplicationDataToReplicate();
+		final List<Future<?>> puts = new ArrayList<Future<?>>(1);
+		puts.add(orderedWrites.submit(txId, new OrderedAsyncWrites.Write() {
+			public List<Future<?>> issue() {
+				final List<Future<?>> operations = new ArrayList<Future<?>>(2);
+				operations.add(getServerTransactions().putAsync(txId, metaData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS));
+				if(transactionAppData != null) {
+					operations.add(getServerTransactionsApp().putAsync(txId, transactionAppData, lifespan, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS));
+				}
+				return operations;
+			}
+		}));
+		return puts;
+	}
+	
+	public List<Future<?>> removeServerTransactionAsync(String txId) {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_TRACE))
+			logger.logDebug("removeServerTransactionAsync(" + txId + ")");
+		final List<Future<?>> removals = new ArrayList<Future<?>>(1);
+		removals.add(orderedWrites.submit(txId, removal(txId)));
+		return removals;
+	}
+	
+	/**
+	 * @return the transaction cache TTL of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheTTL() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheTTL() : 0;
+	}
+	
+	/**
+	 * @return the transaction cache max idle time of the stack, 0 if it doesn't have one
+	 */
+	private long getTransactionCacheMaxIdle() {
+		return stack instanceof ClusteredSipStackExt ? ((ClusteredSipStackExt) stack).getTransactionCacheMaxIdle() : 0;
+	}
+	
+	private OrderedAsyncWrites.Write removal(final String txId) {
+		return new OrderedAsyncWrites.Write() {
+			public List<Future<?>> issue() {
+				final List<Future<?>> operations = new ArrayList<Future<?>>(2);
+				operations.add(getServerTransactions().removeAsync(txId));
+				operations.add(getServerTransactionsApp().removeAsync(txId));
+				return operations;
+			}
+		};
 	}
 	
 	public MobicentsHASIPServerTransaction createServerTransaction(String txId, Map<String, Object> transactionMetaData, Object transactionAppData) throws SipCacheException {
@@ -0,0 +1,109 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2016, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
+
+/**
+ * Future of a write made of several asynchronous operations issued one after the other, 
+ * completed by the code issuing them once the last one completed. It can't be cancelled.
+ */
+class SettableNotifyingFuture<T> implements NotifyingFuture<T> {
+	private final CountDownLatch completion = new CountDownLatch(1);
+	private final List<FutureListener<T>> listeners = new ArrayList<FutureListener<T>>(1);
+	private boolean done;
+	private T value;
+	private Throwable failure;
+
+	/**
+	 * Completes the future and notifies its listeners
+	 * @param value the result of the write, ignored if it failed
+	 * @param failure the cause of the failure of the write, null if it succeeded
+	 * @return false if the future was already completed
+	 */
+	boolean complete(T value, Throwable failure) {
+		final List<FutureListener<T>> completionListeners;
+		synchronized (this) {
+			if(done) {
+				return false;
+			}
+			done = true;
+			this.value = value;
+			this.failure = failure;
+			completionListeners = new ArrayList<FutureListener<T>>(listeners);
+			listeners.clear();
+		}
+		completion.countDown();
+		for (FutureListener<T> listener : completionListeners) {
+			listener.futureDone(this);
+		}
+		return true;
+	}
+
+	public NotifyingFuture<T> attachListener(FutureListener<T> listener) {
+		synchronized (this) {
+			if(!done) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		listener.futureDone(this);
+		return this;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		return completion.getCount() == 0;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		completion.await();
+		return result();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!completion.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private synchronized T result() throws ExecutionException {
+		if(failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
@@ -71,6 +71,7 @@ import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
 import org.mobicents.ha.javax.sip.cache.infinispan.CacheManagerHolder;
 
 import gov.nist.javax.sip.stack.AbstractHASipDialog;
@@ -1018,8 +1019,8 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs
+				.get(shootme1.dialog.getDialogId()));
 		Object data = appData.get(shootme1.dialog.getDialogId());
 
 		assertNotNull(dialogId);
@@ -1116,8 +1117,8 @@ public class DialogRecoveryTest extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs
-				.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs
+				.get(shootme1.dialog.getDialogId()));
 
 		assertNotNull(dialogId);
 		assertNotNull(cachedMetaData);
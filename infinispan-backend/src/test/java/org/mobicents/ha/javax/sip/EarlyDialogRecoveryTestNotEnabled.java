@@ -71,6 +71,7 @@ import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
 import org.mobicents.ha.javax.sip.cache.infinispan.CacheManagerHolder;
 
 import gov.nist.javax.sip.stack.AbstractHASipDialog;
@@ -1017,7 +1018,7 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		
 		// compare dialog metadata with cache metadata
 		String dialogId = shootme1.dialog.getDialogId();
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(shootme1.dialog.getDialogId());
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs.get(shootme1.dialog.getDialogId()));
 		Object data = appData.get(shootme1.dialog.getDialogId());
 
 		assertNotNull(dialogId);
@@ -1152,7 +1153,7 @@ public class EarlyDialogRecoveryTestNotEnabled extends TestCase {
 		Thread.sleep(1000);
 		
 		// check dialog metada
-		Map<String, Object> cachedMetaData = (Map<String, Object>) dialogs.get(dialogId);
+		Map<String, Object> cachedMetaData = DialogStateCodec.asMap(dialogs.get(dialogId));
 		assertNotNull(cachedMetaData);
 		assertEquals(cachedMetaData.get(AbstractHASipDialog.DIALOG_STATE), DialogState.TERMINATED.getValue());
 		
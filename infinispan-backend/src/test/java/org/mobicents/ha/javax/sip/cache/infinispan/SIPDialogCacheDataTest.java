@@ -0,0 +1,319 @@
+package org.mobicents.ha.javax.sip.cache.infinispan;
+
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.stack.AbstractHASipDialog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.TestCase;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.mobicents.ha.javax.sip.ClusteredSipStack;
+import org.mobicents.ha.javax.sip.HASipDialog;
+import org.mobicents.ha.javax.sip.cache.DialogStateCodec;
+import org.mobicents.ha.javax.sip.cache.EncodedDialogMetaData;
+
+/**
+ * Checks that the entry of a dialog is only replaced if it still holds the value its changes were merged into,
+ * the changes being merged again into the entry written meanwhile by another node
+ */
+public class SIPDialogCacheDataTest extends TestCase {
+	private static final String DIALOG_ID = "dialog1";
+
+	private ConcurrentMap<Object, Object> entries;
+	private ConcurrentMap<Object, Object> appData;
+	// lifespan of the last write of each cache
+	private Map<Object, Object> lifespans;
+	// written by "another node" right after the entry of the dialog is read for the first time
+	private Object concurrentWrite;
+	private SIPDialogCacheData cacheData;
+
+	@Override
+	protected void setUp() throws Exception {
+		entries = new ConcurrentHashMap<Object, Object>();
+		appData = new ConcurrentHashMap<Object, Object>();
+		lifespans = new IdentityHashMap<Object, Object>();
+		concurrentWrite = null;
+		cacheData = new SIPDialogCacheData(stack(), cache(entries, true), cache(appData, false));
+	}
+
+	public void testDeltaMergedIntoEntryWrittenMeanwhile() throws Exception {
+		entries.put(DIALOG_ID, new EncodedDialogMetaData(fullState(5)));
+		final DialogStateCodec other = new DialogStateCodec();
+		other.putLong(AbstractHASipDialog.VERSION, 6);
+		other.put(AbstractHASipDialog.LOCAL_TAG, "local2");
+		concurrentWrite = new EncodedDialogMetaData(DialogStateCodec.merge(fullState(5), other.toByteArray()));
+
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 7);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(7))));
+
+		final Map<String, Object> stored = storedMetaData();
+		assertEquals(Long.valueOf(7), stored.get(AbstractHASipDialog.VERSION));
+		// the change of the other node is kept
+		assertEquals("local2", stored.get(AbstractHASipDialog.LOCAL_TAG));
+		assertEquals("sip:bob@127.0.0.1:5080", stored.get(AbstractHASipDialog.REMOTE_TARGET));
+	}
+
+	public void testOlderChangesDontOverwriteNewerEntry() throws Exception {
+		entries.put(DIALOG_ID, new EncodedDialogMetaData(fullState(5)));
+		final EncodedDialogMetaData newer = new EncodedDialogMetaData(fullState(7));
+		concurrentWrite = newer;
+
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertFalse(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6))));
+
+		assertEquals(newer, entries.get(DIALOG_ID));
+	}
+
+	public void testConcurrentDeltaOfSameVersionIsNotLost() throws Exception {
+		entries.put(DIALOG_ID, new EncodedDialogMetaData(fullState(5)));
+		final DialogStateCodec other = new DialogStateCodec();
+		other.putLong(AbstractHASipDialog.VERSION, 6);
+		other.put(AbstractHASipDialog.LOCAL_TAG, "local2");
+		concurrentWrite = new EncodedDialogMetaData(DialogStateCodec.merge(fullState(5), other.toByteArray()));
+
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		// the dialog is told its state is outdated instead of silently dropping the change of the other node
+		assertFalse(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6))));
+
+		assertEquals("local2", storedMetaData().get(AbstractHASipDialog.LOCAL_TAG));
+	}
+
+	public void testDeltaOfMissingEntryWritesFullState() throws Exception {
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6))));
+
+		final Map<String, Object> stored = storedMetaData();
+		assertEquals(Long.valueOf(6), stored.get(AbstractHASipDialog.VERSION));
+		assertEquals("remote", stored.get(AbstractHASipDialog.REMOTE_TAG));
+	}
+
+	public void testEntryCreatedMeanwhileIsNotOverwritten() throws Exception {
+		final EncodedDialogMetaData created = new EncodedDialogMetaData(fullState(8));
+		concurrentWrite = created;
+		assertFalse(cacheData.writeDialog(dialog(fullState(6), fullState(6))));
+
+		assertEquals(created, entries.get(DIALOG_ID));
+	}
+
+	public void testLegacyFormatWritesMaps() throws Exception {
+		cacheData.setLegacyFormat(true);
+		assertTrue(cacheData.writeDialog(dialog(fullState(5), fullState(5))));
+		assertTrue(entries.get(DIALOG_ID) instanceof Map);
+
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6))));
+		final Map<?, ?> stored = (Map<?, ?>) entries.get(DIALOG_ID);
+		assertEquals(Long.valueOf(6), stored.get(AbstractHASipDialog.VERSION));
+		assertEquals("remote", stored.get(AbstractHASipDialog.REMOTE_TAG));
+		assertEquals("sip:bob@127.0.0.1:5080", stored.get(AbstractHASipDialog.REMOTE_TARGET));
+
+		// entries written in the encoded format by an upgraded node are read and merged as well
+		entries.put(DIALOG_ID, new EncodedDialogMetaData(fullState(7)));
+		delta.putLong(AbstractHASipDialog.VERSION, 8);
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(8))));
+		assertTrue(entries.get(DIALOG_ID) instanceof Map);
+		assertEquals(Long.valueOf(8), storedMetaData().get(AbstractHASipDialog.VERSION));
+	}
+
+	public void testVersionEntryOnlyRaised() throws Exception {
+		final ConcurrentMap<Object, Object> versions = new ConcurrentHashMap<Object, Object>();
+		cacheData.setDialogVersions(versionCache(versions));
+		assertTrue(cacheData.writeDialog(dialog(fullState(5), fullState(5))));
+		assertEquals(Long.valueOf(5), versions.get(DIALOG_ID));
+
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6))));
+		assertEquals(Long.valueOf(6), versions.get(DIALOG_ID));
+
+		// the version entry written by another node after a newer write of the dialog entry is kept
+		versions.put(DIALOG_ID, Long.valueOf(9));
+		delta.putLong(AbstractHASipDialog.VERSION, 7);
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(7))));
+		assertEquals(Long.valueOf(9), versions.get(DIALOG_ID));
+	}
+
+	public void testEntriesExpireWithDialog() throws Exception {
+		final ConcurrentMap<Object, Object> versions = new ConcurrentHashMap<Object, Object>();
+		cacheData.setDialogVersions(versionCache(versions));
+		assertTrue(cacheData.writeDialog(dialog(fullState(5), fullState(5), 60000, "appdata")));
+		assertEquals("appdata", appData.get(DIALOG_ID));
+		assertEquals(Long.valueOf(60000), lifespans.get(entries));
+		assertEquals(Long.valueOf(60000), lifespans.get(appData));
+		assertEquals(Long.valueOf(60000), lifespans.get(versions));
+
+		// negative lifespans never expire
+		final DialogStateCodec delta = new DialogStateCodec();
+		delta.putLong(AbstractHASipDialog.VERSION, 6);
+		delta.put(AbstractHASipDialog.REMOTE_TARGET, "sip:bob@127.0.0.1:5080");
+		assertTrue(cacheData.writeDialog(dialog(delta.toByteArray(), fullState(6), 0, "appdata 2")));
+		assertEquals(Long.valueOf(-1), lifespans.get(entries));
+		assertEquals(Long.valueOf(-1), lifespans.get(appData));
+		assertEquals(Long.valueOf(-1), lifespans.get(versions));
+	}
+
+	private Map<String, Object> storedMetaData() throws Exception {
+		return DialogStateCodec.asMap(entries.get(DIALOG_ID));
+	}
+
+	private static byte[] fullState(long version) {
+		final Map<String, Object> metaData = new HashMap<String, Object>();
+		metaData.put(AbstractHASipDialog.VERSION, Long.valueOf(version));
+		metaData.put(AbstractHASipDialog.DIALOG_METHOD, "INVITE");
+		metaData.put(AbstractHASipDialog.REMOTE_TAG, "remote");
+		metaData.put(AbstractHASipDialog.LOCAL_TAG, "local");
+		return DialogStateCodec.encode(metaData);
+	}
+
+	private static HASipDialog dialog(byte[] metaData, byte[] fullState) {
+		return dialog(metaData, fullState, 0, null);
+	}
+
+	private static HASipDialog dialog(final byte[] metaData, final byte[] fullState, final long cacheTTL, final Object applicationData) {
+		return (HASipDialog) Proxy.newProxyInstance(HASipDialog.class.getClassLoader(), new Class[] {HASipDialog.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final String name = method.getName();
+				if("getDialogIdToReplicate".equals(name)) {
+					return DIALOG_ID;
+				}
+				if("getEncodedMetaDataToReplicate".equals(name)) {
+					return args == null ? metaData : fullState;
+				}
+				if("getVersion".equals(name)) {
+					return Long.valueOf(DialogStateCodec.readVersion(metaData));
+				}
+				if("getCacheTTL".equals(name)) {
+					return Long.valueOf(cacheTTL);
+				}
+				if("getApplicationDataToReplicate".equals(name)) {
+					return applicationData;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static ClusteredSipStack stack() {
+		final StackLogger logger = (StackLogger) Proxy.newProxyInstance(StackLogger.class.getClassLoader(), new Class[] {StackLogger.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return defaultValue(method.getReturnType());
+			}
+		});
+		return (ClusteredSipStack) Proxy.newProxyInstance(ClusteredSipStack.class.getClassLoader(), new Class[] {ClusteredSipStack.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if("getStackLogger".equals(method.getName())) {
+					return logger;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * A cache over a map comparing the values with equals, like the node owning an entry does,
+	 * letting another node write the entry of the dialog right after it is read for the first time
+	 */
+	@SuppressWarnings("unchecked")
+	private Cache<String, Object> cache(final ConcurrentMap<Object, Object> map, final boolean dialogs) {
+		return (Cache<String, Object>) Proxy.newProxyInstance(AdvancedCache.class.getClassLoader(), new Class[] {AdvancedCache.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final String name = method.getName();
+				if("get".equals(name)) {
+					final Object value = map.get(args[0]);
+					if(dialogs && concurrentWrite != null) {
+						map.put(args[0], concurrentWrite);
+						concurrentWrite = null;
+					}
+					return value;
+				}
+				if("putIfAbsentAsync".equals(name)) {
+					lifespans.put(map, args[2]);
+					return completed(map.putIfAbsent(args[0], args[1]));
+				}
+				if("replaceAsync".equals(name)) {
+					if(args.length == 7) {
+						lifespans.put(map, args[3]);
+						return completed(Boolean.valueOf(map.replace(args[0], args[1], args[2])));
+					}
+					lifespans.put(map, args[2]);
+					return completed(map.replace(args[0], args[1]));
+				}
+				if("getAdvancedCache".equals(name) || "withFlags".equals(name)) {
+					return proxy;
+				}
+				if("putAll".equals(name)) {
+					lifespans.put(map, args[1]);
+					map.putAll((Map<Object, Object>) args[0]);
+					return null;
+				}
+				if("remove".equals(name)) {
+					return map.remove(args[0]);
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private Cache<String, Long> versionCache(final ConcurrentMap<Object, Object> map) {
+		return (Cache<String, Long>) Proxy.newProxyInstance(AdvancedCache.class.getClassLoader(), new Class[] {AdvancedCache.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final String name = method.getName();
+				if("get".equals(name)) {
+					return map.get(args[0]);
+				}
+				if("putIfAbsent".equals(name)) {
+					lifespans.put(map, args[2]);
+					return map.putIfAbsent(args[0], args[1]);
+				}
+				if("replace".equals(name) && args.length == 7) {
+					lifespans.put(map, args[3]);
+					return Boolean.valueOf(map.replace(args[0], args[1], args[2]));
+				}
+				if("getAdvancedCache".equals(name) || "withFlags".equals(name)) {
+					return proxy;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static SettableNotifyingFuture<Object> completed(Object value) {
+		final SettableNotifyingFuture<Object> future = new SettableNotifyingFuture<Object>();
+		future.complete(value, null);
+		return future;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if(type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if(type == long.class) {
+			return Long.valueOf(0);
+		}
+		if(type == int.class) {
+			return Integer.valueOf(0);
+		}
+		return null;
+	}
+}
@@ -90,20 +90,6 @@ public class SipStackImpl extends ClusteredSipStackImpl implements SipStackImplM
 		return getSipCache().inLocalMode();
 	}
 	
-	/*
-	 * (non-Javadoc)
-	 * @see org.mobicents.ha.javax.sip.ClusteredSipStack#passivateDialog(org.mobicents.ha.javax.sip.HASipDialog)
-	 */
-	public void passivateDialog(HASipDialog dialog) {
-		String dialogId = dialog.getDialogIdToReplicate();
-		sipCache.evictDialog(dialogId);		
-		String mergeId = dialog.getMergeId();
-        if (mergeId != null) {
-            serverDialogMergeTestTable.remove(mergeId);
-        }
-		dialogTable.remove(dialogId);
-	}
-
 	public MessageProcessor[] getStackMessageProcessors() {
 		return getMessageProcessors();
 	}
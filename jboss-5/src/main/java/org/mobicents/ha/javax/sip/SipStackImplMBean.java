@@ -31,4 +31,11 @@ public interface SipStackImplMBean {
 	public int getNumberOfServerTransactions();
 	public int getNumberOfDialogs();
 	public boolean isLocalMode();
+	public boolean isHADegraded();
+	public long getHADegradedTime();
+	public long getNumberOfHADegradations();
+	public long getNumberOfTimedOutCacheOperations();
+	public long getNumberOfFailedCacheOperations();
+	public int getNumberOfDialogsQueuedWhileHADegraded();
+	public long getNumberOfDialogsDroppedWhileHADegraded();
 }
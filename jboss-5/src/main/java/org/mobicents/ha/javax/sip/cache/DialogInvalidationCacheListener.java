@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, Red Hat, Inc. and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.mobicents.ha.javax.sip.cache;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+
+import org.jboss.cache.Fqn;
+import org.jboss.cache.notifications.annotation.CacheListener;
+import org.jboss.cache.notifications.annotation.NodeModified;
+import org.jboss.cache.notifications.annotation.NodeRemoved;
+import org.jboss.cache.notifications.annotation.ViewChanged;
+import org.jboss.cache.notifications.event.NodeEvent;
+import org.jboss.cache.notifications.event.NodeModifiedEvent;
+import org.jboss.cache.notifications.event.NodeRemovedEvent;
+import org.jboss.cache.notifications.event.ViewChangedEvent;
+
+/**
+ * Listener on the cache notifying a {@link DialogInvalidationListener} about the dialogs 
+ * modified or removed by other nodes under the given base Fqn
+ * 
+ */
+@CacheListener
+public class DialogInvalidationCacheListener {
+	private static StackLogger clusteredlogger = CommonLogger.getLogger(DialogInvalidationCacheListener.class);
+
+	private final Fqn baseFqn;
+	private final DialogInvalidationListener dialogInvalidationListener;
+
+	public DialogInvalidationCacheListener(Fqn baseFqn, DialogInvalidationListener dialogInvalidationListener) {
+		this.baseFqn = baseFqn;
+		this.dialogInvalidationListener = dialogInvalidationListener;
+	}
+
+	@NodeModified
+	public void nodeModified(NodeModifiedEvent nodeModifiedEvent) {
+		invalidate(nodeModifiedEvent);
+	}
+
+	@NodeRemoved
+	public void nodeRemoved(NodeRemovedEvent nodeRemovedEvent) {
+		invalidate(nodeRemovedEvent);
+	}
+
+	private void invalidate(NodeEvent nodeEvent) {
+		if(nodeEvent.isPre() || nodeEvent.isOriginLocal()) {
+			return ;
+		}
+		final Fqn fqn = nodeEvent.getFqn();
+		if(fqn.size() != baseFqn.size() + 1 || !fqn.isChildOf(baseFqn)) {
+			return ;
+		}
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("dialog node " + fqn + " changed remotely, invalidating it");
+		}
+		dialogInvalidationListener.dialogInvalidated(fqn.getLastElementAsString());
+	}
+
+	@ViewChanged
+	public void viewChange(ViewChangedEvent viewChangedEvent) {
+		if(clusteredlogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			clusteredlogger.logDebug("View changed : " + viewChangedEvent.getNewView().getVid() + ", invalidating all dialogs");
+		}
+		// modifications may have been missed while the view was changing
+		dialogInvalidationListener.allDialogsInvalidated();
+	}
+}
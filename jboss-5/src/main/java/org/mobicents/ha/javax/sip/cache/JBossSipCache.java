@@ -32,6 +32,7 @@ import java.util.Properties;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.transaction.UserTransaction;
 
 import org.jboss.cache.Cache;
@@ -64,12 +65,28 @@ public class JBossSipCache implements SipCache {
 	protected Node<String, SIPDialog> dialogRootNode = null;
 	protected Node<String, SIPClientTransaction> clientTxRootNode = null;
 	protected Node<String, SIPServerTransaction> serverTxRootNode = null;
+	// looked up once per thread rather than for each operation, since the lookup creates a JNDI context
+	private final ThreadLocal<UserTransaction> userTransaction = new ThreadLocal<UserTransaction>();
 	
 	/**
 	 * 
 	 */
 	public JBossSipCache() {}
 
+	/**
+	 * @return the UserTransaction of the calling thread, looked up the first time it is needed
+	 */
+	protected UserTransaction getUserTransaction() throws NamingException {
+		UserTransaction tx = userTransaction.get();
+		if(tx == null) {
+			Properties prop = new Properties();
+			prop.put(Context.INITIAL_CONTEXT_FACTORY, "org.jboss.cache.transaction.DummyContextFactory");
+			tx = (UserTransaction) new InitialContext(prop).lookup("UserTransaction");
+			userTransaction.set(tx);
+		}
+		return tx;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.cache.SipCache#getDialog(java.lang.String)
 	 */
@@ -105,9 +122,7 @@ public class JBossSipCache implements SipCache {
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY, "org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop).lookup("UserTransaction");
+			tx = getUserTransaction();
 			if(tx != null) {
 				tx.begin();
 			}
@@ -130,9 +145,7 @@ public class JBossSipCache implements SipCache {
 	public void removeDialog(String dialogId) throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY, "org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop).lookup("UserTransaction");
+			tx = getUserTransaction();
 			if(tx != null) {
 				tx.begin();
 			}
@@ -209,6 +222,7 @@ public class JBossSipCache implements SipCache {
 		return cache.getConfiguration().getCacheMode() == CacheMode.LOCAL;
 	}
 
+	@Deprecated
 	public void evictDialog(String dialogId) {
 		cache.evict(Fqn.fromElements(dialogRootNode.getFqn(), Fqn.fromString(dialogId)));
 	}
@@ -231,9 +245,7 @@ public class JBossSipCache implements SipCache {
 			throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY, "org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop).lookup("UserTransaction");
+			tx = getUserTransaction();
 			if(tx != null) {
 				tx.begin();
 			}
@@ -254,9 +266,7 @@ public class JBossSipCache implements SipCache {
 			throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY, "org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop).lookup("UserTransaction");
+			tx = getUserTransaction();
 			if(tx != null) {
 				tx.begin();
 			}
@@ -294,11 +304,7 @@ public class JBossSipCache implements SipCache {
 			throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY,
-					"org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop)
-					.lookup("UserTransaction");
+			tx = getUserTransaction();
 			if (tx != null) {
 				tx.begin();
 			}
@@ -327,11 +333,7 @@ public class JBossSipCache implements SipCache {
 			throws SipCacheException {
 		UserTransaction tx = null;
 		try {
-			Properties prop = new Properties();
-			prop.put(Context.INITIAL_CONTEXT_FACTORY,
-					"org.jboss.cache.transaction.DummyContextFactory");
-			tx = (UserTransaction) new InitialContext(prop)
-					.lookup("UserTransaction");
+			tx = getUserTransaction();
 			if (tx != null) {
 				tx.begin();
 			}
@@ -26,7 +26,9 @@ import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 
+import java.util.Collection;
 import java.util.Properties;
+import java.util.Set;
 
 import org.jboss.cache.Fqn;
 import org.jboss.cache.Region;
@@ -44,7 +46,7 @@ import org.mobicents.ha.javax.sip.ReplicationStrategy;
  * @author martins
  *
  */
-public abstract class MobicentsSipCache implements SipCache {
+public abstract class MobicentsSipCache implements SipCache, ConditionalDialogWriter, DialogBatchWriter, DialogInvalidationNotifier, DialogOwnerIndex {
 	
 	ClusteredSipStack clusteredSipStack = null;
 	protected Properties configProperties;
@@ -61,6 +63,8 @@ public abstract class MobicentsSipCache implements SipCache {
 	private ServerTransactionDataRemovalListener serverTransactionDataRemovalListener;
 	private ClientTransactionCacheData clientTransactionCacheData;
 	private ClientTransactionDataRemovalListener clientTransactionDataRemovalListener;
+	private DialogInvalidationListener dialogInvalidationListener;
+	private DialogInvalidationCacheListener dialogInvalidationCacheListener;
 	
 	/**
 	 * 
@@ -89,13 +93,30 @@ public abstract class MobicentsSipCache implements SipCache {
 	 * @see org.mobicents.ha.javax.sip.cache.SipCache#putDialog(gov.nist.javax.sip.stack.SIPDialog)
 	 */
 	public void putDialog(SIPDialog dialog) throws SipCacheException {
-		dialogsCacheData.putSIPDialog(dialog);
+		putDialogIfNewer(dialog);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.ConditionalDialogWriter#putDialogIfNewer(gov.nist.javax.sip.stack.SIPDialog)
+	 */
+	public boolean putDialogIfNewer(SIPDialog dialog) throws SipCacheException {
+		return dialogsCacheData.putSIPDialog(dialog);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogBatchWriter#putDialogs(java.util.Collection)
+	 */
+	public Collection<SIPDialog> putDialogs(Collection<SIPDialog> dialogs) throws SipCacheException {
+		return dialogsCacheData.putSIPDialogs(dialogs);
 	}
 	
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.cache.SipCache#evictDialog(java.lang.String)
 	 */
+	@Deprecated
 	public void evictDialog(String dialogId) {
 		dialogsCacheData.evictSIPDialog(dialogId);
 	}
@@ -131,6 +152,14 @@ public abstract class MobicentsSipCache implements SipCache {
 		this.clusteredSipStack  = clusteredSipStack;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogInvalidationNotifier#setDialogInvalidationListener(org.mobicents.ha.javax.sip.cache.DialogInvalidationListener)
+	 */
+	public void setDialogInvalidationListener(DialogInvalidationListener dialogInvalidationListener) {
+		this.dialogInvalidationListener = dialogInvalidationListener;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.cache.SipCache#setConfigurationProperties(java.util.Properties)
 	 */
@@ -152,8 +181,14 @@ public abstract class MobicentsSipCache implements SipCache {
 		cluster.getMobicentsCache().startCache();
 		dialogsCacheData = new SIPDialogCacheData(Fqn.fromElements(name,SipCache.DIALOG_PARENT_FQN_ELEMENT),cluster.getMobicentsCache(), clusteredSipStack);
 		dialogsCacheData.create();		
+		dialogsCacheData.setOwnersFqn(Fqn.fromElements(name,SipCache.DIALOG_OWNERS_PARENT_FQN_ELEMENT));
+		dialogsCacheData.setLegacyFormat(configProperties == null || !ENCODED_WRITE_FORMAT.equalsIgnoreCase(configProperties.getProperty(DIALOG_CACHE_WRITE_FORMAT, LEGACY_WRITE_FORMAT)));
 		dialogDataRemovalListener = new DialogDataRemovalListener(dialogsCacheData.getNodeFqn(), clusteredSipStack);
 		cluster.addDataRemovalListener(dialogDataRemovalListener);
+		if(dialogInvalidationListener != null) {
+			dialogInvalidationCacheListener = new DialogInvalidationCacheListener(dialogsCacheData.getNodeFqn(), dialogInvalidationListener);
+			getMobicentsCache().getJBossCache().addCacheListener(dialogInvalidationCacheListener);
+		}
 		if(clusteredSipStack.getReplicationStrategy() == ReplicationStrategy.EarlyDialog) {
 			serverTransactionCacheData = new ServerTransactionCacheData(Fqn.fromElements(name,SipCache.SERVER_TX_PARENT_FQN_ELEMENT),cluster.getMobicentsCache(), clusteredSipStack);
 			serverTransactionCacheData.create();
@@ -186,6 +221,10 @@ public abstract class MobicentsSipCache implements SipCache {
 	public void stop() throws SipCacheException {
 		dialogsCacheData.remove();
 		cluster.removeDataRemovalListener(dialogDataRemovalListener);
+		if(dialogInvalidationCacheListener != null) {
+			getMobicentsCache().getJBossCache().removeCacheListener(dialogInvalidationCacheListener);
+			dialogInvalidationCacheListener = null;
+		}
 		if(clusteredSipStack.getReplicationStrategy() == ReplicationStrategy.EarlyDialog) {
 			serverTransactionCacheData.remove();
 			cluster.removeDataRemovalListener(serverTransactionDataRemovalListener);
@@ -194,6 +233,15 @@ public abstract class MobicentsSipCache implements SipCache {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see org.mobicents.ha.javax.sip.cache.DialogOwnerIndex#getDialogIds(java.lang.String, boolean)
+	 */
+	public Set<String> getDialogIds(String ownerId, boolean localOnly) throws SipCacheException {
+		// the tree is fully replicated, the local and cluster wide dialogs of an owner are the same
+		return dialogsCacheData.getDialogIds(ownerId);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.mobicents.ha.javax.sip.cache.SipCache#inLocalMode()
@@ -30,8 +30,14 @@ import gov.nist.javax.sip.stack.AbstractHASipDialog;
 import gov.nist.javax.sip.stack.SIPDialog;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.sip.PeerUnavailableException;
 import javax.sip.SipFactory;
@@ -59,13 +65,85 @@ import org.mobicents.ha.javax.sip.HASipDialogFactory;
  */
 public class SIPDialogCacheData extends CacheData {
 	private static final String APPDATA = "APPDATA";
+	private static final String METADATA = "METADATA";
 	private ClusteredSipStack clusteredSipStack;	
+	private Fqn ownersFqn;
+	private boolean legacyFormat;
 	private static StackLogger logger = CommonLogger.getLogger(SIPDialogCacheData.class);
 	public SIPDialogCacheData(Fqn nodeFqn, MobicentsCache mobicentsCache, ClusteredSipStack clusteredSipStack) {
 		super(nodeFqn, mobicentsCache);
 		this.clusteredSipStack = clusteredSipStack;
 	}
 	
+	/**
+	 * @param legacyFormat true to store the meta data fields directly in the node of the dialog as previous releases do,
+	 * false to store them encoded in a single attribute
+	 */
+	public void setLegacyFormat(boolean legacyFormat) {
+		this.legacyFormat = legacyFormat;
+	}
+	
+	/**
+	 * @param ownersFqn the Fqn under which a sub tree per owner node holds an empty node per dialog it owns
+	 */
+	public void setOwnersFqn(Fqn ownersFqn) {
+		this.ownersFqn = ownersFqn;
+	}
+	
+	/**
+	 * @param ownerId the id of the owner node
+	 * @return the ids of the dialogs owned by the node, read from its sub tree without going through the dialogs
+	 */
+	public Set<String> getDialogIds(String ownerId) throws SipCacheException {
+		if(ownersFqn == null) {
+			throw new SipCacheException("No dialog owners Fqn");
+		}
+		final Set<String> dialogIds = new HashSet<String>();
+		for (Object dialogId : getMobicentsCache().getJBossCache().getChildrenNames(Fqn.fromRelativeElements(ownersFqn, ownerId))) {
+			dialogIds.add((String) dialogId);
+		}
+		return dialogIds;
+	}
+	
+	/**
+	 * Moves the dialog to the sub tree of its new owner, within the transaction replicating the dialog
+	 * @param dialogId the id of the dialog
+	 * @param cachedMetaData the meta data in the cache before the replication, null if there was none, 
+	 * a map if it was stored by a previous release
+	 * @param dialogMetaData the meta data replicated, holding the owner only if it changed
+	 */
+	private void indexOwner(String dialogId, Object cachedMetaData, byte[] dialogMetaData) throws SipCacheException {
+		if(ownersFqn == null) {
+			return;
+		}
+		final String owner = DialogStateCodec.readOwner(dialogMetaData);
+		if(owner == null) {
+			return;
+		}
+		final String previousOwner = DialogStateCodec.readStoredOwner(cachedMetaData);
+		if(owner.equals(previousOwner)) {
+			return;
+		}
+		final Cache jbossCache = getMobicentsCache().getJBossCache();
+		if(previousOwner != null) {
+			jbossCache.removeNode(Fqn.fromRelativeElements(ownersFqn, previousOwner, dialogId));
+		}
+		jbossCache.getRoot().addChild(Fqn.fromRelativeElements(ownersFqn, owner, dialogId));
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("HA SIP Dialog " + dialogId + " owner changed from " + previousOwner + " to " + owner);
+		}
+	}
+	
+	private void unindexOwner(String dialogId, Object cachedMetaData) throws SipCacheException {
+		if(ownersFqn == null || cachedMetaData == null) {
+			return;
+		}
+		final String owner = DialogStateCodec.readStoredOwner(cachedMetaData);
+		if(owner != null) {
+			getMobicentsCache().getJBossCache().removeNode(Fqn.fromRelativeElements(ownersFqn, owner, dialogId));
+		}
+	}
+	
 	public SIPDialog getSIPDialog(String dialogId) throws SipCacheException {
 		HASipDialog haSipDialog = null;
 		final Cache jbossCache = getMobicentsCache().getJBossCache();
@@ -96,7 +174,7 @@ public class SIPDialogCacheData extends CacheData {
             final Node<String,Object> childNode = getNode().getChild(dialogId);
 			if(childNode != null) {
 				try {
-					final Map<String, Object> dialogMetaData = childNode.getData();		
+					final Map<String, Object> dialogMetaData = getDialogMetaData(childNode);		
 					final Object dialogAppData = childNode.get(APPDATA);
 						
 					haSipDialog = createDialog(dialogId, dialogMetaData, dialogAppData);
@@ -180,11 +258,16 @@ public class SIPDialogCacheData extends CacheData {
 			final Node<String,Object> childNode = getNode().getChild(dialogId);
 			if(childNode != null) {
 				try {
-					final Map<String, Object> dialogMetaData = childNode.getData();
-					
 					final HASipDialog haSipDialog = (HASipDialog) sipDialog;
-					final Object dialogAppData = childNode.get(APPDATA);
-					updateDialog(haSipDialog, dialogMetaData, dialogAppData);				
+					// check the version first, the meta data is only decoded if the cached one is newer
+					final Object encodedMetaData = childNode.get(METADATA);
+					if(encodedMetaData == null || DialogStateCodec.readStoredVersion(encodedMetaData) > haSipDialog.getVersion()) {
+						final Map<String, Object> dialogMetaData = getDialogMetaData(childNode);
+						final Object dialogAppData = childNode.get(APPDATA);
+						updateDialog(haSipDialog, dialogMetaData, dialogAppData);
+					} else if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("HA SIP Dialog " + dialogId + " version " + haSipDialog.getVersion() + " is not older than the one in the cache, not updating it");
+					}
 				} catch (CacheException e) {
 					throw new SipCacheException("A problem occured while retrieving the following dialog " + dialogId + " from the Cache", e);
 				}
@@ -285,6 +368,29 @@ public class SIPDialogCacheData extends CacheData {
 		}
 	}
 
+	/**
+	 * @return the meta data fields stored directly in the node of the dialog by a previous release, null if there are none
+	 */
+	private static Map<String, Object> getLegacyMetaData(Node<String,Object> childNode) {
+		final Map<String, Object> legacyMetaData = new HashMap<String, Object>(childNode.getData());
+		legacyMetaData.remove(APPDATA);
+		return legacyMetaData.isEmpty() ? null : legacyMetaData;
+	}
+
+	/**
+	 * Read the dialog meta data from the node, falling back to the one attribute per field layout
+	 * used by previous releases when no encoded meta data is present
+	 * @param childNode
+	 * @return
+	 */
+	private static Map<String, Object> getDialogMetaData(Node<String,Object> childNode) throws SipCacheException {
+		final Object encodedMetaData = childNode.get(METADATA);
+		if(encodedMetaData != null) {
+			return DialogStateCodec.asMap(encodedMetaData);
+		}
+		return childNode.getData();
+	}
+
 	/**
 	 * Update the haSipDialog passed in param with the dialogMetaData and app meta data
 	 * @param dialogMetaData
@@ -312,7 +418,10 @@ public class SIPDialogCacheData extends CacheData {
 		}
 	}
 	
-	public void putSIPDialog(SIPDialog dialog) throws SipCacheException {
+	/**
+	 * @return false if the cache holds a version of the dialog at least as recent, in which case nothing was written
+	 */
+	public boolean putSIPDialog(SIPDialog dialog) throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logStackTrace();
 		}
@@ -321,74 +430,107 @@ public class SIPDialogCacheData extends CacheData {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug("put HA SIP Dialog " + dialog + " with dialog " + dialogId);
 		}
-		final Cache jbossCache = getMobicentsCache().getJBossCache();
-		TransactionManager transactionManager = jbossCache.getConfiguration().getRuntimeConfig().getTransactionManager();		
-		boolean doTx = false;
-		try {
-			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-				logger.logDebug("transaction manager :" + transactionManager);
-			}
-			if(transactionManager != null && transactionManager.getTransaction() == null) {
-				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-					logger.logDebug("transaction manager begin transaction");
-				}
-				transactionManager.begin();				
-				doTx = true;				
-	        }			
-			final Node childNode = getNode().addChild(Fqn.fromElements(dialogId));
-			for (Entry<String, Object> metaData : haSipDialog.getMetaDataToReplicate().entrySet()) {
-				childNode.put(metaData.getKey(), metaData.getValue());
-			}
-			final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
-			if(dialogAppData != null) {
-				childNode.put(APPDATA, dialogAppData);
-			}
-		} catch (Exception ex) {
-			try {
-				if(transactionManager != null) {
-					// Let's set it no matter what.
-					transactionManager.setRollbackOnly();
+		return runInTransaction("put the dialog " + dialogId, new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				final Node<String,Object> childNode = getNode().addChild(Fqn.fromElements(dialogId));
+				byte[] dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate();
+				final Object encodedMetaData = childNode.get(METADATA);
+				// a node written by a previous release holds the meta data fields directly
+				final Map<String, Object> legacyMetaData = encodedMetaData == null ? getLegacyMetaData(childNode) : null;
+				final Object cachedMetaData = encodedMetaData != null ? encodedMetaData : legacyMetaData;
+				if(cachedMetaData != null && DialogStateCodec.readStoredVersion(cachedMetaData) >= DialogStateCodec.readVersion(dialogMetaData)) {
+					if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("dialog " + dialogId + " version " + haSipDialog.getVersion() + " is not newer than the one in the cache, not replicating it");
+					}
+					return Boolean.FALSE;
 				}
-			} catch (Exception exn) {
-				logger.logError("Problem rolling back session mgmt transaction",
-						exn);
-			}			
-		} finally {
-			if (doTx) {
-				try {
-					if (transactionManager.getTransaction().getStatus() != Status.STATUS_MARKED_ROLLBACK) {
+				final byte[] mergedMetaData;
+				if(encodedMetaData != null) {
+					mergedMetaData = DialogStateCodec.merge(DialogStateCodec.asByteArray(encodedMetaData), dialogMetaData);
+				} else {
+					// in the legacy format the fields of a delta are put over the ones written field by field, as previous releases do
+					if(!DialogStateCodec.isFullState(dialogMetaData) && (!legacyFormat || legacyMetaData == null)) {
+						// a delta can't be applied if the entry is not in the cache anymore or was written field by field 
+						// by a previous release, replicate the full state instead
 						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							logger.logDebug("transaction manager committing transaction");
+							logger.logDebug("dialog " + dialogId + (legacyMetaData != null ? " stored by a previous release" : " not found in the cache") + ", replicating its full state");
 						}
-						transactionManager.commit();
-					} else {
-						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							logger.logDebug("endBatch(): rolling back batch");
+						dialogMetaData = haSipDialog.getEncodedMetaDataToReplicate(true);
+					}
+					mergedMetaData = dialogMetaData;
+				}
+				if(legacyFormat) {
+					if(encodedMetaData != null) {
+						childNode.remove(METADATA);
+					}
+					childNode.putAll(DialogStateCodec.decode(mergedMetaData));
+				} else {
+					if(legacyMetaData != null) {
+						for (String key : legacyMetaData.keySet()) {
+							childNode.remove(key);
 						}
-						transactionManager.rollback();
 					}
-				} catch (RollbackException re) {
-					// Do nothing here since cache may rollback automatically.
-					logger.logWarning("endBatch(): rolling back transaction with exception: "
-									+ re);
-				} catch (RuntimeException re) {
-					throw re;
-				} catch (Exception e) {
-					throw new RuntimeException(
-							"endTransaction(): Caught Exception ending batch: ",
-							e);
+					childNode.put(METADATA, mergedMetaData);
 				}
+				indexOwner(dialogId, cachedMetaData, dialogMetaData);
+				final Object dialogAppData = haSipDialog.getApplicationDataToReplicate();
+				if(dialogAppData != null) {
+					childNode.put(APPDATA, dialogAppData);
+				}
+				return Boolean.TRUE;
 			}
+		}).booleanValue();
+	}
+
+	/**
+	 * Writes several dialogs in a single transaction, unless one is already running in which case they join it.
+	 * If one of them can't be written none is.
+	 * @return the dialogs not written because the cache holds a version at least as recent
+	 */
+	public Collection<SIPDialog> putSIPDialogs(final Collection<SIPDialog> dialogs) throws SipCacheException {
+		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug("put " + dialogs.size() + " HA SIP Dialogs");
 		}
+		return runInTransaction("put " + dialogs.size() + " dialogs", new Callable<Collection<SIPDialog>>() {
+			public Collection<SIPDialog> call() throws Exception {
+				final List<SIPDialog> outdated = new ArrayList<SIPDialog>();
+				for (SIPDialog dialog : dialogs) {
+					// joins the transaction started for the batch, a failure rolls the whole batch back
+					if(!putSIPDialog(dialog)) {
+						outdated.add(dialog);
+					}
+				}
+				return outdated;
+			}
+		});
 	}
 
-	public boolean removeSIPDialog(String dialogId) {
+	public boolean removeSIPDialog(final String dialogId) throws SipCacheException {
 		if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 			logger.logDebug("remove HA SIP Dialog " + dialogId);
 		}
-		boolean succeeded = false;
-		final Cache jbossCache = getMobicentsCache().getJBossCache();
-		TransactionManager transactionManager = jbossCache.getConfiguration().getRuntimeConfig().getTransactionManager();		
+		return runInTransaction("remove the dialog " + dialogId, new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				final Node childNode = getNode().getChild(dialogId);
+				if(childNode != null) {
+					unindexOwner(dialogId, childNode.get(METADATA));
+				}
+				return Boolean.valueOf(getNode().removeChild(dialogId));
+			}
+		}).booleanValue();
+	}
+
+	/**
+	 * Runs the work in a transaction, started here unless one is already running in which case the work joins it.
+	 * A failure marks the transaction for rollback, rolls it back if it was started here, and is thrown so that the
+	 * caller knows nothing was written
+	 * @param operation what the work does, for the error messages
+	 * @param work the cache operations
+	 * @return the result of the work
+	 * @throws SipCacheException if the work failed or the transaction couldn't be committed
+	 */
+	private <T> T runInTransaction(String operation, Callable<T> work) throws SipCacheException {
+		final TransactionManager transactionManager = getMobicentsCache().getJBossCache().getConfiguration().getRuntimeConfig().getTransactionManager();
 		boolean doTx = false;
 		try {
 			if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -398,48 +540,57 @@ public class SIPDialogCacheData extends CacheData {
 				if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
 					logger.logDebug("transaction manager begin transaction");
 				}
-				transactionManager.begin();				
-				doTx = true;				
-	        }			
-			succeeded = getNode().removeChild(dialogId);
+				transactionManager.begin();
+				doTx = true;
+			}
+		} catch (Exception e) {
+			throw new SipCacheException("Couldn't begin the transaction to " + operation, e);
+		}
+		final T result;
+		try {
+			result = work.call();
 		} catch (Exception ex) {
-			try {
-				if(transactionManager != null) {
-					// Let's set it no matter what.
-					transactionManager.setRollbackOnly();
-				}
-			} catch (Exception exn) {
-				logger.logError("Problem rolling back session mgmt transaction",
-						exn);
-			}			
-		} finally {
-			if (doTx) {
+			if(transactionManager != null) {
 				try {
-					if (transactionManager.getTransaction().getStatus() != Status.STATUS_MARKED_ROLLBACK) {
-						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							logger.logDebug("transaction manager committing transaction");
-						}
-						transactionManager.commit();
-					} else {
-						if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-							logger.logDebug("endBatch(): rolling back batch");
-						}
+					if(doTx) {
 						transactionManager.rollback();
+					} else {
+						// the transaction belongs to the caller, which is told through the exception
+						transactionManager.setRollbackOnly();
 					}
-				} catch (RollbackException re) {
-					// Do nothing here since cache may rollback automatically.
-					logger.logWarning("endBatch(): rolling back transaction with exception: "
-									+ re);
-				} catch (RuntimeException re) {
-					throw re;
-				} catch (Exception e) {
-					throw new RuntimeException(
-							"endTransaction(): Caught Exception ending batch: ",
-							e);
+				} catch (Exception exn) {
+					logger.logError("Problem rolling back session mgmt transaction", exn);
+				}
+			}
+			if(ex instanceof SipCacheException) {
+				throw (SipCacheException) ex;
+			}
+			throw new SipCacheException("A problem occured while trying to " + operation + " in the Cache", ex);
+		}
+		if(doTx) {
+			try {
+				if(transactionManager.getTransaction().getStatus() != Status.STATUS_MARKED_ROLLBACK) {
+					if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("transaction manager committing transaction");
+					}
+					transactionManager.commit();
+				} else {
+					if(logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+						logger.logDebug("endBatch(): rolling back batch");
+					}
+					transactionManager.rollback();
+					throw new SipCacheException("The transaction to " + operation + " was marked for rollback");
 				}
+			} catch (SipCacheException e) {
+				throw e;
+			} catch (RollbackException e) {
+				// the cache rolled it back, nothing was written
+				throw new SipCacheException("The transaction to " + operation + " was rolled back", e);
+			} catch (Exception e) {
+				throw new SipCacheException("Couldn't commit the transaction to " + operation, e);
 			}
 		}
-		return succeeded;
+		return result;
 	}
 
 	public void evictSIPDialog(String dialogId) {